@@ -0,0 +1,142 @@
+/**
+*    Copyright 2013 University of Helsinki
+*
+*    Licensed under the Apache License, Version 2.0 (the "License"); you may
+*    not use this file except in compliance with the License. You may obtain
+*    a copy of the License at
+*
+*         http://www.apache.org/licenses/LICENSE-2.0
+*
+*    Unless required by applicable law or agreed to in writing, software
+*    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+*    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+*    License for the specific language governing permissions and limitations
+*    under the License.
+**/
+
+package net.floodlightcontroller.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+/**
+ * Run a list of benchmark classes (their main methods) one after another
+ * in this JVM and write all MicroBenchmark results as one JSON document,
+ * so that the results of different builds can be compared:
+ *
+ *   { "time": ..., "java": ..., "processors": ..., "warmupMs": ...,
+ *     "measureMs": ..., "iterations": ...,
+ *     "results": [ { "suite": ..., "benchmark": ..., "nsPerOp": ...,
+ *                    "minNsPerOp": ..., "maxNsPerOp": ...,
+ *                    "opsPerSec": ... }, ... ],
+ *     "failed": [ suite, ... ] }
+ *
+ * The suite of a result is the simple name of its class. The file is
+ * given by the bench.json system property, without it the results are
+ * only printed. A failing suite does not stop the others, but the runner
+ * exits with an error after writing the results.
+ *
+ */
+public final class BenchmarkRunner {
+
+    private BenchmarkRunner() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        List<String> failed = new ArrayList<String>();
+        for (String className: args) {
+            className = className.trim();
+            if (className.length() == 0) {
+                continue;
+            }
+            String suite = className.substring(className.lastIndexOf('.') + 1);
+            System.out.println("# " + suite);
+            MicroBenchmark.setSuite(suite);
+            try {
+                Method main = Class.forName(className).getMethod("main", String[].class);
+                main.invoke(null, (Object) new String[0]);
+            } catch (InvocationTargetException e) {
+                System.err.println(suite + " failed: " + e.getCause());
+                e.getCause().printStackTrace();
+                failed.add(suite);
+            } catch (ClassNotFoundException e) {
+                System.err.println(suite + " can not be run: " + e);
+                failed.add(suite);
+            } catch (NoSuchMethodException e) {
+                System.err.println(suite + " can not be run: " + e);
+                failed.add(suite);
+            } catch (IllegalAccessException e) {
+                System.err.println(suite + " can not be run: " + e);
+                failed.add(suite);
+            }
+        }
+
+        String file = System.getProperty("bench.json");
+        if (file != null && file.length() > 0) {
+            writeJson(new File(file), MicroBenchmark.getResults(), failed);
+            System.out.println("Results written to " + file);
+        }
+        if (!failed.isEmpty()) {
+            System.err.println("Failed suites: " + failed);
+            System.exit(1);
+        }
+        // modules started by the suites leave non-daemon threads behind
+        System.exit(0);
+    }
+
+    static void writeJson(File file, List<MicroBenchmark.Result> results,
+                          List<String> failed) throws IOException {
+        File dir = file.getAbsoluteFile().getParentFile();
+        if (dir != null) {
+            dir.mkdirs();
+        }
+        SimpleDateFormat iso = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+        iso.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+        JsonGenerator g = new JsonFactory().createGenerator(file, JsonEncoding.UTF8);
+        try {
+            g.useDefaultPrettyPrinter();
+            g.writeStartObject();
+            g.writeStringField("time", iso.format(new Date()));
+            g.writeStringField("java", System.getProperty("java.vm.name")
+                    + " " + System.getProperty("java.version"));
+            g.writeNumberField("processors", Runtime.getRuntime().availableProcessors());
+            g.writeNumberField("warmupMs", MicroBenchmark.getWarmupMs());
+            g.writeNumberField("measureMs", MicroBenchmark.getMeasureMs());
+            g.writeNumberField("iterations", MicroBenchmark.getIterations());
+
+            g.writeArrayFieldStart("results");
+            for (MicroBenchmark.Result r: results) {
+                g.writeStartObject();
+                g.writeStringField("suite", r.getSuite());
+                g.writeStringField("benchmark", r.getName());
+                g.writeNumberField("nsPerOp", r.getNsPerOp());
+                g.writeNumberField("minNsPerOp", r.getMinNsPerOp());
+                g.writeNumberField("maxNsPerOp", r.getMaxNsPerOp());
+                g.writeNumberField("opsPerSec", 1e9 / r.getNsPerOp());
+                g.writeEndObject();
+            }
+            g.writeEndArray();
+
+            g.writeArrayFieldStart("failed");
+            for (String suite: failed) {
+                g.writeString(suite);
+            }
+            g.writeEndArray();
+            g.writeEndObject();
+        } finally {
+            g.close();
+        }
+    }
+}
@@ -0,0 +1,170 @@
+/**
+*    Copyright 2013 University of Helsinki
+*
+*    Licensed under the Apache License, Version 2.0 (the "License"); you may
+*    not use this file except in compliance with the License. You may obtain
+*    a copy of the License at
+*
+*         http://www.apache.org/licenses/LICENSE-2.0
+*
+*    Unless required by applicable law or agreed to in writing, software
+*    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+*    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+*    License for the specific language governing permissions and limitations
+*    under the License.
+**/
+
+package net.floodlightcontroller.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Minimal micro benchmark harness: time-boxed warmup followed by a number of
+ * measured iterations, reporting average time per operation.
+ *
+ * Every operation returns a value which is folded into a sink so that the JIT
+ * can not eliminate the measured code. Results are kept per suite, see
+ * BenchmarkRunner for writing them out.
+ *
+ */
+public final class MicroBenchmark {
+
+    public interface Operation {
+        public long run() throws Exception;
+    }
+
+    private static final long WARMUP_MS =
+            Long.getLong("bench.warmupMs", 1000);
+    private static final long MEASURE_MS =
+            Long.getLong("bench.measureMs", 2000);
+    private static final int ITERATIONS =
+            Integer.getInteger("bench.iterations", 5);
+
+    /**
+     * Time per operation of one measured benchmark
+     */
+    public static final class Result {
+        private final String suite;
+        private final String name;
+        private final double nsPerOp;
+        private final double minNsPerOp;
+        private final double maxNsPerOp;
+
+        Result(String suite, String name, double nsPerOp,
+               double minNsPerOp, double maxNsPerOp) {
+            this.suite = suite;
+            this.name = name;
+            this.nsPerOp = nsPerOp;
+            this.minNsPerOp = minNsPerOp;
+            this.maxNsPerOp = maxNsPerOp;
+        }
+
+        public String getSuite() {
+            return suite;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * average over all measured iterations
+         */
+        public double getNsPerOp() {
+            return nsPerOp;
+        }
+
+        /**
+         * fastest single iteration
+         */
+        public double getMinNsPerOp() {
+            return minNsPerOp;
+        }
+
+        /**
+         * slowest single iteration
+         */
+        public double getMaxNsPerOp() {
+            return maxNsPerOp;
+        }
+    }
+
+    private static volatile long sink;
+
+    private static final List<Result> results = new ArrayList<Result>();
+    private static String suite = "";
+
+    private MicroBenchmark() {
+    }
+
+    public static long getWarmupMs() {
+        return WARMUP_MS;
+    }
+
+    public static long getMeasureMs() {
+        return MEASURE_MS;
+    }
+
+    public static int getIterations() {
+        return ITERATIONS;
+    }
+
+    /**
+     * name results of the following measurements, e.g. by the benchmark
+     * class
+     */
+    public static synchronized void setSuite(String name) {
+        suite = name;
+    }
+
+    public static synchronized List<Result> getResults() {
+        return new ArrayList<Result>(results);
+    }
+
+    /**
+     * Measure op and print the result
+     *
+     * @return average nanoseconds per operation over all iterations
+     */
+    public static double measure(String name, Operation op) throws Exception {
+        runFor(op, WARMUP_MS);
+
+        long ops = 0;
+        long nanos = 0;
+        double min = Double.MAX_VALUE;
+        double max = 0;
+        for (int i = 0; i < ITERATIONS; i++) {
+            long start = System.nanoTime();
+            long n = runFor(op, MEASURE_MS / ITERATIONS);
+            long t = System.nanoTime() - start;
+            ops += n;
+            nanos += t;
+            min = Math.min(min, (double) t / n);
+            max = Math.max(max, (double) t / n);
+        }
+
+        double nsPerOp = (double) nanos / ops;
+        System.out.println(String.format("%-48s %12.1f ns/op %14.0f ops/s",
+                name, nsPerOp, 1e9 / nsPerOp));
+        synchronized (MicroBenchmark.class) {
+            results.add(new Result(suite, name, nsPerOp, min, max));
+        }
+        return nsPerOp;
+    }
+
+    private static long runFor(Operation op, long millis) throws Exception {
+        long deadline = System.nanoTime() + millis * 1000000L;
+        long ops = 0;
+        long acc = 0;
+        // check the clock only every 64 operations
+        do {
+            for (int i = 0; i < 64; i++) {
+                acc += op.run();
+            }
+            ops += 64;
+        } while (System.nanoTime() < deadline);
+        sink += acc;
+        return ops;
+    }
+}
@@ -0,0 +1,213 @@
+/**
+*    Copyright 2013 University of Helsinki
+*
+*    Licensed under the Apache License, Version 2.0 (the "License"); you may
+*    not use this file except in compliance with the License. You may obtain
+*    a copy of the License at
+*
+*         http://www.apache.org/licenses/LICENSE-2.0
+*
+*    Unless required by applicable law or agreed to in writing, software
+*    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+*    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+*    License for the specific language governing permissions and limitations
+*    under the License.
+**/
+
+package net.floodlightcontroller.core.internal;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.floodlightcontroller.bench.MicroBenchmark;
+import net.floodlightcontroller.core.FloodlightContext;
+import net.floodlightcontroller.core.IFloodlightProviderService;
+import net.floodlightcontroller.core.IFloodlightProviderService.Role;
+import net.floodlightcontroller.core.IOFMessageListener;
+import net.floodlightcontroller.core.IOFSwitch;
+import net.floodlightcontroller.core.module.FloodlightModuleContext;
+import net.floodlightcontroller.core.test.MockThreadPoolService;
+import net.floodlightcontroller.counter.CounterStore;
+import net.floodlightcontroller.counter.ICounterStoreService;
+import net.floodlightcontroller.debugcounter.DebugCounter;
+import net.floodlightcontroller.debugcounter.IDebugCounterService;
+import net.floodlightcontroller.debugevent.DebugEvent;
+import net.floodlightcontroller.debugevent.IDebugEventService;
+import net.floodlightcontroller.packet.ARP;
+import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.IPv4;
+import net.floodlightcontroller.perfmon.IPktInProcessingTimeService;
+import net.floodlightcontroller.perfmon.PktInProcessingTime;
+import net.floodlightcontroller.restserver.IRestApiService;
+import net.floodlightcontroller.restserver.RestApiServer;
+import net.floodlightcontroller.storage.IStorageSourceService;
+import net.floodlightcontroller.storage.memory.MemoryStorageSource;
+import net.floodlightcontroller.threadpool.IThreadPoolService;
+
+import org.openflow.protocol.OFMessage;
+import org.openflow.protocol.OFPacketIn;
+import org.openflow.protocol.OFPacketIn.OFPacketInReason;
+import org.openflow.protocol.OFType;
+import org.openflow.protocol.factory.BasicFactory;
+import org.sdnplatform.sync.ISyncService;
+import org.sdnplatform.sync.test.MockSyncService;
+
+/**
+ * PACKET_IN dispatch in Controller.handleMessage: payload decoding,
+ * packet-in counters, context allocation and the listener chain, with 1,
+ * 4 and 16 listeners that only read the decoded payload. The controller
+ * is set up as in ControllerTest.
+ *
+ */
+public class ControllerDispatchBenchmark {
+
+    private static class Listener implements IOFMessageListener {
+        private final String name;
+        long seen;
+
+        Listener(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public boolean isCallbackOrderingPrereq(OFType type, String n) {
+            return false;
+        }
+
+        @Override
+        public boolean isCallbackOrderingPostreq(OFType type, String n) {
+            return false;
+        }
+
+        @Override
+        public Command receive(IOFSwitch sw, OFMessage msg, FloodlightContext cntx) {
+            Ethernet eth = IFloodlightProviderService.bcStore.get(cntx,
+                    IFloodlightProviderService.CONTEXT_PI_PAYLOAD);
+            seen += eth.getEtherType();
+            return Command.CONTINUE;
+        }
+    }
+
+    private static Controller createController() throws Exception {
+        FloodlightModuleContext fmc = new FloodlightModuleContext();
+
+        FloodlightProvider cm = new FloodlightProvider();
+        fmc.addConfigParam(cm, "role", Role.MASTER.toString());
+        Controller controller =
+                (Controller) cm.getServiceImpls().get(IFloodlightProviderService.class);
+        fmc.addService(IFloodlightProviderService.class, controller);
+
+        MemoryStorageSource memstorage = new MemoryStorageSource();
+        fmc.addService(IStorageSourceService.class, memstorage);
+        RestApiServer restApi = new RestApiServer();
+        fmc.addService(IRestApiService.class, restApi);
+        CounterStore cs = new CounterStore();
+        fmc.addService(ICounterStoreService.class, cs);
+        PktInProcessingTime ppt = new PktInProcessingTime();
+        fmc.addService(IPktInProcessingTimeService.class, ppt);
+        DebugCounter debugCounterService = new DebugCounter();
+        fmc.addService(IDebugCounterService.class, debugCounterService);
+        DebugEvent debugEventService = new DebugEvent();
+        fmc.addService(IDebugEventService.class, debugEventService);
+        MockThreadPoolService tp = new MockThreadPoolService();
+        fmc.addService(IThreadPoolService.class, tp);
+        MockSyncService syncService = new MockSyncService();
+        fmc.addService(ISyncService.class, syncService);
+
+        ppt.init(fmc);
+        restApi.init(fmc);
+        memstorage.init(fmc);
+        tp.init(fmc);
+        debugCounterService.init(fmc);
+        debugEventService.init(fmc);
+        syncService.init(fmc);
+        cm.init(fmc);
+
+        ppt.startUp(fmc);
+        restApi.startUp(fmc);
+        memstorage.startUp(fmc);
+        tp.startUp(fmc);
+        debugCounterService.startUp(fmc);
+        debugEventService.startUp(fmc);
+        syncService.startUp(fmc);
+        cm.startUp(fmc);
+        return controller;
+    }
+
+    private static IOFSwitch createSwitch() {
+        return (IOFSwitch) Proxy.newProxyInstance(IOFSwitch.class.getClassLoader(),
+                new Class<?>[] { IOFSwitch.class }, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object p, Method m, Object[] args) {
+                        String name = m.getName();
+                        if (name.equals("getId")) {
+                            return 1L;
+                        } else if (name.equals("getStringId")) {
+                            return "00:00:00:00:00:00:00:01";
+                        } else if (name.equals("hashCode")) {
+                            return 1;
+                        } else if (name.equals("equals")) {
+                            return p == args[0];
+                        } else if (m.getReturnType() == boolean.class) {
+                            return false;
+                        }
+                        return null;
+                    }
+                });
+    }
+
+    private static OFPacketIn packetIn() {
+        byte[] data = new Ethernet()
+            .setSourceMACAddress("00:44:33:22:11:00")
+            .setDestinationMACAddress("00:11:22:33:44:55")
+            .setEtherType(Ethernet.TYPE_ARP)
+            .setPayload(
+                new ARP()
+                .setHardwareType(ARP.HW_TYPE_ETHERNET)
+                .setProtocolType(ARP.PROTO_TYPE_IP)
+                .setHardwareAddressLength((byte) 6)
+                .setProtocolAddressLength((byte) 4)
+                .setOpCode(ARP.OP_REPLY)
+                .setSenderHardwareAddress(Ethernet.toMACAddress("00:44:33:22:11:00"))
+                .setSenderProtocolAddress(IPv4.toIPv4AddressBytes("192.168.1.1"))
+                .setTargetHardwareAddress(Ethernet.toMACAddress("00:11:22:33:44:55"))
+                .setTargetProtocolAddress(IPv4.toIPv4AddressBytes("192.168.1.2")))
+            .serialize();
+        return ((OFPacketIn) BasicFactory.getInstance().getMessage(OFType.PACKET_IN))
+            .setBufferId(-1)
+            .setInPort((short) 1)
+            .setPacketData(data)
+            .setReason(OFPacketInReason.NO_MATCH)
+            .setTotalLength((short) data.length);
+    }
+
+    public static void main(String[] args) throws Exception {
+        final Controller controller = createController();
+        final IOFSwitch sw = createSwitch();
+        final OFPacketIn pi = packetIn();
+
+        final List<Listener> listeners = new ArrayList<Listener>();
+        for (int n: new int[] { 1, 4, 16 }) {
+            while (listeners.size() < n) {
+                Listener l = new Listener("listener" + listeners.size());
+                listeners.add(l);
+                controller.addOFMessageListener(OFType.PACKET_IN, l);
+            }
+            MicroBenchmark.measure("Controller.handleMessage " + n + " listeners",
+                    new MicroBenchmark.Operation() {
+                public long run() throws Exception {
+                    controller.handleMessage(sw, pi, null);
+                    return listeners.get(0).seen;
+                }
+            });
+        }
+    }
+}
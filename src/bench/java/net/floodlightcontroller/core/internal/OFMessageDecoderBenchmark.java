@@ -0,0 +1,165 @@
+/**
+*    Copyright 2013 University of Helsinki
+*
+*    Licensed under the Apache License, Version 2.0 (the "License"); you may
+*    not use this file except in compliance with the License. You may obtain
+*    a copy of the License at
+*
+*         http://www.apache.org/licenses/LICENSE-2.0
+*
+*    Unless required by applicable law or agreed to in writing, software
+*    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+*    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+*    License for the specific language governing permissions and limitations
+*    under the License.
+**/
+
+package net.floodlightcontroller.core.internal;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import net.floodlightcontroller.bench.MicroBenchmark;
+import net.floodlightcontroller.packet.ARP;
+import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.IPv4;
+import net.floodlightcontroller.util.MACAddress;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.openflow.protocol.OFFlowMod;
+import org.openflow.protocol.OFMatch;
+import org.openflow.protocol.OFMessage;
+import org.openflow.protocol.OFPacketIn;
+import org.openflow.protocol.OFPacketIn.OFPacketInReason;
+import org.openflow.protocol.OFStatisticsMessageBase;
+import org.openflow.protocol.OFStatisticsReply;
+import org.openflow.protocol.OFType;
+import org.openflow.protocol.action.OFAction;
+import org.openflow.protocol.action.OFActionOutput;
+import org.openflow.protocol.factory.BasicFactory;
+import org.openflow.protocol.statistics.OFFlowStatisticsReply;
+import org.openflow.protocol.statistics.OFStatistics;
+import org.openflow.protocol.statistics.OFStatisticsType;
+
+/**
+ * OpenFlow message parsing as done for every read from a switch channel:
+ * BasicFactory.parseMessage on a single PACKET_IN, a batch of 16, a
+ * FLOW_MOD and a flow statistics reply of 100 flows, and the netty
+ * OFMessageDecoder on the PACKET_IN batch.
+ *
+ */
+public class OFMessageDecoderBenchmark {
+    private static final BasicFactory factory = BasicFactory.getInstance();
+
+    private static OFPacketIn packetIn() {
+        byte[] data = new Ethernet()
+            .setSourceMACAddress("00:44:33:22:11:00")
+            .setDestinationMACAddress("ff:ff:ff:ff:ff:ff")
+            .setEtherType(Ethernet.TYPE_ARP)
+            .setPayload(
+                new ARP()
+                .setHardwareType(ARP.HW_TYPE_ETHERNET)
+                .setProtocolType(ARP.PROTO_TYPE_IP)
+                .setHardwareAddressLength((byte) 6)
+                .setProtocolAddressLength((byte) 4)
+                .setOpCode(ARP.OP_REQUEST)
+                .setSenderHardwareAddress(Ethernet.toMACAddress("00:44:33:22:11:00"))
+                .setSenderProtocolAddress(IPv4.toIPv4AddressBytes("192.168.1.1"))
+                .setTargetHardwareAddress(Ethernet.toMACAddress("00:00:00:00:00:00"))
+                .setTargetProtocolAddress(IPv4.toIPv4AddressBytes("192.168.1.2")))
+            .serialize();
+        OFPacketIn pi = ((OFPacketIn) factory.getMessage(OFType.PACKET_IN))
+            .setBufferId(-1)
+            .setInPort((short) 1)
+            .setPacketData(data)
+            .setReason(OFPacketInReason.NO_MATCH)
+            .setTotalLength((short) data.length);
+        return pi;
+    }
+
+    private static OFFlowMod flowMod() {
+        OFFlowMod fm = (OFFlowMod) factory.getMessage(OFType.FLOW_MOD);
+        OFMatch match = new OFMatch();
+        match.setWildcards(OFMatch.OFPFW_ALL & ~OFMatch.OFPFW_DL_DST);
+        match.setDataLayerDestination(Ethernet.toMACAddress("00:11:22:33:44:55"));
+        fm.setMatch(match);
+        fm.setActions(Collections.singletonList((OFAction) new OFActionOutput((short) 2)));
+        fm.setLengthU(OFFlowMod.MINIMUM_LENGTH + OFActionOutput.MINIMUM_LENGTH);
+        return fm;
+    }
+
+    private static OFStatisticsReply flowStatsReply(int flowNum) {
+        List<OFStatistics> flows = new ArrayList<OFStatistics>(flowNum);
+        for (int i = 0; i < flowNum; i++) {
+            OFMatch match = new OFMatch();
+            match.setWildcards(OFMatch.OFPFW_ALL & ~OFMatch.OFPFW_DL_DST);
+            match.setDataLayerDestination(MACAddress.valueOf(0x001e65000000L + i).toBytes());
+            OFFlowStatisticsReply r = new OFFlowStatisticsReply();
+            r.setMatch(match);
+            r.setByteCount(1000L * i);
+            r.setActions(Collections.singletonList((OFAction) new OFActionOutput((short) 2)));
+            r.setLength((short) (OFFlowStatisticsReply.MINIMUM_LENGTH
+                                 + OFActionOutput.MINIMUM_LENGTH));
+            flows.add(r);
+        }
+        OFStatisticsReply reply = (OFStatisticsReply) factory.getMessage(OFType.STATS_REPLY);
+        reply.setStatisticType(OFStatisticsType.FLOW);
+        reply.setStatistics(flows);
+        reply.setLengthU(OFStatisticsMessageBase.MINIMUM_LENGTH + flowNum
+                * (OFFlowStatisticsReply.MINIMUM_LENGTH + OFActionOutput.MINIMUM_LENGTH));
+        return reply;
+    }
+
+    private static ChannelBuffer write(OFMessage... msgs) {
+        ChannelBuffer buf = ChannelBuffers.dynamicBuffer();
+        for (OFMessage m: msgs) {
+            m.writeTo(buf);
+        }
+        return buf;
+    }
+
+    private static void measureParse(String name, final ChannelBuffer buf) throws Exception {
+        MicroBenchmark.measure("BasicFactory.parseMessage " + name, new MicroBenchmark.Operation() {
+            public long run() throws Exception {
+                buf.readerIndex(0);
+                return factory.parseMessage(buf).size();
+            }
+        });
+    }
+
+    public static void main(String[] args) throws Exception {
+        OFPacketIn pi = packetIn();
+        OFMessage[] batch = new OFMessage[16];
+        for (int i = 0; i < batch.length; i++) {
+            batch[i] = pi;
+        }
+        final ChannelBuffer batchBuf = write(batch);
+
+        measureParse("packet_in", write(pi));
+        measureParse("16 packet_in", batchBuf);
+        measureParse("flow_mod", write(flowMod()));
+        measureParse("stats_reply 100 flows", write(flowStatsReply(100)));
+
+        final OFMessageDecoder decoder = new OFMessageDecoder();
+        final Channel channel = (Channel) Proxy.newProxyInstance(
+                Channel.class.getClassLoader(), new Class<?>[] { Channel.class },
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object p, Method m, Object[] a) {
+                        return m.getName().equals("isConnected") ? Boolean.TRUE : null;
+                    }
+                });
+        MicroBenchmark.measure("OFMessageDecoder.decode 16 packet_in", new MicroBenchmark.Operation() {
+            public long run() throws Exception {
+                batchBuf.readerIndex(0);
+                return ((List<?>) decoder.decode(null, channel, batchBuf)).size();
+            }
+        });
+    }
+}
@@ -0,0 +1,161 @@
+/**
+*    Copyright 2013 University of Helsinki
+*
+*    Licensed under the Apache License, Version 2.0 (the "License"); you may
+*    not use this file except in compliance with the License. You may obtain
+*    a copy of the License at
+*
+*         http://www.apache.org/licenses/LICENSE-2.0
+*
+*    Unless required by applicable law or agreed to in writing, software
+*    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+*    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+*    License for the specific language governing permissions and limitations
+*    under the License.
+**/
+
+package net.floodlightcontroller.devicemanager.internal;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Date;
+
+import net.floodlightcontroller.bench.MicroBenchmark;
+import net.floodlightcontroller.core.IFloodlightProviderService;
+import net.floodlightcontroller.core.IFloodlightProviderService.Role;
+import net.floodlightcontroller.core.module.FloodlightModuleContext;
+import net.floodlightcontroller.core.test.MockFloodlightProvider;
+import net.floodlightcontroller.core.test.MockThreadPoolService;
+import net.floodlightcontroller.debugcounter.DebugCounter;
+import net.floodlightcontroller.debugcounter.IDebugCounterService;
+import net.floodlightcontroller.devicemanager.IDeviceService;
+import net.floodlightcontroller.devicemanager.IEntityClassifierService;
+import net.floodlightcontroller.flowcache.FlowReconcileManager;
+import net.floodlightcontroller.flowcache.IFlowReconcileService;
+import net.floodlightcontroller.restserver.IRestApiService;
+import net.floodlightcontroller.restserver.RestApiServer;
+import net.floodlightcontroller.storage.IStorageSourceService;
+import net.floodlightcontroller.storage.memory.MemoryStorageSource;
+import net.floodlightcontroller.threadpool.IThreadPoolService;
+import net.floodlightcontroller.topology.ITopologyService;
+
+import org.sdnplatform.sync.ISyncService;
+import org.sdnplatform.sync.test.MockSyncService;
+
+/**
+ * DeviceManagerImpl.learnDeviceByEntity, which runs for the source of
+ * every PACKET_IN: a single known host, 1000 known hosts in turn, and a
+ * host alternating between two switch ports (attachment point update).
+ * Topology says every port is an attachment point and every switch is
+ * its own L2 domain. The device manager is set up as in
+ * DeviceManagerImplTest, plus the debug counters it updates in production.
+ *
+ */
+public class DeviceManagerBenchmark {
+    private static final long MAC_BASE = 0x001e65000000L;
+
+    private static ITopologyService createTopology() {
+        return (ITopologyService) Proxy.newProxyInstance(
+                ITopologyService.class.getClassLoader(),
+                new Class<?>[] { ITopologyService.class }, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object p, Method m, Object[] args) {
+                        String name = m.getName();
+                        if (name.equals("isAttachmentPointPort")) {
+                            return true;
+                        } else if (name.equals("getL2DomainId")) {
+                            return args[0];
+                        } else if (name.equals("isConsistent")) {
+                            return args[0].equals(args[2]) && args[1].equals(args[3]);
+                        } else if (m.getReturnType() == boolean.class) {
+                            return false;
+                        }
+                        return null;
+                    }
+                });
+    }
+
+    private static DeviceManagerImpl createDeviceManager() throws Exception {
+        FloodlightModuleContext fmc = new FloodlightModuleContext();
+        RestApiServer restApi = new RestApiServer();
+        MockThreadPoolService tp = new MockThreadPoolService();
+        fmc.addService(IThreadPoolService.class, tp);
+        MockFloodlightProvider floodlightProvider = new MockFloodlightProvider();
+        floodlightProvider.setRole(Role.MASTER, "");
+        MockSyncService syncService = new MockSyncService();
+        DebugCounter debugCounterService = new DebugCounter();
+        fmc.addService(IDebugCounterService.class, debugCounterService);
+
+        DeviceManagerImpl deviceManager = new DeviceManagerImpl();
+        FlowReconcileManager flowReconcileMgr = new FlowReconcileManager();
+        DefaultEntityClassifier entityClassifier = new DefaultEntityClassifier();
+        MemoryStorageSource storageSource = new MemoryStorageSource();
+        fmc.addService(IDeviceService.class, deviceManager);
+        fmc.addService(IStorageSourceService.class, storageSource);
+        fmc.addService(IFloodlightProviderService.class, floodlightProvider);
+        fmc.addService(IRestApiService.class, restApi);
+        fmc.addService(IFlowReconcileService.class, flowReconcileMgr);
+        fmc.addService(IEntityClassifierService.class, entityClassifier);
+        fmc.addService(ITopologyService.class, createTopology());
+        fmc.addService(ISyncService.class, syncService);
+        tp.init(fmc);
+        debugCounterService.init(fmc);
+        restApi.init(fmc);
+        storageSource.init(fmc);
+        deviceManager.init(fmc);
+        flowReconcileMgr.init(fmc);
+        entityClassifier.init(fmc);
+        syncService.init(fmc);
+        debugCounterService.startUp(fmc);
+        storageSource.startUp(fmc);
+        deviceManager.startUp(fmc);
+        flowReconcileMgr.startUp(fmc);
+        tp.startUp(fmc);
+        entityClassifier.startUp(fmc);
+        syncService.startUp(fmc);
+        return deviceManager;
+    }
+
+    private static Entity entity(long mac, long sw, int port) {
+        return new Entity(mac, null, (int) (0x0a000000 + (mac & 0xffff)),
+                          sw, port, new Date());
+    }
+
+    public static void main(String[] args) throws Exception {
+        final DeviceManagerImpl deviceManager = createDeviceManager();
+
+        final Entity known = entity(MAC_BASE, 1L, 1);
+        deviceManager.learnDeviceByEntity(known);
+        MicroBenchmark.measure("learnDeviceByEntity known host", new MicroBenchmark.Operation() {
+            public long run() {
+                return deviceManager.learnDeviceByEntity(known).getDeviceKey();
+            }
+        });
+
+        final Entity[] hosts = new Entity[1000];
+        for (int i = 0; i < hosts.length; i++) {
+            hosts[i] = entity(MAC_BASE + 1 + i, 1L + i / 48, 1 + i % 48);
+            deviceManager.learnDeviceByEntity(hosts[i]);
+        }
+        MicroBenchmark.measure("learnDeviceByEntity 1000 known hosts", new MicroBenchmark.Operation() {
+            int next;
+
+            public long run() {
+                next = next == hosts.length - 1 ? 0 : next + 1;
+                return deviceManager.learnDeviceByEntity(hosts[next]).getDeviceKey();
+            }
+        });
+
+        final long mobileMac = MAC_BASE + 0x10000;
+        MicroBenchmark.measure("learnDeviceByEntity moving host", new MicroBenchmark.Operation() {
+            int port = 1;
+
+            public long run() {
+                port = 3 - port;
+                return deviceManager.learnDeviceByEntity(
+                        entity(mobileMac, 100L, port)).getDeviceKey();
+            }
+        });
+    }
+}
@@ -0,0 +1,195 @@
+/**
+*    Copyright 2013 University of Helsinki
+*
+*    Licensed under the Apache License, Version 2.0 (the "License"); you may
+*    not use this file except in compliance with the License. You may obtain
+*    a copy of the License at
+*
+*         http://www.apache.org/licenses/LICENSE-2.0
+*
+*    Unless required by applicable law or agreed to in writing, software
+*    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+*    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+*    License for the specific language governing permissions and limitations
+*    under the License.
+**/
+
+package net.floodlightcontroller.mobilesdn;
+
+import java.nio.ByteBuffer;
+
+import net.floodlightcontroller.bench.MicroBenchmark;
+import net.floodlightcontroller.util.MACAddress;
+
+/**
+ * Compare the former String.split parsing with the text and binary agent
+ * codecs on client, scan and app messages, and the former byte[] assembly
+ * of replies with encoding into a reused buffer.
+ *
+ */
+public class AgentCodecBenchmark {
+    private static final String CLIENT_MAC = "00:1e:65:aa:bb:cc";
+    private static final int SCAN_APS = 12;
+
+    private static ByteBuffer direct(byte[] data) {
+        ByteBuffer buf = ByteBuffer.allocateDirect(1280);
+        buf.put(data);
+        buf.flip();
+        return buf;
+    }
+
+    private static String textScan() {
+        StringBuilder sb = new StringBuilder("scan|" + CLIENT_MAC + "|moving|");
+        for (int i = 0; i < SCAN_APS; i++) {
+            sb.append("sdntest" + i + "&00:0b:6b:00:00:" + String.format("%02x", i)
+                      + "&-" + (40 + i) + "|");
+        }
+        return sb.append("end|\n").toString();
+    }
+
+    private static ByteBuffer binaryScan() {
+        ByteBuffer buf = ByteBuffer.allocateDirect(1280);
+        int h = BinaryAgentCodec.beginMessage(buf, AgentMessage.TYPE_CLIENT_SCAN);
+        BinaryAgentCodec.putMac(buf, h, MACAddress.valueOf(CLIENT_MAC).toLong());
+        BinaryAgentCodec.putString(buf, h, "moving");
+        for (int i = 0; i < SCAN_APS; i++) {
+            BinaryAgentCodec.putMac(buf, h, 0x000b6b000000L + i);
+            BinaryAgentCodec.putInt8(buf, h, -(40 + i));
+        }
+        BinaryAgentCodec.endMessage(buf, h);
+        buf.flip();
+        return buf;
+    }
+
+    private static ByteBuffer binaryClient() {
+        ByteBuffer buf = ByteBuffer.allocateDirect(1280);
+        int h = BinaryAgentCodec.beginMessage(buf, AgentMessage.TYPE_CLIENT_INFO);
+        BinaryAgentCodec.putMac(buf, h, MACAddress.valueOf(CLIENT_MAC).toLong());
+        BinaryAgentCodec.putIpv4(buf, h, 0x0a000105);
+        BinaryAgentCodec.endMessage(buf, h);
+        buf.flip();
+        return buf;
+    }
+
+    private static ByteBuffer binaryApp() {
+        ByteBuffer buf = ByteBuffer.allocateDirect(1280);
+        int h = BinaryAgentCodec.beginMessage(buf, AgentMessage.TYPE_CLT_APP);
+        BinaryAgentCodec.putMac(buf, h, MACAddress.valueOf(CLIENT_MAC).toLong());
+        BinaryAgentCodec.putString(buf, h, "youtube");
+        BinaryAgentCodec.endMessage(buf, h);
+        buf.flip();
+        return buf;
+    }
+
+    // the former ConnectionHandler parsing, on a zero padded receive buffer
+    private static long legacyParse(byte[] receiveData) {
+        final String msg = new String(receiveData).trim().toLowerCase();
+        final String[] fields = msg.split("\\|");
+        long acc = fields.length;
+        for (String f: fields) {
+            acc += f.length();
+        }
+        return acc;
+    }
+
+    private static long legacyScanEntries(byte[] receiveData) {
+        final String msg = new String(receiveData).trim().toLowerCase();
+        final String[] fields = msg.split("\\|");
+        long acc = 0;
+        for (int i = 3; i < fields.length - 1; i++) {
+            String[] info = fields[i].split("&");
+            acc += MACAddress.valueOf(info[1]).toLong() + Integer.parseInt(info[2]);
+        }
+        return acc;
+    }
+
+    private static long codecScanEntries(IAgentCodec codec, ByteBuffer buf, AgentMessage msg) {
+        codec.decode(buf, msg);
+        long acc = 0;
+        for (int j = 0; j < msg.getScanEntryNum(); j++) {
+            acc += msg.getScanBssid(j) + msg.getScanLevel(j);
+        }
+        return acc;
+    }
+
+    private static byte[] padded(String s) {
+        byte[] data = new byte[1280];
+        byte[] b = s.getBytes();
+        System.arraycopy(b, 0, data, 0, b.length);
+        return data;
+    }
+
+    public static void main(String[] args) throws Exception {
+        final IAgentCodec text = new TextAgentCodec();
+        final IAgentCodec binary = new BinaryAgentCodec();
+        final AgentMessage msg = new AgentMessage();
+
+        final byte[] legacyClient = padded("client|" + CLIENT_MAC + "|10.0.1.5|\n");
+        final byte[] legacyScan = padded(textScan());
+        final byte[] legacyApp = padded("app|" + CLIENT_MAC + "|youtube|\n");
+        final ByteBuffer textClient = direct(("client|" + CLIENT_MAC + "|10.0.1.5|\n").getBytes());
+        final ByteBuffer textScan = direct(textScan().getBytes());
+        final ByteBuffer textApp = direct(("app|" + CLIENT_MAC + "|youtube|\n").getBytes());
+        final ByteBuffer binClient = binaryClient();
+        final ByteBuffer binScan = binaryScan();
+        final ByteBuffer binApp = binaryApp();
+
+        MicroBenchmark.measure("decode client  legacy split", new MicroBenchmark.Operation() {
+            public long run() { return legacyParse(legacyClient); }
+        });
+        MicroBenchmark.measure("decode client  text codec", new MicroBenchmark.Operation() {
+            public long run() { text.decode(textClient, msg); return msg.getMac(0); }
+        });
+        MicroBenchmark.measure("decode client  binary codec", new MicroBenchmark.Operation() {
+            public long run() { binary.decode(binClient, msg); return msg.getMac(0); }
+        });
+        MicroBenchmark.measure("decode app     legacy split", new MicroBenchmark.Operation() {
+            public long run() { return legacyParse(legacyApp); }
+        });
+        MicroBenchmark.measure("decode app     text codec", new MicroBenchmark.Operation() {
+            public long run() { text.decode(textApp, msg); return msg.getMac(0); }
+        });
+        MicroBenchmark.measure("decode app     binary codec", new MicroBenchmark.Operation() {
+            public long run() { binary.decode(binApp, msg); return msg.getMac(0); }
+        });
+        MicroBenchmark.measure("decode scan    legacy split", new MicroBenchmark.Operation() {
+            public long run() { return legacyScanEntries(legacyScan); }
+        });
+        MicroBenchmark.measure("decode scan    text codec", new MicroBenchmark.Operation() {
+            public long run() { return codecScanEntries(text, textScan, msg); }
+        });
+        MicroBenchmark.measure("decode scan    binary codec", new MicroBenchmark.Operation() {
+            public long run() { return codecScanEntries(binary, binScan, msg); }
+        });
+
+        final MACAddress mac = MACAddress.valueOf(CLIENT_MAC);
+        final String data = "switch|sdntest1|00:0b:6b:00:00:01|open";
+        final ByteBuffer out = ByteBuffer.allocate(512);
+        MicroBenchmark.measure("encode switch  legacy arraycopy", new MicroBenchmark.Operation() {
+            public long run() {
+                byte[] m = mac.toBytes();
+                byte[] b1 = "c".getBytes();
+                byte[] b2 = (data + "|\n").getBytes();
+                byte[] message = new byte[b1.length + b2.length + m.length];
+                System.arraycopy(b1, 0, message, 0, b1.length);
+                System.arraycopy(m, 0, message, b1.length, m.length);
+                System.arraycopy(b2, 0, message, b1.length + m.length, b2.length);
+                return message.length;
+            }
+        });
+        MicroBenchmark.measure("encode switch  text codec", new MicroBenchmark.Operation() {
+            public long run() {
+                out.clear();
+                text.encodeToClient(out, mac.toLong(), "c", data);
+                return out.position();
+            }
+        });
+        MicroBenchmark.measure("encode switch  binary codec", new MicroBenchmark.Operation() {
+            public long run() {
+                out.clear();
+                binary.encodeToClient(out, mac.toLong(), "c", data);
+                return out.position();
+            }
+        });
+    }
+}
@@ -0,0 +1,447 @@
+/**
+*    Copyright 2013 University of Helsinki
+*
+*    Licensed under the Apache License, Version 2.0 (the "License"); you may
+*    not use this file except in compliance with the License. You may obtain
+*    a copy of the License at
+*
+*         http://www.apache.org/licenses/LICENSE-2.0
+*
+*    Unless required by applicable law or agreed to in writing, software
+*    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+*    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+*    License for the specific language governing permissions and limitations
+*    under the License.
+**/
+
+package net.floodlightcontroller.mobilesdn;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.floodlightcontroller.core.IFloodlightProviderService;
+import net.floodlightcontroller.core.IFloodlightProviderService.Role;
+import net.floodlightcontroller.core.IOFSwitch;
+import net.floodlightcontroller.core.module.FloodlightModuleContext;
+import net.floodlightcontroller.restserver.IRestApiService;
+import net.floodlightcontroller.routing.IRoutingService;
+import net.floodlightcontroller.threadpool.IThreadPoolService;
+import net.floodlightcontroller.threadpool.ThreadPool;
+import net.floodlightcontroller.util.MACAddress;
+
+import org.openflow.protocol.factory.BasicFactory;
+
+/**
+ * End-to-end load test of a Master running in this JVM: simulated agents
+ * talk to its UDP channel over loopback and scripted switches answer its
+ * statistics sweeps, so ClickManageServer, the statistics collector,
+ * OFMonitor and the offloading decisions all run for real.
+ *
+ * Every fifth AP is overloaded. Its clients download more than the AP
+ * bandwidth, the clients of the other APs only a little. The run has
+ * three phases:
+ *   join:    every client associates (client message)
+ *   offload: rounds of app messages; the master asks the client for a
+ *            scan, the agent answers with the AP and its two neighbours
+ *            on the same switch, the master decides. A client told to
+ *            switch leaves its AP and joins the target AP.
+ *   leave:   every client disconnects
+ *
+ * Reported: agent messages per second handled by the master, decision
+ * latency (scan sent to evaluation result in the master's event log)
+ * p50/p99, and heap per client after the join phase, which includes the
+ * simulator's own small per-client state.
+ *
+ * Settings (system properties): sim.agents (40), sim.clients per agent
+ * (25), sim.apsPerSwitch (10), sim.rounds (3), sim.masterPort (26300).
+ * Agents use addresses 127.2.x.y, so the loopback interface must accept
+ * the whole 127.0.0.0/8 network (Linux does).
+ *
+ */
+public class MobileSdnLoadBenchmark implements SimulatedAgent.Listener {
+    private static final double HOT_RATE = 4e6;         // bit/s per client
+    private static final double NORMAL_RATE = 1e5;
+    private static final double AP_BW = 20;             // Mbit/s
+    private static final long ROUND_TIMEOUT = 5000;     // ms
+
+    private final int agentNum = Integer.getInteger("sim.agents", 40);
+    private final int clientsPerAgent = Integer.getInteger("sim.clients", 25);
+    private final int apsPerSwitch = Integer.getInteger("sim.apsPerSwitch", 10);
+    private final int rounds = Integer.getInteger("sim.rounds", 3);
+    private final int masterPort = Integer.getInteger("sim.masterPort", 26300);
+
+    private final Master master = new Master();
+    private final ThreadPool threadPool = new ThreadPool();
+    private final Map<Long, IOFSwitch> switchMap = new ConcurrentHashMap<Long, IOFSwitch>();
+    private ScriptedSwitch[] switches;
+    private SimulatedAgent[] agents;
+    private final Map<Long, SimulatedAgent> agentByBssid = new HashMap<Long, SimulatedAgent>();
+    private final Map<Long, Double> clientRate = new ConcurrentHashMap<Long, Double>();
+
+    // decision latency: scan sent -> evaluation event
+    private final Map<String, Long> scanSent = new ConcurrentHashMap<String, Long>();
+    private final long[] latencies = new long[1 << 20];
+    private final AtomicInteger latencyNum = new AtomicInteger();
+    private final AtomicLong evaluations = new AtomicLong();
+    private final AtomicLong moves = new AtomicLong();
+    private volatile boolean watching = true;
+
+    public static void main(String[] args) throws Exception {
+        MobileSdnLoadBenchmark b = new MobileSdnLoadBenchmark();
+        try {
+            b.start();
+            b.run();
+        } finally {
+            b.stop();
+        }
+        System.exit(0);
+    }
+
+    private void start() throws Exception {
+        int switchNum = (agentNum + apsPerSwitch - 1) / apsPerSwitch;
+        switches = new ScriptedSwitch[switchNum];
+        for (int s = 0; s < switchNum; s++) {
+            switches[s] = new ScriptedSwitch(s + 1,
+                    InetAddress.getByName("127.1.0." + (s + 1)), (short) (apsPerSwitch + 1));
+            switchMap.put(switches[s].getId(), switches[s].getSwitch());
+        }
+
+        InetSocketAddress masterAddr = new InetSocketAddress("127.0.0.1", masterPort);
+        agents = new SimulatedAgent[agentNum];
+        for (int i = 0; i < agentNum; i++) {
+            InetAddress addr = InetAddress.getByName("127.2." + (i / 250) + "." + (i % 250 + 1));
+            agents[i] = new SimulatedAgent(i, addr, switches[i / apsPerSwitch],
+                    (short) (i % apsPerSwitch + 1), masterAddr, this);
+            agentByBssid.put(agents[i].getBssid(), agents[i]);
+            Thread t = new Thread(agents[i], "SimulatedAgent-" + i);
+            t.setDaemon(true);
+            t.start();
+        }
+
+        startMaster();
+        for (ScriptedSwitch sw: switches) {
+            sw.setResteerer(master.getFlowResteerer());
+            master.switchActivated(sw.getId());
+        }
+
+        Thread watcher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                watchEvents();
+            }
+        }, "EventWatcher");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    private void startMaster() throws Exception {
+        File apConfig = File.createTempFile("sim-ap", ".properties");
+        File networkConfig = File.createTempFile("sim-network", ".properties");
+        apConfig.deleteOnExit();
+        networkConfig.deleteOnExit();
+
+        PrintWriter ap = new PrintWriter(apConfig);
+        for (SimulatedAgent a: agents) {
+            ap.println("ManagedIP " + a.getAddress().getHostAddress());
+            ap.println("SSID " + a.getSSID());
+            ap.println("BSSID " + a.getBSSIDString());
+            ap.println("AUTH open");
+            ap.println("OFPort " + a.getPort());
+            ap.println("DownlinkBW " + AP_BW);
+            ap.println();
+        }
+        ap.close();
+
+        PrintWriter net = new PrintWriter(networkConfig);
+        for (int s = 0; s < switches.length; s++) {
+            net.println("OFSwitchIP 127.1.0." + (s + 1));
+            net.println("OutPort " + (apsPerSwitch + 1));
+            net.println("BandWidth " + (int) (AP_BW * apsPerSwitch));
+            StringBuilder sb = new StringBuilder("AP");
+            for (int i = s * apsPerSwitch; i < Math.min(agentNum, (s + 1) * apsPerSwitch); i++) {
+                sb.append(' ').append(agents[i].getAddress().getHostAddress());
+            }
+            net.println(sb);
+            net.println();
+        }
+        net.close();
+
+        FloodlightModuleContext ctx = new FloodlightModuleContext();
+        ctx.addService(IThreadPoolService.class, threadPool);
+        ctx.addService(IFloodlightProviderService.class,
+                stub(IFloodlightProviderService.class, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object p, Method m, Object[] args) {
+                        String name = m.getName();
+                        if (name.equals("getSwitch")) {
+                            return switchMap.get(args[0]);
+                        } else if (name.equals("getAllSwitchMap")) {
+                            return switchMap;
+                        } else if (name.equals("getOFMessageFactory")) {
+                            return BasicFactory.getInstance();
+                        } else if (name.equals("getRole")) {
+                            return Role.MASTER;
+                        }
+                        return ScriptedSwitch.defaultValue(m.getReturnType());
+                    }
+                }));
+        ctx.addService(IRestApiService.class, stub(IRestApiService.class, null));
+        ctx.addService(IRoutingService.class, stub(IRoutingService.class, null));
+        OffloadPolicyManager policies = new OffloadPolicyManager();
+        ctx.addService(IOffloadPolicyService.class, policies);
+
+        ctx.addConfigParam(master, "masterPort", "" + masterPort);
+        ctx.addConfigParam(master, "networkFile", networkConfig.getAbsolutePath());
+        ctx.addConfigParam(master, "apConfig", apConfig.getAbsolutePath());
+        ctx.addConfigParam(master, "enableCellular", "false");
+        ctx.addConfigParam(master, "ofMonitorInterval", "1");
+        ctx.addConfigParam(master, "offloadDecisionWindow", "0.05");
+        ctx.addConfigParam(master, "stateSnapshotInterval", "0");
+
+        threadPool.init(ctx);
+        threadPool.startUp(ctx);
+        policies.init(ctx);
+        policies.startUp(ctx);
+        master.init(ctx);
+        master.startUp(ctx);
+        Thread.sleep(500);  // UDP channel up
+    }
+
+    @SuppressWarnings("unchecked")
+    static <T> T stub(Class<T> type, final InvocationHandler handler) {
+        return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type },
+                handler != null ? handler : new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object p, Method m, Object[] args) {
+                        return ScriptedSwitch.defaultValue(m.getReturnType());
+                    }
+                });
+    }
+
+    private void run() throws Exception {
+        int clientNum = agentNum * clientsPerAgent;
+        System.out.println(String.format("%d agents, %d switches, %d clients",
+                agentNum, switches.length, clientNum));
+
+        // join
+        long heapBefore = usedHeap();
+        long processed = processedCount();
+        long start = System.nanoTime();
+        for (int i = 0; i < agentNum; i++) {
+            double rate = i % 5 == 0 ? HOT_RATE : NORMAL_RATE;
+            for (int c = 0; c < clientsPerAgent; c++) {
+                long mac = 0x0a0000000000L + (long) i * clientsPerAgent + c;
+                clientRate.put(mac, rate);
+                agents[i].join(mac, "10." + (i / 250) + "." + (i % 250) + "." + (c + 1), rate);
+            }
+        }
+        waitFor(new Condition() {
+            public boolean done() {
+                return clientNum() >= agentNum * clientsPerAgent;
+            }
+        }, 30000);
+        report("join", processedCount() - processed, System.nanoTime() - start);
+        long heapAfter = usedHeap();
+        System.out.println(String.format("%-48s %12.0f bytes/client", "heap",
+                (double) (heapAfter - heapBefore) / clientNum));
+
+        // the collector starts 5s after the master; let it sweep every
+        // switch twice so that the rates are known
+        final long queries = queryCount() + 4 * switches.length;
+        waitFor(new Condition() {
+            public boolean done() {
+                return queryCount() >= queries;
+            }
+        }, 15000);
+
+        // offload rounds
+        processed = processedCount();
+        start = System.nanoTime();
+        for (int r = 0; r < rounds; r++) {
+            final long expected = evaluations.get() + clientNum - moves.get();
+            for (SimulatedAgent a: agents) {
+                for (int c = 0; c < clientsPerAgent; c++) {
+                    long mac = 0x0a0000000000L + (long) a.getIndex() * clientsPerAgent + c;
+                    if (a.hasClient(mac)) {
+                        a.sendApp(mac, "youtube");
+                    }
+                }
+            }
+            waitFor(new Condition() {
+                public boolean done() {
+                    return evaluations.get() >= expected;
+                }
+            }, ROUND_TIMEOUT);
+        }
+        report("offload", processedCount() - processed, System.nanoTime() - start);
+
+        long[] l = Arrays.copyOf(latencies, Math.min(latencyNum.get(), latencies.length));
+        Arrays.sort(l);
+        System.out.println(String.format("%-48s %12.2f ms p50 %10.2f ms p99",
+                "decision latency (" + l.length + " decisions, " + moves.get() + " moves)",
+                percentile(l, 50) / 1e6, percentile(l, 99) / 1e6));
+
+        // leave
+        processed = processedCount();
+        start = System.nanoTime();
+        for (SimulatedAgent a: agents) {
+            for (long mac: clientRate.keySet()) {
+                a.leave(mac);
+            }
+        }
+        waitFor(new Condition() {
+            public boolean done() {
+                return clientNum() == 0;
+            }
+        }, 30000);
+        report("leave", processedCount() - processed, System.nanoTime() - start);
+
+        System.out.println(String.format("%-48s %12d dropped %10d stats requests",
+                "master", master.getClickManageServer().getDroppedCount(),
+                queryCount()));
+    }
+
+    private void stop() {
+        watching = false;
+        master.stopServices();
+        if (agents != null) {
+            for (SimulatedAgent a: agents) {
+                if (a != null) {
+                    a.shutdown();
+                }
+            }
+        }
+        threadPool.getScheduledExecutor().shutdownNow();
+    }
+
+    @Override
+    public void clientCommand(SimulatedAgent agent, long mac, String command) {
+        try {
+            if (command.startsWith("scan")) {
+                // the AP and its neighbours on the same switch, which are
+                // heard better
+                int i = agent.getIndex();
+                int first = i / apsPerSwitch * apsPerSwitch;
+                int last = Math.min(agentNum, first + apsPerSwitch) - 1;
+                SimulatedAgent[] aps = {
+                    agent,
+                    agents[i == first ? last : i - 1],
+                    agents[i == last ? first : i + 1],
+                };
+                int[] levels = { -65, -55, -60 };
+                scanSent.put(SimulatedAgent.mac(mac), System.nanoTime());
+                agent.sendScan(mac, aps, levels);
+            } else if (command.startsWith("switch|")) {
+                // switch|ssid|bssid|auth
+                String[] fields = command.split("\\|");
+                SimulatedAgent target = agentByBssid.get(
+                        MACAddress.valueOf(fields[2]).toLong());
+                if (target != null && agent.hasClient(mac) && target != agent) {
+                    moves.incrementAndGet();
+                    agent.leave(mac);
+                    target.join(mac, "10.9." + ((mac >> 8) & 0xff) + "." + (mac & 0xff),
+                            clientRate.get(mac));
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("agent " + agent.getIndex() + ": " + e);
+        }
+    }
+
+    private void watchEvents() {
+        SoftOffloadEventLog log = master.getEventLog();
+        long seq = log.getLastSeq();
+        while (watching) {
+            List<SoftOffloadEvent> l;
+            try {
+                l = log.waitSince(seq, 1000, 100);
+            } catch (InterruptedException e) {
+                return;
+            }
+            long now = System.nanoTime();
+            for (SoftOffloadEvent e: l) {
+                seq = e.getSeq();
+                if (!SoftOffloadEvent.EVALUATION.equals(e.getType())) {
+                    continue;
+                }
+                Long sent = scanSent.remove(e.getClient());
+                if (sent != null) {
+                    int n = latencyNum.getAndIncrement();
+                    if (n < latencies.length) {
+                        latencies[n] = now - sent;
+                    }
+                }
+                evaluations.incrementAndGet();
+            }
+            if (log.isLost(seq)) {
+                seq = log.getLastSeq();
+            }
+        }
+    }
+
+    private interface Condition {
+        public boolean done();
+    }
+
+    private static void waitFor(Condition c, long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (!c.done() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    private int clientNum() {
+        int n = 0;
+        for (APAgent agent: master.getAgents()) {
+            n += agent.getClientNum();
+        }
+        return n;
+    }
+
+    private long processedCount() {
+        return master.getClickManageServer().getProcessedCount();
+    }
+
+    private long queryCount() {
+        long n = 0;
+        for (ScriptedSwitch sw: switches) {
+            n += sw.getQueryCount();
+        }
+        return n;
+    }
+
+    private static void report(String phase, long messages, long nanos) {
+        System.out.println(String.format("%-48s %12d msgs %14.0f msgs/s",
+                phase, messages, messages * 1e9 / nanos));
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        Runtime rt = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int rank = (int) Math.ceil(p / 100 * sorted.length);
+        return sorted[Math.max(0, Math.min(sorted.length, rank) - 1)];
+    }
+}
@@ -0,0 +1,210 @@
+/**
+*    Copyright 2013 University of Helsinki
+*
+*    Licensed under the Apache License, Version 2.0 (the "License"); you may
+*    not use this file except in compliance with the License. You may obtain
+*    a copy of the License at
+*
+*         http://www.apache.org/licenses/LICENSE-2.0
+*
+*    Unless required by applicable law or agreed to in writing, software
+*    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+*    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+*    License for the specific language governing permissions and limitations
+*    under the License.
+**/
+
+package net.floodlightcontroller.mobilesdn;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+
+import net.floodlightcontroller.bench.MicroBenchmark;
+
+/**
+ * Joint offloading plan on synthetic topologies up to 1000 APs and 20k
+ * clients. APs are on a grid, 20 per switch out queue, and clients are
+ * placed around a few hot spots so that a part of the APs is overloaded.
+ * Every client is a candidate and sees the APs within two grid cells.
+ *
+ * Besides the time per plan, the number of overloaded APs is printed for
+ * the joint plan and for the former one-client-at-a-time evaluation,
+ * which scores every client against the same loads.
+ *
+ */
+public class OffloadPlannerBenchmark {
+    private static final double AP_BW = 50;       // Mbit/s
+    private static final double QUEUE_BW = 800;
+    private static final int APS_PER_QUEUE = 20;
+    private static final IOffloadPolicy POLICY = new LookupTableOffloadPolicy();
+
+    private static class Topology {
+        int side;
+        double[] apLoad;
+        int[] cltAP;
+        double[] cltDemand;
+        long[][] cltNearby;
+        double[][] cltSignal;
+    }
+
+    private static Topology makeTopology(int apNum, int cltNum) {
+        Random rnd = new Random(42);
+        Topology t = new Topology();
+        t.side = (int) Math.ceil(Math.sqrt(apNum));
+        t.apLoad = new double[apNum];
+        t.cltAP = new int[cltNum];
+        t.cltDemand = new double[cltNum];
+        t.cltNearby = new long[cltNum][];
+        t.cltSignal = new double[cltNum][];
+
+        int hotSpots = Math.max(1, apNum / 50);
+        double[] hx = new double[hotSpots];
+        double[] hy = new double[hotSpots];
+        for (int h = 0; h < hotSpots; h++) {
+            hx[h] = rnd.nextDouble() * t.side;
+            hy[h] = rnd.nextDouble() * t.side;
+        }
+
+        for (int c = 0; c < cltNum; c++) {
+            double x, y;
+            if (rnd.nextInt(3) == 0) {
+                int h = rnd.nextInt(hotSpots);
+                x = hx[h] + rnd.nextGaussian();
+                y = hy[h] + rnd.nextGaussian();
+            } else {
+                x = rnd.nextDouble() * t.side;
+                y = rnd.nextDouble() * t.side;
+            }
+            x = Math.max(0, Math.min(t.side - 1e-6, x));
+            y = Math.max(0, Math.min(t.side - 1e-6, y));
+
+            int ax = (int) x;
+            int ay = (int) y;
+            int ap = Math.min(apNum - 1, ay * t.side + ax);
+            t.cltAP[c] = ap;
+            t.cltDemand[c] = 0.1 + rnd.nextDouble() * 3;
+            t.apLoad[ap] += t.cltDemand[c];
+
+            long[] nearby = new long[25];
+            double[] signal = new double[25];
+            int n = 0;
+            for (int dy = -2; dy <= 2; dy++) {
+                for (int dx = -2; dx <= 2; dx++) {
+                    int nx = ax + dx;
+                    int ny = ay + dy;
+                    int id = ny * t.side + nx;
+                    if (nx < 0 || ny < 0 || nx >= t.side || id >= apNum) {
+                        continue;
+                    }
+                    double d = Math.hypot(nx + 0.5 - x, ny + 0.5 - y);
+                    // -40 dBm at the AP, about -85 dBm two cells away
+                    int level = (int) (-40 - 18 * d);
+                    nearby[n] = id;
+                    signal[n++] = Math.max(0, POLICY.signalMetric(level));
+                }
+            }
+            t.cltNearby[c] = Arrays.copyOf(nearby, n);
+            t.cltSignal[c] = Arrays.copyOf(signal, n);
+        }
+        return t;
+    }
+
+    private static OffloadPlanner fill(Topology t) {
+        OffloadPlanner p = new OffloadPlanner(POLICY);
+        int apNum = t.apLoad.length;
+        for (int q = 0; q * APS_PER_QUEUE < apNum; q++) {
+            p.addGroup(QUEUE_BW);
+        }
+        for (int ap = 0; ap < apNum; ap++) {
+            p.addAP(ap, AP_BW, t.apLoad[ap], ap / APS_PER_QUEUE);
+        }
+        for (int c = 0; c < t.cltAP.length; c++) {
+            p.addClient(c, t.cltAP[c], t.cltDemand[c], t.cltNearby[c], t.cltSignal[c]);
+        }
+        return p;
+    }
+
+    // the single client evaluation of the master, applied to every client
+    // against the same AP loads
+    private static int[] independent(Topology t) {
+        int[] target = new int[t.cltAP.length];
+        for (int c = 0; c < target.length; c++) {
+            int cur = t.cltAP[c];
+            long[] aps = t.cltNearby[c];
+            double maxRest = 0;
+            double[] rest = new double[aps.length];
+            for (int k = 0; k < aps.length; k++) {
+                int ap = (int) aps[k];
+                rest[k] = AP_BW - t.apLoad[ap] + (ap == cur ? t.cltDemand[c] : 0);
+                maxRest = Math.max(maxRest, rest[k]);
+            }
+            double best = Double.NEGATIVE_INFINITY;
+            target[c] = cur;
+            for (int k = 0; k < aps.length; k++) {
+                int ap = (int) aps[k];
+                double m = POLICY.score(t.cltSignal[c][k], rest[k], maxRest, AP_BW)
+                        - (ap == cur ? 0 : POLICY.getSwitchOverhead());
+                if (m > best) {
+                    best = m;
+                    target[c] = ap;
+                }
+            }
+        }
+        return target;
+    }
+
+    private static int overloaded(Topology t, int[] target) {
+        double[] load = new double[t.apLoad.length];
+        for (int c = 0; c < target.length; c++) {
+            load[target[c]] += t.cltDemand[c];
+        }
+        int n = 0;
+        for (double l: load) {
+            if (l > AP_BW) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    private static void run(int apNum, int cltNum) throws Exception {
+        final Topology t = makeTopology(apNum, cltNum);
+
+        int[] joint = t.cltAP.clone();
+        Map<Long, Long> moves = fill(t).plan();
+        for (Map.Entry<Long, Long> e: moves.entrySet()) {
+            joint[e.getKey().intValue()] = e.getValue().intValue();
+        }
+        int[] single = independent(t);
+        int singleMoves = 0;
+        for (int c = 0; c < single.length; c++) {
+            if (single[c] != t.cltAP[c]) {
+                singleMoves++;
+            }
+        }
+        String suffix = " " + apNum + " APs/" + cltNum + " clients";
+        System.out.println("overloaded APs" + suffix + ": before "
+                + overloaded(t, t.cltAP) + ", independent " + overloaded(t, single)
+                + " (" + singleMoves + " moves), joint " + overloaded(t, joint)
+                + " (" + moves.size() + " moves)");
+
+        MicroBenchmark.measure("independent" + suffix, new MicroBenchmark.Operation() {
+            @Override
+            public long run() {
+                return independent(t).length;
+            }
+        });
+        MicroBenchmark.measure("joint plan" + suffix, new MicroBenchmark.Operation() {
+            @Override
+            public long run() {
+                return fill(t).plan().size();
+            }
+        });
+    }
+
+    public static void main(String[] args) throws Exception {
+        run(100, 2000);
+        run(1000, 20000);
+    }
+}
@@ -0,0 +1,141 @@
+/**
+*    Copyright 2013 University of Helsinki
+*
+*    Licensed under the Apache License, Version 2.0 (the "License"); you may
+*    not use this file except in compliance with the License. You may obtain
+*    a copy of the License at
+*
+*         http://www.apache.org/licenses/LICENSE-2.0
+*
+*    Unless required by applicable law or agreed to in writing, software
+*    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+*    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+*    License for the specific language governing permissions and limitations
+*    under the License.
+**/
+
+
+package net.floodlightcontroller.mobilesdn;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.openflow.protocol.OFMatch;
+import org.openflow.protocol.action.OFAction;
+import org.openflow.protocol.action.OFActionOutput;
+import org.openflow.protocol.statistics.OFFlowStatisticsReply;
+
+import net.floodlightcontroller.bench.MicroBenchmark;
+import net.floodlightcontroller.util.MACAddress;
+
+/**
+ * Compare the former per-client scan of the flow dump with the indexed
+ * aggregation of OFRateStatistics, up to 10k flows and 1k clients on one
+ * switch. One operation computes the up/down byte sums of all clients.
+ * The legacy scan at full size takes a few minutes because of the
+ * harness' minimum batch of 64 operations.
+ *
+ */
+public class RateAggregationBenchmark {
+    private static final long CLIENT_BASE = 0x001e65000000L;
+    private static final long SERVER_BASE = 0x000b6b000000L;
+
+    private static List<OFFlowStatisticsReply> makeFlows(int flowNum, int cltNum) {
+        Random rnd = new Random(42);
+        List<OFAction> actions = new ArrayList<OFAction>();
+        actions.add(new OFActionOutput((short) 1));
+        List<OFFlowStatisticsReply> flows = new ArrayList<OFFlowStatisticsReply>(flowNum);
+        for (int i = 0; i < flowNum; i++) {
+            byte[] clt = MACAddress.valueOf(CLIENT_BASE + rnd.nextInt(cltNum)).toBytes();
+            byte[] srv = MACAddress.valueOf(SERVER_BASE + rnd.nextInt(256)).toBytes();
+            OFMatch match = new OFMatch();
+            // half downstream, half upstream
+            if ((i & 1) == 0) {
+                match.setDataLayerSource(srv);
+                match.setDataLayerDestination(clt);
+            } else {
+                match.setDataLayerSource(clt);
+                match.setDataLayerDestination(srv);
+            }
+            OFFlowStatisticsReply reply = new OFFlowStatisticsReply();
+            reply.setMatch(match);
+            reply.setByteCount(1 + rnd.nextInt(1000000));
+            reply.setActions(actions);
+            flows.add(reply);
+        }
+        return flows;
+    }
+
+    // the per-client loop OFRateStatistics used before
+    private static long legacy(List<OFFlowStatisticsReply> flows, byte[][] clients) {
+        long acc = 0;
+        for (byte[] cltMac: clients) {
+            long cltUpByteSum = 0;
+            long cltDownByteSum = 0;
+            for (OFFlowStatisticsReply reply: flows) {
+                long byteCount = reply.getByteCount();
+                if (!reply.getActions().isEmpty() && byteCount > 0) {
+                    OFMatch match = reply.getMatch();
+                    if (Arrays.equals(cltMac, match.getDataLayerDestination())) {
+                        cltDownByteSum += byteCount;
+                        continue;
+                    } else if (Arrays.equals(cltMac, match.getDataLayerSource())) {
+                        cltUpByteSum += byteCount;
+                        continue;
+                    }
+                }
+            }
+            acc += cltUpByteSum ^ cltDownByteSum;
+        }
+        return acc;
+    }
+
+    private static long indexed(List<OFFlowStatisticsReply> flows, long[] clients,
+            LongCounterMap up, LongCounterMap down) {
+        OFRateStatistics.aggregateFlowBytes(flows, up, down);
+        long acc = 0;
+        for (long cltMac: clients) {
+            acc += up.get(cltMac) ^ down.get(cltMac);
+        }
+        return acc;
+    }
+
+    private static void run(int flowNum, final int cltNum) throws Exception {
+        final List<OFFlowStatisticsReply> flows = makeFlows(flowNum, cltNum);
+        final byte[][] cltBytes = new byte[cltNum][];
+        final long[] cltLongs = new long[cltNum];
+        for (int i = 0; i < cltNum; i++) {
+            cltLongs[i] = CLIENT_BASE + i;
+            cltBytes[i] = MACAddress.valueOf(cltLongs[i]).toBytes();
+        }
+        final LongCounterMap up = new LongCounterMap(1024);
+        final LongCounterMap down = new LongCounterMap(1024);
+
+        if (legacy(flows, cltBytes) != indexed(flows, cltLongs, up, down)) {
+            throw new IllegalStateException("results differ");
+        }
+
+        String suffix = " " + flowNum + " flows/" + cltNum + " clients";
+        MicroBenchmark.measure("legacy scan" + suffix, new MicroBenchmark.Operation() {
+            @Override
+            public long run() {
+                return legacy(flows, cltBytes);
+            }
+        });
+        MicroBenchmark.measure("indexed" + suffix, new MicroBenchmark.Operation() {
+            @Override
+            public long run() {
+                return indexed(flows, cltLongs, up, down);
+            }
+        });
+    }
+
+    public static void main(String[] args) throws Exception {
+        run(1000, 100);
+        run(10000, 100);
+        run(1000, 1000);
+        run(10000, 1000);
+    }
+}
@@ -0,0 +1,297 @@
+/**
+*    Copyright 2013 University of Helsinki
+*
+*    Licensed under the Apache License, Version 2.0 (the "License"); you may
+*    not use this file except in compliance with the License. You may obtain
+*    a copy of the License at
+*
+*         http://www.apache.org/licenses/LICENSE-2.0
+*
+*    Unless required by applicable law or agreed to in writing, software
+*    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+*    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+*    License for the specific language governing permissions and limitations
+*    under the License.
+**/
+
+package net.floodlightcontroller.mobilesdn;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.floodlightcontroller.core.IOFSwitch;
+
+import org.openflow.protocol.OFMatch;
+import org.openflow.protocol.OFMessage;
+import org.openflow.protocol.OFStatisticsRequest;
+import org.openflow.protocol.OFType;
+import org.openflow.protocol.action.OFAction;
+import org.openflow.protocol.action.OFActionOutput;
+import org.openflow.protocol.statistics.OFFlowStatisticsReply;
+import org.openflow.protocol.statistics.OFFlowStatisticsRequest;
+import org.openflow.protocol.statistics.OFPortStatisticsReply;
+import org.openflow.protocol.statistics.OFStatistics;
+import org.openflow.protocol.statistics.OFStatisticsType;
+
+/**
+ * In-process stand-in for an OpenFlow switch with AP ports and one uplink
+ * (out queue) port. Statistics requests are answered at once from
+ * scripted per-client rates: every client has a download flow to the
+ * port of its AP and an upload flow to the uplink port, with byte
+ * counters growing at the client's rate. Everything written to the
+ * switch is only counted, barrier requests are answered at once.
+ *
+ */
+public class ScriptedSwitch implements InvocationHandler {
+
+    private static class ScriptedClient {
+        volatile short port;
+        volatile double rate;           // download bit/s
+        long bytes;                     // guarded by this
+        long time;
+
+        synchronized long getBytes(long now) {
+            bytes += (long) (rate / 8 * (now - time) / 1e9);
+            time = now;
+            return bytes;
+        }
+    }
+
+    private final long dpid;
+    private final InetSocketAddress address;
+    private final short uplinkPort;
+    private final IOFSwitch proxy;
+    private final Map<Long, ScriptedClient> clients =
+            new ConcurrentHashMap<Long, ScriptedClient>();
+    private final AtomicLong queryCount = new AtomicLong();
+    private final AtomicLong writeCount = new AtomicLong();
+    private final AtomicInteger xid = new AtomicInteger();
+    private volatile FlowResteerer resteerer;
+
+    public ScriptedSwitch(long dpid, InetAddress address, short uplinkPort) {
+        this.dpid = dpid;
+        this.address = new InetSocketAddress(address, 6633);
+        this.uplinkPort = uplinkPort;
+        this.proxy = (IOFSwitch) Proxy.newProxyInstance(
+                IOFSwitch.class.getClassLoader(),
+                new Class<?>[] { IOFSwitch.class }, this);
+    }
+
+    public IOFSwitch getSwitch() {
+        return proxy;
+    }
+
+    public long getId() {
+        return dpid;
+    }
+
+    /**
+     * attach a client to an AP port, or move it there, keeping its counters
+     */
+    public void setClient(long mac, short port, double rate) {
+        ScriptedClient c = clients.get(mac);
+        if (c == null) {
+            c = new ScriptedClient();
+            c.time = System.nanoTime();
+            clients.put(mac, c);
+        }
+        c.port = port;
+        c.rate = rate;
+    }
+
+    public void removeClient(long mac) {
+        clients.remove(mac);
+    }
+
+    /**
+     * pass barrier replies to the resteerer, as the OpenFlow message
+     * listener of the master does
+     */
+    public void setResteerer(FlowResteerer r) {
+        resteerer = r;
+    }
+
+    public long getQueryCount() {
+        return queryCount.get();
+    }
+
+    public long getWriteCount() {
+        return writeCount.get();
+    }
+
+    @Override
+    public Object invoke(Object p, Method method, Object[] args) throws Throwable {
+        String name = method.getName();
+        if (name.equals("getId")) {
+            return dpid;
+        } else if (name.equals("getStringId")) {
+            return Long.toHexString(dpid);
+        } else if (name.equals("getInetAddress")) {
+            return address;
+        } else if (name.equals("isConnected") || name.equals("isActive")) {
+            return true;
+        } else if (name.equals("queryStatistics")) {
+            queryCount.incrementAndGet();
+            final OFStatisticsRequest req = (OFStatisticsRequest) args[0];
+            FutureTask<List<OFStatistics>> f = new FutureTask<List<OFStatistics>>(
+                    new Callable<List<OFStatistics>>() {
+                        @Override
+                        public List<OFStatistics> call() {
+                            return reply(req);
+                        }
+                    });
+            f.run();
+            return f;
+        } else if (name.equals("getNextTransactionId")) {
+            return xid.incrementAndGet();
+        } else if (name.equals("write")) {
+            writeCount.incrementAndGet();
+            if (args[0] instanceof List) {
+                for (Object m: (List<?>) args[0]) {
+                    replyBarrier((OFMessage) m);
+                }
+            } else {
+                replyBarrier((OFMessage) args[0]);
+            }
+            return null;
+        } else if (name.equals("hashCode")) {
+            return System.identityHashCode(p);
+        } else if (name.equals("equals")) {
+            return p == args[0];
+        } else if (name.equals("toString")) {
+            return "ScriptedSwitch[" + Long.toHexString(dpid) + "]";
+        }
+        return defaultValue(method.getReturnType());
+    }
+
+    private void replyBarrier(OFMessage m) {
+        FlowResteerer r = resteerer;
+        if (r != null && m.getType() == OFType.BARRIER_REQUEST) {
+            r.barrierReplied(proxy, m.getXid());
+        }
+    }
+
+    private List<OFStatistics> reply(OFStatisticsRequest req) {
+        long now = System.nanoTime();
+        if (req.getStatisticType() == OFStatisticsType.PORT) {
+            return portReply(now);
+        }
+        if (req.getStatisticType() != OFStatisticsType.FLOW) {
+            return Collections.emptyList();
+        }
+
+        // a request for one client's flows matches on its MAC address
+        long only = -1;
+        OFFlowStatisticsRequest fr = (OFFlowStatisticsRequest) req.getStatistics().get(0);
+        OFMatch m = fr.getMatch();
+        if ((m.getWildcards() & OFMatch.OFPFW_DL_DST) == 0) {
+            only = OFRateStatistics.macToLong(m.getDataLayerDestination());
+        }
+
+        List<OFStatistics> l = new ArrayList<OFStatistics>(clients.size() * 2);
+        for (Map.Entry<Long, ScriptedClient> e: clients.entrySet()) {
+            long mac = e.getKey();
+            if (only >= 0 && mac != only) {
+                continue;
+            }
+            ScriptedClient c = e.getValue();
+            long bytes = c.getBytes(now);
+            byte[] macBytes = toBytes(mac);
+            byte[] gateway = toBytes(0x0200000000ffL);
+
+            OFMatch down = new OFMatch();
+            down.setWildcards(OFMatch.OFPFW_ALL & ~OFMatch.OFPFW_DL_DST & ~OFMatch.OFPFW_DL_SRC);
+            down.setDataLayerDestination(macBytes);
+            down.setDataLayerSource(gateway);
+            l.add(flow(down, bytes, c.port));
+            if (only < 0) {
+                // upload at a tenth of the download rate
+                OFMatch up = new OFMatch();
+                up.setWildcards(OFMatch.OFPFW_ALL & ~OFMatch.OFPFW_DL_DST & ~OFMatch.OFPFW_DL_SRC);
+                up.setDataLayerDestination(gateway);
+                up.setDataLayerSource(macBytes);
+                l.add(flow(up, bytes / 10, uplinkPort));
+            }
+        }
+        return l;
+    }
+
+    private List<OFStatistics> portReply(long now) {
+        Map<Short, Long> tx = new HashMap<Short, Long>();
+        long total = 0;
+        for (ScriptedClient c: clients.values()) {
+            long bytes = c.getBytes(now);
+            Long sum = tx.get(c.port);
+            tx.put(c.port, sum == null ? bytes : sum + bytes);
+            total += bytes;
+        }
+        List<OFStatistics> l = new ArrayList<OFStatistics>(tx.size() + 1);
+        for (Map.Entry<Short, Long> e: tx.entrySet()) {
+            OFPortStatisticsReply r = new OFPortStatisticsReply();
+            r.setPortNumber(e.getKey());
+            r.setTransmitBytes(e.getValue());
+            r.setReceiveBytes(e.getValue() / 10);
+            l.add(r);
+        }
+        OFPortStatisticsReply r = new OFPortStatisticsReply();
+        r.setPortNumber(uplinkPort);
+        r.setReceiveBytes(total);
+        r.setTransmitBytes(total / 10);
+        l.add(r);
+        return l;
+    }
+
+    private static OFFlowStatisticsReply flow(OFMatch match, long bytes, short port) {
+        OFFlowStatisticsReply r = new OFFlowStatisticsReply();
+        r.setMatch(match);
+        r.setByteCount(bytes);
+        r.setPacketCount(bytes / 1000);
+        r.setPriority((short) 0);
+        r.setIdleTimeout((short) 5);
+        r.setActions(Collections.singletonList(
+                (OFAction) new OFActionOutput(port, (short) 0xffff)));
+        return r;
+    }
+
+    private static byte[] toBytes(long mac) {
+        byte[] b = new byte[6];
+        for (int i = 0; i < 6; i++) {
+            b[i] = (byte) (mac >>> (8 * (5 - i)));
+        }
+        return b;
+    }
+
+    static Object defaultValue(Class<?> type) {
+        if (!type.isPrimitive() || type == void.class) {
+            return null;
+        } else if (type == boolean.class) {
+            return false;
+        } else if (type == long.class) {
+            return 0L;
+        } else if (type == int.class) {
+            return 0;
+        } else if (type == short.class) {
+            return (short) 0;
+        } else if (type == byte.class) {
+            return (byte) 0;
+        } else if (type == double.class) {
+            return 0.0;
+        } else if (type == float.class) {
+            return 0.0f;
+        }
+        return (char) 0;
+    }
+}
@@ -0,0 +1,344 @@
+/**
+*    Copyright 2013 University of Helsinki
+*
+*    Licensed under the Apache License, Version 2.0 (the "License"); you may
+*    not use this file except in compliance with the License. You may obtain
+*    a copy of the License at
+*
+*         http://www.apache.org/licenses/LICENSE-2.0
+*
+*    Unless required by applicable law or agreed to in writing, software
+*    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+*    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+*    License for the specific language governing permissions and limitations
+*    under the License.
+**/
+
+package net.floodlightcontroller.mobilesdn;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import net.floodlightcontroller.core.IFloodlightProviderService;
+import net.floodlightcontroller.core.IFloodlightProviderService.Role;
+import net.floodlightcontroller.core.IOFSwitch;
+import net.floodlightcontroller.core.module.FloodlightModuleContext;
+import net.floodlightcontroller.debugcounter.IDebugCounterService;
+import net.floodlightcontroller.debugcounter.NullDebugCounter;
+import net.floodlightcontroller.restserver.IRestApiService;
+import net.floodlightcontroller.routing.IRoutingService;
+import net.floodlightcontroller.threadpool.IThreadPoolService;
+import net.floodlightcontroller.threadpool.ThreadPool;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openflow.protocol.factory.BasicFactory;
+import org.sdnplatform.sync.ISyncService;
+import org.sdnplatform.sync.internal.SyncManager;
+import org.sdnplatform.sync.internal.config.Node;
+import org.sdnplatform.sync.internal.config.PropertyCCProvider;
+
+/**
+ * Scaling of sharded masters in this JVM: 1, 2... sim.instances masters,
+ * each on its own sync node, share a fixed network of scripted switches.
+ * The switches are assigned by the shard ring, every master only monitors
+ * the APs behind its own switches and publishes them in the shard
+ * directory.
+ *
+ * For every number of instances and every instance, reported: APs and
+ * clients monitored, APs of other shards seen in the directory, and the
+ * sweep time p50/max, i.e. from a switch's flow stats reply until all
+ * statistics listeners of the master are done with it. Replies of one
+ * master are handled one after the other, so the sweep time grows with
+ * the switches per master; with near-linear scaling both the APs and the
+ * sweep time per instance fall as 1/instances.
+ *
+ * All instances share the CPUs of this JVM, the sweep time is only
+ * comparable between runs on the same machine.
+ *
+ * Settings (system properties): sim.instances (4), sim.switches (40),
+ * sim.apsPerSwitch (10), sim.clients per AP (10), sim.sweeps measured per
+ * run (5), sim.masterPort (26400), sim.syncPort (40400).
+ *
+ */
+public class ShardScalingBenchmark {
+    private static final double CLIENT_RATE = 1e6;      // bit/s, below any limit
+    private static final double AP_BW = 20;             // Mbit/s
+    private static final long START_TIMEOUT = 20000;    // ms, first sweeps
+
+    private final int maxInstances = Integer.getInteger("sim.instances", 4);
+    private final int switchNum = Integer.getInteger("sim.switches", 40);
+    private final int apsPerSwitch = Integer.getInteger("sim.apsPerSwitch", 10);
+    private final int clientsPerAP = Integer.getInteger("sim.clients", 10);
+    private final int sweeps = Integer.getInteger("sim.sweeps", 5);
+    private final int masterPort = Integer.getInteger("sim.masterPort", 26400);
+    private final int syncPort = Integer.getInteger("sim.syncPort", 40400);
+
+    private final Map<Long, IOFSwitch> switchMap = new ConcurrentHashMap<Long, IOFSwitch>();
+    private ScriptedSwitch[] switches;
+    private File apConfig;
+    private File networkConfig;
+
+    /**
+     * One master with its own sync node and thread pool
+     */
+    private class Instance implements ISwitchStatisticsListener {
+        final String shardId;
+        final ThreadPool threadPool = new ThreadPool();
+        final SyncManager syncManager = new SyncManager();
+        final Master master = new Master();
+        final List<Long> sweepTimes = new ArrayList<Long>();    // guarded by this
+        volatile int snapshots;
+
+        Instance(String shardId) {
+            this.shardId = shardId;
+        }
+
+        @Override
+        public void statisticsUpdated(SwitchStatistics stats) {
+            // listeners are called in order, the master's own ones first
+            long t = System.nanoTime() - stats.getFlowReplyTime();
+            synchronized (this) {
+                sweepTimes.add(t);
+            }
+            snapshots++;
+        }
+
+        synchronized long[] takeSweepTimes() {
+            long[] l = new long[sweepTimes.size()];
+            for (int i = 0; i < l.length; i++) {
+                l[i] = sweepTimes.get(i);
+            }
+            sweepTimes.clear();
+            return l;
+        }
+
+        int switchNum() {
+            Set<Long> ids = new HashSet<Long>();
+            for (APAgent agent: master.getAgents()) {
+                if (agent.getSwitch() != null) {
+                    ids.add(agent.getSwitch().getId());
+                }
+            }
+            return ids.size();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        ShardScalingBenchmark b = new ShardScalingBenchmark();
+        b.setUp();
+        System.out.println(String.format("%d switches, %d APs, %d clients",
+                b.switchNum, b.switchNum * b.apsPerSwitch,
+                b.switchNum * b.apsPerSwitch * b.clientsPerAP));
+        for (int n = 1; n <= b.maxInstances; n++) {
+            b.run(n);
+        }
+        System.exit(0);
+    }
+
+    private void setUp() throws Exception {
+        switches = new ScriptedSwitch[switchNum];
+        apConfig = File.createTempFile("shard-ap", ".properties");
+        networkConfig = File.createTempFile("shard-network", ".properties");
+        apConfig.deleteOnExit();
+        networkConfig.deleteOnExit();
+        PrintWriter ap = new PrintWriter(apConfig);
+        PrintWriter net = new PrintWriter(networkConfig);
+
+        for (int s = 0; s < switchNum; s++) {
+            String swIp = "127.1." + (s / 250) + "." + (s % 250 + 1);
+            switches[s] = new ScriptedSwitch(s + 1, InetAddress.getByName(swIp),
+                    (short) (apsPerSwitch + 1));
+            switchMap.put(switches[s].getId(), switches[s].getSwitch());
+
+            StringBuilder aps = new StringBuilder("AP");
+            for (int p = 1; p <= apsPerSwitch; p++) {
+                int i = s * apsPerSwitch + p - 1;
+                String ip = agentAddress(i);
+                aps.append(' ').append(ip);
+                ap.println("ManagedIP " + ip);
+                ap.println("SSID ap" + i);
+                ap.println("BSSID " + SimulatedAgent.mac(0x020000000000L + i));
+                ap.println("AUTH open");
+                ap.println("OFPort " + p);
+                ap.println("DownlinkBW " + AP_BW);
+                ap.println();
+                for (int c = 0; c < clientsPerAP; c++) {
+                    switches[s].setClient(clientMac(i, c), (short) p, CLIENT_RATE);
+                }
+            }
+            net.println("OFSwitchIP " + swIp);
+            net.println("OutPort " + (apsPerSwitch + 1));
+            net.println("BandWidth " + (int) (AP_BW * apsPerSwitch));
+            net.println(aps);
+            net.println();
+        }
+        ap.close();
+        net.close();
+    }
+
+    private static String agentAddress(int i) {
+        return "127.2." + (i / 250) + "." + (i % 250 + 1);
+    }
+
+    private long clientMac(int ap, int c) {
+        return 0x0a0000000000L + (long) ap * clientsPerAP + c;
+    }
+
+    private void run(int n) throws Exception {
+        int base = n * 10;
+        List<Node> nodes = new ArrayList<Node>();
+        StringBuilder shards = new StringBuilder();
+        for (int i = 1; i <= n; i++) {
+            nodes.add(new Node("localhost", syncPort + base + i, (short) i, (short) 1));
+            shards.append(i > 1 ? "," : "").append("s").append(i);
+        }
+        String nodeString = new ObjectMapper().writeValueAsString(nodes);
+
+        Instance[] instances = new Instance[n];
+        try {
+            for (int i = 0; i < n; i++) {
+                instances[i] = new Instance("s" + (i + 1));
+                start(instances[i], nodeString, (short) (i + 1), shards.toString(),
+                        masterPort + base + i);
+            }
+
+            // the collector starts 5s after the master; wait until every
+            // switch has been swept once, then measure
+            long deadline = System.currentTimeMillis() + START_TIMEOUT;
+            for (Instance inst: instances) {
+                while (inst.snapshots < inst.switchNum()
+                        && System.currentTimeMillis() < deadline) {
+                    Thread.sleep(50);
+                }
+                inst.takeSweepTimes();
+            }
+            Thread.sleep(sweeps * 1000L);
+
+            int apTotal = 0;
+            int apMax = 0;
+            double slowest = 0;
+            for (Instance inst: instances) {
+                long[] t = inst.takeSweepTimes();
+                Arrays.sort(t);
+                int apNum = inst.master.getAgents().size();
+                int clientNum = 0;
+                for (APAgent agent: inst.master.getAgents()) {
+                    clientNum += agent.getClientNum();
+                }
+                ShardDirectory directory = inst.master.getShardDirectory();
+                System.out.println(String.format(
+                        "%d instances, shard %-3s %5d APs %3d switches %7d clients"
+                        + " %5d remote APs  sweep %8.2f ms p50 %8.2f ms max",
+                        n, inst.shardId, apNum, inst.switchNum(), clientNum,
+                        directory == null ? 0 : directory.getRemoteAPNum(),
+                        percentile(t, 50) / 1e6, percentile(t, 100) / 1e6));
+                apTotal += apNum;
+                apMax = Math.max(apMax, apNum);
+                slowest = Math.max(slowest, percentile(t, 50) / 1e6);
+            }
+            System.out.println(String.format(
+                    "%d instances: %d APs monitored, at most %d per instance,"
+                    + " slowest sweep %.2f ms p50", n, apTotal, apMax, slowest));
+        } finally {
+            for (Instance inst: instances) {
+                if (inst != null) {
+                    stop(inst);
+                }
+            }
+        }
+    }
+
+    private void start(final Instance inst, String nodes, short nodeId, String shards,
+            int port) throws Exception {
+        FloodlightModuleContext ctx = new FloodlightModuleContext();
+        ctx.addService(IThreadPoolService.class, inst.threadPool);
+        ctx.addService(IDebugCounterService.class, new NullDebugCounter());
+        ctx.addConfigParam(inst.syncManager, "configProviders",
+                PropertyCCProvider.class.getName());
+        ctx.addConfigParam(inst.syncManager, "nodes", nodes);
+        ctx.addConfigParam(inst.syncManager, "thisNode", "" + nodeId);
+        ctx.addConfigParam(inst.syncManager, "persistenceEnabled", "false");
+        ctx.addConfigParam(inst.syncManager, "authScheme", "NO_AUTH");
+        inst.threadPool.init(ctx);
+        inst.syncManager.init(ctx);
+        inst.threadPool.startUp(ctx);
+        inst.syncManager.startUp(ctx);
+
+        ctx.addService(ISyncService.class, inst.syncManager);
+        ctx.addService(IFloodlightProviderService.class,
+                MobileSdnLoadBenchmark.stub(IFloodlightProviderService.class,
+                        new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object p, Method m, Object[] args) {
+                        String name = m.getName();
+                        if (name.equals("getSwitch")) {
+                            return switchMap.get(args[0]);
+                        } else if (name.equals("getAllSwitchMap")) {
+                            return switchMap;
+                        } else if (name.equals("getOFMessageFactory")) {
+                            return BasicFactory.getInstance();
+                        } else if (name.equals("getRole")) {
+                            return Role.MASTER;
+                        }
+                        return ScriptedSwitch.defaultValue(m.getReturnType());
+                    }
+                }));
+        ctx.addService(IRestApiService.class,
+                MobileSdnLoadBenchmark.stub(IRestApiService.class, null));
+        ctx.addService(IRoutingService.class,
+                MobileSdnLoadBenchmark.stub(IRoutingService.class, null));
+        ctx.addService(IOffloadPolicyService.class,
+                MobileSdnLoadBenchmark.stub(IOffloadPolicyService.class, null));
+
+        Master master = inst.master;
+        ctx.addConfigParam(master, "masterPort", "" + port);
+        ctx.addConfigParam(master, "networkFile", networkConfig.getAbsolutePath());
+        ctx.addConfigParam(master, "apConfig", apConfig.getAbsolutePath());
+        ctx.addConfigParam(master, "enableCellular", "false");
+        ctx.addConfigParam(master, "ofMonitorInterval", "1");
+        ctx.addConfigParam(master, "stateSnapshotInterval", "0");
+        ctx.addConfigParam(master, "configCheckInterval", "0");
+        ctx.addConfigParam(master, "shards", shards);
+        ctx.addConfigParam(master, "shardId", inst.shardId);
+        master.init(ctx);
+        master.startUp(ctx);
+
+        // every switch connects to every instance, only its shard keeps it
+        for (long id: switchMap.keySet()) {
+            master.switchActivated(id);
+        }
+        for (APAgent agent: master.getAgents()) {
+            int i = Integer.parseInt(agent.getSSID().substring(2));
+            for (int c = 0; c < clientsPerAP; c++) {
+                long mac = clientMac(i, c);
+                master.receiveClientInfo(agent.getIpAddress(), SimulatedAgent.mac(mac),
+                        "10." + (i / 250) + "." + (i % 250) + "." + (c + 1));
+            }
+        }
+        master.getStatisticsCollector().addListener(inst);
+    }
+
+    private static void stop(Instance inst) {
+        inst.master.stopServices();
+        inst.syncManager.shutdown();
+        inst.threadPool.getScheduledExecutor().shutdownNow();
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int rank = (int) Math.ceil(p / 100 * sorted.length);
+        return sorted[Math.max(0, Math.min(sorted.length, rank) - 1)];
+    }
+}
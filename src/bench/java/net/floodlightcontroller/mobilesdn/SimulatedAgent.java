@@ -0,0 +1,193 @@
+/**
+*    Copyright 2013 University of Helsinki
+*
+*    Licensed under the Apache License, Version 2.0 (the "License"); you may
+*    not use this file except in compliance with the License. You may obtain
+*    a copy of the License at
+*
+*         http://www.apache.org/licenses/LICENSE-2.0
+*
+*    Unless required by applicable law or agreed to in writing, software
+*    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+*    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+*    License for the specific language governing permissions and limitations
+*    under the License.
+**/
+
+package net.floodlightcontroller.mobilesdn;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.floodlightcontroller.util.MACAddress;
+
+/**
+ * A click agent emulated over loopback UDP. It sends the text protocol
+ * messages (client, scan, app, clientdisconnect) from its own address on
+ * the loopback network, so the master tells the agents apart as usual,
+ * and hands the commands relayed to its clients to a Listener.
+ *
+ */
+public class SimulatedAgent implements Runnable {
+    static final int AGENT_PORT = 6777;
+
+    public interface Listener {
+        /**
+         * the master relayed a command to one of the agent's clients,
+         * e.g. "scan|" or "switch|ssid|bssid|auth"
+         */
+        public void clientCommand(SimulatedAgent agent, long clientMac, String command);
+    }
+
+    private final int index;
+    private final InetAddress address;
+    private final String ssid;
+    private final long bssid;
+    private final ScriptedSwitch sw;
+    private final short port;
+    private final InetSocketAddress master;
+    private final DatagramSocket socket;
+    private final Listener listener;
+    private final Map<Long, String> clients = new ConcurrentHashMap<Long, String>();
+    private final AtomicLong sentCount = new AtomicLong();
+    private final AtomicLong receivedCount = new AtomicLong();
+    private volatile boolean running = true;
+
+    public SimulatedAgent(int index, InetAddress address, ScriptedSwitch sw,
+            short port, InetSocketAddress master, Listener listener)
+            throws SocketException {
+        this.index = index;
+        this.address = address;
+        this.ssid = "sim" + index;
+        this.bssid = 0x020000010000L + index;
+        this.sw = sw;
+        this.port = port;
+        this.master = master;
+        this.listener = listener;
+        this.socket = new DatagramSocket(new InetSocketAddress(address, AGENT_PORT));
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public InetAddress getAddress() {
+        return address;
+    }
+
+    public String getSSID() {
+        return ssid;
+    }
+
+    public long getBssid() {
+        return bssid;
+    }
+
+    public String getBSSIDString() {
+        return MACAddress.valueOf(bssid).toString().toLowerCase();
+    }
+
+    public ScriptedSwitch getScriptedSwitch() {
+        return sw;
+    }
+
+    public short getPort() {
+        return port;
+    }
+
+    public int getClientNum() {
+        return clients.size();
+    }
+
+    public boolean hasClient(long mac) {
+        return clients.containsKey(mac);
+    }
+
+    public long getSentCount() {
+        return sentCount.get();
+    }
+
+    public long getReceivedCount() {
+        return receivedCount.get();
+    }
+
+    /**
+     * a client associates with this AP and gets its address
+     */
+    public void join(long mac, String ip, double rate) throws IOException {
+        clients.put(mac, ip);
+        sw.setClient(mac, port, rate);
+        send("client|" + mac(mac) + "|" + ip + "|\n");
+    }
+
+    public void leave(long mac) throws IOException {
+        if (clients.remove(mac) != null) {
+            send("clientdisconnect|" + mac(mac) + "|\n");
+        }
+    }
+
+    public void sendApp(long mac, String app) throws IOException {
+        send("app|" + mac(mac) + "|" + app + "|\n");
+    }
+
+    /**
+     * @param aps APs seen by the client
+     * @param levels their signal levels in dBm
+     */
+    public void sendScan(long mac, SimulatedAgent[] aps, int[] levels) throws IOException {
+        StringBuilder sb = new StringBuilder(64 + aps.length * 32);
+        sb.append("scan|").append(mac(mac)).append("|static");
+        for (int i = 0; i < aps.length; i++) {
+            sb.append('|').append(aps[i].ssid).append('&')
+              .append(aps[i].getBSSIDString()).append('&').append(levels[i]);
+        }
+        sb.append("|end|\n");
+        send(sb.toString());
+    }
+
+    private void send(String message) throws IOException {
+        byte[] data = message.getBytes();
+        socket.send(new DatagramPacket(data, data.length, master));
+        sentCount.incrementAndGet();
+    }
+
+    @Override
+    public void run() {
+        byte[] buf = new byte[1500];
+        DatagramPacket packet = new DatagramPacket(buf, buf.length);
+        while (running) {
+            try {
+                packet.setLength(buf.length);
+                socket.receive(packet);
+            } catch (IOException e) {
+                break;  // closed
+            }
+            receivedCount.incrementAndGet();
+            // "c" + 6 MAC bytes + command: a message for one of the clients
+            int len = packet.getLength();
+            if (len > 7 && buf[0] == 'c') {
+                long mac = 0;
+                for (int k = 1; k <= 6; k++) {
+                    mac = (mac << 8) | (buf[k] & 0xff);
+                }
+                listener.clientCommand(this, mac, new String(buf, 7, len - 7).trim());
+            }
+        }
+    }
+
+    public void shutdown() {
+        running = false;
+        socket.close();
+    }
+
+    static String mac(long mac) {
+        return MACAddress.valueOf(mac).toString().toLowerCase();
+    }
+}
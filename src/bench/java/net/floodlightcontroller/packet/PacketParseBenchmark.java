@@ -0,0 +1,108 @@
+/**
+*    Copyright 2013 University of Helsinki
+*
+*    Licensed under the Apache License, Version 2.0 (the "License"); you may
+*    not use this file except in compliance with the License. You may obtain
+*    a copy of the License at
+*
+*         http://www.apache.org/licenses/LICENSE-2.0
+*
+*    Unless required by applicable law or agreed to in writing, software
+*    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+*    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+*    License for the specific language governing permissions and limitations
+*    under the License.
+**/
+
+package net.floodlightcontroller.packet;
+
+import net.floodlightcontroller.bench.MicroBenchmark;
+
+import org.openflow.protocol.OFMatch;
+
+/**
+ * Packet-in payload parsing: Ethernet.deserialize, which the controller
+ * runs for every PACKET_IN, and OFMatch.loadFromPacket, which forwarding
+ * and most listeners run on the same data again. ARP, TCP with a VLAN
+ * tag and a full-size payload, and UDP.
+ *
+ */
+public class PacketParseBenchmark {
+
+    private static byte[] arp() {
+        return new Ethernet()
+            .setSourceMACAddress("00:44:33:22:11:00")
+            .setDestinationMACAddress("ff:ff:ff:ff:ff:ff")
+            .setEtherType(Ethernet.TYPE_ARP)
+            .setPayload(
+                new ARP()
+                .setHardwareType(ARP.HW_TYPE_ETHERNET)
+                .setProtocolType(ARP.PROTO_TYPE_IP)
+                .setHardwareAddressLength((byte) 6)
+                .setProtocolAddressLength((byte) 4)
+                .setOpCode(ARP.OP_REQUEST)
+                .setSenderHardwareAddress(Ethernet.toMACAddress("00:44:33:22:11:00"))
+                .setSenderProtocolAddress(IPv4.toIPv4AddressBytes("192.168.1.1"))
+                .setTargetHardwareAddress(Ethernet.toMACAddress("00:00:00:00:00:00"))
+                .setTargetProtocolAddress(IPv4.toIPv4AddressBytes("192.168.1.2")))
+            .serialize();
+    }
+
+    private static byte[] tcp() {
+        return new Ethernet()
+            .setSourceMACAddress("00:44:33:22:11:00")
+            .setDestinationMACAddress("00:11:22:33:44:55")
+            .setVlanID((short) 42)
+            .setEtherType(Ethernet.TYPE_IPv4)
+            .setPayload(
+                new IPv4()
+                .setTtl((byte) 64)
+                .setSourceAddress("192.168.1.1")
+                .setDestinationAddress("10.0.0.2")
+                .setPayload(new TCP()
+                    .setSourcePort((short) 49202)
+                    .setDestinationPort((short) 80)
+                    .setPayload(new Data(new byte[1400]))))
+            .serialize();
+    }
+
+    private static byte[] udp() {
+        return new Ethernet()
+            .setSourceMACAddress("00:44:33:22:11:00")
+            .setDestinationMACAddress("00:11:22:33:44:55")
+            .setEtherType(Ethernet.TYPE_IPv4)
+            .setPayload(
+                new IPv4()
+                .setTtl((byte) 64)
+                .setSourceAddress("192.168.1.1")
+                .setDestinationAddress("10.0.0.2")
+                .setPayload(new UDP()
+                    .setSourcePort((short) 5000)
+                    .setDestinationPort((short) 5001)
+                    .setPayload(new Data(new byte[160]))))
+            .serialize();
+    }
+
+    private static void measure(String name, final byte[] data) throws Exception {
+        MicroBenchmark.measure("Ethernet.deserialize " + name, new MicroBenchmark.Operation() {
+            public long run() {
+                Ethernet eth = new Ethernet();
+                eth.deserialize(data, 0, data.length);
+                return eth.getEtherType();
+            }
+        });
+        final OFMatch match = new OFMatch();
+        MicroBenchmark.measure("OFMatch.loadFromPacket " + name, new MicroBenchmark.Operation() {
+            public long run() {
+                match.loadFromPacket(data, (short) 1);
+                return match.getNetworkDestination();
+            }
+        });
+    }
+
+    public static void main(String[] args) throws Exception {
+        measure("arp", arp());
+        measure("tcp vlan 1400B", tcp());
+        measure("udp 160B", udp());
+    }
+}
@@ -0,0 +1,101 @@
+/**
+*    Copyright 2013 University of Helsinki
+*
+*    Licensed under the Apache License, Version 2.0 (the "License"); you may
+*    not use this file except in compliance with the License. You may obtain
+*    a copy of the License at
+*
+*         http://www.apache.org/licenses/LICENSE-2.0
+*
+*    Unless required by applicable law or agreed to in writing, software
+*    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+*    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+*    License for the specific language governing permissions and limitations
+*    under the License.
+**/
+
+package net.floodlightcontroller.topology;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import net.floodlightcontroller.bench.MicroBenchmark;
+import net.floodlightcontroller.routing.Link;
+
+/**
+ * TopologyInstance.compute, run by TopologyManager on every link change:
+ * clusters, destination rooted shortest path trees and broadcast trees,
+ * on grids of 16, 64 and 256 switches with links in both directions.
+ * One operation creates the instance from the link maps and computes it,
+ * as createNewInstance does.
+ *
+ */
+public class TopologyInstanceBenchmark {
+
+    private static class Grid {
+        final Map<Long, Set<Short>> switchPorts = new HashMap<Long, Set<Short>>();
+        final Map<NodePortTuple, Set<Link>> switchPortLinks =
+                new HashMap<NodePortTuple, Set<Link>>();
+
+        Grid(int side) {
+            for (int y = 0; y < side; y++) {
+                for (int x = 0; x < side; x++) {
+                    long sw = 1 + y * side + x;
+                    if (x + 1 < side) {
+                        // port 1 east, 2 west
+                        connect(sw, (short) 1, sw + 1, (short) 2);
+                    }
+                    if (y + 1 < side) {
+                        // port 3 south, 4 north
+                        connect(sw, (short) 3, sw + side, (short) 4);
+                    }
+                }
+            }
+        }
+
+        private void connect(long a, short aPort, long b, short bPort) {
+            addLink(new Link(a, aPort, b, bPort));
+            addLink(new Link(b, bPort, a, aPort));
+        }
+
+        private void addLink(Link link) {
+            addPortLink(link.getSrc(), link.getSrcPort(), link);
+            addPortLink(link.getDst(), link.getDstPort(), link);
+        }
+
+        private void addPortLink(long sw, short port, Link link) {
+            Set<Short> ports = switchPorts.get(sw);
+            if (ports == null) {
+                ports = new HashSet<Short>();
+                switchPorts.put(sw, ports);
+            }
+            ports.add(port);
+            NodePortTuple npt = new NodePortTuple(sw, port);
+            Set<Link> links = switchPortLinks.get(npt);
+            if (links == null) {
+                links = new HashSet<Link>();
+                switchPortLinks.put(npt, links);
+            }
+            links.add(link);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        final Set<NodePortTuple> none = Collections.emptySet();
+        for (int side: new int[] { 4, 8, 16 }) {
+            final Grid grid = new Grid(side);
+            MicroBenchmark.measure("TopologyInstance.compute " + side * side + " switches grid",
+                    new MicroBenchmark.Operation() {
+                public long run() {
+                    TopologyInstance ti = new TopologyInstance(grid.switchPorts,
+                            none, grid.switchPortLinks, none, none);
+                    ti.compute();
+                    return ti.getClusters().size();
+                }
+            });
+        }
+    }
+}
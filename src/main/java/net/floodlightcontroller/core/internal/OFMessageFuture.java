@@ -17,6 +17,8 @@
 
 package net.floodlightcontroller.core.internal;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
@@ -25,6 +27,8 @@ import java.util.concurrent.TimeoutException;
 
 import org.openflow.protocol.OFMessage;
 import org.openflow.protocol.OFType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import net.floodlightcontroller.core.IOFSwitch;
 import net.floodlightcontroller.threadpool.IThreadPoolService;
@@ -34,10 +38,13 @@ import net.floodlightcontroller.threadpool.IThreadPoolService;
  * and cancels itself by default after 60 seconds. This class is meant to be
  * sub-classed and proper behavior added to the handleReply method, and
  * termination of the Future to be handled in the isFinished method.
+ * Callers that must not block can register a listener with addListener
+ * instead of calling get.
  *
  * @author David Erickson (daviderickson@cs.stanford.edu)
  */
 public abstract class OFMessageFuture<V> implements Future<V> {
+    protected static Logger log = LoggerFactory.getLogger(OFMessageFuture.class);
 
     protected IThreadPoolService threadPool;
     protected volatile boolean canceled;
@@ -47,6 +54,8 @@ public abstract class OFMessageFuture<V> implements Future<V> {
     protected IOFSwitch sw;
     protected Runnable timeoutTimer;
     protected int transactionId;
+    // completion listeners, guarded by this; null once they have been run
+    protected List<Runnable> listeners;
     protected static final long DEFAULT_TIMEOUT = 60;
     protected static final TimeUnit DEFAULT_TIMEOUT_UNIT = TimeUnit.SECONDS;
 
@@ -88,6 +97,7 @@ public abstract class OFMessageFuture<V> implements Future<V> {
             if (isFinished()) {
                 unRegister();
                 this.latch.countDown();
+                notifyListeners();
             }
         }
     }
@@ -122,6 +132,7 @@ public abstract class OFMessageFuture<V> implements Future<V> {
             unRegister();
             canceled = true;
             this.latch.countDown();
+            notifyListeners();
             return !isDone();
         }
     }
@@ -161,6 +172,46 @@ public abstract class OFMessageFuture<V> implements Future<V> {
         return result;
     }
 
+    /**
+     * Register a listener which is run once this Future is done, either
+     * because the reply is complete or because it was canceled or timed out.
+     * The listener runs on the thread completing the Future (usually an I/O
+     * thread) so it must not block. If the Future is already done, the
+     * listener is run immediately by the calling thread.
+     * @param listener
+     */
+    public void addListener(Runnable listener) {
+        synchronized (this) {
+            if (!isDone()) {
+                if (listeners == null)
+                    listeners = new ArrayList<Runnable>();
+                listeners.add(listener);
+                return;
+            }
+        }
+        runListener(listener);
+    }
+
+    protected void notifyListeners() {
+        List<Runnable> l;
+        synchronized (this) {
+            l = listeners;
+            listeners = null;
+        }
+        if (l != null) {
+            for (Runnable listener : l)
+                runListener(listener);
+        }
+    }
+
+    private void runListener(Runnable listener) {
+        try {
+            listener.run();
+        } catch (RuntimeException e) {
+            log.error("Exception in OFMessageFuture listener", e);
+        }
+    }
+
     public int getTransactionId() {
         return transactionId;
     }
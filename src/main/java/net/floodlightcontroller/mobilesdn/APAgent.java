@@ -18,25 +18,13 @@
 
 package net.floodlightcontroller.mobilesdn;
 
-import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetAddress;
-import java.net.SocketException;
 import java.net.UnknownHostException;
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
 import java.util.Collection;
-import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
-import org.openflow.protocol.OFFlowMod;
-import org.openflow.protocol.OFMatch;
-import org.openflow.protocol.OFPacketOut;
-import org.openflow.protocol.OFPort;
-import org.openflow.protocol.Wildcards;
-import org.openflow.protocol.Wildcards.Flag;
-import org.openflow.protocol.action.OFAction;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -44,7 +32,6 @@ import com.fasterxml.jackson.databind.annotation.JsonSerialize;
 
 import net.floodlightcontroller.mobilesdn.web.AgentJsonSerializer;
 import net.floodlightcontroller.core.IOFSwitch;
-import net.floodlightcontroller.packet.IPv4;
 import net.floodlightcontroller.util.MACAddress;
 
 /**
@@ -66,46 +53,40 @@ public class APAgent implements Comparable<Object> {
     private short ofPort;
     private double downlinkBW;
 
-    private double upRate;      // up rate of agent eth port
-    private double downRate;	// down rate of agent eht port
+    // rates of agent eth port (bit/s), sum of client rates or agent report
+    private final RateEstimator upRate = new RateEstimator();
+    private final RateEstimator downRate = new RateEstimator();
     private Map<String, Client> clientMap = new ConcurrentHashMap<String, Client>();
     private IOFSwitch ofSwitch = null;          // not initialized
-    private DatagramSocket agentSocket = null;
+    private volatile IAgentCodec codec = new TextAgentCodec();
     // private boolean offloadingFlag = false;   // OFMonitor may change this to true
     
-    // used for new OFMonitor statistics
-    private long ofDownBytes = 0;
-    private long ofUpBytes = 0;
-    private double ofDownRate;
+    // used for new OFMonitor statistics: switch port tx bytes (byte/s)
+    private final RateEstimator ofDownRate = new RateEstimator();
     private int downRateOverNum = 0;
-    private int pendingNum = 0;
 
 
     // defaults
     private final int AGENT_PORT = 6777;
-    static private final float RATE_THRESHOLD = 500000;
     static private final int MAX_LEN = 512;
 
+    // reusable encode buffers, one per sending thread
+    private static final ThreadLocal<ByteBuffer> encodeBuffer = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocate(MAX_LEN);
+        }
+    };
+
 
     public APAgent(InetAddress ipAddr) {
         this.ipAddress = ipAddr;
-
-        try {
-            this.agentSocket = new DatagramSocket();
-        } catch (SocketException e) {
-            e.printStackTrace();
-            System.exit(1);
-        }
     }
 
     public APAgent(String ipAddr) {
 
         try {
             this.ipAddress = InetAddress.getByName(ipAddr);
-            this.agentSocket = new DatagramSocket();
-        } catch (SocketException e) {
-            e.printStackTrace();
-            System.exit(1);
         } catch (UnknownHostException e1) {
             e1.printStackTrace();
             System.exit(1);
@@ -120,13 +101,6 @@ public class APAgent implements Comparable<Object> {
         this.auth = auth;
         this.ofPort = port;
         this.downlinkBW = bw;
-
-        try {
-            this.agentSocket = new DatagramSocket();
-        } catch (SocketException e) {
-            e.printStackTrace();
-            System.exit(1);
-        }
     }
 
     public APAgent(String ipAddr, IOFSwitch sw, String s, String b, String auth, short port, double bw) {
@@ -140,10 +114,6 @@ public class APAgent implements Comparable<Object> {
 
         try {
             this.ipAddress = InetAddress.getByName(ipAddr);
-            this.agentSocket = new DatagramSocket();
-        } catch (SocketException e) {
-            e.printStackTrace();
-            System.exit(1);
         } catch (UnknownHostException e1) {
             e1.printStackTrace();
             System.exit(1);
@@ -159,35 +129,43 @@ public class APAgent implements Comparable<Object> {
     }
 
     /**
-     * get AP's total up rate value
+     * get AP's total up rate value (moving average)
      * @return
      */
-    public synchronized double getUpRate() {
-        return this.upRate;
+    public double getUpRate() {
+        return upRate.getRate();
     }
 
     /**
-     * Set the AP's up rate value
+     * Add a sample of the AP's up rate
      * @param r
      */
-    public synchronized void updateUpRate(double r) {
-        this.upRate = r;
+    public void updateUpRate(double r) {
+        upRate.addRate(r);
     }
 
     /**
-     * get AP's total down rate value
-     * @return downRate (float)
+     * get AP's total down rate value (moving average)
+     * @return downRate
      */
-    public synchronized double getDownRate() {
-        return this.downRate;
+    public double getDownRate() {
+        return downRate.getRate();
     }
 
     /**
-     * Set the AP's down rate value
+     * Add a sample of the AP's down rate
      * @param r
      */
-    public synchronized void updateDownRate(double r) {
-        this.downRate = r;
+    public void updateDownRate(double r) {
+        downRate.addRate(r);
+    }
+
+    public RateEstimator getUpRateEstimator() {
+        return upRate;
+    }
+
+    public RateEstimator getDownRateEstimator() {
+        return downRate;
     }
 
     /**
@@ -256,40 +234,16 @@ public class APAgent implements Comparable<Object> {
         return downRateOverNum;
     }
 
-    public int getPendingNum() {
-        return pendingNum;
-    }
-    
-    public long getOFDownBytes() {
-        return ofDownBytes;
-    }
-
-    public long getOFUpBytes() {
-        return ofUpBytes;
-    }
-
-    public void setOFDownBytes(long bytes) {
-        ofDownBytes = bytes;
-    }
-
-    public void setOFUpBytes(long bytes) {
-        ofUpBytes = bytes;
-    }
-
     public void setDownRateOverNum(int num) {
         downRateOverNum = num;
     }
 
-    public void setPendingNum(int num) {
-        pendingNum = num;
-    }
-    
     public double getOFDownRate() {
-        return ofDownRate;
+        return ofDownRate.getRate();
     }
 
-    public void setOFDownRate(double rate) {
-        ofDownRate = rate;
+    public RateEstimator getOFDownRateEstimator() {
+        return ofDownRate;
     }
     
 
@@ -419,29 +373,68 @@ public class APAgent implements Comparable<Object> {
     }
     */
 
+    /**
+     * get the codec used for messages sent to this agent
+     * @return
+     */
+    public IAgentCodec getCodec() {
+        return codec;
+    }
+
+    /**
+     * set the codec used for messages sent to this agent, e.g. after the
+     * agent has been found to speak the binary protocol
+     * @param c
+     */
+    public void setCodec(IAgentCodec c) {
+        codec = c;
+    }
+
+    /**
+     * send a message to be relayed by the agent to one of its clients
+     *
+     * @param clientMac client MAC address
+     * @param signal message signal, e.g. "c"
+     * @param data message body, null for a bare signal
+     */
+    public void sendToClient(long clientMac, String signal, String data) {
+        ByteBuffer buf = encodeBuffer.get();
+        buf.clear();
+        codec.encodeToClient(buf, clientMac, signal, data);
+        send(buf.array(), buf.position());
+    }
+
+    /**
+     * send a message to the agent itself
+     *
+     * @param signal message signal, e.g. "a"
+     * @param data message body, null for a bare signal
+     */
+    public void sendToAgent(String signal, String data) {
+        ByteBuffer buf = encodeBuffer.get();
+        buf.clear();
+        codec.encodeToAgent(buf, signal, data);
+        send(buf.array(), buf.position());
+    }
+
     public void send(String message) {
-        // send message to agent ap
-        byte[] buf = new byte[MAX_LEN];
-        buf = message.getBytes();
-        DatagramPacket packet = new DatagramPacket(buf, buf.length,
-                                        this.ipAddress, this.AGENT_PORT);
-        try {
-            this.agentSocket.send(packet);
-        } catch (IOException e) {
-            log.error("can not send udp message to agent: " + message);
-            e.printStackTrace();
-        }
+        byte[] buf = message.getBytes();
+        send(buf, buf.length);
     }
 
     public void send(byte[] message) {
-        // send message to agent ap
-        DatagramPacket packet = new DatagramPacket(message, message.length,
-                                        this.ipAddress, this.AGENT_PORT);
-        try {
-            this.agentSocket.send(packet);
-        } catch (IOException e) {
-            log.error("can not send udp message to agent: " + message.toString());
-            e.printStackTrace();
+        send(message, message.length);
+    }
+
+    /**
+     * send message to agent ap; the message is queued on the shared
+     * AgentMessenger, so this never blocks on socket I/O
+     */
+    private void send(byte[] message, int length) {
+        if (!AgentMessenger.getDefault().send(this.ipAddress, this.AGENT_PORT,
+                                              message, length)) {
+            log.warn("Agent message queue is full, dropped message to "
+                        + ipAddress.getHostAddress());
         }
     }
 
@@ -450,7 +443,7 @@ public class APAgent implements Comparable<Object> {
         StringBuilder builder = new StringBuilder();
 
         builder.append("Agent " + ipAddress.getHostAddress() + ", uprate="
-                + Double.toString(upRate) + ", downrate=" + Double.toString(downRate)
+                + Double.toString(getUpRate()) + ", downrate=" + Double.toString(getDownRate())
                 + ", clientNum=" + Integer.toString(getClientNum()));
 
         if (this.ofSwitch != null) {
@@ -514,29 +507,13 @@ public class APAgent implements Comparable<Object> {
             clt.updateUpRate(uprate);
             clt.updateDownRate(downrate);
             // System.out.println(clt.toString());
-            
-            IOFSwitch sw = clt.getSwitch();
-            // modify flow action to drop
-            if (uprate >= RATE_THRESHOLD && sw != null) {
-
-                log.info("FlowRate = {}bytes/s: suspicious flow, " +
-                        "drop matched pkts", Double.toString(uprate));
 
-                dropFlow(sw, clt, mac);
-            }
-            
             return clt;
         } else {
             log.warn("Received uninilized Client rate info, checking with agent...");
             
             MACAddress macAddr = MACAddress.valueOf(mac);
-            byte[] m = macAddr.toBytes();
-            byte[] signal = "ack".getBytes();
-            byte[] message = new byte[m.length + signal.length];
-
-            System.arraycopy(signal, 0, message, 0, signal.length);
-            System.arraycopy(m, 0, message, signal.length, m.length);
-            this.send(message);
+            sendToClient(macAddr.toLong(), "ack", null);
             
             return null;
         }
@@ -550,51 +527,9 @@ public class APAgent implements Comparable<Object> {
     public void checkClients() {
     	log.info("Checking clients status on this agent...");
     	
-    	byte[] message = "arp".getBytes(); // a -- to agent, rp -- report
-    	send(message);
+    	sendToAgent("arp", null); // a -- to agent, rp -- report
     }
     
-    public void dropFlow(IOFSwitch sw, Client clt, String mac) {
-        OFMatch match = new OFMatch();
-        match.setWildcards(Wildcards.FULL.matchOn(Flag.DL_SRC)
-                                         .matchOn(Flag.DL_TYPE)
-                                         .matchOn(Flag.NW_SRC)
-                                         .withNwSrcMask(32));
-        match.setDataLayerSource(mac)
-             .setDataLayerType((short)0x0800)
-             .setNetworkSource(IPv4.toIPv4Address(clt.getIpAddress().getAddress()));
-
-        OFFlowMod flowMod = new OFFlowMod();
-        // set no action to drop
-        List<OFAction> actions = new ArrayList<OFAction>();
-
-        // set flow_mod
-        flowMod.setCookie(67);   // some value chosen randomly
-        flowMod.setPriority((short)200);
-        flowMod.setOutPort(OFPort.OFPP_NONE);
-        flowMod.setMatch(match);
-        // this buffer_id is needed for avoiding a BAD_REQUEST error
-        flowMod.setBufferId(OFPacketOut.BUFFER_ID_NONE);
-        flowMod.setHardTimeout((short) 0);
-        flowMod.setIdleTimeout((short) 20);
-        flowMod.setActions(actions);
-        flowMod.setCommand(OFFlowMod.OFPFC_MODIFY);
-
-        // send flow_mod
-
-        try {
-            sw.write(flowMod, null);
-            sw.flush();
-        } catch (IOException e) {
-            log.error("tried to write flow_mod to {} but failed: {}",
-                        sw.getId(), e.getMessage());
-        } catch (Exception e) {
-            log.error("Failure to modify flow entries", e);
-        }
-    }
-   
-
-
     @Override
     public boolean equals(Object obj) {
         if (!(obj instanceof APAgent))
@@ -616,7 +551,7 @@ public class APAgent implements Comparable<Object> {
         if (this.bssid.toLowerCase().equals(((APAgent)o).getBSSID().toLowerCase()))
             return 0;
 
-        if (this.downRate > ((APAgent)o).getDownRate())
+        if (getDownRate() > ((APAgent)o).getDownRate())
             return 1;
 
         return -1;
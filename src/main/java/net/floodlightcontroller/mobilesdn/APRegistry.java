@@ -0,0 +1,180 @@
+/**
+*    Copyright 2013 University of Helsinki
+*
+*    Licensed under the Apache License, Version 2.0 (the "License"); you may
+*    not use this file except in compliance with the License. You may obtain
+*    a copy of the License at
+*
+*         http://www.apache.org/licenses/LICENSE-2.0
+*
+*    Unless required by applicable law or agreed to in writing, software
+*    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+*    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+*    License for the specific language governing permissions and limitations
+*    under the License.
+**/
+
+
+package net.floodlightcontroller.mobilesdn;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import net.floodlightcontroller.core.IOFSwitch;
+import net.floodlightcontroller.util.MACAddress;
+
+/**
+ * Registry of all AP agents, indexed by management IP address, by BSSID
+ * (as 48-bit long) and by the OpenFlow switch DPID and port the AP is
+ * connected to.
+ *
+ * Lookups are lock-free. Updates are serialized so that the three indexes
+ * always describe the same set of agents. An agent whose BSSID, switch or
+ * port changes has to be put again.
+ *
+ * @author Yanhe Liu <yanhe.liu@cs.helsinki.fi>
+ *
+ */
+public class APRegistry {
+    private final ConcurrentMap<String, APAgent> ipMap =
+            new ConcurrentHashMap<String, APAgent>();
+    private final ConcurrentMap<Long, APAgent> bssidMap =
+            new ConcurrentHashMap<Long, APAgent>();
+    private final ConcurrentMap<Long, ConcurrentMap<Short, APAgent>> switchMap =
+            new ConcurrentHashMap<Long, ConcurrentMap<Short, APAgent>>();
+
+    /**
+     * parse a BSSID string as used in the AP config
+     *
+     * @return BSSID as 48-bit long, -1 if the string is empty or invalid
+     */
+    public static long parseBSSID(String bssid) {
+        if (bssid == null || bssid.length() == 0) {
+            return -1;
+        }
+        try {
+            return MACAddress.valueOf(bssid).toLong();
+        } catch (IllegalArgumentException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * add an agent, replacing a previous agent with the same IP address
+     */
+    public synchronized void put(APAgent agent) {
+        String ip = agent.getIpAddress().getHostAddress();
+        APAgent old = ipMap.put(ip, agent);
+        if (old != null) {
+            unindex(old);
+        }
+
+        long bssid = parseBSSID(agent.getBSSID());
+        if (bssid >= 0) {
+            bssidMap.put(bssid, agent);
+        }
+
+        IOFSwitch sw = agent.getSwitch();
+        if (sw != null) {
+            ConcurrentMap<Short, APAgent> ports = switchMap.get(sw.getId());
+            if (ports == null) {
+                ports = new ConcurrentHashMap<Short, APAgent>();
+                switchMap.put(sw.getId(), ports);
+            }
+            ports.put(agent.getOFPort(), agent);
+        }
+    }
+
+    /**
+     * @return the removed agent or null
+     */
+    public synchronized APAgent remove(String ip) {
+        APAgent agent = ipMap.remove(ip);
+        if (agent != null) {
+            unindex(agent);
+        }
+        return agent;
+    }
+
+    /**
+     * remove all agents connected to a switch
+     *
+     * @return the removed agents
+     */
+    public synchronized List<APAgent> removeSwitch(long dpid) {
+        ConcurrentMap<Short, APAgent> ports = switchMap.get(dpid);
+        if (ports == null) {
+            return Collections.emptyList();
+        }
+        List<APAgent> removed = new ArrayList<APAgent>(ports.values());
+        for (APAgent agent: removed) {
+            remove(agent.getIpAddress().getHostAddress());
+        }
+        switchMap.remove(dpid);
+        return removed;
+    }
+
+    // remove the secondary index entries which still point to agent
+    private void unindex(APAgent agent) {
+        long bssid = parseBSSID(agent.getBSSID());
+        if (bssid >= 0) {
+            bssidMap.remove(bssid, agent);
+        }
+
+        IOFSwitch sw = agent.getSwitch();
+        if (sw != null) {
+            ConcurrentMap<Short, APAgent> ports = switchMap.get(sw.getId());
+            if (ports != null) {
+                ports.remove(agent.getOFPort(), agent);
+                if (ports.isEmpty()) {
+                    switchMap.remove(sw.getId());
+                }
+            }
+        }
+    }
+
+    public APAgent getByIp(String ip) {
+        return ipMap.get(ip);
+    }
+
+    public boolean containsIp(String ip) {
+        return ipMap.containsKey(ip);
+    }
+
+    public APAgent getByBSSID(long bssid) {
+        return bssidMap.get(bssid);
+    }
+
+    public APAgent getByBSSID(String bssid) {
+        long b = parseBSSID(bssid);
+        return b < 0 ? null : bssidMap.get(b);
+    }
+
+    public APAgent getBySwitchPort(long dpid, short port) {
+        ConcurrentMap<Short, APAgent> ports = switchMap.get(dpid);
+        return ports == null ? null : ports.get(port);
+    }
+
+    /**
+     * @return agents connected to the switch, empty if there are none
+     */
+    public Collection<APAgent> getBySwitch(long dpid) {
+        ConcurrentMap<Short, APAgent> ports = switchMap.get(dpid);
+        if (ports == null) {
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableCollection(ports.values());
+    }
+
+    public Collection<APAgent> values() {
+        return Collections.unmodifiableCollection(ipMap.values());
+    }
+
+    public int size() {
+        return ipMap.size();
+    }
+}
@@ -0,0 +1,335 @@
+/**
+*    Copyright 2013 University of Helsinki
+*
+*    Licensed under the Apache License, Version 2.0 (the "License"); you may
+*    not use this file except in compliance with the License. You may obtain
+*    a copy of the License at
+*
+*         http://www.apache.org/licenses/LICENSE-2.0
+*
+*    Unless required by applicable law or agreed to in writing, software
+*    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+*    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+*    License for the specific language governing permissions and limitations
+*    under the License.
+**/
+
+package net.floodlightcontroller.mobilesdn;
+
+import java.nio.ByteBuffer;
+
+import net.floodlightcontroller.util.MACAddress;
+
+/**
+ * Reusable view of a decoded agent message.
+ *
+ * A message has a type and a list of fields, the type is not counted as a
+ * field. Fields are only offsets into the receive buffer, they are converted
+ * to Java objects lazily by the accessors. Field layout per type:
+ *
+ *   client:           mac, ip
+ *   agentrate:        uprate, downrate
+ *   clientrate:       mac, ip, uprate, downrate
+ *   clientdisconnect: mac
+ *   scan:             mac, mode ("static" or other), nearby AP entries...
+ *   app:              mac, app
+ *   start:            (none)
+ *
+ * An instance is filled in by an IAgentCodec and is only valid until the
+ * receive buffer is reused. It is not thread-safe.
+ *
+ * @author Yanhe Liu <yanhe.liu@cs.helsinki.fi>
+ *
+ */
+public final class AgentMessage {
+    // message types
+    public static final int TYPE_UNKNOWN = 0;
+    public static final int TYPE_CLIENT_INFO = 1;
+    public static final int TYPE_AGENT_RATE = 2;
+    public static final int TYPE_CLIENT_RATE = 3;
+    public static final int TYPE_CLIENT_DISCONNECT = 4;
+    public static final int TYPE_CLIENT_SCAN = 5;
+    public static final int TYPE_CLT_APP = 6;
+    public static final int TYPE_START = 7;
+    // master -> agent
+    public static final int TYPE_TO_CLIENT = 16;
+    public static final int TYPE_TO_AGENT = 17;
+
+    // binary field tags
+    static final byte TAG_STRING = 1;
+    static final byte TAG_MAC = 2;
+    static final byte TAG_IPV4 = 3;
+    static final byte TAG_DOUBLE = 4;
+    static final byte TAG_INT8 = 5;
+
+    private static final int INIT_FIELDS = 16;
+
+    private ByteBuffer buf;
+    private boolean binary;
+    private int type;
+    private int fieldNum;
+    private int[] start = new int[INIT_FIELDS];
+    private int[] end = new int[INIT_FIELDS];
+    private byte[] tag = new byte[INIT_FIELDS];
+
+    // scan entries are the fields from index 2 on; in text format the last
+    // field is not an entry (same as the former copyOfRange(3, len - 1))
+    private int scanEntryNum;
+
+
+    void reset(ByteBuffer b, boolean isBinary) {
+        buf = b;
+        binary = isBinary;
+        type = TYPE_UNKNOWN;
+        fieldNum = 0;
+        scanEntryNum = 0;
+    }
+
+    void setType(int t) {
+        type = t;
+    }
+
+    void addField(int s, int e, byte t) {
+        if (fieldNum == start.length) {
+            int len = fieldNum * 2;
+            int[] ns = new int[len];
+            int[] ne = new int[len];
+            byte[] nt = new byte[len];
+            System.arraycopy(start, 0, ns, 0, fieldNum);
+            System.arraycopy(end, 0, ne, 0, fieldNum);
+            System.arraycopy(tag, 0, nt, 0, fieldNum);
+            start = ns;
+            end = ne;
+            tag = nt;
+        }
+        start[fieldNum] = s;
+        end[fieldNum] = e;
+        tag[fieldNum] = t;
+        fieldNum++;
+    }
+
+    void truncateFields(int num) {
+        fieldNum = num;
+    }
+
+    void setScanEntryNum(int num) {
+        scanEntryNum = num;
+    }
+
+    public boolean isBinary() {
+        return binary;
+    }
+
+    public int getType() {
+        return type;
+    }
+
+    public int getFieldNum() {
+        return fieldNum;
+    }
+
+    /**
+     * @return whether the message has the fields its type needs, see the
+     * field layout above; unknown types need none
+     */
+    public boolean hasRequiredFields() {
+        switch (type) {
+        case TYPE_CLIENT_INFO:
+        case TYPE_AGENT_RATE:
+        case TYPE_CLIENT_SCAN:
+        case TYPE_CLT_APP:
+            return fieldNum >= 2;
+        case TYPE_CLIENT_RATE:
+            return fieldNum >= 4;
+        case TYPE_CLIENT_DISCONNECT:
+            return fieldNum >= 1;
+        default:
+            return true;
+        }
+    }
+
+    private void checkIndex(int i) {
+        if (i < 0 || i >= fieldNum) {
+            throw new IndexOutOfBoundsException("field " + i + " of "
+                        + fieldNum + " in agent message type " + type);
+        }
+    }
+
+    /**
+     * compare a field with the given ASCII string, ignoring case
+     */
+    public boolean fieldEquals(int i, String value) {
+        checkIndex(i);
+        int len = end[i] - start[i];
+        if (len != value.length()) {
+            return false;
+        }
+        for (int k = 0; k < len; k++) {
+            if (toLower(buf.get(start[i] + k)) != toLower((byte) value.charAt(k))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Get a field as string. Text fields are lower-cased as before,
+     * typed binary fields are formatted the same way as their text form.
+     */
+    public String getString(int i) {
+        checkIndex(i);
+        if (binary) {
+            switch (tag[i]) {
+            case TAG_MAC:
+                return MACAddress.valueOf(getMac(i)).toString().toLowerCase();
+            case TAG_IPV4:
+                return (buf.get(start[i]) & 0xff) + "." + (buf.get(start[i] + 1) & 0xff)
+                        + "." + (buf.get(start[i] + 2) & 0xff) + "." + (buf.get(start[i] + 3) & 0xff);
+            case TAG_DOUBLE:
+                return Double.toString(buf.getDouble(start[i]));
+            case TAG_INT8:
+                return Integer.toString(buf.get(start[i]));
+            default:
+                break;
+            }
+        }
+        return asciiToString(start[i], end[i], !binary);
+    }
+
+    /**
+     * Get a MAC address field as 48-bit long without allocating
+     */
+    public long getMac(int i) {
+        checkIndex(i);
+        if (binary && tag[i] == TAG_MAC) {
+            return readMac(start[i]);
+        }
+        return parseMac(start[i], end[i]);
+    }
+
+    public double getDouble(int i) {
+        checkIndex(i);
+        if (binary && tag[i] == TAG_DOUBLE) {
+            return buf.getDouble(start[i]);
+        }
+        return Double.parseDouble(asciiToString(start[i], end[i], false));
+    }
+
+    public int getScanEntryNum() {
+        return scanEntryNum;
+    }
+
+    /**
+     * BSSID of a nearby AP in a scan message
+     *
+     * @param j entry index, 0 <= j < getScanEntryNum()
+     */
+    public long getScanBssid(int j) {
+        if (binary) {
+            return getMac(2 + 2 * j);
+        }
+        // text entry: ssid&bssid&level, ssid may contain '&'
+        int i = 2 + j;
+        checkIndex(i);
+        int levelSep = lastIndexOf('&', start[i], end[i]);
+        int bssidSep = lastIndexOf('&', start[i], levelSep);
+        return parseMac(bssidSep + 1, levelSep);
+    }
+
+    /**
+     * Signal level (dBm) of a nearby AP in a scan message
+     *
+     * @param j entry index, 0 <= j < getScanEntryNum()
+     */
+    public int getScanLevel(int j) {
+        if (binary) {
+            int i = 3 + 2 * j;
+            checkIndex(i);
+            return buf.get(start[i]);
+        }
+        int i = 2 + j;
+        checkIndex(i);
+        int levelSep = lastIndexOf('&', start[i], end[i]);
+        return parseInt(levelSep + 1, end[i]);
+    }
+
+    private int lastIndexOf(char c, int from, int to) {
+        for (int k = to - 1; k >= from; k--) {
+            if (buf.get(k) == c) {
+                return k;
+            }
+        }
+        throw new IllegalArgumentException("malformed scan entry in agent message");
+    }
+
+    private long readMac(int pos) {
+        long mac = 0;
+        for (int k = 0; k < 6; k++) {
+            mac = (mac << 8) | (buf.get(pos + k) & 0xff);
+        }
+        return mac;
+    }
+
+    private long parseMac(int s, int e) {
+        long mac = 0;
+        int digits = 0;
+        for (int k = s; k < e; k++) {
+            byte b = buf.get(k);
+            int v;
+            if (b >= '0' && b <= '9') {
+                v = b - '0';
+            } else if (b >= 'a' && b <= 'f') {
+                v = b - 'a' + 10;
+            } else if (b >= 'A' && b <= 'F') {
+                v = b - 'A' + 10;
+            } else if (b == ':' || b == '-') {
+                continue;
+            } else {
+                throw new NumberFormatException("invalid MAC address in agent message");
+            }
+            mac = (mac << 4) | v;
+            digits++;
+        }
+        if (digits != 12) {
+            throw new NumberFormatException("invalid MAC address in agent message");
+        }
+        return mac;
+    }
+
+    private int parseInt(int s, int e) {
+        boolean negative = false;
+        int k = s;
+        if (k < e && buf.get(k) == '-') {
+            negative = true;
+            k++;
+        }
+        if (k == e) {
+            throw new NumberFormatException("empty number in agent message");
+        }
+        int v = 0;
+        for (; k < e; k++) {
+            byte b = buf.get(k);
+            if (b < '0' || b > '9') {
+                throw new NumberFormatException("invalid number in agent message");
+            }
+            v = v * 10 + (b - '0');
+        }
+        return negative ? -v : v;
+    }
+
+    private String asciiToString(int s, int e, boolean lowerCase) {
+        char[] chars = new char[e - s];
+        for (int k = s; k < e; k++) {
+            byte b = buf.get(k);
+            chars[k - s] = (char) ((lowerCase ? toLower(b) : b) & 0xff);
+        }
+        return new String(chars);
+    }
+
+    private static byte toLower(byte b) {
+        if (b >= 'A' && b <= 'Z') {
+            return (byte) (b + ('a' - 'A'));
+        }
+        return b;
+    }
+}
@@ -0,0 +1,255 @@
+/**
+*    Copyright 2013 University of Helsinki
+*
+*    Licensed under the Apache License, Version 2.0 (the "License"); you may
+*    not use this file except in compliance with the License. You may obtain
+*    a copy of the License at
+*
+*         http://www.apache.org/licenses/LICENSE-2.0
+*
+*    Unless required by applicable law or agreed to in writing, software
+*    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+*    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+*    License for the specific language governing permissions and limitations
+*    under the License.
+**/
+
+package net.floodlightcontroller.mobilesdn;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Outbound messaging service shared by all APAgent instances.
+ *
+ * Any thread may enqueue a message, a single sender thread drains the queue
+ * and writes the datagrams through one DatagramChannel. Callers never block
+ * on socket I/O. When the same payload is queued more than once for one
+ * destination before the sender gets to it (e.g. repeated "arp" or "app"
+ * requests), it is only sent once.
+ *
+ * @author Yanhe Liu <yanhe.liu@cs.helsinki.fi>
+ *
+ */
+public class AgentMessenger implements Runnable {
+    protected static Logger log = LoggerFactory.getLogger(AgentMessenger.class);
+
+    // defaults
+    private static final int MAX_LEN = 512;
+    private static final int MAX_PENDING = 8192;
+    private static final int MAX_BATCH = 256;
+
+    private static AgentMessenger defaultMessenger = null;
+
+    private static class OutboundMessage {
+        InetSocketAddress dest;
+        final ByteBuffer data = ByteBuffer.allocate(MAX_LEN);
+        long enqueueTime;
+    }
+
+    private final DatagramChannel channel;
+    // multi-producer, single-consumer send queue
+    private final ConcurrentLinkedQueue<OutboundMessage> sendQueue =
+            new ConcurrentLinkedQueue<OutboundMessage>();
+    private final ConcurrentLinkedQueue<OutboundMessage> freeList =
+            new ConcurrentLinkedQueue<OutboundMessage>();
+    private final AtomicInteger pending = new AtomicInteger();
+    private volatile Thread senderThread;
+    private volatile boolean running = true;
+
+    // counters
+    private final AtomicLong sentCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicLong coalescedCount = new AtomicLong();
+    private final AtomicLong errorCount = new AtomicLong();
+    private final AtomicLong totalLatency = new AtomicLong();   // nanoseconds
+    private final AtomicLong maxLatency = new AtomicLong();     // nanoseconds
+
+    public AgentMessenger() throws IOException {
+        channel = DatagramChannel.open();
+        channel.configureBlocking(true);
+        channel.socket().bind(null);
+    }
+
+    /**
+     * get the messenger shared by all agents, it is started on first use
+     */
+    public static synchronized AgentMessenger getDefault() {
+        if (defaultMessenger == null) {
+            try {
+                defaultMessenger = new AgentMessenger();
+            } catch (IOException e) {
+                log.error("Failed to open agent messaging channel", e);
+                throw new RuntimeException(e);
+            }
+            Thread t = new Thread(defaultMessenger, "AgentMessenger");
+            t.setDaemon(true);
+            t.start();
+        }
+        return defaultMessenger;
+    }
+
+    /**
+     * Queue a datagram for sending
+     *
+     * @param addr destination address
+     * @param port destination port
+     * @param data payload, copied before this method returns
+     * @param length payload length
+     * @return false if the message was dropped
+     */
+    public boolean send(InetAddress addr, int port, byte[] data, int length) {
+        if (length > MAX_LEN) {
+            log.error("Agent message too long ({} bytes), dropped", length);
+            droppedCount.incrementAndGet();
+            return false;
+        }
+        if (pending.incrementAndGet() > MAX_PENDING) {
+            pending.decrementAndGet();
+            droppedCount.incrementAndGet();
+            return false;
+        }
+
+        OutboundMessage msg = freeList.poll();
+        if (msg == null) {
+            msg = new OutboundMessage();
+        }
+        msg.dest = new InetSocketAddress(addr, port);
+        msg.data.clear();
+        msg.data.put(data, 0, length);
+        msg.data.flip();
+        msg.enqueueTime = System.nanoTime();
+
+        sendQueue.offer(msg);
+        Thread t = senderThread;
+        if (t != null) {
+            LockSupport.unpark(t);
+        }
+        return true;
+    }
+
+    @Override
+    public void run() {
+        senderThread = Thread.currentThread();
+        List<OutboundMessage> batch = new ArrayList<OutboundMessage>(MAX_BATCH);
+
+        while (running) {
+            OutboundMessage msg;
+            while (batch.size() < MAX_BATCH && (msg = sendQueue.poll()) != null) {
+                batch.add(msg);
+            }
+            if (batch.isEmpty()) {
+                LockSupport.parkNanos(this, 100000000L);  // 100ms
+                continue;
+            }
+
+            for (int i = 0; i < batch.size(); i++) {
+                msg = batch.get(i);
+                if (isDuplicate(batch, i)) {
+                    coalescedCount.incrementAndGet();
+                } else {
+                    transmit(msg);
+                }
+            }
+
+            for (OutboundMessage m: batch) {
+                m.dest = null;
+                freeList.offer(m);
+            }
+            pending.addAndGet(-batch.size());
+            batch.clear();
+        }
+    }
+
+    // whether the same payload to the same destination is already part of
+    // this batch; quadratic but batches are small and mostly distinct
+    private boolean isDuplicate(List<OutboundMessage> batch, int i) {
+        OutboundMessage msg = batch.get(i);
+        for (int j = 0; j < i; j++) {
+            OutboundMessage m = batch.get(j);
+            if (m.dest.equals(msg.dest) && m.data.equals(msg.data)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void transmit(OutboundMessage msg) {
+        try {
+            channel.send(msg.data, msg.dest);
+            msg.data.rewind();  // keep it comparable for the rest of the batch
+            sentCount.incrementAndGet();
+
+            long latency = System.nanoTime() - msg.enqueueTime;
+            totalLatency.addAndGet(latency);
+            long max = maxLatency.get();
+            while (latency > max && !maxLatency.compareAndSet(max, latency)) {
+                max = maxLatency.get();
+            }
+        } catch (IOException e) {
+            errorCount.incrementAndGet();
+            droppedCount.incrementAndGet();
+            log.error("can not send udp message to agent " + msg.dest, e);
+        }
+    }
+
+    public void shutdown() {
+        running = false;
+        Thread t = senderThread;
+        if (t != null) {
+            LockSupport.unpark(t);
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            log.error("Failed to close agent messaging channel", e);
+        }
+    }
+
+    public long getSentCount() {
+        return sentCount.get();
+    }
+
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    public long getCoalescedCount() {
+        return coalescedCount.get();
+    }
+
+    public long getErrorCount() {
+        return errorCount.get();
+    }
+
+    public int getPendingCount() {
+        return pending.get();
+    }
+
+    /**
+     * @return average time from enqueue to send in microseconds
+     */
+    public double getAverageLatency() {
+        long sent = sentCount.get();
+        return sent == 0 ? 0 : totalLatency.get() / 1000.0 / sent;
+    }
+
+    /**
+     * @return maximum time from enqueue to send in microseconds
+     */
+    public double getMaxLatency() {
+        return maxLatency.get() / 1000.0;
+    }
+}
@@ -0,0 +1,203 @@
+/**
+*    Copyright 2013 University of Helsinki
+*
+*    Licensed under the Apache License, Version 2.0 (the "License"); you may
+*    not use this file except in compliance with the License. You may obtain
+*    a copy of the License at
+*
+*         http://www.apache.org/licenses/LICENSE-2.0
+*
+*    Unless required by applicable law or agreed to in writing, software
+*    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+*    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+*    License for the specific language governing permissions and limitations
+*    under the License.
+**/
+
+package net.floodlightcontroller.mobilesdn;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Codec for the versioned, length-prefixed binary agent protocol.
+ *
+ * Message layout (network byte order):
+ *
+ *   magic(1) = 0xA5 | version(1) | type(1) | field num(1) | payload len(2)
+ *   followed by field num fields, each one tag(1) + value:
+ *     TAG_STRING: len(1) + ASCII bytes
+ *     TAG_MAC:    6 bytes
+ *     TAG_IPV4:   4 bytes
+ *     TAG_DOUBLE: 8 bytes
+ *     TAG_INT8:   1 signed byte
+ *
+ * Scan messages carry their nearby AP entries as (TAG_MAC bssid,
+ * TAG_INT8 level) pairs after the client mac and mode fields. The magic byte
+ * can never start a text message, so both formats can be received on the
+ * same port.
+ *
+ * @author Yanhe Liu <yanhe.liu@cs.helsinki.fi>
+ *
+ */
+public class BinaryAgentCodec implements IAgentCodec {
+
+    public static final byte MAGIC = (byte) 0xA5;
+    public static final byte VERSION = 1;
+    public static final int HEADER_LENGTH = 6;
+
+    /**
+     * check whether the datagram in buf uses the binary format
+     */
+    public static boolean isBinaryMessage(ByteBuffer buf) {
+        return buf.remaining() >= HEADER_LENGTH && buf.get(buf.position()) == MAGIC;
+    }
+
+    @Override
+    public boolean decode(ByteBuffer buf, AgentMessage msg) {
+        if (!isBinaryMessage(buf)) {
+            return false;
+        }
+
+        int pos = buf.position();
+        int version = buf.get(pos + 1);
+        if (version < 1 || version > VERSION) {
+            return false;
+        }
+        int type = buf.get(pos + 2) & 0xff;
+        int num = buf.get(pos + 3) & 0xff;
+        int len = buf.getShort(pos + 4) & 0xffff;
+        int end = pos + HEADER_LENGTH + len;
+        if (end > buf.limit()) {
+            return false;
+        }
+
+        msg.reset(buf, true);
+        msg.setType(type);
+
+        int p = pos + HEADER_LENGTH;
+        for (int i = 0; i < num; i++) {
+            if (p >= end) {
+                return false;
+            }
+            byte tag = buf.get(p++);
+            int size;
+            switch (tag) {
+            case AgentMessage.TAG_STRING:
+                if (p >= end) {
+                    return false;
+                }
+                size = buf.get(p++) & 0xff;
+                break;
+            case AgentMessage.TAG_MAC:
+                size = 6;
+                break;
+            case AgentMessage.TAG_IPV4:
+                size = 4;
+                break;
+            case AgentMessage.TAG_DOUBLE:
+                size = 8;
+                break;
+            case AgentMessage.TAG_INT8:
+                size = 1;
+                break;
+            default:
+                return false;
+            }
+            if (p + size > end) {
+                return false;
+            }
+            msg.addField(p, p + size, tag);
+            p += size;
+        }
+
+        if (type == AgentMessage.TYPE_CLIENT_SCAN) {
+            msg.setScanEntryNum(Math.max(0, (num - 2) / 2));
+        }
+
+        return true;
+    }
+
+    @Override
+    public void encodeToClient(ByteBuffer dst, long clientMac, String signal,
+                               String data) {
+        int header = beginMessage(dst, AgentMessage.TYPE_TO_CLIENT);
+        putMac(dst, header, clientMac);
+        putString(dst, header, signal);
+        if (data != null) {
+            putString(dst, header, data);
+        }
+        endMessage(dst, header);
+    }
+
+    @Override
+    public void encodeToAgent(ByteBuffer dst, String signal, String data) {
+        int header = beginMessage(dst, AgentMessage.TYPE_TO_AGENT);
+        putString(dst, header, signal);
+        if (data != null) {
+            putString(dst, header, data);
+        }
+        endMessage(dst, header);
+    }
+
+    /** Message building helpers, usable for any message type **/
+
+    /**
+     * write a message header, the field number and length are filled in
+     * by endMessage
+     *
+     * @return header position to be passed to endMessage
+     */
+    public static int beginMessage(ByteBuffer dst, int type) {
+        int header = dst.position();
+        dst.put(MAGIC).put(VERSION).put((byte) type).put((byte) 0).putShort((short) 0);
+        return header;
+    }
+
+    public static void endMessage(ByteBuffer dst, int header) {
+        int len = dst.position() - header - HEADER_LENGTH;
+        if (len > 0xffff) {
+            throw new IllegalArgumentException("agent message too long: " + len);
+        }
+        dst.putShort(header + 4, (short) len);
+    }
+
+    public static void putString(ByteBuffer dst, int header, String s) {
+        if (s.length() > 0xff) {
+            throw new IllegalArgumentException("agent message field too long: " + s.length());
+        }
+        countField(dst, header);
+        dst.put(AgentMessage.TAG_STRING).put((byte) s.length());
+        TextAgentCodec.putAscii(dst, s);
+    }
+
+    public static void putMac(ByteBuffer dst, int header, long mac) {
+        countField(dst, header);
+        dst.put(AgentMessage.TAG_MAC);
+        for (int k = 5; k >= 0; k--) {
+            dst.put((byte) (mac >>> (8 * k)));
+        }
+    }
+
+    public static void putIpv4(ByteBuffer dst, int header, int ip) {
+        countField(dst, header);
+        dst.put(AgentMessage.TAG_IPV4).putInt(ip);
+    }
+
+    public static void putDouble(ByteBuffer dst, int header, double value) {
+        countField(dst, header);
+        dst.put(AgentMessage.TAG_DOUBLE).putDouble(value);
+    }
+
+    public static void putInt8(ByteBuffer dst, int header, int value) {
+        countField(dst, header);
+        dst.put(AgentMessage.TAG_INT8).put((byte) value);
+    }
+
+    private static void countField(ByteBuffer dst, int header) {
+        int num = dst.get(header + 3) & 0xff;
+        if (num == 0xff) {
+            throw new IllegalArgumentException("too many fields in agent message");
+        }
+        dst.put(header + 3, (byte) (num + 1));
+    }
+}
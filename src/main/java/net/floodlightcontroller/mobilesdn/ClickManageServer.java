@@ -18,10 +18,23 @@
 package net.floodlightcontroller.mobilesdn;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetAddress;
-import java.util.concurrent.ExecutorService;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 // import net.floodlightcontroller.util.MACAddress;
 
@@ -39,49 +52,200 @@ class ClickManageServer implements Runnable {
 
     protected static Logger log = LoggerFactory.getLogger(ClickManageServer.class);
 
-    // Message types
-    private final String MSG_CLIENT_INFO = "client";
-    private final String MSG_AGENT_RATE = "agentrate";
-    private final String MSG_CLIENT_RATE = "clientrate";
-    private final String MSG_CLIENT_DISCONNECT = "clientdisconnect";
-    private final String MSG_CLIENT_SCAN = "scan";
-    private final String MSG_CLT_APP = "app";
+    // Message codecs, the format is detected for every datagram
+    private final IAgentCodec textCodec = new TextAgentCodec();
+    private final IAgentCodec binaryCodec = new BinaryAgentCodec();
+
+    // decoded message views, one per worker thread
+    private final ThreadLocal<AgentMessage> agentMessage = new ThreadLocal<AgentMessage>() {
+        @Override
+        protected AgentMessage initialValue() {
+            return new AgentMessage();
+        }
+    };
 
     private final int SERVER_PORT;
 
-    private DatagramSocket controllerSocket;
-    private final ExecutorService executor;
+    // receive path defaults
+    private static final int BUFFER_SIZE = 1280;     // max agent datagram
+    private static final int BUFFER_POOL_SIZE = 1024;
+    private static final int MAX_BATCH = 64;         // datagrams drained per wakeup
+    private static final int WORKER_THREADS = 4;
+    // every queued datagram owns a pool buffer, so the queue can not
+    // grow beyond the pool
+    private static final int WORKER_QUEUE_SIZE = BUFFER_POOL_SIZE;
+
+    private DatagramChannel controllerChannel;
+    private Selector selector;
+    private final ThreadPoolExecutor workers;
+    private final BlockingQueue<ByteBuffer> bufferPool;
+    private final ByteBuffer discardBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
     private final Master master;
 
-    public ClickManageServer (Master m, int port, ExecutorService executor) {
+    // backpressure counters
+    private final AtomicLong receivedCount = new AtomicLong();
+    private final AtomicLong processedCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicLong poolExhaustedCount = new AtomicLong();
+    private final AtomicLong wakeupCount = new AtomicLong();
+
+    public ClickManageServer (Master m, int port) {
         this.master = m;
         this.SERVER_PORT = port;
-        this.executor = executor;
+
+        this.bufferPool = new ArrayBlockingQueue<ByteBuffer>(BUFFER_POOL_SIZE);
+        for (int i = 0; i < BUFFER_POOL_SIZE; i++) {
+            bufferPool.offer(ByteBuffer.allocateDirect(BUFFER_SIZE));
+        }
+
+        ThreadFactory f = new ThreadFactory() {
+            AtomicInteger id = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread t = new Thread(runnable,
+                                      "AgentWorker-" + id.getAndIncrement());
+                t.setDaemon(true);
+                return t;
+            }
+        };
+        // bounded queue: when the workers fall behind, the buffer pool runs
+        // empty and new datagrams are dropped and counted instead of piling
+        // up in memory
+        this.workers = new ThreadPoolExecutor(WORKER_THREADS, WORKER_THREADS,
+                0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(WORKER_QUEUE_SIZE), f,
+                new ThreadPoolExecutor.AbortPolicy());
     }
 
     @Override
     public void run() {
 
         try {
-            controllerSocket = new DatagramSocket(SERVER_PORT);
+            selector = Selector.open();
+            controllerChannel = DatagramChannel.open();
+            controllerChannel.configureBlocking(false);
+            controllerChannel.socket().bind(new InetSocketAddress(SERVER_PORT));
+            controllerChannel.register(selector, SelectionKey.OP_READ);
         } catch (IOException e) {
-            e.printStackTrace();
+            log.error("Failed to open agent channel on port " + SERVER_PORT, e);
+            return;
         }
 
-        while(true)	{
+        while (controllerChannel.isOpen()) {
+            try {
+                selector.select();
+                wakeupCount.incrementAndGet();
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (key.isValid() && key.isReadable()) {
+                        drainChannel();
+                    }
+                }
+            } catch (ClosedSelectorException e) {
+                break;  // shutdown
+            } catch (IOException e) {
+                log.error("Failed to receive agent message on port " + SERVER_PORT, e);
+            }
+        }
+    }
+
+    /**
+     * Receive as many pending datagrams as possible (up to MAX_BATCH) for a
+     * single selector wakeup and hand them over to the worker pool
+     *
+     * @throws IOException
+     */
+    private void drainChannel() throws IOException {
+        for (int i = 0; i < MAX_BATCH; i++) {
+            ByteBuffer buf = bufferPool.poll();
+            if (buf == null) {
+                // all buffers are owned by pending handlers, drop the datagram
+                discardBuffer.clear();
+                if (controllerChannel.receive(discardBuffer) == null) {
+                    return;
+                }
+                receivedCount.incrementAndGet();
+                poolExhaustedCount.incrementAndGet();
+                droppedCount.incrementAndGet();
+                continue;
+            }
+
+            buf.clear();
+            SocketAddress addr = controllerChannel.receive(buf);
+            if (addr == null) { // nothing left to read
+                bufferPool.offer(buf);
+                return;
+            }
+            receivedCount.incrementAndGet();
+            buf.flip();
 
             try {
-                final byte[] receiveData = new byte[1280]; // probably this could be smaller
-                final DatagramPacket receivedPacket = new DatagramPacket(receiveData, receiveData.length);
-                controllerSocket.receive(receivedPacket);
+                workers.execute(new ConnectionHandler(buf,
+                        ((InetSocketAddress) addr).getAddress()));
+            } catch (RejectedExecutionException e) {
+                // only after shutdown, the queue has room for every buffer
+                droppedCount.incrementAndGet();
+                bufferPool.offer(buf);
+                log.debug("Agent workers are shut down, dropped message from {}", addr);
+            }
+        }
+    }
 
-                executor.execute(new ConnectionHandler(receivedPacket));
+    /**
+     * Stop receiving agent messages and release the worker threads
+     */
+    public void shutdown() {
+        try {
+            if (controllerChannel != null) {
+                controllerChannel.close();
             }
-            catch (IOException e) {
-                log.error("controllerSocket.accept() failed: " + SERVER_PORT);
-                e.printStackTrace();
+            if (selector != null) {
+                selector.wakeup();
+                selector.close();
             }
+        } catch (IOException e) {
+            log.error("Failed to close agent channel", e);
         }
+        workers.shutdown();
+    }
+
+    public long getReceivedCount() {
+        return receivedCount.get();
+    }
+
+    public long getProcessedCount() {
+        return processedCount.get();
+    }
+
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    public long getPoolExhaustedCount() {
+        return poolExhaustedCount.get();
+    }
+
+    public long getWakeupCount() {
+        return wakeupCount.get();
+    }
+
+    public int getPendingCount() {
+        return workers.getQueue().size();
+    }
+
+    /**
+     * @return receive buffers not owned by a pending or running handler
+     */
+    public int getFreeBufferCount() {
+        return bufferPool.size();
+    }
+
+    static int getBufferPoolSize() {
+        return BUFFER_POOL_SIZE;
     }
 
     /** Protocol handlers **/
@@ -108,8 +272,9 @@ class ClickManageServer implements Runnable {
         master.clientDisconnect(agentAddr, clientEthAddr);
     }
 
-    private void receiveScanResult(String[] fields) {
-        master.receiveScanResult(fields);
+    private void receiveScanResult(final String clientEthAddr, final boolean isStatic,
+            final long[] bssids, final int[] levels) {
+        master.receiveScanResult(clientEthAddr, isStatic, bssids, levels);
     }
 
     private void receiveCltAppInfo(String mac, String app) {
@@ -121,53 +286,81 @@ class ClickManageServer implements Runnable {
     }
 
     private class ConnectionHandler implements Runnable {
-        final DatagramPacket receivedPacket;
+        final ByteBuffer receivedData;
+        final InetAddress agentAddr;
 
-        public ConnectionHandler(final DatagramPacket dp) {
-            receivedPacket = dp;
+        public ConnectionHandler(final ByteBuffer buf, final InetAddress addr) {
+            receivedData = buf;
+            agentAddr = addr;
         }
 
         // AP Agent message handler
         public void run() {
-            final String msg = new String(receivedPacket.getData()).trim().toLowerCase();
-            final String[] fields = msg.split("\\|");
-            final String msg_type = fields[0];
-            final InetAddress agentAddr = receivedPacket.getAddress();
-
-            if (msg_type.equals(MSG_CLIENT_INFO)) {
-                final String clientEthAddr = fields[1];
-                final String clientIpAddr = fields[2];
-
-                receiveClientInfo(agentAddr, clientEthAddr, clientIpAddr);
-
-            } else if (msg_type.equals(MSG_AGENT_RATE)) {
-                final String agentUpRate = fields[1];
-                final String agentDownRate = fields[2];
-
-                receiveAgentRate(agentAddr, agentUpRate, agentDownRate);
-            } else if (msg_type.equals(MSG_CLIENT_RATE)) {
-                final String clientEthAddr = fields[1];
-                final String clientIpAddr = fields[2];
-                final String clientUpRate = fields[3];
-                final String clientDownRate = fields[4];
-
-                receiveClientRate(agentAddr, clientEthAddr, clientIpAddr, clientUpRate, clientDownRate);
-            } else if (msg_type.equals(MSG_CLIENT_DISCONNECT)) {
-                final String clientEthAddr = fields[1];
-
-                clientDisconnect(agentAddr, clientEthAddr);
-            } else if (msg_type.equals(MSG_CLIENT_SCAN)) {
-                
-                //System.out.println("????++++---- " + msg);
-                
-                receiveScanResult(fields);
-            } else if (msg_type.equals(MSG_CLT_APP)) {
-                // System.out.println(fields[2]);
-                receiveCltAppInfo(fields[1], fields[2]);
-            } else if (msg_type.equals("start")) {
-                receiveTimestamp();
+            try {
+                handleMessage();
+                processedCount.incrementAndGet();
+            } catch (Exception e) {
+                log.error("Failed to handle message from agent "
+                            + agentAddr.getHostAddress(), e);
+            } finally {
+                bufferPool.offer(receivedData);
             }
+        }
 
+        private void handleMessage() {
+            final AgentMessage msg = agentMessage.get();
+            final boolean decoded;
+
+            if (BinaryAgentCodec.isBinaryMessage(receivedData)) {
+                decoded = binaryCodec.decode(receivedData, msg);
+                if (decoded) {
+                    master.receiveAgentProtocol(agentAddr, binaryCodec);
+                }
+            } else {
+                decoded = textCodec.decode(receivedData, msg);
+            }
+
+            // anyone can send to this port, short messages are not errors
+            if (!decoded || !msg.hasRequiredFields()) {
+                log.debug("Ignore malformed message from agent {}",
+                            agentAddr.getHostAddress());
+                return;
+            }
+
+            switch (msg.getType()) {
+            case AgentMessage.TYPE_CLIENT_INFO:
+                receiveClientInfo(agentAddr, msg.getString(0), msg.getString(1));
+                break;
+            case AgentMessage.TYPE_AGENT_RATE:
+                receiveAgentRate(agentAddr, msg.getString(0), msg.getString(1));
+                break;
+            case AgentMessage.TYPE_CLIENT_RATE:
+                receiveClientRate(agentAddr, msg.getString(0), msg.getString(1),
+                        msg.getString(2), msg.getString(3));
+                break;
+            case AgentMessage.TYPE_CLIENT_DISCONNECT:
+                clientDisconnect(agentAddr, msg.getString(0));
+                break;
+            case AgentMessage.TYPE_CLIENT_SCAN:
+                int num = msg.getScanEntryNum();
+                long[] bssids = new long[num];
+                int[] levels = new int[num];
+                for (int j = 0; j < num; j++) {
+                    bssids[j] = msg.getScanBssid(j);
+                    levels[j] = msg.getScanLevel(j);
+                }
+                receiveScanResult(msg.getString(0), msg.fieldEquals(1, "static"),
+                        bssids, levels);
+                break;
+            case AgentMessage.TYPE_CLT_APP:
+                receiveCltAppInfo(msg.getString(0), msg.getString(1));
+                break;
+            case AgentMessage.TYPE_START:
+                receiveTimestamp();
+                break;
+            default:
+                break;
+            }
         }
     }
 
@@ -20,13 +20,10 @@ package net.floodlightcontroller.mobilesdn;
 
 import java.net.InetAddress;
 import java.net.UnknownHostException;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Map;
+import java.util.HashSet;
 import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
-import java.util.concurrent.ConcurrentHashMap;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -51,28 +48,36 @@ public class Client implements Comparable<Object> {
     private final MACAddress hwAddress;
     private InetAddress ipAddress;
     private String app = "trivial";
-    private double upRate;
-    private double downRate;
-    private long ofUpBytes = 0;
-    private long ofDownBytes = 0;
+    // bit/s, fed by agent reports and by OpenFlow flow byte counters
+    private final RateEstimator upRate = new RateEstimator(8);
+    private final RateEstimator downRate = new RateEstimator(8);
+
+    private static final IOffloadPolicy defaultPolicy = new DefaultOffloadPolicy();
     
     private long connectTime;
     private long lastRecvTime = 0;
 
     private boolean isStatic = false;
-    private boolean isBeingEvaluated = false;
+    private ClientState state = ClientState.ASSOCIATED;
+    private long stateTime;
     
     private IOFSwitch ofSwitch = null;      // not initialized
     private APAgent agent;
     // used to record nearby ap signal levels
-    private Map<String, List<Integer>> apSignalLevelMap = new ConcurrentHashMap<String, List<Integer>>();
-    private int apScanningTime = 0;
+    private final SignalHistory signalHistory = new SignalHistory();
+    // rates last published to the event feed
+    private double reportedUpRate = -1;
+    private double reportedDownRate = -1;
 
     private Timer switchTimer;
 
     // defaults
     static private final long SECONDS = 3 * 60 * 1000;
     private static final int DELAY = 6000; // 6000 milliseconds
+    // a client that did not roam within this time can be evaluated again
+    private static final long OFFLOADING_TIMEOUT = 10000; // ms
+    // relative rate change worth an event feed entry
+    private static final double RATE_REPORT_CHANGE = 0.1;
 
     // currently not used anymore, for testing before
     private void initializeClientTimer() {
@@ -166,6 +171,14 @@ public class Client implements Comparable<Object> {
      */
     public void initConnectTime() {
         this.connectTime = System.currentTimeMillis();
+        this.stateTime = connectTime;
+    }
+
+    /**
+     * Set the connecting time of a client restored from a snapshot
+     */
+    void setConnectTime(long time) {
+        this.connectTime = time;
     }
 
     /**
@@ -210,65 +223,67 @@ public class Client implements Comparable<Object> {
     }
 
     /**
-     * get client's uprate value
+     * get client's uprate value (moving average)
      * @return
      */
-    public synchronized double getUpRate() {
-        return this.upRate;
+    public double getUpRate() {
+        return upRate.getRate();
     }
 
     /**
-     * get client's downrate value
+     * get client's downrate value (moving average)
      * @return
      */
-    public synchronized double getDownRate() {
-        return this.downRate;
+    public double getDownRate() {
+        return downRate.getRate();
+    }
+
+    public RateEstimator getUpRateEstimator() {
+        return upRate;
+    }
+
+    public RateEstimator getDownRateEstimator() {
+        return downRate;
     }
 
     /**
-     * Set the client's up rate value
+     * Add a sample of the client's up rate
      * @param r
      */
-    public synchronized void updateUpRate(double r) {
-        if (upRate != 0) { // test whether this is explicitly initialized
-            upRate = (upRate + r) / 2;
-        } else {
-            upRate = r;
-        }
+    public void updateUpRate(double r) {
+        upRate.addRate(r);
     }
 
     /**
-     * Set the client's down rate value
+     * Add a sample of the client's down rate
      * @param r
      */
-    public synchronized void updateDownRate(double r) {
-        if (downRate != 0) { // // test whether this is explicitly initialized
-            downRate = (r + downRate) / 2;
-        } else {
-            downRate = r;
-        }
-        
-    }
-    
-    public synchronized long getOFUpBytes() {
-    	return ofUpBytes;
-    }
-    
-    public synchronized long getOFDownBytes() {
-    	return ofDownBytes;
+    public void updateDownRate(double r) {
+        downRate.addRate(r);
     }
-    
-    public synchronized void updateOFUpBytes(long x) {
-    	ofUpBytes = x;
+
+    /**
+     * Remember the rates published to the event feed
+     *
+     * @return false if neither rate changed by more than RATE_REPORT_CHANGE
+     * since the last published ones, then nothing is remembered
+     */
+    synchronized boolean updateReportedRate(double up, double down) {
+        if (!rateChanged(reportedUpRate, up) && !rateChanged(reportedDownRate, down)) {
+            return false;
+        }
+        reportedUpRate = up;
+        reportedDownRate = down;
+        return true;
     }
-    
-    public synchronized void updateOFDownBytes(long x) {
-    	ofDownBytes = x;
+
+    private static boolean rateChanged(double old, double r) {
+        return old < 0 || Math.abs(r - old) > RATE_REPORT_CHANGE * Math.max(old, r);
     }
-    
-    public synchronized void rateReset() {
-    	upRate = 0;
-    	downRate = 0;
+
+    public void rateReset() {
+        upRate.reset();
+        downRate.reset();
     }
 
     /**
@@ -321,65 +336,68 @@ public class Client implements Comparable<Object> {
         this.switchTimer.purge();
     }
     
-    public synchronized void startOffloadingEvaluation() {
-    	isBeingEvaluated = true;
+    public synchronized ClientState getState() {
+        return state;
     }
-    
+
+    /**
+     * move the client to another lifecycle state
+     *
+     * @param next
+     * @return false if the transition is not allowed from the current state
+     */
+    public synchronized boolean moveTo(ClientState next) {
+        if (!state.canMoveTo(next)) {
+            log.debug("Client {}: ignore transition {} -> {}",
+                    new Object[] {hwAddress, state, next});
+            return false;
+        }
+        state = next;
+        stateTime = System.currentTimeMillis();
+        return true;
+    }
+
+    /**
+     * start collecting info for an offloading decision
+     *
+     * @return false if the client is already being evaluated or offloaded
+     */
+    public synchronized boolean startOffloadingEvaluation() {
+        if (state == ClientState.OFFLOADING
+                && System.currentTimeMillis() - stateTime >= OFFLOADING_TIMEOUT) {
+            log.info("Client {} did not switch AP, evaluate it again", hwAddress);
+            moveTo(ClientState.ASSOCIATED);
+        }
+        return state == ClientState.ASSOCIATED && moveTo(ClientState.EVALUATING);
+    }
+
+    /**
+     * the evaluation ended without offloading
+     */
     public synchronized void finishOffloadingEvaluation() {
-    	isBeingEvaluated = false;
+        if (state == ClientState.EVALUATING) {
+            moveTo(ClientState.ASSOCIATED);
+        }
     }
-    
+
     public synchronized boolean isBeningEvaluated() {
-    	return isBeingEvaluated;
+        return state == ClientState.EVALUATING;
     }
     
     /**
      * update current record of ap signal levels
-     * the input follows this type: ssid1&bssid1&level1|ssid2&bssid2&level2|...
      *
-     * @param fields: this is the context collect from the client
+     * @param bssids: BSSIDs of the nearby APs reported by the client
+     * @param levels: corresponding signal levels
      */
-    public synchronized void updateSignalInfo(String[] fields) {
+    public synchronized void updateSignalInfo(long[] bssids, int[] levels) {
         long currTime = System.currentTimeMillis();
         if (lastRecvTime != 0 && currTime - lastRecvTime >= DELAY) {
-            apScanningTime = 0;
-            apSignalLevelMap.clear();
-        } 
-        lastRecvTime = currTime; // update
-        
-        if (apScanningTime == 3) { // clear old data, now the program runs in a simple way
-            apSignalLevelMap.clear();
-            apScanningTime = 0;
+            signalHistory.clear();
         }
-        
-        apScanningTime++;  // add one for every time it receive scanning results
-        
-        for (int i = 0; i < fields.length; i++) {
-            String[] info = fields[i].split("&");
-            // String ssid = info[0];
-            String bssid = info[1].toLowerCase();
-            int level = Integer.parseInt(info[2]);
-
-            if (apSignalLevelMap.containsKey(bssid)) {
-                // make sure every bssid list has the same size
-                // use the same value for missing ones
-                int size = apSignalLevelMap.get(bssid).size();
-                for (int j = size; j < (apScanningTime - 1); j++) {
-                    apSignalLevelMap.get(bssid).add(level);
-                }
-                apSignalLevelMap.get(bssid).add(level); 
-            } else {
-                List<Integer> signalLevelList = new ArrayList<Integer>();
-                for (int j = 1; j < apScanningTime; j++) {
-                    // set the same value for missing ones
-                    signalLevelList.add(level);
-                }
-                signalLevelList.add(level);
-                apSignalLevelMap.put(bssid, signalLevelList);
-            }
-        }
-        
-        // log.info("Update signal level info -- time " + apScanningTime);
+        lastRecvTime = currTime; // update
+
+        signalHistory.addScan(currTime, bssids, levels);
     }
     
     public boolean isStatic() {
@@ -390,80 +408,86 @@ public class Client implements Comparable<Object> {
         isStatic = t;
     }
     
-    public boolean isReadyToOffload() {
-        boolean result = false;
-        if (isStatic || getAPScanningTime() == 3) {
-            result = true;
-        }
-        
-        return result;
+    /**
+     * a static client can be evaluated with one scan, a moving one needs
+     * a full signal history
+     */
+    public synchronized boolean isReadyToOffload() {
+        return isStatic || signalHistory.isFull();
     }
     
+    /**
+     * @return BSSIDs of the APs in the latest scan result
+     */
+    public synchronized long[] getNearbyAPs() {
+        return signalHistory.getNearbyAPs();
+    }
+
     public synchronized Set<String> getNearbyAPSet() {
-        return apSignalLevelMap.keySet();
+        Set<String> result = new HashSet<String>();
+        for (long bssid: signalHistory.getNearbyAPs()) {
+            result.add(MACAddress.valueOf(bssid).toString().toLowerCase());
+        }
+        return result;
     }
     
+    /**
+     * @return number of scan results in the signal history
+     */
     public synchronized int getAPScanningTime() {
-        return apScanningTime;
+        return signalHistory.getScanNum();
     }
     
     /**
-     * calculate client mobility metric
+     * calculate client mobility metric from the oldest, middle and latest
+     * level in the signal history
      *
      * @param bssid
+     * @param policy
      */
-    public double mobilityPrediction(String bssid) {
-        List<Integer> signalLevelList = apSignalLevelMap.get(bssid);
-        double mobility;
-        
-        if (signalLevelList == null) {
-            throw new RuntimeException("invalid parameter for evaluation");
-        }
-        
-        int s1 = signalLevelList.get(0);
-        int s2 = signalLevelList.get(1);
-        int s3 = signalLevelList.get(2);
-        
-        if (s1 <= s2 && s2 <= s3 && s3 - s1 > 3) { // definitely getting closer
-            mobility = 1;
-        } else if (s1 >= s2 && s2 >= s3 && s1 - s3 > 3) { // getting further
-            mobility = 0.7;
-        } else if (s1 <= s2 && s1 - s3 > 3) { // signal level first increases, but finally drops
-            mobility = 0.8;
-        } else if (s1 > s2 && s3 - s1 > 3) { // signal level first drops, but finally increases
-            mobility = 0.9;
-        } else {  // moving direction is not very clear
-            mobility = 0.85;
-        }
-        
-        log.info("mobility records for ap " + bssid + ": " + s1 + ", " + s2 + ", " + s3);
-        log.info("mobility predition for ap " + bssid + ": " + mobility);
-        return mobility;
+    public synchronized double mobilityPrediction(long bssid, IOffloadPolicy policy) {
+        return policy.mobilityMetric(signalHistory.getOldestLevel(bssid),
+                signalHistory.getMiddleLevel(bssid), signalHistory.getLatestLevel(bssid));
     }
-    
+
+    public double mobilityPrediction(String bssid, IOffloadPolicy policy) {
+        return mobilityPrediction(APRegistry.parseBSSID(bssid), policy);
+    }
+
     public double signalEvaluation(String bssid) {
-        List<Integer> signalLevelList = apSignalLevelMap.get(bssid);
-        int s;
+        return signalEvaluation(APRegistry.parseBSSID(bssid), defaultPolicy);
+    }
+
+    public double signalEvaluation(String bssid, IOffloadPolicy policy) {
+        return signalEvaluation(APRegistry.parseBSSID(bssid), policy);
+    }
+
+    /**
+     * signal metric of a nearby AP according to the given policy
+     *
+     * @param bssid
+     * @param policy
+     * @throws java.util.NoSuchElementException if the AP is not in the
+     * latest scan result
+     */
+    public synchronized double signalEvaluation(long bssid, IOffloadPolicy policy) {
+        int s = signalHistory.getLatestLevel(bssid);
         double result;
-        
-        if (signalLevelList == null) {
-            throw new java.util.NoSuchElementException("invalid parameter for evaluation");
-        }
-        
+
         if (isStatic()) {
-            s = signalLevelList.get(0);
-            result = 1 - Math.exp((-1.0 / 3.0) * (s + 73));
+            result = policy.signalMetric(s);
         } else {
-            s = signalLevelList.get(2);
-            result = mobilityPrediction(bssid) * (1- Math.exp((-1.0 / 3.0) * (s + 73)));
+            result = mobilityPrediction(bssid, policy) * policy.signalMetric(s);
+        }
+
+        if (log.isDebugEnabled()) {
+            log.debug("signal evaluation for ap " + MACAddress.valueOf(bssid)
+                    + ": signalLevel=" + s + ", result=" + result);
         }
-        
-        
-        log.info("signal evaluation for ap " + bssid + ": signalLevel=" + s + ", result=" + result);
         return result;
     }
-    
-    
+
+
 
     @Override
     public String toString() {
@@ -471,7 +495,7 @@ public class Client implements Comparable<Object> {
 
         builder.append("Client " + hwAddress.toString() + ", ipAddr="
                 + ipAddress.getHostAddress() + ", uprate="
-                + Double.toString(upRate) + ", downrate=" + Double.toString(downRate)
+                + Double.toString(getUpRate()) + ", downrate=" + Double.toString(getDownRate())
                 + ", dpid=" + Long.toString(ofSwitch.getId()));
 
         return builder.toString();
@@ -0,0 +1,56 @@
+/**
+*    Copyright 2013 University of Helsinki
+*
+*    Licensed under the Apache License, Version 2.0 (the "License"); you may
+*    not use this file except in compliance with the License. You may obtain
+*    a copy of the License at
+*
+*         http://www.apache.org/licenses/LICENSE-2.0
+*
+*    Unless required by applicable law or agreed to in writing, software
+*    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+*    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+*    License for the specific language governing permissions and limitations
+*    under the License.
+**/
+
+
+package net.floodlightcontroller.mobilesdn;
+
+/**
+ * Lifecycle states of a wireless client as seen by the master.
+ *
+ *   ASSOCIATED   -> EVALUATING, OFFLOADING, DISCONNECTED
+ *   EVALUATING   -> ASSOCIATED, OFFLOADING, DISCONNECTED
+ *   OFFLOADING   -> ASSOCIATED, DISCONNECTED
+ *   DISCONNECTED is final
+ *
+ * A client which roams to another AP is disconnected from the old one and
+ * a new Client instance is created in ASSOCIATED state for the new AP.
+ *
+ * @author Yanhe Liu <yanhe.liu@cs.helsinki.fi>
+ *
+ */
+public enum ClientState {
+    /** connected to an AP, nothing pending */
+    ASSOCIATED,
+    /** motion/app/scan info requested to decide about offloading */
+    EVALUATING,
+    /** asked to switch to another AP, waiting for it to roam */
+    OFFLOADING,
+    /** left its AP */
+    DISCONNECTED;
+
+    public boolean canMoveTo(ClientState next) {
+        switch (this) {
+        case ASSOCIATED:
+            return next == EVALUATING || next == OFFLOADING || next == DISCONNECTED;
+        case EVALUATING:
+            return next == ASSOCIATED || next == OFFLOADING || next == DISCONNECTED;
+        case OFFLOADING:
+            return next == ASSOCIATED || next == DISCONNECTED;
+        default:
+            return false;
+        }
+    }
+}
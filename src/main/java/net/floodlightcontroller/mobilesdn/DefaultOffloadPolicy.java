@@ -0,0 +1,85 @@
+/**
+*    Copyright 2013 University of Helsinki
+*
+*    Licensed under the Apache License, Version 2.0 (the "License"); you may
+*    not use this file except in compliance with the License. You may obtain
+*    a copy of the License at
+*
+*         http://www.apache.org/licenses/LICENSE-2.0
+*
+*    Unless required by applicable law or agreed to in writing, software
+*    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+*    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+*    License for the specific language governing permissions and limitations
+*    under the License.
+**/
+
+package net.floodlightcontroller.mobilesdn;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The original offloading policy: signal curve 1 - e^(-(s + 73) / 3),
+ * mobility from the trend of the last three scans, and
+ * signal * rest / maxRest * rest / bandwidth with a switching overhead
+ * of 0.2.
+ *
+ * @author Yanhe Liu <yanhe.liu@cs.helsinki.fi>
+ *
+ */
+public class DefaultOffloadPolicy implements IOffloadPolicy {
+    protected static Logger log = LoggerFactory.getLogger(DefaultOffloadPolicy.class);
+
+    public static final String NAME = "default";
+    static final double SWITCH_OVERHEAD = 0.2;
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public double signalMetric(int level) {
+        return signalCurve(level);
+    }
+
+    static double signalCurve(int level) {
+        return 1 - Math.exp((-1.0 / 3.0) * (level + 73));
+    }
+
+    @Override
+    public double mobilityMetric(int s1, int s2, int s3) {
+        double mobility = mobility(s1, s2, s3);
+        log.info("mobility records: " + s1 + ", " + s2 + ", " + s3
+                + ", prediction: " + mobility);
+        return mobility;
+    }
+
+    static double mobility(int s1, int s2, int s3) {
+        if (s1 <= s2 && s2 <= s3 && s3 - s1 > 3) { // definitely getting closer
+            return 1;
+        } else if (s1 >= s2 && s2 >= s3 && s1 - s3 > 3) { // getting further
+            return 0.7;
+        } else if (s1 <= s2 && s1 - s3 > 3) { // signal level first increases, but finally drops
+            return 0.8;
+        } else if (s1 > s2 && s3 - s1 > 3) { // signal level first drops, but finally increases
+            return 0.9;
+        } else {  // moving direction is not very clear
+            return 0.85;
+        }
+    }
+
+    @Override
+    public double getSwitchOverhead() {
+        return SWITCH_OVERHEAD;
+    }
+
+    @Override
+    public double score(double signal, double rest, double maxRest, double bandwidth) {
+        if (rest <= 0 || maxRest <= 0 || bandwidth <= 0) {
+            return 0;
+        }
+        return signal * rest / maxRest * rest / bandwidth;
+    }
+}
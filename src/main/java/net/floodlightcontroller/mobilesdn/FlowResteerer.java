@@ -0,0 +1,702 @@
+/**
+*    Copyright 2013 University of Helsinki
+*
+*    Licensed under the Apache License, Version 2.0 (the "License"); you may
+*    not use this file except in compliance with the License. You may obtain
+*    a copy of the License at
+*
+*         http://www.apache.org/licenses/LICENSE-2.0
+*
+*    Unless required by applicable law or agreed to in writing, software
+*    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+*    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+*    License for the specific language governing permissions and limitations
+*    under the License.
+**/
+
+package net.floodlightcontroller.mobilesdn;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.floodlightcontroller.core.IOFSwitch;
+import net.floodlightcontroller.core.internal.OFMessageFuture;
+import net.floodlightcontroller.topology.NodePortTuple;
+import net.floodlightcontroller.util.MACAddress;
+
+import org.openflow.protocol.OFFlowMod;
+import org.openflow.protocol.OFMatch;
+import org.openflow.protocol.OFMessage;
+import org.openflow.protocol.OFPacketOut;
+import org.openflow.protocol.OFPort;
+import org.openflow.protocol.OFStatisticsRequest;
+import org.openflow.protocol.OFType;
+import org.openflow.protocol.Wildcards;
+import org.openflow.protocol.Wildcards.Flag;
+import org.openflow.protocol.action.OFAction;
+import org.openflow.protocol.action.OFActionOutput;
+import org.openflow.protocol.factory.OFMessageFactory;
+import org.openflow.protocol.statistics.OFFlowStatisticsReply;
+import org.openflow.protocol.statistics.OFFlowStatisticsRequest;
+import org.openflow.protocol.statistics.OFStatistics;
+import org.openflow.protocol.statistics.OFStatisticsType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Moves the flows of an offloaded client from the port of its old AP to
+ * the port of the new one.
+ *
+ * The flows towards the client are read with one flow stats request, then
+ * the new actions of all of them are written as a single batch of
+ * FLOW_MODs followed by a barrier. Nothing blocks: the stats reply is
+ * handled by a callback and the barrier reply is passed in by the
+ * OpenFlow message listener (see barrierReplied). The time from the
+ * request until the barrier reply is recorded for every offload.
+ *
+ * When the new AP is on another switch, resteerPath installs a flow for
+ * the client on every switch of the route towards it instead. These
+ * flows are remembered per client and deleted on its next move, or by
+ * clearPath when it leaves. They have their own priority and cookie,
+ * just below the handover flow with the same match, so removing a
+ * handover flow on a switch of the route leaves them in place.
+ *
+ * Other users can write their own batches through writeWithBarrier.
+ *
+ * @author Yanhe Liu <yanhe.liu@cs.helsinki.fi>
+ *
+ */
+public class FlowResteerer {
+    protected static Logger log = LoggerFactory.getLogger(FlowResteerer.class);
+
+    // defaults
+    static final long REPLY_TIMEOUT = 3000;         // ms, stats or barrier reply
+    static final short PATH_PRIORITY = HandoverManager.HANDOVER_PRIORITY - 1;
+    private static final long POLL_INTERVAL = 20;   // ms, futures without callbacks
+
+    private final OFMessageFactory factory;
+    private final ScheduledExecutorService executor;
+
+    // batches waiting for their barrier reply, per switch and xid
+    private final ConcurrentMap<Long, ConcurrentMap<Integer, Barrier>> pending =
+            new ConcurrentHashMap<Long, ConcurrentMap<Integer, Barrier>>();
+
+    // route flows installed by resteerPath, per client MAC
+    private final ConcurrentMap<Long, PathFlows> paths =
+            new ConcurrentHashMap<Long, PathFlows>();
+
+    // counters
+    private final AtomicLong completedCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+    private final AtomicLong flowCount = new AtomicLong();
+    private final AtomicLong totalLatency = new AtomicLong();   // nanoseconds
+    private final AtomicLong maxLatency = new AtomicLong();     // nanoseconds
+    private volatile long lastLatency = 0;                      // nanoseconds
+
+    /**
+     * One client's flows on one switch
+     */
+    private class Resteer {
+        final IOFSwitch sw;
+        final long clientMac;
+        final short oldPort;
+        final short newPort;
+        final Runnable done;
+        final Runnable failed;
+        final long startTime = System.nanoTime();
+        volatile long writeTime;
+        volatile int flowNum;
+
+        Resteer(IOFSwitch sw, long clientMac, short oldPort, short newPort,
+                Runnable done, Runnable failed) {
+            this.sw = sw;
+            this.clientMac = clientMac;
+            this.oldPort = oldPort;
+            this.newPort = newPort;
+            this.done = done;
+            this.failed = failed;
+        }
+
+        @Override
+        public String toString() {
+            return "flows of client " + MACAddress.valueOf(clientMac)
+                    + " on switch " + sw.getStringId();
+        }
+    }
+
+    /**
+     * A batch written to a switch, waiting for its barrier reply
+     */
+    private static class Barrier {
+        final long swId;
+        final int xid;
+        final Runnable done;
+        final Runnable failed;
+        volatile ScheduledFuture<?> timeout;
+
+        Barrier(long swId, int xid, Runnable done, Runnable failed) {
+            this.swId = swId;
+            this.xid = xid;
+            this.done = done;
+            this.failed = failed;
+        }
+    }
+
+    /**
+     * Switches with a route flow of a client and the AP port it leads to
+     */
+    private static class PathFlows {
+        final long[] swIds;
+        final long targetSwId;
+        final short targetPort;
+
+        PathFlows(long[] swIds, long targetSwId, short targetPort) {
+            this.swIds = swIds;
+            this.targetSwId = targetSwId;
+            this.targetPort = targetPort;
+        }
+
+        boolean contains(long swId) {
+            for (long id: swIds) {
+                if (id == swId) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    public FlowResteerer(OFMessageFactory factory, ScheduledExecutorService executor) {
+        this.factory = factory;
+        this.executor = executor;
+    }
+
+    /**
+     * Start moving the flows towards a client from one output port to
+     * another, returns without waiting for the switch
+     *
+     * @param sw switch of the client's APs
+     * @param clientMac client MAC address as a 48-bit long
+     * @param oldPort port of the AP the client is leaving
+     * @param newPort port of the AP the client is moving to
+     * @return false if the flow stats request could not be sent
+     */
+    public boolean resteer(IOFSwitch sw, long clientMac, short oldPort, short newPort) {
+        return resteer(sw, clientMac, oldPort, newPort, null, null);
+    }
+
+    /**
+     * Same as resteer above, with callbacks for the end of the re-steer
+     *
+     * @param done run when the switch confirmed the moved flows, or when
+     * there was no flow to move
+     * @param failed run instead if the flows could not be read or written,
+     * also when false is returned, may be null
+     */
+    public boolean resteer(IOFSwitch sw, long clientMac, short oldPort, short newPort,
+            Runnable done, Runnable failed) {
+        final Resteer r = new Resteer(sw, clientMac, oldPort, newPort, done, failed);
+        final Future<List<OFStatistics>> future;
+        try {
+            future = sw.queryStatistics(makeFlowRequest(clientMac));
+        } catch (Exception e) {
+            log.error("Failure requesting the " + r, e);
+            fail(r);
+            return false;
+        }
+
+        final ScheduledFuture<?> timeout = executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (!future.isDone()) {
+                    future.cancel(true);
+                    log.warn("Flow statistics request for the {} timed out", r);
+                    fail(r);
+                }
+            }
+        }, REPLY_TIMEOUT, TimeUnit.MILLISECONDS);
+
+        whenDone(future, new Runnable() {
+            @Override
+            public void run() {
+                timeout.cancel(false);
+                if (future.isCancelled()) {
+                    return;
+                }
+                // leave the I/O thread as soon as possible
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            writeFlowMods(r, future.get());
+                        } catch (Exception e) {
+                            log.error("Failure re-steering the " + r, e);
+                            fail(r);
+                        }
+                    }
+                });
+            }
+        });
+        return true;
+    }
+
+    /**
+     * run the callback once the future is done; futures of the OpenFlow
+     * channel notify us directly, any other future is polled
+     */
+    private void whenDone(final Future<List<OFStatistics>> future, final Runnable callback) {
+        if (future instanceof OFMessageFuture) {
+            ((OFMessageFuture<?>) future).addListener(callback);
+            return;
+        }
+
+        executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (future.isDone()) {
+                    callback.run();
+                } else {
+                    executor.schedule(this, POLL_INTERVAL, TimeUnit.MILLISECONDS);
+                }
+            }
+        }, 0, TimeUnit.MILLISECONDS);
+    }
+
+    private void writeFlowMods(final Resteer r, List<OFStatistics> flows) {
+        List<OFMessage> batch = makeFlowMods(flows, r.oldPort, r.newPort);
+        r.flowNum = batch.size();
+        if (batch.isEmpty()) {
+            log.info("No flow to re-steer for the {}", r);
+            complete(r);
+            return;
+        }
+
+        r.writeTime = System.nanoTime();
+        writeWithBarrier(r.sw, batch, new Runnable() {
+            @Override
+            public void run() {
+                complete(r);
+            }
+        }, new Runnable() {
+            @Override
+            public void run() {
+                log.warn("Failed to re-steer the {}", r);
+                fail(r);
+            }
+        });
+    }
+
+    /**
+     * Write messages to a switch as one batch followed by a barrier
+     * request, without waiting for the switch
+     *
+     * @param sw
+     * @param batch messages to write, the barrier is appended to it
+     * @param done run when the barrier reply arrives
+     * @param failed run instead if the batch could not be written, the
+     * barrier reply timed out or the switch disconnected, may be null
+     * @return the xid of the barrier request
+     */
+    public int writeWithBarrier(IOFSwitch sw, List<OFMessage> batch,
+            Runnable done, Runnable failed) {
+        for (OFMessage m: batch) {
+            m.setXid(sw.getNextTransactionId());
+        }
+        OFMessage barrierMsg = factory.getMessage(OFType.BARRIER_REQUEST);
+        final Barrier barrier = new Barrier(sw.getId(), sw.getNextTransactionId(),
+                done, failed);
+        barrierMsg.setXid(barrier.xid);
+        batch.add(barrierMsg);
+
+        // registered before writing, the reply may come back at once
+        ConcurrentMap<Integer, Barrier> swPending = pending.get(barrier.swId);
+        if (swPending == null) {
+            ConcurrentMap<Integer, Barrier> m = new ConcurrentHashMap<Integer, Barrier>();
+            swPending = pending.putIfAbsent(barrier.swId, m);
+            if (swPending == null) {
+                swPending = m;
+            }
+        }
+        final ConcurrentMap<Integer, Barrier> waiting = swPending;
+        waiting.put(barrier.xid, barrier);
+        barrier.timeout = executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (waiting.remove(barrier.xid, barrier)) {
+                    log.warn("Barrier reply {} from switch {} timed out",
+                            barrier.xid, Long.toHexString(barrier.swId));
+                    fail(barrier);
+                }
+            }
+        }, REPLY_TIMEOUT, TimeUnit.MILLISECONDS);
+
+        try {
+            sw.write(batch, null);
+        } catch (Exception e) {
+            if (waiting.remove(barrier.xid, barrier)) {
+                barrier.timeout.cancel(false);
+                log.error("Tried to write flow_mods to {} but failed: {}",
+                        sw.getStringId(), e.getMessage());
+                fail(barrier);
+            }
+        }
+        return barrier.xid;
+    }
+
+    private void fail(Barrier barrier) {
+        if (barrier.failed != null) {
+            barrier.failed.run();
+        }
+    }
+
+    private void fail(Resteer r) {
+        failedCount.incrementAndGet();
+        if (r.failed != null) {
+            r.failed.run();
+        }
+    }
+
+    /**
+     * Steer the traffic towards a client along a route, e.g. to an AP on
+     * another switch. Every switch of the route gets a flow matching the
+     * client MAC as destination, above the forwarding flows. The flows of
+     * all switches after the first are written in parallel, the first
+     * switch, which turns the traffic away from the old AP, is only
+     * written when all of them confirmed. So no packet reaches a switch
+     * before its flow.
+     *
+     * The route flows of the client's previous resteerPath on switches
+     * off the new route are deleted.
+     *
+     * @param switches all connected switches by DPID
+     * @param path route as returned by IRoutingService.getRoute: an in
+     * and an out port per switch, starting with the old AP port and
+     * ending with the new one
+     * @param clientMac client MAC address as a 48-bit long
+     * @return false if the route is not usable
+     */
+    public boolean resteerPath(Map<Long, IOFSwitch> switches, List<NodePortTuple> path,
+            long clientMac) {
+        if (path == null || path.size() < 2 || path.size() % 2 != 0) {
+            return false;
+        }
+        int hops = path.size() / 2;
+        final IOFSwitch[] hopSwitches = new IOFSwitch[hops];
+        final OFFlowMod[] hopFlows = new OFFlowMod[hops];
+        long[] hopIds = new long[hops];
+        for (int i = 0; i < hops; i++) {
+            NodePortTuple out = path.get(2 * i + 1);
+            hopSwitches[i] = switches.get(out.getNodeId());
+            if (hopSwitches[i] == null) {
+                log.warn("Switch {} of the route to client {} is not connected",
+                        Long.toHexString(out.getNodeId()), MACAddress.valueOf(clientMac));
+                return false;
+            }
+            hopFlows[i] = makePathFlowMod(clientMac, out.getPortId());
+            hopIds[i] = out.getNodeId();
+        }
+
+        NodePortTuple target = path.get(path.size() - 1);
+        PathFlows current = new PathFlows(hopIds, target.getNodeId(), target.getPortId());
+        PathFlows previous = paths.put(clientMac, current);
+        if (previous != null) {
+            // the flows on the new route are replaced by the ADDs below
+            deletePathFlows(switches, clientMac, previous, current);
+        }
+
+        final Resteer r = new Resteer(hopSwitches[0], clientMac,
+                path.get(0).getPortId(), path.get(path.size() - 1).getPortId(),
+                null, null);
+        r.flowNum = hops;
+        final AtomicInteger remaining = new AtomicInteger(hops - 1);
+        final AtomicBoolean failed = new AtomicBoolean();
+        final Runnable done = new Runnable() {
+            @Override
+            public void run() {
+                complete(r);
+            }
+        };
+        final Runnable fail = new Runnable() {
+            @Override
+            public void run() {
+                if (failed.compareAndSet(false, true)) {
+                    log.warn("Failed to steer the {} to switch {}", r,
+                            hopSwitches[hopSwitches.length - 1].getStringId());
+                    failedCount.incrementAndGet();
+                }
+            }
+        };
+        final Runnable first = new Runnable() {
+            @Override
+            public void run() {
+                if (failed.get()) {
+                    return;
+                }
+                List<OFMessage> batch = new ArrayList<OFMessage>(2);
+                batch.add(hopFlows[0]);
+                r.writeTime = System.nanoTime();
+                writeWithBarrier(hopSwitches[0], batch, done, fail);
+            }
+        };
+
+        if (hops == 1) {
+            first.run();
+            return true;
+        }
+        Runnable downstreamDone = new Runnable() {
+            @Override
+            public void run() {
+                if (remaining.decrementAndGet() == 0) {
+                    first.run();
+                }
+            }
+        };
+        for (int i = 1; i < hops; i++) {
+            List<OFMessage> batch = new ArrayList<OFMessage>(2);
+            batch.add(hopFlows[i]);
+            writeWithBarrier(hopSwitches[i], batch, downstreamDone, fail);
+        }
+        return true;
+    }
+
+    /**
+     * @return whether the route flows of the client's last resteerPath
+     * lead to the given AP port
+     */
+    public boolean leadsTo(long clientMac, long swId, short port) {
+        PathFlows p = paths.get(clientMac);
+        return p != null && p.targetSwId == swId && p.targetPort == port;
+    }
+
+    /**
+     * Delete the route flows of a client installed by resteerPath, e.g.
+     * when it moved on or disconnected
+     *
+     * @param switches all connected switches by DPID
+     * @param clientMac
+     * @return false if the client has no route flows
+     */
+    public boolean clearPath(Map<Long, IOFSwitch> switches, long clientMac) {
+        PathFlows p = paths.remove(clientMac);
+        if (p == null) {
+            return false;
+        }
+        deletePathFlows(switches, clientMac, p, null);
+        return true;
+    }
+
+    /**
+     * Delete all flows towards the client on the switches of a route but
+     * those of keep. The forwarding flows there still lead to the AP the
+     * client left, the forwarding module sets them up again.
+     */
+    private void deletePathFlows(Map<Long, IOFSwitch> switches, long clientMac,
+            PathFlows p, PathFlows keep) {
+        for (long swId: p.swIds) {
+            IOFSwitch sw = switches.get(swId);
+            if (sw == null || (keep != null && keep.contains(swId))) {
+                continue;
+            }
+            OFFlowMod delete = (OFFlowMod) factory.getMessage(OFType.FLOW_MOD);
+            delete.setCommand(OFFlowMod.OFPFC_DELETE);
+            delete.setMatch(HandoverManager.makeMatch(clientMac));
+            delete.setOutPort(OFPort.OFPP_NONE);
+            delete.setLengthU(OFFlowMod.MINIMUM_LENGTH);
+            List<OFMessage> batch = new ArrayList<OFMessage>(2);
+            batch.add(delete);
+            writeWithBarrier(sw, batch, null, null);
+        }
+    }
+
+    private OFFlowMod makePathFlowMod(long clientMac, short outPort) {
+        OFFlowMod flowMod = (OFFlowMod) factory.getMessage(OFType.FLOW_MOD);
+        // this buffer_id is needed for avoiding a BAD_REQUEST error
+        flowMod.setBufferId(OFPacketOut.BUFFER_ID_NONE);
+        flowMod.setCommand(OFFlowMod.OFPFC_ADD);
+        flowMod.setMatch(HandoverManager.makeMatch(clientMac));
+        flowMod.setPriority(PATH_PRIORITY);
+        flowMod.setCookie(HandoverManager.PATH_COOKIE);
+        flowMod.setIdleTimeout(HandoverManager.IDLE_TIMEOUT);
+        flowMod.setHardTimeout((short) 0);
+        flowMod.setOutPort(OFPort.OFPP_NONE);
+        List<OFAction> actions = new ArrayList<OFAction>(1);
+        actions.add(new OFActionOutput(outPort, (short) 0xffff));
+        flowMod.setActions(actions);
+        flowMod.setLengthU(OFFlowMod.MINIMUM_LENGTH + OFActionOutput.MINIMUM_LENGTH);
+        return flowMod;
+    }
+
+    /**
+     * Called for every barrier reply from a switch
+     *
+     * @return false if the reply is not for a batch written here
+     */
+    public boolean barrierReplied(IOFSwitch sw, int xid) {
+        ConcurrentMap<Integer, Barrier> waiting = pending.get(sw.getId());
+        if (waiting == null) {
+            return false;
+        }
+        Barrier barrier = waiting.remove(xid);
+        if (barrier == null) {
+            return false;
+        }
+        barrier.timeout.cancel(false);
+        if (barrier.done != null) {
+            barrier.done.run();
+        }
+        return true;
+    }
+
+    private void complete(Resteer r) {
+        long now = System.nanoTime();
+        long latency = now - r.startTime;
+        completedCount.incrementAndGet();
+        flowCount.addAndGet(r.flowNum);
+        totalLatency.addAndGet(latency);
+        lastLatency = latency;
+        long max = maxLatency.get();
+        while (latency > max && !maxLatency.compareAndSet(max, latency)) {
+            max = maxLatency.get();
+        }
+
+        if (r.flowNum > 0) {
+            log.info("Re-steered {} {} in {} ms (switch confirmed in {} ms)",
+                    new Object[] {r.flowNum, r, latency / 1000000.0,
+                            (now - r.writeTime) / 1000000.0});
+        }
+        if (r.done != null) {
+            r.done.run();
+        }
+    }
+
+    /**
+     * forget the outstanding barriers of a disconnected switch
+     */
+    public void removeSwitch(long swId) {
+        ConcurrentMap<Integer, Barrier> waiting = pending.remove(swId);
+        if (waiting == null) {
+            return;
+        }
+        for (Barrier barrier: waiting.values()) {
+            barrier.timeout.cancel(false);
+            fail(barrier);
+        }
+    }
+
+    static OFStatisticsRequest makeFlowRequest(long clientMac) {
+        OFStatisticsRequest req = new OFStatisticsRequest();
+        req.setStatisticType(OFStatisticsType.FLOW);
+        OFFlowStatisticsRequest specificReq = new OFFlowStatisticsRequest();
+        OFMatch m = new OFMatch();
+        m.setWildcards(Wildcards.FULL.matchOn(Flag.DL_DST));
+        m.setDataLayerDestination(MACAddress.valueOf(clientMac).toBytes());
+        specificReq.setMatch(m);
+        specificReq.setTableId((byte) 0xff);
+        // using OFPort.OFPP_NONE(0xffff) as the outport
+        specificReq.setOutPort(OFPort.OFPP_NONE.getValue());
+        req.setStatistics(Collections.singletonList((OFStatistics) specificReq));
+        req.setLengthU(req.getLengthU() + specificReq.getLength());
+        return req;
+    }
+
+    /**
+     * Compute the new actions of the given flows: outputs to the old port
+     * go to the new port, all other actions are kept. Flows without an
+     * output to the old port are left alone.
+     *
+     * @return one MODIFY_STRICT FLOW_MOD per changed flow
+     */
+    List<OFMessage> makeFlowMods(List<OFStatistics> flows, short oldPort, short newPort) {
+        List<OFMessage> result = new ArrayList<OFMessage>(flows.size() + 1);
+        if (oldPort == newPort) {
+            return result;
+        }
+
+        for (OFStatistics stat: flows) {
+            OFFlowStatisticsReply flow = (OFFlowStatisticsReply) stat;
+            List<OFAction> actions = flow.getActions();
+            if (actions == null) {
+                continue;
+            }
+            List<OFAction> newActions = new ArrayList<OFAction>(actions.size());
+            boolean changed = false;
+            int length = 0;
+            for (OFAction action: actions) {
+                if (action instanceof OFActionOutput
+                        && ((OFActionOutput) action).getPort() == oldPort) {
+                    action = new OFActionOutput(newPort,
+                            ((OFActionOutput) action).getMaxLength());
+                    changed = true;
+                }
+                newActions.add(action);
+                length += action.getLengthU();
+            }
+            if (!changed) {
+                continue;
+            }
+
+            OFFlowMod flowMod = (OFFlowMod) factory.getMessage(OFType.FLOW_MOD);
+            // this buffer_id is needed for avoiding a BAD_REQUEST error
+            flowMod.setBufferId(OFPacketOut.BUFFER_ID_NONE);
+            flowMod.setCommand(OFFlowMod.OFPFC_MODIFY_STRICT);
+            flowMod.setMatch(flow.getMatch());
+            flowMod.setPriority(flow.getPriority());
+            flowMod.setCookie(flow.getCookie());
+            flowMod.setIdleTimeout(flow.getIdleTimeout());
+            flowMod.setHardTimeout(flow.getHardTimeout());
+            flowMod.setOutPort(OFPort.OFPP_NONE);
+            flowMod.setActions(newActions);
+            flowMod.setLengthU(OFFlowMod.MINIMUM_LENGTH + length);
+            result.add(flowMod);
+        }
+        return result;
+    }
+
+    public long getCompletedCount() {
+        return completedCount.get();
+    }
+
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+
+    /**
+     * @return number of flows moved by all completed re-steers
+     */
+    public long getFlowCount() {
+        return flowCount.get();
+    }
+
+    /**
+     * @return average time from request to barrier reply in milliseconds
+     */
+    public double getAverageLatency() {
+        long done = completedCount.get();
+        return done == 0 ? 0 : totalLatency.get() / 1000000.0 / done;
+    }
+
+    /**
+     * @return maximum time from request to barrier reply in milliseconds
+     */
+    public double getMaxLatency() {
+        return maxLatency.get() / 1000000.0;
+    }
+
+    /**
+     * @return latency of the latest completed re-steer in milliseconds
+     */
+    public double getLastLatency() {
+        return lastLatency / 1000000.0;
+    }
+}
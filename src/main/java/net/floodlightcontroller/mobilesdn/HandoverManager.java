@@ -0,0 +1,437 @@
+/**
+*    Copyright 2013 University of Helsinki
+*
+*    Licensed under the Apache License, Version 2.0 (the "License"); you may
+*    not use this file except in compliance with the License. You may obtain
+*    a copy of the License at
+*
+*         http://www.apache.org/licenses/LICENSE-2.0
+*
+*    Unless required by applicable law or agreed to in writing, software
+*    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+*    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+*    License for the specific language governing permissions and limitations
+*    under the License.
+**/
+
+package net.floodlightcontroller.mobilesdn;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.floodlightcontroller.core.IOFSwitch;
+import net.floodlightcontroller.core.util.AppCookie;
+import net.floodlightcontroller.util.MACAddress;
+
+import org.openflow.protocol.OFFlowMod;
+import org.openflow.protocol.OFMatch;
+import org.openflow.protocol.OFMessage;
+import org.openflow.protocol.OFPacketOut;
+import org.openflow.protocol.OFPort;
+import org.openflow.protocol.OFType;
+import org.openflow.protocol.Wildcards;
+import org.openflow.protocol.Wildcards.Flag;
+import org.openflow.protocol.action.OFAction;
+import org.openflow.protocol.action.OFActionOutput;
+import org.openflow.protocol.factory.OFMessageFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Make-before-break offloading of clients between APs of one switch.
+ *
+ * A handover goes through these steps:
+ *
+ *   1. a flow above the forwarding flows, matching the client MAC as
+ *      destination, sends the client's traffic to both the old and the
+ *      target AP port
+ *   2. once the switch confirmed it (barrier), the client is asked to
+ *      switch AP
+ *   3. when the target agent reports the client, the flow only outputs
+ *      to the target port and copies the first packet to the controller
+ *   4. that first packet gives the time-to-first-byte of the handover,
+ *      then the forwarding flows of the client are moved to the target
+ *      port and the handover flow is deleted
+ *
+ * The client never misses a packet while it reassociates. If it does not
+ * show up at the target AP in time, the extra flow is deleted and the old
+ * entries carry the traffic as before. No handover flow stays behind, it
+ * would hide the forwarding flows when the client moves on by itself.
+ *
+ * @author Yanhe Liu <yanhe.liu@cs.helsinki.fi>
+ *
+ */
+public class HandoverManager {
+    protected static Logger log = LoggerFactory.getLogger(HandoverManager.class);
+
+    public static final int SOFTOFFLOAD_APP_ID = 30;
+    static {
+        AppCookie.registerApp(SOFTOFFLOAD_APP_ID, "SoftOffload");
+    }
+    public static final long HANDOVER_COOKIE = AppCookie.makeCookie(SOFTOFFLOAD_APP_ID, 0);
+    // route flows of FlowResteerer.resteerPath
+    public static final long PATH_COOKIE = AppCookie.makeCookie(SOFTOFFLOAD_APP_ID, 1);
+
+    // defaults
+    static final short HANDOVER_PRIORITY = Short.MAX_VALUE;  // above forwarding flows
+    static final short IDLE_TIMEOUT = 20;                    // s
+    static final short MARK_LENGTH = 64;                     // bytes sent to controller
+    static final long JOIN_TIMEOUT = 10000;                  // ms
+    static final long FIRST_BYTE_TIMEOUT = 5000;             // ms
+
+    // handover phases
+    private static final int PREPARING = 0;     // bicast flow sent
+    private static final int SWITCHING = 1;     // client asked to switch
+    private static final int JOINED = 2;        // waiting for the first packet
+    private static final int DONE = 3;
+
+    private final FlowResteerer resteerer;
+    private final OFMessageFactory factory;
+    private final ScheduledExecutorService executor;
+
+    // handovers in progress by client MAC
+    private final ConcurrentMap<Long, Handover> handovers =
+            new ConcurrentHashMap<Long, Handover>();
+
+    // counters
+    private final AtomicLong completedCount = new AtomicLong();
+    private final AtomicLong abortedCount = new AtomicLong();
+    private final AtomicLong firstByteCount = new AtomicLong();
+    private final AtomicLong totalJoinTime = new AtomicLong();      // nanoseconds
+    private final AtomicLong totalFirstByteTime = new AtomicLong(); // nanoseconds
+    private final AtomicLong maxFirstByteTime = new AtomicLong();   // nanoseconds
+
+    /**
+     * One client moving between two AP ports of a switch
+     */
+    private class Handover {
+        final IOFSwitch sw;
+        final long clientMac;
+        final short oldPort;
+        final short newPort;
+        final AtomicInteger phase = new AtomicInteger(PREPARING);
+        final long startTime = System.nanoTime();
+        volatile long commandTime;
+        volatile long joinTime;
+
+        Handover(IOFSwitch sw, long clientMac, short oldPort, short newPort) {
+            this.sw = sw;
+            this.clientMac = clientMac;
+            this.oldPort = oldPort;
+            this.newPort = newPort;
+        }
+
+        @Override
+        public String toString() {
+            return "handover of client " + MACAddress.valueOf(clientMac)
+                    + " from port " + oldPort + " to " + newPort
+                    + " on switch " + sw.getStringId();
+        }
+    }
+
+    public HandoverManager(FlowResteerer resteerer, OFMessageFactory factory,
+            ScheduledExecutorService executor) {
+        this.resteerer = resteerer;
+        this.factory = factory;
+        this.executor = executor;
+    }
+
+    /**
+     * Start a handover: install the bicast flow and run the command which
+     * asks the client to switch once the switch has confirmed it
+     *
+     * @param sw switch of both APs
+     * @param clientMac client MAC address as a 48-bit long
+     * @param oldPort port of the AP the client is leaving
+     * @param newPort port of the target AP
+     * @param command sends the switch request to the client
+     * @return false if a handover of the client is in progress already
+     */
+    public boolean begin(IOFSwitch sw, long clientMac, short oldPort, short newPort,
+            final Runnable command) {
+        if (oldPort == newPort) {
+            return false;
+        }
+        final Handover h = new Handover(sw, clientMac, oldPort, newPort);
+        if (handovers.putIfAbsent(clientMac, h) != null) {
+            log.info("Handover of client {} in progress already",
+                    MACAddress.valueOf(clientMac));
+            return false;
+        }
+
+        List<OFMessage> batch = new ArrayList<OFMessage>(2);
+        batch.add(makeFlowMod(h, OFFlowMod.OFPFC_ADD, oldPort, newPort, (short) 0));
+        resteerer.writeWithBarrier(sw, batch, new Runnable() {
+            @Override
+            public void run() {
+                if (!h.phase.compareAndSet(PREPARING, SWITCHING)) {
+                    return;
+                }
+                h.commandTime = System.nanoTime();
+                command.run();
+                executor.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (h.phase.get() == SWITCHING) {
+                            abort(h, "client did not join the target AP");
+                        }
+                    }
+                }, JOIN_TIMEOUT, TimeUnit.MILLISECONDS);
+            }
+        }, new Runnable() {
+            @Override
+            public void run() {
+                abort(h, "switch did not confirm the bicast flow");
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Called when an agent reports a client, ends the bicast phase if it
+     * is the target AP of the client's handover
+     *
+     * @param clientMac
+     * @param swId switch of the reporting agent
+     * @param port port of the reporting agent
+     * @return false if there is no handover of the client waiting for it
+     */
+    public boolean clientJoined(long clientMac, long swId, short port) {
+        final Handover h = handovers.get(clientMac);
+        if (h == null || h.phase.get() != SWITCHING) {
+            return false;
+        }
+        if (h.sw.getId() != swId || h.newPort != port) {
+            abort(h, "client joined another AP");
+            return false;
+        }
+        if (!h.phase.compareAndSet(SWITCHING, JOINED)) {
+            return false;
+        }
+        h.joinTime = System.nanoTime();
+
+        // the first packet to the target port is copied to the controller
+        List<OFMessage> batch = new ArrayList<OFMessage>(2);
+        batch.add(makeFlowMod(h, OFFlowMod.OFPFC_MODIFY_STRICT, h.newPort,
+                OFPort.OFPP_CONTROLLER.getValue(), MARK_LENGTH));
+        resteerer.writeWithBarrier(h.sw, batch, null, null);
+
+        executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (h.phase.compareAndSet(JOINED, DONE)) {
+                    log.info("No traffic for the {} after it joined", h);
+                    finish(h);
+                }
+            }
+        }, FIRST_BYTE_TIMEOUT, TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    /**
+     * Called for packets sent to the controller by a flow action
+     *
+     * @param sw
+     * @param dstMac destination MAC of the packet as a 48-bit long
+     * @return true if the packet is a copy made by a handover flow and was
+     * already delivered to the client
+     */
+    public boolean packetIn(IOFSwitch sw, long dstMac) {
+        Handover h = handovers.get(dstMac);
+        if (h == null || h.sw.getId() != sw.getId()) {
+            return false;
+        }
+        if (h.phase.compareAndSet(JOINED, DONE)) {
+            long now = System.nanoTime();
+            long firstByte = now - h.commandTime;
+            firstByteCount.incrementAndGet();
+            totalFirstByteTime.addAndGet(firstByte);
+            long max = maxFirstByteTime.get();
+            while (firstByte > max && !maxFirstByteTime.compareAndSet(max, firstByte)) {
+                max = maxFirstByteTime.get();
+            }
+            log.info("Finished the {}: joined after {} ms, first byte after {} ms",
+                    new Object[] {h, (h.joinTime - h.commandTime) / 1000000.0,
+                            firstByte / 1000000.0});
+            finish(h);
+            return true;
+        }
+        // copies sent before the switch removed the controller output
+        return h.phase.get() == DONE;
+    }
+
+    // break: the forwarding flows take over from the handover flow
+    private void finish(final Handover h) {
+        completedCount.incrementAndGet();
+        totalJoinTime.addAndGet(h.joinTime - h.commandTime);
+
+        resteerer.resteer(h.sw, h.clientMac, h.oldPort, h.newPort, new Runnable() {
+            @Override
+            public void run() {
+                removeFlow(h, false);
+            }
+        }, new Runnable() {
+            @Override
+            public void run() {
+                // let the forwarding module set the flows up again
+                log.warn("Could not move the flows of the {}, deleting them", h);
+                removeFlow(h, true);
+            }
+        });
+    }
+
+    private void removeFlow(final Handover h, boolean withOldFlows) {
+        List<OFMessage> batch = new ArrayList<OFMessage>(3);
+        if (withOldFlows) {
+            OFFlowMod delete = (OFFlowMod) factory.getMessage(OFType.FLOW_MOD);
+            delete.setCommand(OFFlowMod.OFPFC_DELETE);
+            delete.setMatch(makeMatch(h.clientMac));
+            delete.setOutPort(h.oldPort);
+            delete.setLengthU(OFFlowMod.MINIMUM_LENGTH);
+            batch.add(delete);
+        }
+        batch.add(makeDelete(h.clientMac));
+        Runnable remove = new Runnable() {
+            @Override
+            public void run() {
+                handovers.remove(h.clientMac, h);
+            }
+        };
+        resteerer.writeWithBarrier(h.sw, batch, remove, remove);
+    }
+
+    // delete the bicast flow, the old entries are still in place
+    private void abort(final Handover h, String reason) {
+        int phase = h.phase.get();
+        if (phase >= JOINED || !h.phase.compareAndSet(phase, DONE)) {
+            return;
+        }
+        log.warn("Aborted the {}: {}", h, reason);
+        abortedCount.incrementAndGet();
+
+        List<OFMessage> batch = new ArrayList<OFMessage>(2);
+        batch.add(makeDelete(h.clientMac));
+        Runnable remove = new Runnable() {
+            @Override
+            public void run() {
+                handovers.remove(h.clientMac, h);
+            }
+        };
+        resteerer.writeWithBarrier(h.sw, batch, remove, remove);
+    }
+
+    /**
+     * @return whether a handover of the client is in progress
+     */
+    public boolean isInProgress(long clientMac) {
+        return handovers.containsKey(clientMac);
+    }
+
+    /**
+     * Delete a handover flow left on a switch for a client which roamed
+     * or disconnected, e.g. when the switch failed to confirm its removal
+     *
+     * @param sw switch of the client's last AP
+     * @param clientMac
+     * @return false if a handover of the client is in progress, it
+     * removes its flow itself
+     */
+    public boolean clearClient(IOFSwitch sw, long clientMac) {
+        if (handovers.containsKey(clientMac)) {
+            return false;
+        }
+        List<OFMessage> batch = new ArrayList<OFMessage>(2);
+        batch.add(makeDelete(clientMac));
+        resteerer.writeWithBarrier(sw, batch, null, null);
+        return true;
+    }
+
+    static OFMatch makeMatch(long clientMac) {
+        OFMatch match = new OFMatch();
+        match.setWildcards(Wildcards.FULL.matchOn(Flag.DL_DST));
+        match.setDataLayerDestination(MACAddress.valueOf(clientMac).toBytes());
+        return match;
+    }
+
+    /**
+     * delete of the handover flow of a client, not of its forwarding flows
+     */
+    private OFFlowMod makeDelete(long clientMac) {
+        OFFlowMod delete = (OFFlowMod) factory.getMessage(OFType.FLOW_MOD);
+        delete.setCommand(OFFlowMod.OFPFC_DELETE_STRICT);
+        delete.setMatch(makeMatch(clientMac));
+        delete.setPriority(HANDOVER_PRIORITY);
+        delete.setOutPort(OFPort.OFPP_NONE);
+        delete.setLengthU(OFFlowMod.MINIMUM_LENGTH);
+        return delete;
+    }
+
+    /**
+     * handover flow with outputs to port1 and port2 (0 for none), the
+     * output to port2 is limited to maxLen bytes if maxLen is not 0
+     */
+    private OFFlowMod makeFlowMod(Handover h, short command, short port1,
+            short port2, short maxLen) {
+        OFFlowMod flowMod = (OFFlowMod) factory.getMessage(OFType.FLOW_MOD);
+        // this buffer_id is needed for avoiding a BAD_REQUEST error
+        flowMod.setBufferId(OFPacketOut.BUFFER_ID_NONE);
+        flowMod.setCommand(command);
+        flowMod.setMatch(makeMatch(h.clientMac));
+        flowMod.setPriority(HANDOVER_PRIORITY);
+        flowMod.setCookie(HANDOVER_COOKIE);
+        flowMod.setIdleTimeout(IDLE_TIMEOUT);
+        flowMod.setHardTimeout((short) 0);
+        flowMod.setOutPort(OFPort.OFPP_NONE);
+
+        List<OFAction> actions = new ArrayList<OFAction>(2);
+        if (port1 != 0) {
+            actions.add(new OFActionOutput(port1, (short) 0xffff));
+        }
+        if (port2 != 0) {
+            actions.add(new OFActionOutput(port2, maxLen == 0 ? (short) 0xffff : maxLen));
+        }
+        flowMod.setActions(actions);
+        flowMod.setLengthU(OFFlowMod.MINIMUM_LENGTH
+                + actions.size() * OFActionOutput.MINIMUM_LENGTH);
+        return flowMod;
+    }
+
+    public long getCompletedCount() {
+        return completedCount.get();
+    }
+
+    public long getAbortedCount() {
+        return abortedCount.get();
+    }
+
+    /**
+     * @return average time from the switch request until the client
+     * joined the target AP in milliseconds
+     */
+    public double getAverageJoinTime() {
+        long done = completedCount.get();
+        return done == 0 ? 0 : totalJoinTime.get() / 1000000.0 / done;
+    }
+
+    /**
+     * @return average time from the switch request until the first packet
+     * to the client left the target port in milliseconds
+     */
+    public double getAverageFirstByteTime() {
+        long n = firstByteCount.get();
+        return n == 0 ? 0 : totalFirstByteTime.get() / 1000000.0 / n;
+    }
+
+    /**
+     * @return maximum time-to-first-byte in milliseconds
+     */
+    public double getMaxFirstByteTime() {
+        return maxFirstByteTime.get() / 1000000.0;
+    }
+}
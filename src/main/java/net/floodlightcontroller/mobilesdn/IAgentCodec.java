@@ -0,0 +1,61 @@
+/**
+*    Copyright 2013 University of Helsinki
+*
+*    Licensed under the Apache License, Version 2.0 (the "License"); you may
+*    not use this file except in compliance with the License. You may obtain
+*    a copy of the License at
+*
+*         http://www.apache.org/licenses/LICENSE-2.0
+*
+*    Unless required by applicable law or agreed to in writing, software
+*    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+*    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+*    License for the specific language governing permissions and limitations
+*    under the License.
+**/
+
+package net.floodlightcontroller.mobilesdn;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Encoder/decoder for the messages exchanged between master and AP agents.
+ *
+ * Decoding never copies the received data: the fields of the given
+ * AgentMessage are views into the receive buffer. Encoding writes into a
+ * caller-provided buffer so that it can be reused for every message.
+ *
+ * @author Yanhe Liu <yanhe.liu@cs.helsinki.fi>
+ *
+ */
+public interface IAgentCodec {
+
+    /**
+     * Parse the message in buf (between position and limit) into msg
+     *
+     * @param buf received datagram
+     * @param msg reusable message instance to fill in
+     * @return false if the data is not a valid message of this codec
+     */
+    public boolean decode(ByteBuffer buf, AgentMessage msg);
+
+    /**
+     * Encode a message which the agent relays to one of its clients
+     *
+     * @param dst buffer to write into, starting at its position
+     * @param clientMac client MAC address as a 48-bit long
+     * @param signal message signal (e.g. "c")
+     * @param data message body, e.g. "switch|ssid|bssid|auth"
+     */
+    public void encodeToClient(ByteBuffer dst, long clientMac,
+                               String signal, String data);
+
+    /**
+     * Encode a message for the agent itself
+     *
+     * @param dst buffer to write into, starting at its position
+     * @param signal message signal (e.g. "a")
+     * @param data message body
+     */
+    public void encodeToAgent(ByteBuffer dst, String signal, String data);
+}
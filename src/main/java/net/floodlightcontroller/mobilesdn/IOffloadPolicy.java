@@ -0,0 +1,69 @@
+/**
+*    Copyright 2013 University of Helsinki
+*
+*    Licensed under the Apache License, Version 2.0 (the "License"); you may
+*    not use this file except in compliance with the License. You may obtain
+*    a copy of the License at
+*
+*         http://www.apache.org/licenses/LICENSE-2.0
+*
+*    Unless required by applicable law or agreed to in writing, software
+*    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+*    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+*    License for the specific language governing permissions and limitations
+*    under the License.
+**/
+
+package net.floodlightcontroller.mobilesdn;
+
+/**
+ * Offloading policy: how nearby APs are scored when a client is evaluated
+ * for offloading.
+ *
+ * Implementations are used by several threads at once and may be replaced
+ * at runtime (see IOffloadPolicyService), they must be stateless or
+ * thread-safe.
+ *
+ * @author Yanhe Liu <yanhe.liu@cs.helsinki.fi>
+ *
+ */
+public interface IOffloadPolicy {
+
+    /**
+     * @return name used to select the policy in the config and REST API
+     */
+    public String getName();
+
+    /**
+     * Quality of a signal level
+     *
+     * @param level signal level in dBm
+     * @return metric, 1 for the best signal
+     */
+    public double signalMetric(int level);
+
+    /**
+     * Whether a moving client is getting closer to an AP
+     *
+     * @param s1 oldest of three consecutive signal levels (dBm)
+     * @param s2
+     * @param s3 latest signal level
+     * @return factor for the signal metric, 1 if surely getting closer
+     */
+    public double mobilityMetric(int s1, int s2, int s3);
+
+    /**
+     * @return cost of switching to a different AP, subtracted from its score
+     */
+    public double getSwitchOverhead();
+
+    /**
+     * Score of an AP for a client, without the switching overhead
+     *
+     * @param signal signal metric of the AP
+     * @param rest downlink bandwidth left at the AP (Mbit/s)
+     * @param maxRest highest rest among the client's options
+     * @param bandwidth downlink bandwidth of the AP
+     */
+    public double score(double signal, double rest, double maxRest, double bandwidth);
+}
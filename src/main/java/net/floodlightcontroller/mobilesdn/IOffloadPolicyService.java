@@ -0,0 +1,52 @@
+/**
+*    Copyright 2013 University of Helsinki
+*
+*    Licensed under the Apache License, Version 2.0 (the "License"); you may
+*    not use this file except in compliance with the License. You may obtain
+*    a copy of the License at
+*
+*         http://www.apache.org/licenses/LICENSE-2.0
+*
+*    Unless required by applicable law or agreed to in writing, software
+*    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+*    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+*    License for the specific language governing permissions and limitations
+*    under the License.
+**/
+
+package net.floodlightcontroller.mobilesdn;
+
+import java.util.Collection;
+
+import net.floodlightcontroller.core.module.IFloodlightService;
+
+/**
+ * Provides the offloading policy in use and allows to replace it at
+ * runtime.
+ *
+ * @author Yanhe Liu <yanhe.liu@cs.helsinki.fi>
+ *
+ */
+public interface IOffloadPolicyService extends IFloodlightService {
+
+    /**
+     * @return the current policy, callers should keep the returned
+     * instance for one whole evaluation
+     */
+    public IOffloadPolicy getPolicy();
+
+    /**
+     * Switch to another registered policy
+     *
+     * @param name policy name
+     * @throws IllegalArgumentException if there is no such policy
+     */
+    public void setPolicy(String name);
+
+    /**
+     * Register a policy, replacing a registered one with the same name
+     */
+    public void addPolicy(IOffloadPolicy policy);
+
+    public Collection<String> getPolicyNames();
+}
@@ -17,4 +17,26 @@ public interface ISoftOffloadService extends IFloodlightService {
     public APAgent getAgent(String agentIp);
     
     public Client getClient(String clientMac);
+
+    /**
+     * @return the feed of client, rate and offloading changes
+     */
+    public SoftOffloadEventLog getEventLog();
+
+    /**
+     * @return the AP and network topology config in use
+     */
+    public MobileNetworkConfig getNetworkConfig();
+
+    /**
+     * Validate a new AP and network topology config and apply the changes
+     *
+     * @param networkTopo content of the network config, null to re-read the file
+     * @param apConfig content of the AP config, null to re-read the file
+     * @return what has been changed
+     * @throws MobileNetworkConfig.ConfigException if the config is invalid,
+     * the config in use is kept then
+     */
+    public MobileNetworkConfig.Diff reloadNetworkConfig(String networkTopo, String apConfig)
+            throws MobileNetworkConfig.ConfigException;
 }
@@ -0,0 +1,34 @@
+/**
+*    Copyright 2013 University of Helsinki
+*
+*    Licensed under the Apache License, Version 2.0 (the "License"); you may
+*    not use this file except in compliance with the License. You may obtain
+*    a copy of the License at
+*
+*         http://www.apache.org/licenses/LICENSE-2.0
+*
+*    Unless required by applicable law or agreed to in writing, software
+*    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+*    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+*    License for the specific language governing permissions and limitations
+*    under the License.
+**/
+
+package net.floodlightcontroller.mobilesdn;
+
+/**
+ * Consumer of the per-switch statistics published by
+ * SwitchStatisticsCollector
+ *
+ * @author Yanhe Liu <yanhe.liu@cs.helsinki.fi>
+ *
+ */
+public interface ISwitchStatisticsListener {
+
+    /**
+     * Called whenever a new statistics snapshot of a switch is available
+     *
+     * @param stats the new snapshot
+     */
+    public void statisticsUpdated(SwitchStatistics stats);
+}
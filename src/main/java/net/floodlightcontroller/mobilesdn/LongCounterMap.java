@@ -0,0 +1,148 @@
+/**
+*    Copyright 2013 University of Helsinki
+*
+*    Licensed under the Apache License, Version 2.0 (the "License"); you may
+*    not use this file except in compliance with the License. You may obtain
+*    a copy of the License at
+*
+*         http://www.apache.org/licenses/LICENSE-2.0
+*
+*    Unless required by applicable law or agreed to in writing, software
+*    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+*    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+*    License for the specific language governing permissions and limitations
+*    under the License.
+**/
+
+
+package net.floodlightcontroller.mobilesdn;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing hash map from MAC address (48-bit long) to a long
+ * counter, without boxing and without allocation once it has grown to
+ * its working size. Meant to be cleared and refilled for every
+ * statistics sweep.
+ *
+ * Keys must be non-negative, which holds for all 48-bit MAC addresses.
+ * Not thread-safe.
+ *
+ * @author Yanhe Liu <yanhe.liu@cs.helsinki.fi>
+ *
+ */
+public class LongCounterMap {
+    private static final long EMPTY = -1L;
+    private static final float LOAD_FACTOR = 0.5f;
+
+    private long[] keys;
+    private long[] values;
+    private int mask;
+    private int size;
+    private int resizeAt;
+
+    public LongCounterMap(int expectedSize) {
+        int cap = 16;
+        while (cap * LOAD_FACTOR < expectedSize) {
+            cap <<= 1;
+        }
+        allocate(cap);
+    }
+
+    private void allocate(int cap) {
+        keys = new long[cap];
+        values = new long[cap];
+        Arrays.fill(keys, EMPTY);
+        mask = cap - 1;
+        resizeAt = (int) (cap * LOAD_FACTOR);
+        size = 0;
+    }
+
+    private static int hash(long key) {
+        // MAC addresses of one vendor share their upper bytes, mix all bits
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    /**
+     * add delta to the counter of key, a missing key starts at 0
+     */
+    public void add(long key, long delta) {
+        if (key < 0) {
+            throw new IllegalArgumentException("negative key " + key);
+        }
+        int i = hash(key) & mask;
+        while (true) {
+            long k = keys[i];
+            if (k == key) {
+                values[i] += delta;
+                return;
+            }
+            if (k == EMPTY) {
+                keys[i] = key;
+                values[i] = delta;
+                if (++size > resizeAt) {
+                    rehash();
+                }
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+    }
+
+    /**
+     * @return the counter of key, 0 if it is not present
+     */
+    public long get(long key) {
+        int i = hash(key) & mask;
+        while (true) {
+            long k = keys[i];
+            if (k == key) {
+                return values[i];
+            }
+            if (k == EMPTY) {
+                return 0;
+            }
+            i = (i + 1) & mask;
+        }
+    }
+
+    public boolean containsKey(long key) {
+        int i = hash(key) & mask;
+        while (true) {
+            long k = keys[i];
+            if (k == key) {
+                return true;
+            }
+            if (k == EMPTY) {
+                return false;
+            }
+            i = (i + 1) & mask;
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * remove all entries but keep the capacity
+     */
+    public void clear() {
+        if (size > 0) {
+            Arrays.fill(keys, EMPTY);
+            size = 0;
+        }
+    }
+
+    private void rehash() {
+        long[] oldKeys = keys;
+        long[] oldValues = values;
+        allocate(oldKeys.length << 1);
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldKeys[j] != EMPTY) {
+                add(oldKeys[j], oldValues[j]);
+            }
+        }
+    }
+}
@@ -0,0 +1,58 @@
+/**
+*    Copyright 2013 University of Helsinki
+*
+*    Licensed under the Apache License, Version 2.0 (the "License"); you may
+*    not use this file except in compliance with the License. You may obtain
+*    a copy of the License at
+*
+*         http://www.apache.org/licenses/LICENSE-2.0
+*
+*    Unless required by applicable law or agreed to in writing, software
+*    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+*    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+*    License for the specific language governing permissions and limitations
+*    under the License.
+**/
+
+package net.floodlightcontroller.mobilesdn;
+
+/**
+ * Same results as DefaultOffloadPolicy, but the signal curve is taken from
+ * a table computed once for every level between -128 and 0 dBm, and no
+ * evaluation is logged.
+ *
+ * @author Yanhe Liu <yanhe.liu@cs.helsinki.fi>
+ *
+ */
+public class LookupTableOffloadPolicy extends DefaultOffloadPolicy {
+    public static final String NAME = "table";
+
+    static final int MIN_LEVEL = -128;
+    static final int MAX_LEVEL = 0;
+
+    private final double[] signalTable = new double[MAX_LEVEL - MIN_LEVEL + 1];
+
+    public LookupTableOffloadPolicy() {
+        for (int level = MIN_LEVEL; level <= MAX_LEVEL; level++) {
+            signalTable[level - MIN_LEVEL] = signalCurve(level);
+        }
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public double signalMetric(int level) {
+        if (level < MIN_LEVEL || level > MAX_LEVEL) {
+            return signalCurve(level);
+        }
+        return signalTable[level - MIN_LEVEL];
+    }
+
+    @Override
+    public double mobilityMetric(int s1, int s2, int s3) {
+        return mobility(s1, s2, s3);
+    }
+}
@@ -18,10 +18,7 @@
 package net.floodlightcontroller.mobilesdn;
 
 
-import java.io.BufferedReader;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
-import java.io.IOException;
+import java.io.File;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.util.ArrayList;
@@ -29,37 +26,39 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
 
-import org.openflow.protocol.OFFlowMod;
+import org.openflow.protocol.OFFlowRemoved;
 import org.openflow.protocol.OFMatch;
 import org.openflow.protocol.OFMessage;
 import org.openflow.protocol.OFPacketIn;
-import org.openflow.protocol.OFPacketOut;
+import org.openflow.protocol.OFPacketIn.OFPacketInReason;
 import org.openflow.protocol.OFPort;
-import org.openflow.protocol.OFStatisticsRequest;
 import org.openflow.protocol.OFType;
-import org.openflow.protocol.Wildcards;
-import org.openflow.protocol.Wildcards.Flag;
 import org.openflow.protocol.action.OFAction;
 import org.openflow.protocol.action.OFActionOutput;
 import org.openflow.protocol.statistics.OFFlowStatisticsReply;
-import org.openflow.protocol.statistics.OFFlowStatisticsRequest;
-import org.openflow.protocol.statistics.OFStatistics;
-import org.openflow.protocol.statistics.OFStatisticsType;
+import org.sdnplatform.sync.ISyncService;
+import org.sdnplatform.sync.error.SyncException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import net.floodlightcontroller.core.FloodlightContext;
+import net.floodlightcontroller.core.HAListenerTypeMarker;
 import net.floodlightcontroller.core.IFloodlightProviderService;
+import net.floodlightcontroller.core.IFloodlightProviderService.Role;
+import net.floodlightcontroller.core.IHAListener;
 import net.floodlightcontroller.core.IOFMessageListener;
 import net.floodlightcontroller.core.IOFSwitch;
 import net.floodlightcontroller.core.IOFSwitch.PortChangeType;
@@ -70,10 +69,18 @@ import net.floodlightcontroller.core.module.FloodlightModuleException;
 import net.floodlightcontroller.core.module.IFloodlightModule;
 import net.floodlightcontroller.core.module.IFloodlightService;
 import net.floodlightcontroller.mobilesdn.ClickManageServer;
+import net.floodlightcontroller.mobilesdn.MobileNetworkConfig.APConfig;
+import net.floodlightcontroller.mobilesdn.MobileNetworkConfig.ConfigException;
+import net.floodlightcontroller.mobilesdn.MobileNetworkConfig.SwitchNetworkConfig;
+import net.floodlightcontroller.mobilesdn.ShardDirectory.RemoteAP;
 import net.floodlightcontroller.mobilesdn.web.SoftOffloadWebRoutable;
+import net.floodlightcontroller.packet.Ethernet;
 import net.floodlightcontroller.restserver.IRestApiService;
+import net.floodlightcontroller.routing.IRoutingService;
+import net.floodlightcontroller.routing.Route;
 import net.floodlightcontroller.storage.IStorageSourceListener;
 import net.floodlightcontroller.threadpool.IThreadPoolService;
+import net.floodlightcontroller.topology.NodePortTuple;
 import net.floodlightcontroller.util.MACAddress;
 
 
@@ -89,90 +96,72 @@ public class Master implements IFloodlightModule, IFloodlightService,
                                   IStorageSourceListener, ISoftOffloadService {
 
 
-    private static class APConfig {
-        public String ipAddr;
-        public String ssid;
-        public String bssid;
-        public String auth;
-        public short ofPort;
-        public double downlinkBW;  // bandwidth
-
-        public APConfig(String ip, String s, String b, String auth, short port, double bw) {
-            ipAddr = ip;
-            ssid = s;
-            bssid = b;
-            this.auth = auth;
-            ofPort = port;
-            downlinkBW = bw;
-        }
-    }
-
-    private static class SwitchNetworkConfig implements Comparable<Object> {
-        public String swIPAddr;
-        public int outPort;
-        public int bandwidth;
-        public List<String> apList;
-
-        public SwitchNetworkConfig(String ip, int port, int w, List<String> ap) {
-            swIPAddr = ip;
-            outPort = port;
-            bandwidth = w;
-            apList = ap;
-        }
-
-        @Override
-        public boolean equals(Object obj) {
-            if (!(obj instanceof SwitchNetworkConfig))
-                return false;
-
-            if (obj == this)
-                return true;
-
-            SwitchNetworkConfig that = (SwitchNetworkConfig) obj;
-
-            return (this.swIPAddr.toLowerCase().equals(that.swIPAddr.toLowerCase())
-                    && this.outPort == that.outPort);
-        }
-
-        @Override
-        public int compareTo(Object arg0) {
-            assert (arg0 instanceof SwitchNetworkConfig);
-
-            if (this.swIPAddr.toLowerCase().equals(((SwitchNetworkConfig)arg0).swIPAddr.toLowerCase())) {
-                if (this.outPort == ((SwitchNetworkConfig)arg0).outPort) {
-                    return 0;
-                } else if (this.outPort > ((SwitchNetworkConfig)arg0).outPort) {
-                    return 1;
-                }
-            }
-
-            return -1;
-        }
-    }
-
     protected static Logger log = LoggerFactory.getLogger(Master.class);
     protected IRestApiService restApi;
+    protected IOffloadPolicyService policyService;
+    protected IRoutingService routingService;
+    protected ISyncService syncService;
 
     private IFloodlightProviderService floodlightProvider;
     private ScheduledExecutorService executor;
+    private ClickManageServer clickServer;
+    private SwitchStatisticsCollector statsCollector;
+    private FlowResteerer resteerer;
+    private RateEnforcer rateEnforcer;
+    private HandoverManager handovers;
+    private MobileStateStore stateStore;
+    // sharded deployment: switches owned by this instance, APs of the others
+    private ShardRing shardRing;
+    private ShardDirectory shardDirectory;
+    // change feed for the REST API
+    private final SoftOffloadEventLog eventLog = new SoftOffloadEventLog();
+    // client messages are serialized per client MAC
+    private final StripedLock clientLocks = new StripedLock(64);
 
     // private NetworkManager networkManager;
-    private Map<String, APAgent> apAgentMap = new ConcurrentHashMap<String, APAgent>();
+    private APRegistry apRegistry = new APRegistry();
     private List<SwitchOutQueue> swQueueList = new CopyOnWriteArrayList<SwitchOutQueue>();
-    private List<SwitchNetworkConfig> networkTopoConfig = new LinkedList<SwitchNetworkConfig>();
-    private Map<String, APConfig> apConfigMap = new HashMap<String, APConfig>();
-    private Map<String, Client> allClientMap = new ConcurrentHashMap<String, Client>();
+    // AP and network topology config, replaced as a whole on reload
+    private volatile MobileNetworkConfig networkConfig = MobileNetworkConfig.empty();
+    private String networkTopoFile;
+    private String apConfigPath;
+    private long configModified = 0;   // of the config files when last read
+    private double configCheckInterval;
+    // all clients by MAC address (48-bit long)
+    private Map<Long, Client> allClientMap = new ConcurrentHashMap<Long, Client>();
 
     private List<Client> offloadingCandidates = new CopyOnWriteArrayList<Client>();
+    // clients waiting for the next joint offloading decision
+    private ConcurrentLinkedQueue<Client> pendingEvaluations = new ConcurrentLinkedQueue<Client>();
+    private AtomicBoolean offloadPlanScheduled = new AtomicBoolean(false);
+    private double offloadDecisionWindow = OFFLOAD_DECISION_WINDOW;
     
     public boolean enableCellular = false;
+    // "event": adaptive polling plus immediate polls on flow-removed and
+    // port-status events, "polling": every switch once per interval
+    private boolean eventDetection = false;
+    // "make-before-break": traffic goes to both APs until the client joined
+    // the target, "resteer": flows are moved when the client is asked
+    private boolean makeBeforeBreak = false;
     public long startTime = 0;
 
+    // a standby master keeps the replicated state but neither listens to
+    // agents nor polls switches until it gets the master role
+    private volatile boolean isActive = true;
+    private boolean servicesStarted = false;
+    private String masterAddress = null;  // announced to agents
+    private int masterPort;
+    private double monitorInterval;
+    private int monitorNum;
+    private double snapshotInterval;
+
     // some defaults
     private final int DEFAULT_PORT = 28190;
     private final String DEFAULT_TOPOLOGY_FILE = "networkFile";
     private final String DEFAULT_AP_CONFIG = "apConfig";
+    private final double CONFIG_CHECK_INTERVAL = 5.0;
     private final double OF_MONITOR_INTERVAL = 2.0;
+    private static final double OFFLOAD_DECISION_WINDOW = 1.0;  // seconds
     private final int OF_MONITOR_MAX_NUM = 10;
 
     public Master(){
@@ -180,7 +169,14 @@ public class Master implements IFloodlightModule, IFloodlightService,
     }
     
     public synchronized Collection<APAgent> getAllAPAgents() {
-        return apAgentMap.values();
+        return apRegistry.values();
+    }
+
+    /**
+     * @return agents whose AP is connected to the given switch
+     */
+    public Collection<APAgent> getAPAgentsOnSwitch(long swId) {
+        return apRegistry.getBySwitch(swId);
     }
 
     /**
@@ -188,7 +184,7 @@ public class Master implements IFloodlightModule, IFloodlightService,
      *
      * @param ipv4Address Client's IPv4 address
      */
-    public void addUnrecordedAPAgent(final InetAddress ipv4Address) {
+    public synchronized void addUnrecordedAPAgent(final InetAddress ipv4Address) {
 
         String ssid;
         String bssid;
@@ -196,11 +192,14 @@ public class Master implements IFloodlightModule, IFloodlightService,
         short ofPort;
         double bw;
         String ipAddr = ipv4Address.getHostAddress();
+        if (apRegistry.containsIp(ipAddr)) {
+            return;  // added meanwhile by another client's message
+        }
         APAgent agent = new APAgent(ipv4Address);
 
 
-        if (apConfigMap.containsKey(ipAddr)) {
-            APConfig ap = apConfigMap.get(ipAddr);
+        APConfig ap = networkConfig.getAPConfig(ipAddr);
+        if (ap != null) {
             ssid = ap.ssid;
             bssid = ap.bssid;
             auth = ap.auth;
@@ -221,7 +220,38 @@ public class Master implements IFloodlightModule, IFloodlightService,
         agent.setAuth(auth);
         agent.setOFPort(ofPort);
         agent.setDownlinkBW(bw);
-        apAgentMap.put(ipAddr, agent);
+        apRegistry.put(agent);
+        restoreAgentState(agent);
+    }
+
+    /**
+     * apply the state saved before the last restart to a new agent; a
+     * client which has joined another AP since then keeps its new record
+     *
+     * @param agent
+     */
+    private void restoreAgentState(APAgent agent) {
+        if (stateStore == null) {
+            return;
+        }
+        for (Client clt: stateStore.restore(agent)) {
+            long mac = clt.getMacAddress().toLong();
+            Lock lock = clientLocks.get(mac);
+            lock.lock();
+            try {
+                if (allClientMap.containsKey(mac)) {
+                    agent.removeClient(clt);
+                    log.info("Client " + clt.getMacAddress() + " has moved to agent "
+                            + allClientMap.get(mac).getAgent().getIpAddress().getHostAddress()
+                            + ", drop its record of agent "
+                            + agent.getIpAddress().getHostAddress());
+                } else {
+                    allClientMap.put(mac, clt);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
     }
 
     /**
@@ -230,7 +260,7 @@ public class Master implements IFloodlightModule, IFloodlightService,
      * @param addr Agent's IPv4 address
      */
     private boolean isAPAgentTracked(InetAddress addr) {
-        if (apAgentMap.containsKey(addr.getHostAddress())) {
+        if (apRegistry.containsIp(addr.getHostAddress())) {
             return true;
         }
 
@@ -244,9 +274,22 @@ public class Master implements IFloodlightModule, IFloodlightService,
      * @param clientEthAddr
      * @param clientIpAddr
      */
-    synchronized void receiveClientInfo(final InetAddress agentAddr,
+    void receiveClientInfo(final InetAddress agentAddr,
+            final String clientEthAddr, final String clientIpAddr) {
+        Lock lock = clientLocks.get(MACAddress.valueOf(clientEthAddr).toLong());
+        lock.lock();
+        try {
+            handleClientInfo(agentAddr, clientEthAddr, clientIpAddr);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // called with the client's stripe lock held
+    private void handleClientInfo(final InetAddress agentAddr,
             final String clientEthAddr, final String clientIpAddr) {
         String clientMac = clientEthAddr.toLowerCase();
+        long mac = MACAddress.valueOf(clientMac).toLong();
 
         log.info("Client message from " + agentAddr.getHostAddress() + ": " +
                clientMac + " - " + clientIpAddr);
@@ -261,8 +304,8 @@ public class Master implements IFloodlightModule, IFloodlightService,
         // we will first compare current time with client.connectTime
         // 1) if they are very close, emit the later client message
         // 2) else use the second to replace the older one
-        if (allClientMap.containsKey(clientMac)) {
-            Client clt = allClientMap.get(clientMac);
+        if (allClientMap.containsKey(mac)) {
+            Client clt = allClientMap.get(mac);
 
             long currTime = System.currentTimeMillis();
             if (currTime - clt.getConnectTime() <= 1000) {
@@ -274,20 +317,39 @@ public class Master implements IFloodlightModule, IFloodlightService,
             APAgent agent = clt.getAgent();
             if (!(agent.getIpAddress().getHostAddress().equals(agentAddr.getHostAddress()))) {
                 // client has connected to a new AP, inform old agent
-                byte[] message = makeByteMessageToAgent("a", "rm" + clientMac);
-                agent.send(message);
+                agent.sendToAgent("a", "rm" + clientMac);
                 agent.removeClient(clientMac);
-                allClientMap.remove(clientMac);
+                allClientMap.remove(mac);
+                eventLog.clientLeft(clt);
+                if (stateStore != null) {
+                    stateStore.forgetClient(clt.getMacAddress().toLong());
+                }
+                rateEnforcer.clearClient(agent.getSwitch(), mac);
+                clearClientFlows(agent.getSwitch(), mac,
+                        apRegistry.getByIp(agentAddr.getHostAddress()));
+                clt.moveTo(ClientState.DISCONNECTED);
+                log.info("Client " + clientMac + " roamed from agent "
+                        + agent.getIpAddress().getHostAddress() + " to "
+                        + agentAddr.getHostAddress());
             }
         }
         
         // ask APAgent to handle the info
-        APAgent agent = apAgentMap.get(agentAddr.getHostAddress());
+        APAgent agent = apRegistry.getByIp(agentAddr.getHostAddress());
         Client client = agent.receiveClientInfo(clientMac, clientIpAddr);
 
         // record the initialised client object returned from APAgent
-        if (!allClientMap.containsKey(clientMac) && client != null) {
-            allClientMap.put(clientMac, client);
+        if (!allClientMap.containsKey(mac) && client != null) {
+            allClientMap.put(mac, client);
+            eventLog.clientJoined(client);
+            if (stateStore != null) {
+                stateStore.saveClient(client);
+            }
+        }
+
+        if (handovers != null && agent.getSwitch() != null) {
+            handovers.clientJoined(mac,
+                    agent.getSwitch().getId(), agent.getOFPort());
         }
     }
 
@@ -296,7 +358,7 @@ public class Master implements IFloodlightModule, IFloodlightService,
      *
      * @param AgentAddr
      */
-    synchronized void clientDisconnect(final InetAddress agentAddr,
+    void clientDisconnect(final InetAddress agentAddr,
             final String clientEthAddr) {
 
         if (!isAPAgentTracked(agentAddr)) {
@@ -304,13 +366,36 @@ public class Master implements IFloodlightModule, IFloodlightService,
             return;
         }
 
-        Client clt = allClientMap.get(clientEthAddr);
-        if (clt.getAgent().getIpAddress().equals(agentAddr)) {
+        Lock lock = clientLocks.get(MACAddress.valueOf(clientEthAddr).toLong());
+        lock.lock();
+        try {
+            handleClientDisconnect(agentAddr, clientEthAddr);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // called with the client's stripe lock held
+    private void handleClientDisconnect(final InetAddress agentAddr,
+            final String clientEthAddr) {
+        long mac = MACAddress.valueOf(clientEthAddr).toLong();
+        Client clt = allClientMap.get(mac);
+        if (clt == null) {
+            log.info("Agent " + agentAddr.getHostAddress()
+                    + ": disconnect message for unknown client " + clientEthAddr);
+        } else if (clt.getAgent().getIpAddress().equals(agentAddr)) {
             // APAgent delete client map
-            apAgentMap.get(agentAddr.getHostAddress()).removeClient(clientEthAddr);
+            apRegistry.getByIp(agentAddr.getHostAddress()).removeClient(clientEthAddr);
 
             // Master delete client map
-            allClientMap.remove(clientEthAddr.toLowerCase());
+            allClientMap.remove(mac);
+            eventLog.clientLeft(clt);
+            clt.moveTo(ClientState.DISCONNECTED);
+            if (stateStore != null) {
+                stateStore.forgetClient(clt.getMacAddress().toLong());
+            }
+            rateEnforcer.clearClient(clt.getAgent().getSwitch(), mac);
+            clearClientFlows(clt.getAgent().getSwitch(), mac, null);
             log.info("Client " + clientEthAddr + " disconnected from agent "
                     + agentAddr.getHostAddress());
         } else {
@@ -319,6 +404,26 @@ public class Master implements IFloodlightModule, IFloodlightService,
         }
     }
 
+    /**
+     * remove the flows put above the forwarding flows of a client which
+     * left an AP of the given switch
+     *
+     * @param newAgent AP the client joined instead, its route flows are
+     * kept if they lead there; null if it disconnected
+     */
+    private void clearClientFlows(IOFSwitch sw, long mac, APAgent newAgent) {
+        if (handovers != null && sw != null) {
+            handovers.clearClient(sw, mac);
+        }
+        if (resteerer != null) {
+            IOFSwitch newSw = newAgent == null ? null : newAgent.getSwitch();
+            if (newSw == null
+                    || !resteerer.leadsTo(mac, newSw.getId(), newAgent.getOFPort())) {
+                resteerer.clearPath(floodlightProvider.getAllSwitchMap(), mac);
+            }
+        }
+    }
+
     /**
      * Handle a agent rate message from an agent.
      * This function will not be used anymore!!! click agent will not send
@@ -337,9 +442,8 @@ public class Master implements IFloodlightModule, IFloodlightService,
 
         double r1 = Double.parseDouble(upRate);
         double r2 = Double.parseDouble(downRate);
-        apAgentMap.get(agentAddr.getHostAddress()).updateUpRate(r1);
-        apAgentMap.get(agentAddr.getHostAddress()).updateDownRate(r2);
-        // System.out.println(apAgentMap.get(agentAddr.getHostAddress()).toString());
+        apRegistry.getByIp(agentAddr.getHostAddress()).updateUpRate(r1);
+        apRegistry.getByIp(agentAddr.getHostAddress()).updateDownRate(r2);
     }
 
     /**
@@ -364,11 +468,109 @@ public class Master implements IFloodlightModule, IFloodlightService,
 
         double r1 = Double.parseDouble(upRate);
         double r2 = Double.parseDouble(downRate);
-        Client clt = apAgentMap.get(agentAddr.getHostAddress()).receiveClientRate(clientEthAddr, r1, r2);
+        Client clt = apRegistry.getByIp(agentAddr.getHostAddress()).receiveClientRate(clientEthAddr, r1, r2);
         
         if (clt != null) { // update client info in the master
-            allClientMap.put(clientEthAddr.toLowerCase(), clt);
+            allClientMap.put(clt.getMacAddress().toLong(), clt);
+
+            SwitchStatistics stats = clt.getSwitch() == null || statsCollector == null ? null
+                    : statsCollector.getStatistics(clt.getSwitch().getId());
+            enforceClientRate(clt, clt.getAgent(), r1 * 8, r2 * 8,
+                    stats == null ? null : stats.getFlows());
+        }
+    }
+
+    /**
+     * limit a client whose rate is over the threshold. Drop mode drops
+     * its uplink traffic. Shape mode puts the traffic to it into a queue
+     * of its AP port, and each of its own flows into a queue of the port
+     * the flow leaves the switch on.
+     *
+     * @param upRate bit/s
+     * @param downRate bit/s
+     * @param flows latest flow statistics of the client's switch, may be null
+     */
+    void enforceClientRate(Client clt, APAgent agent, double upRate, double downRate,
+            List<OFFlowStatisticsReply> flows) {
+        IOFSwitch sw = agent.getSwitch();
+        if (sw == null) {
+            return;
+        }
+        long mac = clt.getMacAddress().toLong();
+        if (upRate >= RateEnforcer.CLIENT_RATE_THRESHOLD) {
+            log.info("Uplink rate = {}bit/s: suspicious client {}",
+                    Double.toString(upRate), clt.getMacAddress());
+        }
+
+        if (rateEnforcer.getMode() == RateEnforcer.Mode.DROP) {
+            if (upRate >= RateEnforcer.CLIENT_RATE_THRESHOLD) {
+                rateEnforcer.dropUplink(sw, clt);
+            }
+            return;
+        }
+
+        if (downRate >= RateEnforcer.CLIENT_RATE_THRESHOLD) {
+            rateEnforcer.limitDownlink(sw, clt, agent.getOFPort(), agent.getClientNum());
+        }
+        if (upRate >= RateEnforcer.CLIENT_RATE_THRESHOLD && flows != null
+                && rateEnforcer.startLimit(mac, true)) {
+            byte[] src = clt.getMacAddress().toBytes();
+            for (OFFlowStatisticsReply flow: flows) {
+                if (!flow.getActions().isEmpty()
+                        && Arrays.equals(flow.getMatch().getDataLayerSource(), src)) {
+                    limitFlow(sw, flow);
+                }
+            }
+        }
+    }
+
+    /**
+     * Move a flow into an egress queue of its output port, or drop it if
+     * the rate enforcer is in drop mode
+     */
+    void limitFlow(IOFSwitch sw, OFFlowStatisticsReply flow) {
+        int clientNum = 1;
+        if (rateEnforcer.getMode() == RateEnforcer.Mode.SHAPE) {
+            short port = OFPort.OFPP_NONE.getValue();
+            for (OFAction action: flow.getActions()) {
+                if (action instanceof OFActionOutput) {
+                    port = ((OFActionOutput) action).getPort();
+                    break;
+                }
+            }
+            clientNum = getClientNumOfPort(sw.getId(), port);
+            if (clientNum < 0) {
+                // no queues are configured on other ports
+                log.debug("Flow to port {} is not limited", port);
+                return;
+            }
         }
+        rateEnforcer.limitFlow(sw, flow, clientNum);
+    }
+
+    /**
+     * Clients sharing the given port of a switch: the clients of the AP on
+     * that port, or of all APs behind the switch out port
+     *
+     * @return -1 if the port is neither
+     */
+    private int getClientNumOfPort(long swId, short port) {
+        for (SwitchOutQueue swQueue: swQueueList) {
+            if (swQueue.getSwId() != swId) {
+                continue;
+            }
+            int clientNum = 0;
+            for (APAgent agent: swQueue.getAPList()) {
+                if (agent.getOFPort() == port) {
+                    return agent.getClientNum();
+                }
+                clientNum += agent.getClientNum();
+            }
+            if (swQueue.getOutPort() == port) {
+                return clientNum;
+            }
+        }
+        return -1;
     }
 
     synchronized void receiveTimestamp() {
@@ -378,40 +580,21 @@ public class Master implements IFloodlightModule, IFloodlightService,
 
     void switchQueueManagement(IOFSwitch sw, SwitchOutQueue swQueue) {
 
-        List<OFStatistics> values = null;
-        Future<List<OFStatistics>> future;
-        OFFlowStatisticsReply reply;
+        List<OFFlowStatisticsReply> values = null;
 
         try {
-            OFStatisticsRequest req = new OFStatisticsRequest();
-            req.setStatisticType(OFStatisticsType.FLOW);
-            int requestLength = req.getLengthU();
-            OFFlowStatisticsRequest specificReq = new OFFlowStatisticsRequest();
-            OFMatch mPattern = new OFMatch();
-            mPattern.setWildcards(Wildcards.FULL.matchOn(Flag.IN_PORT));
-            mPattern.setInputPort((short)swQueue.getOutPort());
-            specificReq.setMatch(mPattern);
-            specificReq.setTableId((byte)0xff);
-
-            // using OFPort.OFPP_NONE(0xffff) as the outport
-            specificReq.setOutPort(OFPort.OFPP_NONE.getValue());
-            req.setStatistics(Collections.singletonList((OFStatistics) specificReq));
-            requestLength += specificReq.getLength();
-            req.setLengthU(requestLength);
-
-            // make the query
-            future = sw.queryStatistics(req);
-            values = future.get(2, TimeUnit.SECONDS);
+            // flows entering from the queue port, taken from the latest sweep
+            SwitchStatistics stats = statsCollector.getStatistics(sw.getId());
+            if (stats != null) {
+                values = stats.getFlowsByInPort((short)swQueue.getOutPort());
+            }
 
             if (values != null) {
                 OFMatch match = null;
                 Map<Double, OFMatch> rateMap = new HashMap<Double, OFMatch>();
                 List<Double> rateList = new ArrayList<Double>();
 
-                for (OFStatistics stat: values) {
-                    // statsReply.add((OFFlowStatisticsReply) stat);
-
-                    reply = (OFFlowStatisticsReply) stat;
+                for (OFFlowStatisticsReply reply: values) {
                     double rate = reply.getByteCount()
                                   / ((double) reply.getDurationSeconds()
                                   + ((double) reply.getDurationNanoseconds() / 1000000000));
@@ -444,15 +627,14 @@ public class Master implements IFloodlightModule, IFloodlightService,
                     match = rateMap.get(rate);
                     if (match != null) {
                         MACAddress macAddr = new MACAddress(match.getDataLayerDestination());
-                        String mac = macAddr.toString().toLowerCase();
+                        long mac = macAddr.toLong();
                         if (allClientMap.containsKey(mac)) {
                             Client client = allClientMap.get(mac);
                             offloadingCandidates.add(client);
                             APAgent agent = client.getAgent();
                             if (agent != null) {
                                 // set up message data
-                                byte[] message = makeByteMessageToClient(macAddr, "c", "app");
-                                agent.send(message);
+                                agent.sendToClient(macAddr.toLong(), "c", "app");
                                 log.info("Send message to agent for collecting client app info");
                             }
                         }
@@ -470,34 +652,18 @@ public class Master implements IFloodlightModule, IFloodlightService,
         
         if (agent.getClientNum() > 1) {
             log.info("Agent " + agent.getSSID() + " reach port download threshold!!!");
-            List<OFStatistics> values = null;
-            Future<List<OFStatistics>> future;
-            OFFlowStatisticsReply reply;
-            
-            OFStatisticsRequest req = new OFStatisticsRequest();
-            req.setStatisticType(OFStatisticsType.FLOW);
-            int requestLength = req.getLengthU();
-            OFFlowStatisticsRequest specificReq = new OFFlowStatisticsRequest();
-            OFMatch mPattern = new OFMatch();
-            mPattern.setWildcards(Wildcards.FULL);
-            specificReq.setMatch(mPattern);
-            specificReq.setTableId((byte)0xff);
-            
-            // using OFPort.OFPP_NONE(0xffff) as the outport
-            specificReq.setOutPort(OFPort.OFPP_NONE.getValue());
-            req.setStatistics(Collections.singletonList((OFStatistics) specificReq));
-            requestLength += specificReq.getLength();
-            req.setLengthU(requestLength);
+            List<OFFlowStatisticsReply> values = null;
             
             try {
-                // make the query
-                future = sw.queryStatistics(req);
-                values = future.get(2, TimeUnit.SECONDS);
+                // the flow table from the latest sweep of this switch
+                SwitchStatistics stats = statsCollector.getStatistics(sw.getId());
+                if (stats != null) {
+                    values = stats.getFlows();
+                }
 
                 if (values != null) {
                     Map<Client, Double> rateMap = new HashMap<Client, Double>();
-                    for (OFStatistics stat: values) {
-                        reply = (OFFlowStatisticsReply) stat;
+                    for (OFFlowStatisticsReply reply: values) {
                         double rate = reply.getByteCount()
                                       / ((double) reply.getDurationSeconds()
                                       + ((double) reply.getDurationNanoseconds() / 1000000000));
@@ -533,13 +699,10 @@ public class Master implements IFloodlightModule, IFloodlightService,
                     // System.out.println(rateMap.toString());
                     
                     // send management data
-                    if (cltWithMaxRate != null && !cltWithMaxRate.isBeningEvaluated()) {
-                        byte[] message = makeByteMessageToClient(cltWithMaxRate.getMacAddress(), "c", "motion");
-                        agent.send(message);
-                        
-                        message = makeByteMessageToClient(cltWithMaxRate.getMacAddress(), "c", "app");
-                        agent.send(message);
-                        cltWithMaxRate.startOffloadingEvaluation();
+                    if (cltWithMaxRate != null && cltWithMaxRate.startOffloadingEvaluation()) {
+                        long mac = cltWithMaxRate.getMacAddress().toLong();
+                        agent.sendToClient(mac, "c", "motion");
+                        agent.sendToClient(mac, "c", "app");
                         log.info("Send message to agent " + agent.getSSID() 
                                 + " for collecting client motion and app info");
                     }
@@ -555,296 +718,385 @@ public class Master implements IFloodlightModule, IFloodlightService,
         }
     }
 
-    private byte[] makeByteMessageToClient(MACAddress mac, String signal, String data) {
-        byte[] m = mac.toBytes();
-        byte[] b1 = signal.getBytes();
-        byte[] b2 = (data + "|\n").getBytes();
-
-        byte[] message = new byte[b1.length + b2.length + m.length];
-
-        System.arraycopy(b1, 0, message, 0, b1.length);
-        System.arraycopy(m, 0, message, b1.length, m.length);
-        System.arraycopy(b2, 0, message, b1.length + m.length, b2.length);
-
-        return message;
-    }
-
-    private byte[] makeByteMessageToAgent(String signal, String data) {
-        byte[] b1 = signal.getBytes();
-        byte[] b2 = (data + "|\n").getBytes();
-
-        byte[] message = new byte[b1.length + b2.length];
-
-        System.arraycopy(b1, 0, message, 0, b1.length);
-        System.arraycopy(b2, 0, message, b1.length, b2.length);
-
-        return message;
+    /**
+     * An agent has sent a message in the given protocol format, reply to it
+     * in the same format from now on
+     *
+     * @param agentAddr
+     * @param codec
+     */
+    void receiveAgentProtocol(final InetAddress agentAddr, final IAgentCodec codec) {
+        APAgent agent = apRegistry.getByIp(agentAddr.getHostAddress());
+        if (agent != null && agent.getCodec().getClass() != codec.getClass()) {
+            log.info("Agent " + agentAddr.getHostAddress() + " uses "
+                    + codec.getClass().getSimpleName() + " messages");
+            agent.setCodec(codec);
+        }
     }
 
     void receiveCltAppInfo(String cltEthAddr, String app) {
         log.debug("Received app info from " + cltEthAddr + " - " + app);
         MACAddress macAddr = MACAddress.valueOf(cltEthAddr);
-        Client clt = allClientMap.get(cltEthAddr);
+        Client clt = allClientMap.get(macAddr.toLong());
+        if (clt == null) {
+            log.warn("App info from unknown client " + cltEthAddr + ", discard it...");
+            return;
+        }
 
 //        if (app.toLowerCase().equals("youtube") && clt != null) {
 //            clt.setApp("youtube");
-//            byte[] msg = makeByteMessageToClient(macAddr, "c", "scan|\n");
-//            clt.getAgent().send(msg);
+//            clt.getAgent().sendToClient(macAddr.toLong(), "c", "scan|\n");
 //            log.info("ask client (" + cltEthAddr + ") to scan");
 //            return;
 //        }
 
         log.info("Send message to agent " + clt.getAgent().getSSID() 
                 + " for collecting wifi signal level");
-        byte[] msg = makeByteMessageToClient(macAddr, "c", "scan|\n");
-        clt.getAgent().send(msg);
+        clt.getAgent().sendToClient(macAddr.toLong(), "c", "scan|\n");
     }
 
 
-    // TODO now elements in apAgentMap are indexed with agent IP address,
-    // which makes the search more complicated here (two-level for loop)
-    // One solution might be adding another AP map which uses BSSIDs as Hash
-    // keys
-    void receiveScanResult(String[] fields) {
+    void receiveScanResult(final String cltEthAddr, final boolean isStatic,
+            final long[] bssids, final int[] levels) {
+        Lock lock = clientLocks.get(MACAddress.valueOf(cltEthAddr).toLong());
+        lock.lock();
+        try {
+            handleScanResult(cltEthAddr, isStatic, bssids, levels);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // called with the client's stripe lock held
+    private void handleScanResult(final String cltEthAddr, final boolean isStatic,
+            final long[] bssids, final int[] levels) {
 
-        log.info("Received scan result from " + fields[1]);
-        MACAddress macAddr = MACAddress.valueOf(fields[1]);
-        Client clt = allClientMap.get(macAddr.toString().toLowerCase());
+        log.info("Received scan result from " + cltEthAddr);
+        MACAddress macAddr = MACAddress.valueOf(cltEthAddr);
+        Client clt = allClientMap.get(macAddr.toLong());
         if (clt == null) {
-            log.warn("Request from unknown client " + fields[1] + ", discard it...");
+            log.warn("Request from unknown client " + cltEthAddr + ", discard it...");
             return;
         }
         
-        clt.updateSignalInfo(Arrays.copyOfRange(fields, 3, fields.length - 1));
-        if (fields[2].toLowerCase().equals("static")) {
+        clt.updateSignalInfo(bssids, levels);
+        if (isStatic) {
             clt.updateStaticFlag(true);
         }
         
-        if (clt.isReadyToOffload()) {
+        // a client told to switch AP which stayed is evaluated again after
+        // the offloading timeout, startOffloadingEvaluation decides that
+        if (!clt.isReadyToOffload()) {
+            return;
+        }
+        // a scan the master did not ask for is evaluated as well
+        if (clt.startOffloadingEvaluation() || clt.isBeningEvaluated()) {
             log.info("Preparing offloading...");
-            Map<String, Double> apBandwidthUtilizationMap = new HashMap<String, Double>();
-            Map<String, Double> cltPotentialRateMap = new HashMap<String, Double>();
-
-            //System.out.println("*****************");
-            //System.out.println(apAgentMap.toString());
-            //System.out.println("******************");
-            
-            // get max rate value
-            Set<String> apSet = clt.getNearbyAPSet();
-            
-            //System.out.println("+++++++++++++ " + apSet.toString());
-            
-            double maxPotentialRate = 0;
-            for (String bssid: apSet) {
-                for (APAgent agent: apAgentMap.values()) {
-                    if (agent.getBSSID().toLowerCase().equals(bssid)) {
-                        
-                        //System.out.println("---------" + bssid);
-
-
-                        double rate, restRate, otherCltRate, agentRate;
-                        if (clt.getAgent().getBSSID().toLowerCase().equals(bssid)) {
-                            rate = clt.getDownRate() / 1000000;
-                            // agentRate = agent.getDownRate() / 1000000;
-                            double agentDownBW = agent.getDownlinkBW();
-                            // if (agentRate > agentDownBW) {
-                            //     agentRate = agentDownBW;
-                            // }
-                            
-                            otherCltRate = 0;
-                            for (Client c : agent.getAllClients()) {
-                            	if (!c.equals(clt)) {
-                            		// System.out.println(c.getDownRate());
-                            		otherCltRate += c.getDownRate() / 1000000;
-                            	}
-                            }
-                            
-                            // System.out.println("*****otherCltRate: " + otherCltRate);
-
-                            restRate = agentDownBW - otherCltRate;
-                            if (restRate < 0) {
-                            	restRate = 0;
-                            }
-                            
-                            log.info("rate values of current ap: rate=" + rate + ", restRate=" + restRate);
-                        } else { // estimated bandwidth for client
-                            agentRate = agent.getDownRate() / 1000000;
-                            restRate = agent.getDownlinkBW() - agentRate;
-                            if (restRate < 0) {
-                            	restRate = 0;
-                            }
-                            log.info("rate values of different ap: rate=" + agentRate + ", restRate=" + restRate);
-                        }
-                        
-                        cltPotentialRateMap.put(bssid, restRate);
-                        apBandwidthUtilizationMap.put(bssid, restRate / agent.getDownlinkBW());
-                        if (restRate > maxPotentialRate) {
-                            maxPotentialRate = restRate;
-                        }
+            submitOffloadEvaluation(clt);
+        } else {
+            log.info("Client " + cltEthAddr + " is " + clt.getState()
+                    + ", skip evaluation");
+        }
+    }
 
-                        break;
+    /**
+     * Queue a client for the next offloading decision. Clients which are
+     * ready within the same decision window are assigned together by an
+     * OffloadPlanner, so that they do not all move to the same AP.
+     */
+    private void submitOffloadEvaluation(Client clt) {
+        pendingEvaluations.add(clt);
+        if (offloadPlanScheduled.compareAndSet(false, true)) {
+            executor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    offloadPlanScheduled.set(false);
+                    try {
+                        planPendingOffloads();
+                    } catch (Exception e) {
+                        log.error("Failure planning offloading", e);
                     }
                 }
+            }, (long) (offloadDecisionWindow * 1000), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    void planPendingOffloads() {
+        Set<Client> batch = new LinkedHashSet<Client>();
+        Client c;
+        while ((c = pendingEvaluations.poll()) != null) {
+            batch.add(c);
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        // one policy for the whole batch, even if it is replaced meanwhile
+        IOffloadPolicy policy = policyService.getPolicy();
+        OffloadPlanner planner = new OffloadPlanner(policy);
+        Map<APAgent, Integer> groups = new HashMap<APAgent, Integer>();
+        for (SwitchOutQueue swQueue: swQueueList) {
+            int g = planner.addGroup(swQueue.getBandwidth());
+            for (APAgent agent: swQueue.getAPList()) {
+                groups.put(agent, g);
             }
-        
-            
-            // log.info("maxPotentialRate=" + maxPotentialRate);
-           
-            //System.out.println("-------------- " + cltPotentialRateMap.toString());
-            //System.out.println("-------------- " + apBandwidthUtilizationMap.toString());
-
-            // evaluate each AP
-            String candidateBSSID = null;
-            double metric = 0;
-            boolean firstAPCandidate = true;
-            for (String bssid: apBandwidthUtilizationMap.keySet()) {
-                try {
-                    double signalMetric = clt.signalEvaluation(bssid);
-                    double overheadMetric;
-                    if (clt.getAgent().getBSSID().toLowerCase().equals(bssid)) {
-                        overheadMetric = 0;
-                    } else {
-                        overheadMetric = 0.2;
-                    }
-                    double rate = cltPotentialRateMap.get(bssid);
-                    double restRateUtilization = apBandwidthUtilizationMap.get(bssid);
-                    double evaluationMetric = signalMetric * rate / maxPotentialRate 
-                                                    * restRateUtilization
-                                                    - overheadMetric;
-                    
-                    log.info("metric for AP " + bssid + ": " + signalMetric + " * " 
-                                + rate + " / " + maxPotentialRate + " * " + restRateUtilization
-                                + " - " + overheadMetric + " = " + evaluationMetric);
-                    
-                    if (firstAPCandidate) {
-                        candidateBSSID = bssid;
-                        metric = evaluationMetric;
-                        firstAPCandidate = false;
-                    } else if (evaluationMetric > metric) {
-                        candidateBSSID = bssid;
-                        metric = evaluationMetric;
-                    }
-                    
-                } catch (Exception e) {
-                    log.error("Failure to evaluate AP " + bssid, e);
+        }
+
+        List<Client> candidates = new ArrayList<Client>(batch.size());
+        for (Client clt: batch) {
+            Lock lock = clientLocks.get(clt.getMacAddress().toLong());
+            lock.lock();
+            try {
+                if (addOffloadCandidate(planner, policy, groups, clt)) {
+                    candidates.add(clt);
                 }
+            } finally {
+                lock.unlock();
             }
+        }
 
-            log.info("final candidate: " + candidateBSSID + ", metric: " + metric);
-            
-            if (candidateBSSID != null) {
-                if (candidateBSSID.equals(clt.getAgent().getBSSID())) {
-                    log.info("No other AP is better for offloading!");
+        Map<Long, Long> moves = planner.plan();
+        log.info("Offloading plan for " + candidates.size() + " clients: "
+                + moves.size() + " to move");
+
+        for (Client clt: candidates) {
+            long mac = clt.getMacAddress().toLong();
+            Lock lock = clientLocks.get(mac);
+            lock.lock();
+            try {
+                if (clt.getState() != ClientState.EVALUATING
+                        || allClientMap.get(mac) != clt) {
+                    continue;   // disconnected or handled meanwhile
+                }
+                Long bssid = moves.get(mac);
+                APAgent agent = bssid == null ? null : apRegistry.getByBSSID(bssid);
+                RemoteAP remote = null;
+                if (bssid != null && agent == null && shardDirectory != null) {
+                    remote = shardDirectory.getRemoteAP(bssid);
+                }
+                if (bssid != null) {
+                    eventLog.evaluated(clt, "move",
+                            MACAddress.valueOf(bssid).toString().toLowerCase());
                 } else {
-                    boolean isOffloadingPerformed = false;
-                    for (APAgent agent: apAgentMap.values()) {
-                        if (agent.getBSSID().toLowerCase().equals(candidateBSSID)) {
-                            // System.out.println(agent.toString());
-                            IOFSwitch sw = clt.getSwitch();
-                            List<OFMatch> matchList = findOFFlowEntryByDstMacAddr(sw, clt.getMacAddress());
-                            
-                            byte[] msg = makeByteMessageToClient(macAddr, "c", "switch|"
-                                                    + agent.getSSID() + "|"
-                                                    + agent.getBSSID() + "|"
-                                                    + agent.getAuth());
-                            clt.getAgent().send(msg);
-                            
-                            // change old OF flow entries
-                            // this may not needed if candidate is connected to a different OFswitch
-                            changeOFFlowOutport(matchList, sw, agent.getOFPort());
-                            
-                            log.info("Ask client (" + fields[1] + ") to switch to " + agent.getSSID());
-
-                            isOffloadingPerformed = true;
-                            break;
-                        }
-                    }
-                    
-                    if (!isOffloadingPerformed) {
-                        log.error("Can not find this agent for offloading: " + candidateBSSID);
+                    eventLog.evaluated(clt, "stay", null);
+                }
+                if ((agent != null && performOffload(clt, agent))
+                        || (remote != null && performRemoteOffload(clt, remote))) {
+                    clt.moveTo(ClientState.OFFLOADING);
+                } else {
+                    if (bssid != null) {
+                        log.error("Can not find this agent for offloading: "
+                                + Long.toHexString(bssid));
+                    } else {
+                        log.info("No other AP is better for offloading "
+                                + clt.getMacAddress().toString());
                     }
+                    clt.finishOffloadingEvaluation();
                 }
-                
-            } else if (enableCellular == true) {
-                byte[] msg = makeByteMessageToClient(macAddr, "c", "wifioff|");
-                clt.getAgent().send(msg);
-                log.info("Ask client to use cellular network");
+            } finally {
+                lock.unlock();
             }
-            
-            clt.finishOffloadingEvaluation();
         }
     }
-    
-    
-    void changeOFFlowOutport(List<OFMatch> matchList, IOFSwitch sw, short outPort) {
-        OFFlowMod flowMod = (OFFlowMod) floodlightProvider.getOFMessageFactory().getMessage(OFType.FLOW_MOD);
-        
-        // this buffer_id is needed for avoiding a BAD_REQUEST error
-        flowMod.setBufferId(OFPacketOut.BUFFER_ID_NONE);
-        flowMod.setHardTimeout((short) 0);
-        flowMod.setIdleTimeout((short) 20);
-        flowMod.setCommand(OFFlowMod.OFPFC_MODIFY_STRICT);
-        
-        for (OFMatch match: matchList) {
-            flowMod.setMatch(match);
-            flowMod.setOutPort(outPort);
-            flowMod.setActions(Arrays.asList((OFAction) new OFActionOutput(outPort, (short)0xffff)));
-            flowMod.setLength((short) (OFFlowMod.MINIMUM_LENGTH + OFActionOutput.MINIMUM_LENGTH));
-            
+
+    /**
+     * add a client and the APs around it to the planner, called with the
+     * client's stripe lock held
+     *
+     * @return false if the client is not evaluated any more
+     */
+    private boolean addOffloadCandidate(OffloadPlanner planner, IOffloadPolicy policy,
+            Map<APAgent, Integer> groups, Client clt) {
+        APAgent current = clt.getAgent();
+        if (clt.getState() != ClientState.EVALUATING || current == null) {
+            return false;
+        }
+        addPlannerAP(planner, groups, current);
+
+        long[] nearby = clt.getNearbyAPs();
+        long[] bssids = new long[nearby.length];
+        double[] signals = new double[nearby.length];
+        int n = 0;
+        for (long bssid: nearby) {
+            APAgent agent = apRegistry.getByBSSID(bssid);
+            RemoteAP remote = null;
+            if (agent == null) {
+                remote = shardDirectory == null ? null : shardDirectory.getRemoteAP(bssid);
+                if (remote == null) {
+                    continue;
+                }
+            }
             try {
-                sw.write(flowMod, null);
-                sw.flush();
-            } catch (IOException e) {
-                log.error("Tried to write flow_mod to {} but failed: {}",
-                            sw.getId(), e.getMessage());
+                signals[n] = clt.signalEvaluation(bssid, policy);
             } catch (Exception e) {
-                log.error("Failure to modify flow entries", e);
+                log.error("Failure to evaluate AP " + MACAddress.valueOf(bssid), e);
+                continue;
+            }
+            bssids[n++] = bssid;
+            if (agent != null) {
+                addPlannerAP(planner, groups, agent);
+            } else if (!planner.containsAP(bssid)) {
+                // AP of another shard, not sharing any local switch queue
+                planner.addAP(bssid, remote.bandwidth, remote.load, -1);
+            }
+        }
+
+        if (n == 0) {
+            if (enableCellular == true) {
+                clt.getAgent().sendToClient(clt.getMacAddress().toLong(), "c", "wifioff|");
+                log.info("Ask client to use cellular network");
             }
+            eventLog.evaluated(clt, "no-candidate", null);
+            clt.finishOffloadingEvaluation();
+            return false;
         }
+
+        planner.addClient(clt.getMacAddress().toLong(),
+                APRegistry.parseBSSID(current.getBSSID()),
+                clt.getDownRate() / 1000000,
+                Arrays.copyOf(bssids, n), Arrays.copyOf(signals, n));
+        return true;
     }
-    
-    
-    List<OFMatch> findOFFlowEntryByDstMacAddr(IOFSwitch sw, MACAddress mac) {
-
-        List<OFMatch> matchList = new ArrayList<OFMatch>();
-        List<OFStatistics> values = null;
-        Future<List<OFStatistics>> future;
-        OFFlowStatisticsReply reply;
-
-        OFStatisticsRequest req = new OFStatisticsRequest();
-        req.setStatisticType(OFStatisticsType.FLOW);
-        int requestLength = req.getLengthU();
-        OFFlowStatisticsRequest specificReq = new OFFlowStatisticsRequest();
-        OFMatch m = new OFMatch();
-        m.setWildcards(Wildcards.FULL.matchOn(Flag.DL_DST));
-        m.setDataLayerDestination(mac.toBytes());
-        specificReq.setMatch(m);
-        specificReq.setTableId((byte)0xff);
-
-        // using OFPort.OFPP_NONE(0xffff) as the outport
-        specificReq.setOutPort(OFPort.OFPP_NONE.getValue());
-        req.setStatistics(Collections.singletonList((OFStatistics) specificReq));
-        requestLength += specificReq.getLength();
-        req.setLengthU(requestLength);
 
-        try {
-            // make the query
-            future = sw.queryStatistics(req);
-            values = future.get(2, TimeUnit.SECONDS);
-            
-            if (values != null) {
-                for (OFStatistics stat: values) {
-                    // statsReply.add((OFFlowStatisticsReply) stat);
+    private void addPlannerAP(OffloadPlanner planner, Map<APAgent, Integer> groups,
+            APAgent agent) {
+        long bssid = APRegistry.parseBSSID(agent.getBSSID());
+        if (planner.containsAP(bssid)) {
+            return;
+        }
+        // recent peak rather than average, the client must not be moved to
+        // an AP which is only briefly idle
+        double load = Math.max(agent.getDownRate(),
+                agent.getDownRateEstimator().getP95()) / 1000000;
+        Integer g = groups.get(agent);
+        planner.addAP(bssid, agent.getDownlinkBW(), load, g == null ? -1 : g);
+    }
 
-                    reply = (OFFlowStatisticsReply) stat;
-                    matchList.add(reply.getMatch());
-                }
+    /**
+     * ask a client to switch to the given AP and redirect its flows
+     */
+    boolean performOffload(Client clt, APAgent agent) {
+        IOFSwitch sw = clt.getSwitch();
+        long mac = clt.getMacAddress().toLong();
+        short oldPort = clt.getAgent().getOFPort();
+
+        // both APs on the client's switch
+        if (makeBeforeBreak && sw != null && agent.getSwitch() != null
+                && agent.getSwitch().getId() == sw.getId()) {
+            final APAgent current = clt.getAgent();
+            final long cltMac = mac;
+            final String command = "switch|" + agent.getSSID() + "|"
+                    + agent.getBSSID() + "|" + agent.getAuth();
+            if (handovers.isInProgress(mac)) {
+                return false;
             }
-        } catch (Exception e) {
-            log.error("Fail to retriev flow entry from switch " + sw.toString(), e);
+            // a downlink limit would keep the traffic on the old AP port
+            rateEnforcer.clearClient(sw, mac);
+            // the route flows of an earlier move lead to the AP it leaves
+            resteerer.clearPath(floodlightProvider.getAllSwitchMap(), mac);
+            // the client is asked once the switch sends its traffic to both APs
+            if (!handovers.begin(sw, mac, oldPort, agent.getOFPort(), new Runnable() {
+                    @Override
+                    public void run() {
+                        current.sendToClient(cltMac, "c", command);
+                    }
+                })) {
+                return false;
+            }
+            log.info("Prepare client (" + clt.getMacAddress().toString()
+                    + ") to switch to " + agent.getSSID());
+            eventLog.offloaded(clt, agent.getBSSID(), "make-before-break");
+            return true;
         }
-        
-        return matchList;
+
+        IOFSwitch targetSw = agent.getSwitch();
+        List<NodePortTuple> path = null;
+        if (sw != null && targetSw != null && targetSw.getId() != sw.getId()) {
+            // AP on another switch: the traffic has to follow the client
+            Route route = routingService.getRoute(sw.getId(), oldPort,
+                    targetSw.getId(), agent.getOFPort(), 0);
+            if (route == null || route.getPath() == null || route.getPath().isEmpty()) {
+                log.warn("No route from switch " + sw.getStringId() + " to AP "
+                        + agent.getSSID() + ", client is not offloaded");
+                return false;
+            }
+            path = route.getPath();
+        }
+
+        rateEnforcer.clearClient(sw, mac);
+        clt.getAgent().sendToClient(mac, "c", "switch|"
+                                + agent.getSSID() + "|"
+                                + agent.getBSSID() + "|"
+                                + agent.getAuth());
+
+        if (path != null) {
+            // flows along the route to the new AP's switch, all switches
+            // but the client's one in parallel
+            if (!resteerer.resteerPath(floodlightProvider.getAllSwitchMap(), path, mac)) {
+                log.warn("Can not use the route to AP " + agent.getSSID() + ": " + path);
+            }
+        } else if (sw != null) {
+            // move the client's flows to the port of the new AP in one
+            // batch, completed asynchronously; the route flows of an
+            // earlier move lead to the AP it leaves
+            resteerer.clearPath(floodlightProvider.getAllSwitchMap(), mac);
+            resteerer.resteer(sw, mac, oldPort, agent.getOFPort());
+        }
+
+        log.info("Ask client (" + clt.getMacAddress().toString() + ") to switch to "
+                + agent.getSSID());
+        eventLog.offloaded(clt, agent.getBSSID(),
+                path != null ? "path" : "resteer");
+        return true;
+    }
+
+    /**
+     * ask a client to switch to an AP of another shard; its flows on this
+     * shard's switches are left to expire, the owner of the new AP sets up
+     * the path when the client joins there
+     */
+    private boolean performRemoteOffload(Client clt, RemoteAP ap) {
+        clt.getAgent().sendToClient(clt.getMacAddress().toLong(), "c", "switch|"
+                                + ap.ssid + "|"
+                                + ap.bssidString + "|"
+                                + ap.auth);
+        log.info("Ask client (" + clt.getMacAddress().toString() + ") to switch to "
+                + ap.ssid + " of shard " + ap.shard);
+        eventLog.offloaded(clt, ap.bssidString, "remote");
+        return true;
+    }
+
+    @Override
+    public SoftOffloadEventLog getEventLog() {
+        return eventLog;
+    }
+
+    APRegistry getAPRegistry() {
+        return apRegistry;
+    }
+
+    SwitchStatisticsCollector getStatisticsCollector() {
+        return statsCollector;
+    }
+
+    ShardDirectory getShardDirectory() {
+        return shardDirectory;
+    }
+
+    ClickManageServer getClickManageServer() {
+        return clickServer;
+    }
+
+    public RateEnforcer getRateEnforcer() {
+        return rateEnforcer;
+    }
+
+    public FlowResteerer getFlowResteerer() {
+        return resteerer;
+    }
+
+    public HandoverManager getHandoverManager() {
+        return handovers;
     }
 
             
@@ -875,6 +1127,9 @@ public class Master implements IFloodlightModule, IFloodlightService,
             new ArrayList<Class<? extends IFloodlightService>>();
         l.add(IFloodlightProviderService.class);
         l.add(IRestApiService.class);
+        l.add(IOffloadPolicyService.class);
+        l.add(IRoutingService.class);
+        l.add(ISyncService.class);
         return l;
     }
 
@@ -882,6 +1137,9 @@ public class Master implements IFloodlightModule, IFloodlightService,
     public void init(FloodlightModuleContext context) throws FloodlightModuleException {
         floodlightProvider = context.getServiceImpl(IFloodlightProviderService.class);
         restApi = context.getServiceImpl(IRestApiService.class);
+        policyService = context.getServiceImpl(IOffloadPolicyService.class);
+        routingService = context.getServiceImpl(IRoutingService.class);
+        syncService = context.getServiceImpl(ISyncService.class);
         IThreadPoolService tp = context.getServiceImpl(IThreadPoolService.class);
         executor = tp.getScheduledExecutor();
     }
@@ -892,6 +1150,8 @@ public class Master implements IFloodlightModule, IFloodlightService,
 
         floodlightProvider.addOFSwitchListener(this);
         floodlightProvider.addOFMessageListener(OFType.PACKET_IN, this);
+        floodlightProvider.addOFMessageListener(OFType.FLOW_REMOVED, this);
+        floodlightProvider.addOFMessageListener(OFType.BARRIER_REPLY, this);
 
         // read configure options
         Map<String, String> configOptions = context.getConfigParams(this);
@@ -921,291 +1181,539 @@ public class Master implements IFloodlightModule, IFloodlightService,
             monitorInterval = Double.parseDouble(interval);
         }
 
+        String window = configOptions.get("offloadDecisionWindow");
+        if (window != null) {
+            offloadDecisionWindow = Double.parseDouble(window);
+        }
+
+        String halfLife = configOptions.get("rateHalfLife");
+        if (halfLife != null) {
+            RateEstimator.setDefaultHalfLife(Double.parseDouble(halfLife));
+        }
+
+        String historyLength = configOptions.get("signalHistoryLength");
+        if (historyLength != null) {
+            SignalHistory.setDefaultLength(Integer.parseInt(historyLength));
+        }
+
+        double snapshotInterval = monitorInterval;
+        String snapshot = configOptions.get("stateSnapshotInterval");
+        if (snapshot != null) {
+            snapshotInterval = Double.parseDouble(snapshot);
+        }
+
+        String address = configOptions.get("masterAddress");
+        if (address != null && address.length() > 0) {
+            masterAddress = address;
+        }
+
+        String shards = configOptions.get("shards");
+        if (shards != null && shards.trim().length() > 0) {
+            String shardId = configOptions.get("shardId");
+            if (shardId == null || shardId.trim().length() == 0) {
+                log.error("shardId is not set, running unsharded");
+            } else {
+                shardRing = new ShardRing(shardId.trim());
+                for (String shard: shards.split(",")) {
+                    if (shard.trim().length() > 0) {
+                        shardRing.addShard(shard.trim());
+                    }
+                }
+                log.info("Shard " + shardId.trim() + " of " + shardRing.getShards());
+            }
+        }
+
+        String mode = configOptions.get("detectionMode");
+        if (mode != null) {
+            if (mode.toLowerCase().equals("event")) {
+                eventDetection = true;
+            } else if (!mode.toLowerCase().equals("polling")) {
+                log.warn("Unknown detectionMode " + mode + ", using polling");
+            }
+        }
+
+        String offloadMode = configOptions.get("offloadMode");
+        if (offloadMode != null) {
+            if (offloadMode.toLowerCase().equals("make-before-break")) {
+                makeBeforeBreak = true;
+            } else if (!offloadMode.toLowerCase().equals("resteer")) {
+                log.warn("Unknown offloadMode " + offloadMode + ", using resteer");
+            }
+        }
+
+        // rate enforcement: egress queues or drop flows
+        RateEnforcer.Mode enforceMode = RateEnforcer.Mode.SHAPE;
+        String enforcement = configOptions.get("rateEnforcement");
+        if (enforcement != null) {
+            if (enforcement.toLowerCase().equals("drop")) {
+                enforceMode = RateEnforcer.Mode.DROP;
+            } else if (!enforcement.toLowerCase().equals("shape")) {
+                log.warn("Unknown rateEnforcement " + enforcement + ", using shape");
+            }
+        }
+
+        double[] queueShares = RateEnforcer.DEFAULT_SHARES;
+        String sharesConfig = configOptions.get("shapingQueueShares");
+        if (sharesConfig != null) {
+            queueShares = RateEnforcer.parseShares(sharesConfig);
+        }
+
+        double minShare = RateEnforcer.DEFAULT_MIN_SHARE;
+        String minShareConfig = configOptions.get("shapingMinShare");
+        if (minShareConfig != null) {
+            minShare = Double.parseDouble(minShareConfig);
+        }
+
+        int holdTime = RateEnforcer.DEFAULT_HOLD_TIME;
+        String holdTimeConfig = configOptions.get("shapingHoldTime");
+        if (holdTimeConfig != null) {
+            holdTime = Integer.parseInt(holdTimeConfig);
+        }
+
         // network topology config
-        String networkTopoFile = DEFAULT_TOPOLOGY_FILE;
+        networkTopoFile = DEFAULT_TOPOLOGY_FILE;
         String networkTopoFileConfig = configOptions.get("networkFile");
         if (networkTopoFileConfig != null) {
             networkTopoFile = networkTopoFileConfig;
         }
-        parseNetworkConfig(networkTopoFile);
 
         // ap config
-        String apConfigPath = DEFAULT_AP_CONFIG;
+        apConfigPath = DEFAULT_AP_CONFIG;
         String apConfig = configOptions.get("apConfig");
         if (apConfig != null) {
             apConfigPath = apConfig;
         }
-        parseAPConfig(apConfigPath);
 
+        log.info("parsing network and AP config...");
+        configModified = getConfigModified();
+        try {
+            networkConfig = MobileNetworkConfig.load(networkTopoFile, apConfigPath);
+        } catch (ConfigException e) {
+            throw new FloodlightModuleException("Invalid mobilesdn config: " + e.getMessage());
+        }
+
+        configCheckInterval = CONFIG_CHECK_INTERVAL;
+        String checkInterval = configOptions.get("configCheckInterval");
+        if (checkInterval != null) {
+            configCheckInterval = Double.parseDouble(checkInterval);
+        }
+
+        if (shardRing != null) {
+            try {
+                shardDirectory = new ShardDirectory(syncService, shardRing.getLocalShard());
+            } catch (SyncException e) {
+                log.error("Can not open the shard directory, "
+                        + "APs of other shards are not offloading candidates", e);
+            }
+        }
+
+        // state saved before the last restart, restored per agent
+        if (snapshotInterval > 0) {
+            try {
+                stateStore = new MobileStateStore(syncService);
+                stateStore.load();
+            } catch (SyncException e) {
+                log.error("Can not open the mobilesdn state store, "
+                        + "state will not be persisted", e);
+                stateStore = null;
+            }
+        }
 
         IThreadPoolService tp = context.getServiceImpl(IThreadPoolService.class);
         executor = tp.getScheduledExecutor();
-        // Spawn threads for different services
-        executor.execute(new ClickManageServer(this, port, executor));
-
-        // Statistics
-        executor.execute(new OFMonitor(this.floodlightProvider, this, monitorInterval, monitorNum, swQueueList));
-        executor.execute(new OFRateStatistics(this.floodlightProvider, this, monitorInterval));
+        AgentMessenger.getDefault();  // shared outbound channel for all agents
+        resteerer = new FlowResteerer(floodlightProvider.getOFMessageFactory(), executor);
+        rateEnforcer = new RateEnforcer(floodlightProvider.getOFMessageFactory(),
+                enforceMode, queueShares, minShare, holdTime);
+        handovers = new HandoverManager(resteerer,
+                floodlightProvider.getOFMessageFactory(), executor);
         restApi.addRestletRoutable(new SoftOffloadWebRoutable());
+
+        this.masterPort = port;
+        this.monitorInterval = monitorInterval;
+        this.monitorNum = monitorNum;
+        this.snapshotInterval = snapshotInterval;
+        floodlightProvider.addHAListener(new HAListenerDelegate());
+        if (floodlightProvider.getRole() == Role.SLAVE) {
+            isActive = false;
+            log.info("Standby master, waiting for the master role");
+        } else {
+            startServices();
+        }
     }
 
-    private void parseNetworkConfig(String networkTopoFile) {
-        log.info("parsing network config...");
-        try {
+    /**
+     * Spawn threads for the agent channel, statistics and state snapshots,
+     * at startup or when a standby master takes over
+     */
+    private synchronized void startServices() {
+        if (servicesStarted) {
+            return;
+        }
+        servicesStarted = true;
+
+        clickServer = new ClickManageServer(this, masterPort);
+        executor.execute(clickServer);
+
+        // Statistics: one sweep per switch shared by all consumers
+        statsCollector = new SwitchStatisticsCollector(this.floodlightProvider,
+                this, monitorInterval, swQueueList, eventDetection);
+        statsCollector.addListener(new OFRateStatistics(this));
+        statsCollector.addListener(new OFMonitor(this.floodlightProvider, this,
+                statsCollector, monitorInterval, monitorNum, swQueueList));
+        executor.execute(statsCollector);
+
+        if (configCheckInterval > 0) {
+            long period = (long) (configCheckInterval * 1000);
+            executor.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    checkConfigFiles();
+                }
+            }, period, period, TimeUnit.MILLISECONDS);
+        }
 
-            BufferedReader br = new BufferedReader (new FileReader(networkTopoFile));
-            String strLine;
+        if (stateStore != null) {
+            long period = (long) (snapshotInterval * 1000);
+            executor.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    stateStore.snapshot(apRegistry.values());
+                }
+            }, period, period, TimeUnit.MILLISECONDS);
+        }
 
-            // TODO now the config parser is quite simple, and can only handle
-            // the format which strictly follows our definition without any
-            // error
+        if (shardDirectory != null) {
+            final long period = (long) (monitorInterval * 1000);
+            executor.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    shardDirectory.publish(apRegistry.values());
+                    // APs of shards which stopped publishing
+                    shardDirectory.expire(period);
+                }
+            }, 0, period, TimeUnit.MILLISECONDS);
+        }
+    }
 
-            /* Each line has the following format:
-             *
-             * Key value1 value2...
-             */
-            while ((strLine = br.readLine()) != null) {
-                if (strLine.startsWith("#")) // comment
-                    continue;
+    /**
+     * Close the agent channel, stop its worker threads and the statistics
+     * sweeps, for tests and benchmarks which start several masters in one
+     * JVM
+     */
+    synchronized void stopServices() {
+        if (clickServer != null) {
+            clickServer.shutdown();
+        }
+        if (statsCollector != null) {
+            statsCollector.shutdown();
+        }
+    }
 
-                if (strLine.length() == 0) // blank line
-                    continue;
+    /**
+     * Take over from the failed master: reload the state it replicated,
+     * start the services and tell the agents where to send to; does
+     * nothing on the active master
+     */
+    synchronized void takeOver() {
+        if (isActive) {
+            return;
+        }
+        long start = System.nanoTime();
+        if (stateStore != null) {
+            try {
+                stateStore.load();
+            } catch (SyncException e) {
+                log.error("Failure reading the replicated mobilesdn state", e);
+            }
+            for (APAgent agent: apRegistry.values()) {
+                restoreAgentState(agent);
+            }
+        }
+        isActive = true;
+        startServices();
+        for (APAgent agent: apRegistry.values()) {
+            announceMaster(agent);
+        }
+        log.info("Took over as master in {} ms",
+                (System.nanoTime() - start) / 1000000);
+    }
 
-                // Openflow Switch IP Address
-                String [] fields = strLine.split(" ");
-                if (!fields[0].equals("OFSwitchIP")) {
-                    log.error("Missing OFSwitchIP field " + fields[0]);
-                    log.error("Offending line: " + strLine);
-                    System.exit(1);
-                }
-                if (fields.length != 2) {
-                    log.error("A OFSwitch field should specify a single string as IP address");
-                    log.error("Offending line: " + strLine);
-                    System.exit(1);
-                }
-                String swIP = fields[1];
+    /**
+     * tell an agent the address of the active master, if it is configured
+     *
+     * @param agent
+     */
+    private void announceMaster(APAgent agent) {
+        if (masterAddress != null && isActive) {
+            agent.sendToAgent("a", "ms" + masterAddress + ":" + masterPort);
+        }
+    }
 
-                // outport
-                strLine = br.readLine();
-                if (strLine == null) {
-                    log.error("Unexpected EOF after OFSwitchIP field: ");
-                    System.exit(1);
-                }
-                fields = strLine.split(" ");
-                if (!fields[0].equals("OutPort")){
-                    log.error("A OFSwitchIP field should be followed by a OUTPORT field");
-                    log.error("Offending line: " + strLine);
-                    System.exit(1);
-                }
-                if (fields.length == 1) {
-                    log.error("No port value is given!");
-                    log.error("Offending line: " + strLine);
-                    System.exit(1);
-                }
-                int outport = Integer.parseInt(fields[1]);
+    protected class HAListenerDelegate implements IHAListener {
+        @Override
+        public void transitionToMaster() {
+            takeOver();
+        }
 
+        @Override
+        public void controllerNodeIPsChanged(
+                Map<String, String> curControllerNodeIPs,
+                Map<String, String> addedControllerNodeIPs,
+                Map<String, String> removedControllerNodeIPs) {
+            // no-op
+        }
 
-                // Ingress BandWidth
-                strLine = br.readLine();
-                if (strLine == null) {
-                    log.error("Unexpected EOF after OFSwitchIP field: ");
-                    System.exit(1);
-                }
-                fields = strLine.split(" ");
-                if (!fields[0].equals("BandWidth")){
-                    log.error("A OutPort field should be followed by a BandWidth field");
-                    log.error("Offending line: " + strLine);
-                    System.exit(1);
-                }
-                if (fields.length == 1) {
-                    log.error("No bandwidth value is given!");
-                    log.error("Offending line: " + strLine);
-                    System.exit(1);
-                }
-                int bandwidth = Integer.parseInt(fields[1]);
+        @Override
+        public String getName() {
+            return Master.this.getName();
+        }
 
-                // APs
-                strLine = br.readLine();
-                if (strLine == null) {
-                    log.error("Unexpected EOF after OFSwitchIP field: ");
-                    System.exit(1);
-                }
-                fields = strLine.split(" ");
-                if (!fields[0].equals("AP")){
-                    log.error("A OUTPORT field should be followed by a AP field");
-                    log.error("Offending line: " + strLine);
-                    System.exit(1);
-                }
-                if (fields.length == 1) {
-                    log.error("An AP field must have at least one ap defined for it");
-                    log.error("Offending line: " + strLine);
-                    System.exit(1);
-                }
+        @Override
+        public boolean isCallbackOrderingPrereq(HAListenerTypeMarker type,
+                                                String name) {
+            return false;
+        }
 
-                ArrayList<String> apList = new ArrayList<String>();
-                for (int i = 1; i < fields.length; i++) {
-                    apList.add(fields[i]);
-                }
+        @Override
+        public boolean isCallbackOrderingPostreq(HAListenerTypeMarker type,
+                                                 String name) {
+            return false;
+        }
+    }
 
-                SwitchNetworkConfig swconfig = new SwitchNetworkConfig(swIP, outport, bandwidth, apList);
+    // latest modification time of the config files
+    private long getConfigModified() {
+        return Math.max(new File(networkTopoFile).lastModified(),
+                        new File(apConfigPath).lastModified());
+    }
 
-                if (networkTopoConfig.contains(swconfig)) {
-                    log.error("Found dupliated switch network");
-                    System.exit(1);
-                }
+    /**
+     * Re-read the config files if they changed since they were last read.
+     * An invalid config is reported and the current one is kept.
+     */
+    private void checkConfigFiles() {
+        long modified = getConfigModified();
+        if (modified == configModified) {
+            return;
+        }
+        configModified = modified;
 
-                networkTopoConfig.add(swconfig);
-            }
+        log.info("Config files changed, reloading...");
+        try {
+            reloadNetworkConfig(null, null);
+        } catch (ConfigException e) {
+            log.error("Invalid mobilesdn config, keep the current one: " + e.getMessage());
+        } catch (Exception e) {
+            log.error("Failed to apply mobilesdn config", e);
+        }
+    }
 
-            br.close();
+    @Override
+    public MobileNetworkConfig getNetworkConfig() {
+        return networkConfig;
+    }
 
-        } catch (FileNotFoundException e) {
-            log.error("Network topology config is not found, terminating: " + e);
-            System.exit(1);
-        } catch (IOException e) {
-            e.printStackTrace();
-            System.exit(1);
+    @Override
+    public MobileNetworkConfig.Diff reloadNetworkConfig(String networkTopo, String apConfig)
+            throws ConfigException {
+        if (networkTopo == null) {
+            networkTopo = MobileNetworkConfig.readFile(networkTopoFile);
+        }
+        if (apConfig == null) {
+            apConfig = MobileNetworkConfig.readFile(apConfigPath);
         }
+        return applyNetworkConfig(MobileNetworkConfig.parse(networkTopo, apConfig));
     }
 
-    private void parseAPConfig (String apConfigPath) {
-        log.info("parsing AP config...");
-        
-        try {
-            BufferedReader br = new BufferedReader (new FileReader(apConfigPath));
-            String strLine;
+    /**
+     * Switch to a new config. Only the APs and switch queues which differ
+     * from the current config are touched, the clients of other APs keep
+     * their state.
+     *
+     * @param newer validated config
+     * @return what has been changed
+     */
+    synchronized MobileNetworkConfig.Diff applyNetworkConfig(MobileNetworkConfig newer) {
+        MobileNetworkConfig.Diff diff = networkConfig.diff(newer);
+        if (diff.isEmpty()) {
+            networkConfig = newer;
+            log.info("Config is unchanged");
+            return diff;
+        }
 
-            while ((strLine = br.readLine()) != null) {
-                if (strLine.startsWith("#")) // comment
-                    continue;
+        // APs which are gone or behind another switch queue now
+        for (APConfig ap: diff.removedAPs) {
+            APAgent agent = apRegistry.getByIp(ap.ipAddr);
+            if (agent != null) {
+                for (SwitchOutQueue swQueue: swQueueList) {
+                    swQueue.getAPList().remove(agent);
+                }
+                removeAgent(agent);
+                log.info("Removed AP " + ap.ipAddr + " (" + ap.bssid + ")");
+            }
+        }
 
-                if (strLine.length() == 0) // blank line
-                    continue;
+        for (SwitchNetworkConfig sc: diff.removedSwitches) {
+            for (SwitchOutQueue swQueue: getSwitchQueues(sc)) {
+                swQueueList.remove(swQueue);
+                log.info("Removed switch " + sc.swIPAddr + " out port " + sc.outPort);
+            }
+        }
 
-                // Managed IP Address
-                String [] fields = strLine.split(" ");
-                if (!fields[0].equals("ManagedIP")) {
-                    log.error("Missing ManagedIP field " + fields[0]);
-                    log.error("Offending line: " + strLine);
-                    System.exit(1);
-                }
-                if (fields.length != 2) {
-                    log.error("A ManagedIP field should specify a single string as IP address");
-                    log.error("Offending line: " + strLine);
-                    System.exit(1);
-                }
-                String ip = fields[1];
+        for (SwitchNetworkConfig sc: diff.changedSwitches) {
+            for (SwitchOutQueue swQueue: getSwitchQueues(sc)) {
+                swQueue.setBandwidth(sc.bandwidth);
+            }
+        }
 
-                // SSID
-                strLine = br.readLine();
-                if (strLine == null) {
-                    log.error("Unexpected EOF after ManagedIP field: ");
-                    System.exit(1);
-                }
-                fields = strLine.split(" ", 2);
-                if (!fields[0].equals("SSID")){
-                    log.error("A ManagedIP field should be followed by a SSID field");
-                    log.error("Offending line: " + strLine);
-                    System.exit(1);
-                }
-                if (fields.length == 1) {
-                    log.error("No SSID is given!");
-                    log.error("Offending line: " + strLine);
-                    System.exit(1);
-                }
-                String ssid = fields[1];
+        // update in place, clients stay with the agent
+        for (APConfig ap: diff.changedAPs) {
+            APAgent agent = apRegistry.getByIp(ap.ipAddr);
+            if (agent != null) {
+                apRegistry.remove(ap.ipAddr);   // re-indexed by BSSID and port
+                agent.setSSID(ap.ssid);
+                agent.setBSSID(ap.bssid);
+                agent.setAuth(ap.auth);
+                agent.setOFPort(ap.ofPort);
+                agent.setDownlinkBW(ap.downlinkBW);
+                apRegistry.put(agent);
+                log.info("Updated AP " + ap.ssid + " (" + ap.bssid + ")");
+            }
+        }
 
-                // BSSID
-                strLine = br.readLine();
-                if (strLine == null) {
-                    log.error("Unexpected EOF after OFSwitchIP field: ");
-                    System.exit(1);
-                }
-                fields = strLine.split(" ");
-                if (!fields[0].equals("BSSID")){
-                    log.error("A SSID field should be followed by a BSSID field");
-                    log.error("Offending line: " + strLine);
-                    System.exit(1);
-                }
-                if (fields.length == 1) {
-                    log.error("No BSSID is given!");
-                    log.error("Offending line: " + strLine);
-                    System.exit(1);
-                }
-                String bssid = fields[1];
+        networkConfig = newer;
 
-                // AUTH
-                strLine = br.readLine();
-                if (strLine == null) {
-                    log.error("Unexpected EOF after BSSID field: ");
-                    System.exit(1);
-                }
-                fields = strLine.split(" ");
-                if (!fields[0].equals("AUTH")){
-                    log.error("A BSSID field should be followed by a AUTH field");
-                    log.error("Offending line: " + strLine);
-                    System.exit(1);
-                }
-                if (fields.length == 1) {
-                    log.error("No AUTH value is given!");
-                    log.error("Offending line: " + strLine);
-                    System.exit(1);
-                }
-                String auth = fields[1];
-                
-                // OFPort
-                strLine = br.readLine();
-                if (strLine == null) {
-                    log.error("Unexpected EOF after AUTH field: ");
-                    System.exit(1);
-                }
-                fields = strLine.split(" ");
-                if (!fields[0].equals("OFPort")){
-                    log.error("A AUTH field should be followed by a OFPort field");
-                    log.error("Offending line: " + strLine);
-                    System.exit(1);
-                }
-                if (fields.length == 1) {
-                    log.error("No OFPort is given!");
-                    log.error("Offending line: " + strLine);
-                    System.exit(1);
-                }
-                short ofport = Short.parseShort(fields[1]);
-                
-                // Bandwidth
-                strLine = br.readLine();
-                if (strLine == null) {
-                    log.error("Unexpected EOF after OFPort field: ");
-                    System.exit(1);
-                }
-                fields = strLine.split(" ");
-                if (!fields[0].equals("DownlinkBW")){
-                    log.error("A OFPort field should be followed by a DownlinkBW field");
-                    log.error("Offending line: " + strLine);
-                    System.exit(1);
+        for (SwitchNetworkConfig sc: diff.addedSwitches) {
+            for (IOFSwitch sw: getSwitchesByIp(sc.swIPAddr)) {
+                activateSwitchQueue(newer, sw, sc);
+            }
+        }
+
+        for (APConfig ap: diff.addedAPs) {
+            String key = newer.getPlacement(ap.ipAddr);
+            if (key == null) {
+                continue;  // set up when the agent reports, see addUnrecordedAPAgent
+            }
+            SwitchNetworkConfig sc = newer.getSwitchConfig(key);
+            if (diff.addedSwitches.contains(sc)) {
+                continue;  // set up with the switch queue
+            }
+            for (SwitchOutQueue swQueue: getSwitchQueues(sc)) {
+                IOFSwitch sw = floodlightProvider.getSwitch(swQueue.getSwId());
+                if (sw != null) {
+                    swQueue.getAPList().add(activateAgent(newer, sw, ap.ipAddr));
                 }
-                if (fields.length == 1) {
-                    log.error("No Bandwidth is given!");
-                    log.error("Offending line: " + strLine);
-                    System.exit(1);
+            }
+        }
+
+        log.info("Applied config changes: " + diff);
+        return diff;
+    }
+
+    /**
+     * remove an agent and the clients associated with it
+     */
+    private void removeAgent(APAgent agent) {
+        apRegistry.remove(agent.getIpAddress().getHostAddress());
+        for (Client clt: agent.getAllClients()) {
+            long mac = clt.getMacAddress().toLong();
+            Lock lock = clientLocks.get(mac);
+            lock.lock();
+            try {
+                if (allClientMap.get(mac) == clt) {
+                    allClientMap.remove(mac);
+                    eventLog.clientLeft(clt);
+                    clt.moveTo(ClientState.DISCONNECTED);
+                    if (stateStore != null) {
+                        stateStore.forgetClient(mac);
+                    }
+                    rateEnforcer.clearClient(agent.getSwitch(), mac);
+                    clearClientFlows(agent.getSwitch(), mac, null);
                 }
-                double bw = Double.parseDouble(fields[1]);
+            } finally {
+                lock.unlock();
+            }
+        }
+        agent.removeAllClients();
+    }
+
+    /**
+     * @return connected switches of this shard with the given address
+     */
+    private List<IOFSwitch> getSwitchesByIp(String ip) {
+        List<IOFSwitch> switches = new ArrayList<IOFSwitch>();
+        if (shardRing != null && !shardRing.isLocal(ip)) {
+            return switches;
+        }
+        for (IOFSwitch sw: floodlightProvider.getAllSwitchMap().values()) {
+            InetSocketAddress swInetAddr = (InetSocketAddress) sw.getInetAddress();
+            if (swInetAddr != null && swInetAddr.getAddress().getHostAddress()
+                    .toLowerCase().equals(ip.toLowerCase())) {
+                switches.add(sw);
+            }
+        }
+        return switches;
+    }
 
-                apConfigMap.put(ip, new APConfig(ip, ssid, bssid, auth, ofport, bw));
+    private List<SwitchOutQueue> getSwitchQueues(SwitchNetworkConfig sc) {
+        List<SwitchOutQueue> queues = new ArrayList<SwitchOutQueue>();
+        for (IOFSwitch sw: getSwitchesByIp(sc.swIPAddr)) {
+            for (SwitchOutQueue swQueue: swQueueList) {
+                if (swQueue.getSwId() == sw.getId() && swQueue.getOutPort() == sc.outPort) {
+                    queues.add(swQueue);
+                }
             }
+        }
+        return queues;
+    }
 
-            br.close();
+    /**
+     * set up a switch out queue and the APs behind it
+     */
+    private void activateSwitchQueue(MobileNetworkConfig config, IOFSwitch sw,
+            SwitchNetworkConfig sc) {
+        // modified on config reload
+        List<APAgent> agentList = new CopyOnWriteArrayList<APAgent>();
+        for (String agentInetAddr: sc.apList) {
+            agentList.add(activateAgent(config, sw, agentInetAddr));
+        }
 
-        } catch (FileNotFoundException e) {
-            log.error("AP config is not found, terminating: " + e);
-            System.exit(1);
-        } catch (IOException e) {
-            log.error("Failed to read AP config, terminating: " + e);
-            e.printStackTrace();
-            System.exit(1);
+        swQueueList.add(new SwitchOutQueue(sw.getId(), sc.outPort, sc.bandwidth, agentList));
+        if (rateEnforcer.getMode() == RateEnforcer.Mode.SHAPE) {
+            log.info("Switch out port " + sc.outPort + " expects "
+                    + rateEnforcer.describeQueues(sc.bandwidth));
         }
     }
 
+    private APAgent activateAgent(MobileNetworkConfig config, IOFSwitch sw,
+            String agentInetAddr) {
+        APConfig apConfig = config.getAPConfig(agentInetAddr);
+        APAgent agent;
+        if (apConfig != null) {
+            agent = new APAgent(agentInetAddr, sw,
+                                apConfig.ssid, apConfig.bssid,
+                                apConfig.auth, apConfig.ofPort, apConfig.downlinkBW);
+            apRegistry.put(agent);
+            log.info("Initialize AP " + apConfig.ssid + " (" + apConfig.bssid + ")");
+            if (rateEnforcer.getMode() == RateEnforcer.Mode.SHAPE) {
+                log.info("AP port " + apConfig.ofPort + " expects "
+                        + rateEnforcer.describeQueues(apConfig.downlinkBW));
+            }
+            restoreAgentState(agent);
+            announceMaster(agent);
+            agent.checkClients();
+        } else {
+            log.warn("Unconfiged AP found with siwtch " + sw.getInetAddress());
+            log.warn("Initialize AP " + agentInetAddr + " without SSID and BSSID");
+            agent = new APAgent(agentInetAddr, sw, "", "", "open", (short)0, 0);
+            apRegistry.put(agent);
+            restoreAgentState(agent);
+            announceMaster(agent);
+        }
+        return agent;
+    }
+
 
 
     /** IOFSwitchListener and IOFMessageListener methods **/
@@ -1223,34 +1731,98 @@ public class Master implements IFloodlightModule, IFloodlightService,
 
     @Override
     public boolean isCallbackOrderingPostreq(OFType type, String name) {
-        // TODO Auto-generated method stub
-        return false;
+        // handover copies of packets must not be forwarded again
+        return type == OFType.PACKET_IN && name.equals("forwarding");
     }
 
     @Override
     public net.floodlightcontroller.core.IListener.Command receive(
             IOFSwitch sw, OFMessage msg, FloodlightContext cntx) {
 
-        OFPacketIn pi = (OFPacketIn) msg;
-        // System.out.println(pi.toString());
-
-        OFMatch match = new OFMatch();
-        match.loadFromPacket(pi.getPacketData(), (short) 0);
-        MACAddress srcMacAddr = MACAddress.valueOf(match.getDataLayerSource());
-        for (APAgent agent: apAgentMap.values()) {
-            Client clt = agent.getClient(srcMacAddr.toString());
-
-            if (clt != null) {
-                if (clt.getSwitch() == null) {
-                    clt.setSwitch(sw);
-                } else if (clt.getSwitch().getId() != sw.getId()) {
-                    log.warn("Client dpid might be different from associated AP!");
-                    clt.setSwitch(sw);
-                }
+        switch (msg.getType()) {
+        case PACKET_IN:
+            return processPacketIn(sw, (OFPacketIn) msg, cntx);
+        case FLOW_REMOVED:
+            return processFlowRemoved(sw, (OFFlowRemoved) msg);
+        case BARRIER_REPLY:
+            if (resteerer != null && resteerer.barrierReplied(sw, msg.getXid())) {
+                return Command.STOP;
             }
+            break;
+        default:
+            break;
+        }
+        return Command.CONTINUE;
+    }
+
+    /**
+     * A client flow which ended on an AP switch changes the AP load, poll
+     * the switch at once instead of waiting for the next interval
+     */
+    private Command processFlowRemoved(IOFSwitch sw, OFFlowRemoved fr) {
+        if (!eventDetection || statsCollector == null
+                || apRegistry.getBySwitch(sw.getId()).isEmpty()) {
+            return Command.CONTINUE;
         }
 
-        return null;
+        OFMatch match = fr.getMatch();
+        if (allClientMap.containsKey(Ethernet.toLong(match.getDataLayerSource()))
+                || allClientMap.containsKey(Ethernet.toLong(match.getDataLayerDestination()))) {
+            log.debug("Client flow removed on switch {}, polling statistics",
+                    sw.getStringId());
+            statsCollector.pollNow(sw.getId());
+        }
+        return Command.CONTINUE;
+    }
+
+    /**
+     * Keep the switch of the sending client up to date. Only the MAC
+     * addresses of the already decoded Ethernet frame are used.
+     */
+    private Command processPacketIn(IOFSwitch sw, OFPacketIn pi, FloodlightContext cntx) {
+        long src;
+        long dst;
+        Ethernet eth = (cntx == null) ? null
+                : IFloodlightProviderService.bcStore.get(cntx,
+                        IFloodlightProviderService.CONTEXT_PI_PAYLOAD);
+        if (eth != null) {
+            src = eth.getSourceMAC().toLong();
+            dst = eth.getDestinationMAC().toLong();
+        } else {
+            byte[] data = pi.getPacketData();
+            if (data == null || data.length < 12) {
+                return Command.CONTINUE;
+            }
+            dst = macAt(data, 0);
+            src = macAt(data, 6);
+        }
+
+        // copy of a packet already sent to the target AP of a handover
+        if (pi.getReason() == OFPacketInReason.ACTION && handovers != null
+                && handovers.packetIn(sw, dst)) {
+            return Command.STOP;
+        }
+
+        Client clt = allClientMap.get(src);
+        if (clt != null) {
+            IOFSwitch cltSw = clt.getSwitch();
+            if (cltSw == null) {
+                clt.setSwitch(sw);
+            } else if (cltSw.getId() != sw.getId()) {
+                log.warn("Client dpid might be different from associated AP!");
+                clt.setSwitch(sw);
+            }
+        }
+
+        return Command.CONTINUE;
+    }
+
+    private static long macAt(byte[] data, int offset) {
+        long mac = 0;
+        for (int i = 0; i < 6; i++) {
+            mac = (mac << 8) | (data[offset + i] & 0xff);
+        }
+        return mac;
     }
 
     @Override
@@ -1264,11 +1836,7 @@ public class Master implements IFloodlightModule, IFloodlightService,
         List<SwitchOutQueue> tempList = new LinkedList<SwitchOutQueue>();
 
         // remove corresponding agent
-        for (String key: apAgentMap.keySet()) {
-        	if (apAgentMap.get(key).getSwitch().getId() == switchId) {
-        		apAgentMap.remove(key);
-        	}
-        }
+        apRegistry.removeSwitch(switchId);
         
         // remove sw from swQueseList
         for (SwitchOutQueue swqueue: swQueueList) {
@@ -1280,41 +1848,34 @@ public class Master implements IFloodlightModule, IFloodlightService,
         for (SwitchOutQueue sw: tempList) {
             swQueueList.remove(sw);
         }
+
+        if (statsCollector != null) {
+            statsCollector.removeSwitch(switchId);
+        }
+        if (resteerer != null) {
+            resteerer.removeSwitch(switchId);
+        }
     }
 
     @Override
-    public void switchActivated(long switchId) {
+    public synchronized void switchActivated(long switchId) {
         IOFSwitch sw = floodlightProvider.getSwitch(switchId);
 
         InetSocketAddress swInetAddr = (InetSocketAddress) sw.getInetAddress();
         String swInetAddrStr = swInetAddr.getAddress().getHostAddress();
 
+        if (shardRing != null && !shardRing.isLocal(swInetAddrStr)) {
+            log.info("Switch " + swInetAddrStr + " belongs to shard "
+                    + shardRing.getShard(swInetAddrStr) + ", ignore it");
+            return;
+        }
+
         boolean hasSwitchInConfig = false;
-        for (SwitchNetworkConfig sc: networkTopoConfig) {
+        MobileNetworkConfig config = networkConfig;
+        for (SwitchNetworkConfig sc: config.getSwitchConfigs()) {
             if (sc.swIPAddr.toLowerCase().equals(swInetAddrStr.toLowerCase())) {
                 hasSwitchInConfig = true;
-
-                List<APAgent> agentList = new LinkedList<APAgent>();
-                for (String agentInetAddr: sc.apList) {
-                    if (apConfigMap.containsKey(agentInetAddr)) {
-                        APConfig apConfig = apConfigMap.get(agentInetAddr);
-                        APAgent agent = new APAgent(agentInetAddr, sw, 
-                                                    apConfig.ssid, apConfig.bssid, 
-                                                    apConfig.auth, apConfig.ofPort, apConfig.downlinkBW);
-                        apAgentMap.put(agentInetAddr, agent);
-                        agentList.add(agent);
-                        log.info("Initialize AP " + apConfig.ssid + " (" + apConfig.bssid + ")");
-                        agent.checkClients();
-                    } else {
-                        log.warn("Unconfiged AP found with siwtch " + swInetAddrStr);
-                        log.warn("Initialize AP " + agentInetAddr + " without SSID and BSSID");
-                        APAgent agent = new APAgent(agentInetAddr, sw, "", "", "open", (short)0, 0);
-                        apAgentMap.put(agentInetAddr, agent);
-                        agentList.add(agent);
-                    }
-                }
-
-                swQueueList.add(new SwitchOutQueue(switchId, sc.outPort, sc.bandwidth, agentList));
+                activateSwitchQueue(config, sw, sc);
             }
         }
 
@@ -1326,8 +1887,22 @@ public class Master implements IFloodlightModule, IFloodlightService,
     @Override
     public void switchPortChanged(long switchId, ImmutablePort port,
             PortChangeType type) {
-        // TODO Auto-generated method stub
+        APAgent agent = apRegistry.getBySwitchPort(switchId, port.getPortNumber());
+        if (agent == null) {
+            return;
+        }
+
+        if (type == PortChangeType.DOWN || type == PortChangeType.DELETE) {
+            log.warn("Port " + port.getName() + " of AP " + agent.getSSID()
+                    + " is " + type.toString().toLowerCase());
+        } else {
+            log.info("Port " + port.getName() + " of AP " + agent.getSSID()
+                    + " changed: " + type.toString().toLowerCase());
+        }
 
+        if (eventDetection && statsCollector != null) {
+            statsCollector.pollNow(switchId);
+        }
     }
 
     @Override
@@ -1354,17 +1929,21 @@ public class Master implements IFloodlightModule, IFloodlightService,
     
     @Override
     public Collection<APAgent> getAgents() {
-        return apAgentMap.values();
+        return apRegistry.values();
     }
 
     @Override
     public APAgent getAgent(String agentIp) {
-        return apAgentMap.get(agentIp);
+        return apRegistry.getByIp(agentIp);
     }
 
     @Override
     public Client getClient(String clientMac) {
-        return allClientMap.get(clientMac.toLowerCase());
+        try {
+            return allClientMap.get(MACAddress.valueOf(clientMac).toLong());
+        } catch (IllegalArgumentException e) {
+            return null;   // not a MAC address
+        }
     }
     
 
@@ -0,0 +1,493 @@
+/**
+*    Copyright 2013 University of Helsinki
+*
+*    Licensed under the Apache License, Version 2.0 (the "License"); you may
+*    not use this file except in compliance with the License. You may obtain
+*    a copy of the License at
+*
+*         http://www.apache.org/licenses/LICENSE-2.0
+*
+*    Unless required by applicable law or agreed to in writing, software
+*    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+*    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+*    License for the specific language governing permissions and limitations
+*    under the License.
+**/
+
+package net.floodlightcontroller.mobilesdn;
+
+import java.io.BufferedReader;
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * AP and network topology config of the master, as read from the AP
+ * config and network config files.
+ *
+ * Both files consist of blocks separated by their first key (OFSwitchIP
+ * or ManagedIP). The other keys of a block may come in any order, each
+ * must be given once. Lines starting with '#' are comments.
+ *
+ *   OFSwitchIP <ip>        ManagedIP <ip>
+ *   OutPort <port>         SSID <ssid, may contain spaces>
+ *   BandWidth <Mbit/s>     BSSID <mac>
+ *   AP <ip> <ip>...        AUTH <auth>
+ *                          OFPort <port>
+ *                          DownlinkBW <Mbit/s>
+ *
+ * A config is validated completely before it is used, and never changed
+ * afterwards. diff() tells which APs and switch queues differ between two
+ * configs so that a reload only touches those.
+ *
+ * @author Yanhe Liu <yanhe.liu@cs.helsinki.fi>
+ *
+ */
+public class MobileNetworkConfig {
+
+    public static class ConfigException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        public ConfigException(String msg) {
+            super(msg);
+        }
+    }
+
+    public static class APConfig {
+        public final String ipAddr;
+        public final String ssid;
+        public final String bssid;
+        public final String auth;
+        public final short ofPort;
+        public final double downlinkBW;  // bandwidth
+
+        public APConfig(String ip, String s, String b, String auth, short port, double bw) {
+            ipAddr = ip;
+            ssid = s;
+            bssid = b;
+            this.auth = auth;
+            ofPort = port;
+            downlinkBW = bw;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof APConfig))
+                return false;
+
+            if (obj == this)
+                return true;
+
+            APConfig that = (APConfig) obj;
+
+            return ipAddr.equals(that.ipAddr) && ssid.equals(that.ssid)
+                    && bssid.toLowerCase().equals(that.bssid.toLowerCase())
+                    && auth.equals(that.auth) && ofPort == that.ofPort
+                    && downlinkBW == that.downlinkBW;
+        }
+
+        @Override
+        public int hashCode() {
+            return ipAddr.hashCode();
+        }
+    }
+
+    public static class SwitchNetworkConfig {
+        public final String swIPAddr;
+        public final int outPort;
+        public final int bandwidth;
+        public final List<String> apList;
+
+        public SwitchNetworkConfig(String ip, int port, int w, List<String> ap) {
+            swIPAddr = ip;
+            outPort = port;
+            bandwidth = w;
+            apList = Collections.unmodifiableList(new ArrayList<String>(ap));
+        }
+
+        /**
+         * switch IP and out port identify a queue
+         */
+        public String getKey() {
+            return swIPAddr.toLowerCase() + ":" + outPort;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof SwitchNetworkConfig))
+                return false;
+
+            if (obj == this)
+                return true;
+
+            SwitchNetworkConfig that = (SwitchNetworkConfig) obj;
+
+            return (this.swIPAddr.toLowerCase().equals(that.swIPAddr.toLowerCase())
+                    && this.outPort == that.outPort);
+        }
+
+        @Override
+        public int hashCode() {
+            return getKey().hashCode();
+        }
+    }
+
+    /**
+     * Changes from one config to another. An AP which moved to another
+     * switch queue is both removed and added.
+     */
+    public static class Diff {
+        public final List<APConfig> removedAPs = new ArrayList<APConfig>();
+        public final List<APConfig> addedAPs = new ArrayList<APConfig>();
+        public final List<APConfig> changedAPs = new ArrayList<APConfig>();
+        public final List<SwitchNetworkConfig> removedSwitches = new ArrayList<SwitchNetworkConfig>();
+        public final List<SwitchNetworkConfig> addedSwitches = new ArrayList<SwitchNetworkConfig>();
+        public final List<SwitchNetworkConfig> changedSwitches = new ArrayList<SwitchNetworkConfig>();
+
+        public boolean isEmpty() {
+            return removedAPs.isEmpty() && addedAPs.isEmpty() && changedAPs.isEmpty()
+                    && removedSwitches.isEmpty() && addedSwitches.isEmpty()
+                    && changedSwitches.isEmpty();
+        }
+
+        @Override
+        public String toString() {
+            return "APs +" + addedAPs.size() + " -" + removedAPs.size()
+                    + " ~" + changedAPs.size() + ", switch queues +"
+                    + addedSwitches.size() + " -" + removedSwitches.size()
+                    + " ~" + changedSwitches.size();
+        }
+    }
+
+    private final Map<String, APConfig> apConfigMap;
+    private final Map<String, SwitchNetworkConfig> switchConfigMap;
+    // AP ip -> key of the switch queue it is behind
+    private final Map<String, String> apPlacement = new HashMap<String, String>();
+
+    private MobileNetworkConfig(Map<String, SwitchNetworkConfig> switches,
+            Map<String, APConfig> aps) {
+        switchConfigMap = Collections.unmodifiableMap(switches);
+        apConfigMap = Collections.unmodifiableMap(aps);
+        for (SwitchNetworkConfig sc: switches.values()) {
+            for (String ap: sc.apList) {
+                apPlacement.put(ap, sc.getKey());
+            }
+        }
+    }
+
+    /**
+     * an empty config, e.g. before the files are read
+     */
+    public static MobileNetworkConfig empty() {
+        return new MobileNetworkConfig(new LinkedHashMap<String, SwitchNetworkConfig>(),
+                new LinkedHashMap<String, APConfig>());
+    }
+
+    public static MobileNetworkConfig load(String networkTopoFile, String apConfigPath)
+            throws ConfigException {
+        return parse(readFile(networkTopoFile), readFile(apConfigPath));
+    }
+
+    public static MobileNetworkConfig parse(String networkTopo, String apConfig)
+            throws ConfigException {
+        Map<String, SwitchNetworkConfig> switches = parseNetworkConfig(networkTopo);
+        Map<String, APConfig> aps = parseAPConfig(apConfig);
+
+        // one OpenFlow port can only lead to one AP
+        Map<String, String> ports = new HashMap<String, String>();
+        for (SwitchNetworkConfig sc: switches.values()) {
+            for (String ip: sc.apList) {
+                APConfig ap = aps.get(ip);
+                if (ap == null) {
+                    continue;  // unconfigured AP, set up without SSID and BSSID
+                }
+                String port = sc.swIPAddr.toLowerCase() + ":" + ap.ofPort;
+                String other = ports.put(port, ip);
+                if (other != null) {
+                    throw new ConfigException("APs " + other + " and " + ip
+                            + " use the same OFPort " + ap.ofPort
+                            + " of switch " + sc.swIPAddr);
+                }
+            }
+        }
+
+        return new MobileNetworkConfig(switches, aps);
+    }
+
+    public static String readFile(String path) throws ConfigException {
+        StringBuilder sb = new StringBuilder();
+        try {
+            BufferedReader br = new BufferedReader(new FileReader(path));
+            try {
+                char[] buf = new char[4096];
+                int n;
+                while ((n = br.read(buf)) > 0) {
+                    sb.append(buf, 0, n);
+                }
+            } finally {
+                br.close();
+            }
+        } catch (FileNotFoundException e) {
+            throw new ConfigException("Config file " + path + " is not found");
+        } catch (IOException e) {
+            throw new ConfigException("Failed to read config file " + path
+                    + ": " + e.getMessage());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Split a config into blocks of key -> value, each block starting with
+     * the given key
+     */
+    private static List<Map<String, String>> parseBlocks(String text,
+            String startKey, List<String> keys) throws ConfigException {
+        List<Map<String, String>> blocks = new ArrayList<Map<String, String>>();
+        Map<String, String> block = null;
+        int lineNum = 0;
+
+        try {
+            BufferedReader br = new BufferedReader(new StringReader(text));
+            String strLine;
+            while ((strLine = br.readLine()) != null) {
+                lineNum++;
+                strLine = strLine.trim();
+                if (strLine.startsWith("#")) // comment
+                    continue;
+
+                if (strLine.length() == 0) // blank line
+                    continue;
+
+                String[] fields = strLine.split("\\s+", 2);
+                String key = fields[0];
+                if (!keys.contains(key)) {
+                    throw new ConfigException("Line " + lineNum + ": unknown field " + key);
+                }
+                if (fields.length == 1) {
+                    throw new ConfigException("Line " + lineNum + ": no value is given for " + key);
+                }
+                if (key.equals(startKey)) {
+                    block = new LinkedHashMap<String, String>();
+                    blocks.add(block);
+                } else if (block == null) {
+                    throw new ConfigException("Line " + lineNum + ": missing " + startKey
+                            + " field before " + key);
+                }
+                if (block.put(key, fields[1].trim()) != null) {
+                    throw new ConfigException("Line " + lineNum + ": " + key
+                            + " is given twice for " + startKey + " " + block.get(startKey));
+                }
+            }
+        } catch (IOException e) {
+            // not thrown by StringReader
+            throw new ConfigException(e.getMessage());
+        }
+
+        for (Map<String, String> b: blocks) {
+            for (String key: keys) {
+                if (!b.containsKey(key)) {
+                    throw new ConfigException(startKey + " " + b.get(startKey)
+                            + ": missing " + key + " field");
+                }
+            }
+        }
+        return blocks;
+    }
+
+    private static int parseInt(Map<String, String> block, String key,
+            String startKey, int min) throws ConfigException {
+        try {
+            int v = Integer.parseInt(block.get(key));
+            if (v >= min) {
+                return v;
+            }
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        throw new ConfigException(startKey + " " + block.get(startKey) + ": invalid "
+                + key + " " + block.get(key));
+    }
+
+    private static Map<String, SwitchNetworkConfig> parseNetworkConfig(String text)
+            throws ConfigException {
+        Map<String, SwitchNetworkConfig> switches = new LinkedHashMap<String, SwitchNetworkConfig>();
+        Map<String, String> apSwitch = new HashMap<String, String>();
+
+        for (Map<String, String> b: parseBlocks(text, "OFSwitchIP",
+                    Arrays.asList("OFSwitchIP", "OutPort", "BandWidth", "AP"))) {
+            String swIP = b.get("OFSwitchIP");
+            if (swIP.split("\\s+").length != 1) {
+                throw new ConfigException("A OFSwitchIP field should specify a single "
+                        + "string as IP address: " + swIP);
+            }
+            int outport = parseInt(b, "OutPort", "OFSwitchIP", 1);
+            int bandwidth = parseInt(b, "BandWidth", "OFSwitchIP", 1);
+
+            List<String> apList = new ArrayList<String>();
+            for (String ap: b.get("AP").split("\\s+")) {
+                String other = apSwitch.put(ap, swIP);
+                if (other != null) {
+                    throw new ConfigException("AP " + ap + " is given for switch "
+                            + other + " and " + swIP);
+                }
+                apList.add(ap);
+            }
+
+            SwitchNetworkConfig swconfig = new SwitchNetworkConfig(swIP, outport, bandwidth, apList);
+            if (switches.put(swconfig.getKey(), swconfig) != null) {
+                throw new ConfigException("Found dupliated switch network " + swconfig.getKey());
+            }
+        }
+        return switches;
+    }
+
+    private static Map<String, APConfig> parseAPConfig(String text)
+            throws ConfigException {
+        Map<String, APConfig> aps = new LinkedHashMap<String, APConfig>();
+        Map<Long, String> bssids = new HashMap<Long, String>();
+
+        for (Map<String, String> b: parseBlocks(text, "ManagedIP",
+                    Arrays.asList("ManagedIP", "SSID", "BSSID", "AUTH",
+                                            "OFPort", "DownlinkBW"))) {
+            String ip = b.get("ManagedIP");
+            if (ip.split("\\s+").length != 1) {
+                throw new ConfigException("A ManagedIP field should specify a single "
+                        + "string as IP address: " + ip);
+            }
+
+            String bssid = b.get("BSSID");
+            long mac = APRegistry.parseBSSID(bssid);
+            if (mac < 0) {
+                throw new ConfigException("ManagedIP " + ip + ": invalid BSSID " + bssid);
+            }
+            String other = bssids.put(mac, ip);
+            if (other != null) {
+                throw new ConfigException("APs " + other + " and " + ip
+                        + " have the same BSSID " + bssid);
+            }
+
+            int ofport = parseInt(b, "OFPort", "ManagedIP", 0);
+            if (ofport > Short.MAX_VALUE) {
+                throw new ConfigException("ManagedIP " + ip + ": invalid OFPort " + ofport);
+            }
+
+            double bw;
+            try {
+                bw = Double.parseDouble(b.get("DownlinkBW"));
+            } catch (NumberFormatException e) {
+                bw = -1;
+            }
+            if (bw < 0 || Double.isNaN(bw) || Double.isInfinite(bw)) {
+                throw new ConfigException("ManagedIP " + ip + ": invalid DownlinkBW "
+                        + b.get("DownlinkBW"));
+            }
+
+            APConfig ap = new APConfig(ip, b.get("SSID"), bssid, b.get("AUTH"),
+                    (short) ofport, bw);
+            if (aps.put(ip, ap) != null) {
+                throw new ConfigException("Found duplicated AP " + ip);
+            }
+        }
+        return aps;
+    }
+
+    public APConfig getAPConfig(String ip) {
+        return apConfigMap.get(ip);
+    }
+
+    public Collection<APConfig> getAPConfigs() {
+        return apConfigMap.values();
+    }
+
+    public Collection<SwitchNetworkConfig> getSwitchConfigs() {
+        return switchConfigMap.values();
+    }
+
+    public SwitchNetworkConfig getSwitchConfig(String key) {
+        return switchConfigMap.get(key);
+    }
+
+    /**
+     * @return key of the switch queue the AP is behind, or null
+     */
+    public String getPlacement(String apIp) {
+        return apPlacement.get(apIp);
+    }
+
+    /**
+     * changes needed to go from this config to the given one
+     */
+    public Diff diff(MobileNetworkConfig newer) {
+        Diff d = new Diff();
+
+        for (SwitchNetworkConfig sc: switchConfigMap.values()) {
+            SwitchNetworkConfig n = newer.switchConfigMap.get(sc.getKey());
+            if (n == null) {
+                d.removedSwitches.add(sc);
+            } else if (n.bandwidth != sc.bandwidth || !n.apList.equals(sc.apList)) {
+                d.changedSwitches.add(n);
+            }
+        }
+        for (SwitchNetworkConfig n: newer.switchConfigMap.values()) {
+            if (!switchConfigMap.containsKey(n.getKey())) {
+                d.addedSwitches.add(n);
+            }
+        }
+
+        // APs behind a switch queue, or only listed in the AP config
+        List<String> ips = new ArrayList<String>(allAPs());
+        for (String ip: newer.allAPs()) {
+            if (!ips.contains(ip)) {
+                ips.add(ip);
+            }
+        }
+        for (String ip: ips) {
+            APConfig o = apConfig(ip);
+            APConfig n = newer.apConfig(ip);
+            boolean inOld = apPlacement.containsKey(ip) || apConfigMap.containsKey(ip);
+            boolean inNew = newer.apPlacement.containsKey(ip) || newer.apConfigMap.containsKey(ip);
+            String oldPlace = apPlacement.get(ip);
+            String newPlace = newer.apPlacement.get(ip);
+            boolean moved = oldPlace == null ? newPlace != null : !oldPlace.equals(newPlace);
+
+            if (inOld && (!inNew || moved)) {
+                d.removedAPs.add(o);
+            }
+            if (inNew && (!inOld || moved)) {
+                d.addedAPs.add(n);
+            }
+            if (inOld && inNew && !moved && !o.equals(n)) {
+                d.changedAPs.add(n);
+            }
+        }
+        return d;
+    }
+
+    private Collection<String> allAPs() {
+        List<String> ips = new ArrayList<String>(apConfigMap.keySet());
+        for (String ip: apPlacement.keySet()) {
+            if (!apConfigMap.containsKey(ip)) {
+                ips.add(ip);
+            }
+        }
+        return ips;
+    }
+
+    // config of an AP, an unconfigured one behind a switch gets no SSID and BSSID
+    private APConfig apConfig(String ip) {
+        APConfig ap = apConfigMap.get(ip);
+        if (ap == null) {
+            ap = new APConfig(ip, "", "", "open", (short) 0, 0);
+        }
+        return ap;
+    }
+}
@@ -0,0 +1,470 @@
+/**
+*    Copyright 2013 University of Helsinki
+*
+*    Licensed under the Apache License, Version 2.0 (the "License"); you may
+*    not use this file except in compliance with the License. You may obtain
+*    a copy of the License at
+*
+*         http://www.apache.org/licenses/LICENSE-2.0
+*
+*    Unless required by applicable law or agreed to in writing, software
+*    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+*    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+*    License for the specific language governing permissions and limitations
+*    under the License.
+**/
+
+package net.floodlightcontroller.mobilesdn;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import net.floodlightcontroller.util.MACAddress;
+
+import org.sdnplatform.sync.IClosableIterator;
+import org.sdnplatform.sync.IStoreClient;
+import org.sdnplatform.sync.ISyncService;
+import org.sdnplatform.sync.ISyncService.Scope;
+import org.sdnplatform.sync.Versioned;
+import org.sdnplatform.sync.error.SyncException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Snapshots of the agent and client state in persistent sync stores, so
+ * that a restarted master goes on with the rate history and the clients
+ * it had instead of waiting for every agent to report again.
+ *
+ * Records are compact binary values (see encodeAgent/encodeClient) keyed
+ * by agent IP address and client MAC. Records read at startup wait until
+ * their agent is initialized, then restore applies them to it.
+ *
+ * A snapshot only rewrites the records whose fields changed or whose
+ * rates moved by more than RATE_CHANGE since they were written, and the
+ * ones older than REFRESH_AGE, before the rate samples in them would
+ * fall out of the estimator window on restore.
+ *
+ * The stores have LOCAL scope, so the sync service replicates them to the
+ * other controllers of the domain: a standby master loads them again when
+ * it takes over.
+ *
+ * @author Yanhe Liu <yanhe.liu@cs.helsinki.fi>
+ *
+ */
+public class MobileStateStore {
+    protected static Logger log = LoggerFactory.getLogger(MobileStateStore.class);
+
+    public static final String AGENT_STORE = MobileStateStore.class.getCanonicalName() + ".agent";
+    public static final String CLIENT_STORE = MobileStateStore.class.getCanonicalName() + ".client";
+
+    static final byte VERSION = 1;
+    private static final byte FLAG_STATIC = 1;
+    private static final byte FLAG_OFFLOADING = 2;
+
+    // defaults
+    static final double RATE_CHANGE = 0.1;      // relative, rewrites a record
+    static final long REFRESH_AGE = (long) (RateEstimator.DEFAULT_WINDOW * 1000 / 2);  // ms
+
+    private final IStoreClient<String, byte[]> agentStore;
+    private final IStoreClient<Long, byte[]> clientStore;
+
+    // records read at startup, waiting for their agent
+    private final ConcurrentMap<String, byte[]> pendingAgents =
+            new ConcurrentHashMap<String, byte[]>();
+    private final ConcurrentMap<String, List<byte[]>> pendingClients =
+            new ConcurrentHashMap<String, List<byte[]>>();
+
+    // keys of the latest snapshot, guarded by this
+    private Set<String> agentKeys = new HashSet<String>();
+    private Set<Long> clientKeys = new HashSet<Long>();
+
+    // what the records written by this instance hold, guarded by this
+    private Map<String, Written> writtenAgents = new HashMap<String, Written>();
+    private Map<Long, Written> writtenClients = new HashMap<Long, Written>();
+
+    /**
+     * Fields and rates of a written record, compared with the current
+     * ones to skip unchanged records
+     */
+    static final class Written {
+        final long time;
+        final String fields;
+        final double[] rates;
+
+        Written(long time, String fields, double... rates) {
+            this.time = time;
+            this.fields = fields;
+            this.rates = rates;
+        }
+
+        static Written of(APAgent agent, long now) {
+            return new Written(now, Integer.toString(agent.getDownRateOverNum()),
+                    agent.getUpRate(), agent.getDownRate(), agent.getOFDownRate());
+        }
+
+        static Written of(Client clt, long now) {
+            return new Written(now, clt.getAgent().getIpAddress().getHostAddress()
+                    + "|" + clt.getIpAddress().getHostAddress()
+                    + "|" + clt.getConnectTime() + "|" + clt.isStatic()
+                    + "|" + (clt.getState() == ClientState.OFFLOADING)
+                    + "|" + clt.getApp(),
+                    clt.getUpRate(), clt.getDownRate());
+        }
+
+        /**
+         * @return whether this state has to replace the written one
+         */
+        boolean replaces(Written old) {
+            if (old == null || time - old.time >= REFRESH_AGE
+                    || !fields.equals(old.fields)) {
+                return true;
+            }
+            for (int i = 0; i < rates.length; i++) {
+                double diff = Math.abs(rates[i] - old.rates[i]);
+                if (diff > RATE_CHANGE * Math.max(Math.abs(rates[i]), Math.abs(old.rates[i]))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    public MobileStateStore(ISyncService syncService) throws SyncException {
+        syncService.registerPersistentStore(AGENT_STORE, Scope.LOCAL);
+        syncService.registerPersistentStore(CLIENT_STORE, Scope.LOCAL);
+        agentStore = syncService.getStoreClient(AGENT_STORE, String.class, byte[].class);
+        clientStore = syncService.getStoreClient(CLIENT_STORE, Long.class, byte[].class);
+    }
+
+    /**
+     * Read all records of the previous run
+     *
+     * @return number of client records
+     */
+    public synchronized int load() throws SyncException {
+        pendingAgents.clear();
+        pendingClients.clear();
+        IClosableIterator<Entry<String, Versioned<byte[]>>> agents = agentStore.entries();
+        try {
+            while (agents.hasNext()) {
+                Entry<String, Versioned<byte[]>> e = agents.next();
+                byte[] value = e.getValue().getValue();
+                if (value != null) {
+                    pendingAgents.put(e.getKey(), value);
+                    agentKeys.add(e.getKey());
+                }
+            }
+        } finally {
+            agents.close();
+        }
+
+        int num = 0;
+        IClosableIterator<Entry<Long, Versioned<byte[]>>> clients = clientStore.entries();
+        try {
+            while (clients.hasNext()) {
+                Entry<Long, Versioned<byte[]>> e = clients.next();
+                byte[] value = e.getValue().getValue();
+                if (value == null) {
+                    continue;
+                }
+                clientKeys.add(e.getKey());
+                try {
+                    String agentIp = readClientAgent(value);
+                    List<byte[]> l = pendingClients.get(agentIp);
+                    if (l == null) {
+                        l = new ArrayList<byte[]>();
+                        pendingClients.put(agentIp, l);
+                    }
+                    l.add(value);
+                    num++;
+                } catch (IOException ex) {
+                    log.warn("Ignore corrupt client record {}", e.getKey());
+                }
+            }
+        } finally {
+            clients.close();
+        }
+        log.info("Loaded {} agent and {} client records", pendingAgents.size(), num);
+        return num;
+    }
+
+    /**
+     * Apply the stored state to a newly initialized agent
+     *
+     * @return the agent's clients of the previous run, already added to it
+     */
+    public List<Client> restore(APAgent agent) {
+        String ip = agent.getIpAddress().getHostAddress();
+        List<Client> result = new ArrayList<Client>();
+        byte[] value = pendingAgents.remove(ip);
+        if (value != null) {
+            try {
+                decodeAgent(value, agent, System.currentTimeMillis());
+            } catch (IOException e) {
+                log.warn("Ignore corrupt record of agent {}", ip);
+            }
+        }
+
+        List<byte[]> clients = pendingClients.remove(ip);
+        if (clients == null) {
+            return result;
+        }
+        for (byte[] c: clients) {
+            try {
+                Client clt = decodeClient(c, agent, System.currentTimeMillis());
+                if (agent.getClient(clt.getMacAddress()) == null) {
+                    agent.addClient(clt);
+                    result.add(clt);
+                }
+            } catch (IOException e) {
+                log.warn("Ignore corrupt client record of agent {}", ip);
+            }
+        }
+        log.info("Restored {} clients of agent {}", result.size(), ip);
+        return result;
+    }
+
+    /**
+     * Write the changed state of all agents and their clients, and delete
+     * the records of the ones which are gone
+     *
+     * @return number of records written
+     */
+    public synchronized int snapshot(Collection<APAgent> agents) {
+        long now = System.currentTimeMillis();
+        Set<String> newAgentKeys = new HashSet<String>();
+        Set<Long> newClientKeys = new HashSet<Long>();
+        Map<String, Written> newAgents = new HashMap<String, Written>();
+        Map<Long, Written> newClients = new HashMap<Long, Written>();
+        int num = 0;
+
+        try {
+            for (APAgent agent: agents) {
+                String ip = agent.getIpAddress().getHostAddress();
+                Written w = Written.of(agent, now);
+                Written old = writtenAgents.get(ip);
+                if (w.replaces(old)) {
+                    agentStore.put(ip, encodeAgent(agent, now));
+                    old = w;
+                    num++;
+                }
+                newAgents.put(ip, old);
+                newAgentKeys.add(ip);
+                for (Client clt: agent.getAllClients()) {
+                    long mac = clt.getMacAddress().toLong();
+                    w = Written.of(clt, now);
+                    Written oldClient = writtenClients.get(mac);
+                    if (w.replaces(oldClient)) {
+                        clientStore.put(mac, encodeClient(clt, now));
+                        oldClient = w;
+                        num++;
+                    }
+                    newClients.put(mac, oldClient);
+                    newClientKeys.add(mac);
+                }
+            }
+            // records which are not restored yet are kept
+            newAgentKeys.addAll(pendingAgents.keySet());
+            for (String ip: agentKeys) {
+                if (!newAgentKeys.contains(ip)) {
+                    agentStore.delete(ip);
+                }
+            }
+            for (List<byte[]> l: pendingClients.values()) {
+                for (byte[] c: l) {
+                    newClientKeys.add(readClientMac(c));
+                }
+            }
+            for (Long mac: clientKeys) {
+                if (!newClientKeys.contains(mac)) {
+                    clientStore.delete(mac);
+                }
+            }
+        } catch (SyncException e) {
+            // the records written so far are written again next time
+            log.error("Failure writing the mobilesdn state snapshot", e);
+            writtenAgents.clear();
+            writtenClients.clear();
+            return num;
+        } catch (IOException e) {
+            log.error("Failure encoding the mobilesdn state snapshot", e);
+            writtenAgents.clear();
+            writtenClients.clear();
+            return num;
+        }
+        agentKeys = newAgentKeys;
+        clientKeys = newClientKeys;
+        writtenAgents = newAgents;
+        writtenClients = newClients;
+        return num;
+    }
+
+    /**
+     * Write the record of a new client right away, so a standby master
+     * knows about it before the next snapshot
+     */
+    public synchronized void saveClient(Client clt) {
+        long mac = clt.getMacAddress().toLong();
+        long now = System.currentTimeMillis();
+        try {
+            clientStore.put(mac, encodeClient(clt, now));
+            clientKeys.add(mac);
+            writtenClients.put(mac, Written.of(clt, now));
+        } catch (SyncException e) {
+            log.error("Failure writing the record of client " + mac, e);
+        } catch (IOException e) {
+            log.error("Failure encoding the record of client " + mac, e);
+        }
+    }
+
+    /**
+     * Delete the record of a client which has disconnected
+     */
+    public synchronized void forgetClient(long mac) {
+        writtenClients.remove(mac);
+        if (clientKeys.remove(mac)) {
+            try {
+                clientStore.delete(mac);
+            } catch (SyncException e) {
+                log.error("Failure deleting the record of client " + mac, e);
+            }
+        }
+    }
+
+    /**
+     * Agent record: version, snapshot time, IP, rate estimators (uplink,
+     * downlink, OpenFlow downlink) and the over-threshold count
+     */
+    static byte[] encodeAgent(APAgent agent, long now) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(VERSION);
+        out.writeLong(now);
+        writeAddress(out, agent.getIpAddress());
+        agent.getUpRateEstimator().writeTo(out);
+        agent.getDownRateEstimator().writeTo(out);
+        agent.getOFDownRateEstimator().writeTo(out);
+        out.writeShort(agent.getDownRateOverNum());
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    static void decodeAgent(byte[] value, APAgent agent, long now) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(value));
+        checkVersion(in);
+        long elapsed = Math.max(0, now - in.readLong());
+        readAddress(in);
+        agent.getUpRateEstimator().readFrom(in, elapsed);
+        agent.getDownRateEstimator().readFrom(in, elapsed);
+        agent.getOFDownRateEstimator().readFrom(in, elapsed);
+        agent.setDownRateOverNum(in.readShort());
+    }
+
+    /**
+     * Client record: version, snapshot time, MAC (6 bytes), agent IP,
+     * client IP, connecting time, flags, app and rate estimators (uplink,
+     * downlink)
+     */
+    static byte[] encodeClient(Client clt, long now) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(VERSION);
+        out.writeLong(now);
+        long mac = clt.getMacAddress().toLong();
+        out.writeShort((int) (mac >>> 32));
+        out.writeInt((int) mac);
+        writeAddress(out, clt.getAgent().getIpAddress());
+        writeAddress(out, clt.getIpAddress());
+        out.writeLong(clt.getConnectTime());
+        byte flags = 0;
+        if (clt.isStatic()) {
+            flags |= FLAG_STATIC;
+        }
+        if (clt.getState() == ClientState.OFFLOADING) {
+            flags |= FLAG_OFFLOADING;
+        }
+        out.writeByte(flags);
+        out.writeUTF(clt.getApp() == null ? "" : clt.getApp());
+        clt.getUpRateEstimator().writeTo(out);
+        clt.getDownRateEstimator().writeTo(out);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    static Client decodeClient(byte[] value, APAgent agent, long now) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(value));
+        checkVersion(in);
+        long elapsed = Math.max(0, now - in.readLong());
+        long mac = ((long) in.readUnsignedShort() << 32) | (in.readInt() & 0xffffffffL);
+        readAddress(in);
+        InetAddress ip = readAddress(in);
+
+        Client clt = new Client(MACAddress.valueOf(mac), ip, agent);
+        if (agent.getSwitch() != null) {
+            clt.setSwitch(agent.getSwitch());
+        }
+        clt.setConnectTime(in.readLong());
+        byte flags = in.readByte();
+        clt.updateStaticFlag((flags & FLAG_STATIC) != 0);
+        if ((flags & FLAG_OFFLOADING) != 0) {
+            // not evaluated again before the offloading timeout
+            clt.moveTo(ClientState.OFFLOADING);
+        }
+        String app = in.readUTF();
+        if (app.length() > 0) {
+            clt.setApp(app);
+        }
+        clt.getUpRateEstimator().readFrom(in, elapsed);
+        clt.getDownRateEstimator().readFrom(in, elapsed);
+        return clt;
+    }
+
+    private static long readClientMac(byte[] value) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(value));
+        checkVersion(in);
+        in.readLong();
+        return ((long) in.readUnsignedShort() << 32) | (in.readInt() & 0xffffffffL);
+    }
+
+    private static String readClientAgent(byte[] value) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(value));
+        checkVersion(in);
+        in.readLong();
+        in.readUnsignedShort();
+        in.readInt();
+        return readAddress(in).getHostAddress();
+    }
+
+    private static void checkVersion(DataInputStream in) throws IOException {
+        byte v = in.readByte();
+        if (v != VERSION) {
+            throw new IOException("unknown record version " + v);
+        }
+    }
+
+    private static void writeAddress(DataOutputStream out, InetAddress addr) throws IOException {
+        byte[] b = addr.getAddress();
+        out.writeByte(b.length);
+        out.write(b);
+    }
+
+    private static InetAddress readAddress(DataInputStream in) throws IOException {
+        byte[] b = new byte[in.readUnsignedByte()];
+        in.readFully(b);
+        return InetAddress.getByAddress(b);
+    }
+}
@@ -17,57 +17,41 @@
 
 package net.floodlightcontroller.mobilesdn;
 
-import java.util.ArrayList;
-import java.io.IOException;
-import java.net.UnknownHostException;
-import java.util.Collections;
 import java.util.List;
-import java.util.Map;
-import java.util.Timer;
-import java.util.TimerTask;
-import java.util.concurrent.Future;
-import java.util.concurrent.TimeUnit;
 
 import net.floodlightcontroller.core.IFloodlightProviderService;
 import net.floodlightcontroller.core.IOFSwitch;
 import net.floodlightcontroller.packet.Ethernet;
 
-import org.openflow.protocol.OFFlowMod;
 import org.openflow.protocol.OFMatch;
-import org.openflow.protocol.OFPacketOut;
-import org.openflow.protocol.OFPort;
-import org.openflow.protocol.OFStatisticsRequest;
-import org.openflow.protocol.OFType;
-import org.openflow.protocol.Wildcards;
-// import org.openflow.protocol.Wildcards.Flag;
-import org.openflow.protocol.action.OFAction;
 import org.openflow.protocol.statistics.OFFlowStatisticsReply;
-import org.openflow.protocol.statistics.OFFlowStatisticsRequest;
 import org.openflow.protocol.statistics.OFPortStatisticsReply;
-import org.openflow.protocol.statistics.OFPortStatisticsRequest;
-import org.openflow.protocol.statistics.OFStatistics;
-import org.openflow.protocol.statistics.OFStatisticsType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * Class designed for monitoring switch's OpenFlow table
  *
- * The flow table info can be used for later usage
+ * The flow table info can be used for later usage. Statistics are not
+ * polled here, they are pushed by SwitchStatisticsCollector once per
+ * interval for each switch.
+ *
+ * When the collector is adaptive, the polling interval of each switch is
+ * adjusted after every snapshot according to its most loaded AP or switch
+ * queue: short when the load approaches the threshold, long when idle.
  *
  * @author Yanhe Liu <yanhe.liu@cs.helsinki.fi>
  *
  */
 
-public class OFMonitor implements Runnable {
+public class OFMonitor implements ISwitchStatisticsListener {
 
     protected static Logger log = LoggerFactory.getLogger(OFMonitor.class);
 
     private IFloodlightProviderService floodlightProvider;
     private Master master;
+    private SwitchStatisticsCollector collector;
 
-    // private List<OFFlowStatisticsReply> statsReply;
-    private Timer timer;
     private double interval;
     private int maxNum;
     private List<SwitchOutQueue> swQueueList;
@@ -76,22 +60,17 @@ public class OFMonitor implements Runnable {
     static private final double RATE_THRESHOLD = 5000000;
     private double QUEUE_THRESHOLD = 0.7; // 70% * bandwidth
     private int PENDING_TIMEOUT = 4;  // 4s
-
-    // monitoring info is gathered by using a timer
-    private class OFMonitorTask extends TimerTask {
-        public void run() {
-            // flowStatistics();
-            // portStatistics();
-            portStatisticsForEachAP();
-        }
-    }
+    // load (rate / threshold) limits for adaptive polling
+    static final double BUSY_LOAD = 0.5;
+    static final double IDLE_LOAD = 0.05;
 
     public OFMonitor(IFloodlightProviderService fProvider, Master m,
-            double detectInterval, int maxNum, List<SwitchOutQueue> swList) {
+            SwitchStatisticsCollector collector, double detectInterval,
+            int maxNum, List<SwitchOutQueue> swList) {
         this.floodlightProvider = fProvider;
         this.master = m;
+        this.collector = collector;
 
-        this.timer = new Timer();
         this.interval = detectInterval;
         this.maxNum = maxNum;
         this.swQueueList = swList;
@@ -99,178 +78,156 @@ public class OFMonitor implements Runnable {
 
 
     @Override
-    public void run() {
-        // start the timer with our task
-        timer.schedule(new OFMonitorTask(), (long)5000, (long)(this.interval*1000));
+    public void statisticsUpdated(SwitchStatistics stats) {
+        // flowStatistics(stats);
+        // portStatistics(stats);
+        double load = portStatisticsForEachAP(stats);
+
+        if (collector != null && collector.isAdaptive()) {
+            collector.setPollInterval(stats.getSwId(), getPollInterval(load));
+        }
     }
 
-    private void portStatistics() {
-        List<OFStatistics> values = null;
-        Future<List<OFStatistics>> future;
+    /**
+     * Polling interval for a switch whose most loaded AP or queue is at
+     * the given fraction of its threshold
+     */
+    double getPollInterval(double load) {
+        if (load >= BUSY_LOAD) {
+            return collector.getMinInterval();
+        } else if (load < IDLE_LOAD) {
+            return collector.getMaxInterval();
+        }
+        return interval;
+    }
+
+    /**
+     * @return highest load (downrate / threshold) of the switch queues
+     */
+    private double portStatistics(SwitchStatistics stats) {
+        double maxLoad = 0;
         OFPortStatisticsReply reply;
 
         for (SwitchOutQueue swQueue: swQueueList) {
-            IOFSwitch sw = floodlightProvider.getSwitch(swQueue.getSwId());
-
-            OFStatisticsRequest req = new OFStatisticsRequest();
-            req.setStatisticType(OFStatisticsType.PORT);
-            int requestLength = req.getLengthU();
-            OFPortStatisticsRequest specificReq = new OFPortStatisticsRequest();
-            specificReq.setPortNumber((short)swQueue.getOutPort());
-            req.setStatistics(Collections.singletonList((OFStatistics)specificReq));
-            requestLength += specificReq.getLength();
-            req.setLengthU(requestLength);
-
-            try {
-                // make the query
-                future = sw.queryStatistics(req);
-                values = future.get(5, TimeUnit.SECONDS);
-            } catch (Exception e) {
-                log.error("Failure retrieving port statistics from switch " + sw, e);
+            if (swQueue.getSwId() != stats.getSwId()) {
+                continue;
             }
+            IOFSwitch sw = floodlightProvider.getSwitch(swQueue.getSwId());
 
-            if (values != null) {
+            reply = stats.getPort((short)swQueue.getOutPort());
+            if (reply != null) {
                 double rateLimit = QUEUE_THRESHOLD * swQueue.getBandwidth() * 1000000;
-                for (OFStatistics stat: values) {
-                    reply = (OFPortStatisticsReply) stat;
-
-                    long receiveBytes = reply.getReceiveBytes();
-                    long transmitBytes = reply.getTransmitBytes();
-
-                    double downrate = (receiveBytes - swQueue.getReceiveBytes()) / (this.interval);
-                    // float uprate = (transmitBytes - swQueue.getTransmitBytes()) / (this.interval);
-
-                    if (downrate*8 >= rateLimit && swQueue.getDownThroughputOverNum() == 0) {
-                        long endtime = System.currentTimeMillis();
-                        if (master.startTime != 0) {
-                            log.debug("Found delay: " + (endtime - master.startTime));
-                        } else {
-                            log.debug("early found");
-                        }
-                        master.startTime = endtime;
+                long receiveBytes = reply.getReceiveBytes();
+                long transmitBytes = reply.getTransmitBytes();
+
+                double downrate = (receiveBytes - swQueue.getReceiveBytes()) / stats.getPortInterval();
+                maxLoad = Math.max(maxLoad, downrate * 8 / rateLimit);
+                // float uprate = (transmitBytes - swQueue.getTransmitBytes()) / stats.getPortInterval();
+
+                if (downrate*8 >= rateLimit && swQueue.getDownThroughputOverNum() == 0) {
+                    long endtime = System.currentTimeMillis();
+                    if (master.startTime != 0) {
+                        log.debug("Found delay: " + (endtime - master.startTime));
+                    } else {
+                        log.debug("early found");
                     }
+                    master.startTime = endtime;
+                }
 
-                    if (downrate*8 >= rateLimit) {
-                        int num = swQueue.getDownThroughputOverNum();
+                if (downrate*8 >= rateLimit) {
+                    int num = swQueue.getDownThroughputOverNum();
+                    swQueue.setDownThroughputOverNum(++num);
+                    if (swQueue.downRate*8 < rateLimit
+                        && swQueue.getPendingNum() > 0
+                        && (swQueue.downRate + downrate) * 8 / 2 >= rateLimit) {
+                        // fluctuation probably caused by OF statistics
                         swQueue.setDownThroughputOverNum(++num);
-                        if (swQueue.downRate*8 < rateLimit
-                            && swQueue.getPendingNum() > 0
-                            && (swQueue.downRate + downrate) * 8 / 2 >= rateLimit) {
-                            // fluctuation probably caused by OF statistics
-                            swQueue.setDownThroughputOverNum(++num);
-                        }
+                    }
+                    swQueue.setPendingNum(0);
+                } else if (swQueue.getDownThroughputOverNum() > 0) {
+                    int pendingNum = swQueue.getPendingNum() + 1;
+                    if (pendingNum > Math.ceil(PENDING_TIMEOUT / stats.getPortInterval())) {
                         swQueue.setPendingNum(0);
-                    } else if (swQueue.getDownThroughputOverNum() > 0) {
-                        int pendingNum = swQueue.getPendingNum() + 1;
-                        if (pendingNum > Math.ceil(PENDING_TIMEOUT / interval)) {
-                            swQueue.setPendingNum(0);
-                            swQueue.setDownThroughputOverNum(0);
-                        } else {
-                            swQueue.setPendingNum(pendingNum);
-                        }
-                    } else {
                         swQueue.setDownThroughputOverNum(0);
+                    } else {
+                        swQueue.setPendingNum(pendingNum);
                     }
+                } else {
+                    swQueue.setDownThroughputOverNum(0);
+                }
 
-                    if (swQueue.getDownThroughputOverNum() >= maxNum) {
-                        log.info("reach switchqueue port download threshold!!!");
-                        master.switchQueueManagement(sw, swQueue);
-                        swQueue.setDownThroughputOverNum(0);
-                        swQueue.setPendingNum(0);
-                        long t = System.currentTimeMillis();
-                        log.debug("Detecting delay: " + (t - master.startTime));
-                        master.startTime = 0;
-                    }
+                if (swQueue.getDownThroughputOverNum() >= maxNum) {
+                    log.info("reach switchqueue port download threshold!!!");
+                    master.switchQueueManagement(sw, swQueue);
+                    swQueue.setDownThroughputOverNum(0);
+                    swQueue.setPendingNum(0);
+                    long t = System.currentTimeMillis();
+                    log.debug("Detecting delay: " + (t - master.startTime));
+                    master.startTime = 0;
+                }
 
-                    log.debug((downrate * 8) + " " + swQueue.getDownThroughputOverNum());
+                log.debug((downrate * 8) + " " + swQueue.getDownThroughputOverNum());
 
-                    swQueue.setReceiveBytes(receiveBytes);
-                    swQueue.settransmitBytes(transmitBytes);
-                    swQueue.downRate = downrate;
-                }
+                swQueue.setReceiveBytes(receiveBytes);
+                swQueue.settransmitBytes(transmitBytes);
+                swQueue.downRate = downrate;
             }
         }
+        return maxLoad;
     }
-    
-    private void portStatisticsForEachAP() {
-        List<OFStatistics> values = null;
-        Future<List<OFStatistics>> future;
+
+    /**
+     * Feed the AP port counters into the AP rate estimators and count the
+     * consecutive samples whose moving average is over the threshold. The
+     * moving average smooths out the fluctuation of OpenFlow statistics.
+     *
+     * @return highest load (downrate / threshold) of the APs on the switch
+     */
+    private double portStatisticsForEachAP(SwitchStatistics stats) {
         OFPortStatisticsReply reply;
+        double maxLoad = 0;
 
-        for (APAgent agent: master.getAllAPAgents()) {
+        for (APAgent agent: master.getAPAgentsOnSwitch(stats.getSwId())) {
             IOFSwitch sw = agent.getSwitch();
 
-            OFStatisticsRequest req = new OFStatisticsRequest();
-            req.setStatisticType(OFStatisticsType.PORT);
-            int requestLength = req.getLengthU();
-            OFPortStatisticsRequest specificReq = new OFPortStatisticsRequest();
-            specificReq.setPortNumber(agent.getOFPort());
-            req.setStatistics(Collections.singletonList((OFStatistics)specificReq));
-            requestLength += specificReq.getLength();
-            req.setLengthU(requestLength);
-
-            try {
-                // make the query
-                future = sw.queryStatistics(req);
-                values = future.get(3, TimeUnit.SECONDS);
-            } catch (Exception e) {
-                log.error("Failure retrieving port statistics from switch " + sw, e);
+            reply = stats.getPort(agent.getOFPort());
+            if (reply == null) {
+                continue;
+            }
+            RateEstimator estimator = agent.getOFDownRateEstimator();
+            if (estimator.addCounter(stats.getPortReplyTime(),
+                    reply.getTransmitBytes()) < 0) {
+                continue;   // first reading or counter reset
             }
 
-            if (values != null) {
-                
-                for (OFStatistics stat: values) {
-                    reply = (OFPortStatisticsReply) stat;
-
-                    long upBytes = reply.getReceiveBytes();
-                    long downBytes = reply.getTransmitBytes();
-
-                    double downrate = (downBytes - agent.getOFDownBytes()) / (this.interval);
-                    
-                    if (downrate*8 >= RATE_THRESHOLD) {
-                        int num = agent.getDownRateOverNum();
-                        agent.setDownRateOverNum(++num);
-                        if (agent.getOFDownRate()*8 < RATE_THRESHOLD
-                            && agent.getPendingNum() > 0
-                            && (agent.getOFDownRate() + downrate) * 8 / 2 >= RATE_THRESHOLD) {
-                            // fluctuation probably caused by OF statistics
-                            agent.setDownRateOverNum(++num);
-                        }
-                        agent.setPendingNum(0);
-                        log.info("Agent " + agent.getSSID() + " got large traffic load: " 
-                                + (downrate * 8) + " " + agent.getDownRateOverNum());
-                    } else if (agent.getDownRateOverNum() > 0) {
-                        int pendingNum = agent.getPendingNum() + 1;
-                        if (pendingNum > Math.ceil(PENDING_TIMEOUT / interval)) {
-                            agent.setPendingNum(0);
-                            agent.setDownRateOverNum(0);
-                        } else {
-                            agent.setPendingNum(pendingNum);
-                        }
-                    } else {
-                        agent.setDownRateOverNum(0);
-                    }
+            double downrate = estimator.getRate();
+            maxLoad = Math.max(maxLoad, downrate * 8 / RATE_THRESHOLD);
 
-                    if (agent.getDownRateOverNum() >= maxNum) {
-                        // agent.setOffloadingFlag(true);
-                        master.agentTrafficManagement(sw, agent);
-                        agent.setDownRateOverNum(0);
-                        agent.setPendingNum(0);
-                    }
+            if (downrate*8 >= RATE_THRESHOLD) {
+                int num = agent.getDownRateOverNum();
+                agent.setDownRateOverNum(++num);
+                log.info("Agent " + agent.getSSID() + " got large traffic load: "
+                        + (downrate * 8) + " " + agent.getDownRateOverNum());
+            } else {
+                agent.setDownRateOverNum(0);
+            }
 
-                    log.debug("Agent " + agent.getSSID() + ": " + (downrate * 8) 
-                            + " " + agent.getDownRateOverNum());
-                    agent.setOFDownBytes(downBytes);
-                    agent.setOFUpBytes(upBytes);
-                    agent.setOFDownRate(downrate);
-                }
+            if (agent.getDownRateOverNum() >= maxNum) {
+                // agent.setOffloadingFlag(true);
+                master.agentTrafficManagement(sw, agent);
+                agent.setDownRateOverNum(0);
             }
+
+            log.debug("Agent " + agent.getSSID() + ": " + (downrate * 8)
+                    + " (p95 " + (estimator.getP95() * 8) + ") "
+                    + agent.getDownRateOverNum());
         }
+        return maxLoad;
     }
 
 
     /**
-     * Get flow statistics from switch by using OFFlowStatisticsRequest
+     * Check the flow statistics of a switch for suspicious flows
      *
      */
 
@@ -280,113 +237,40 @@ public class OFMonitor implements Runnable {
     // only contains those four tuples
     // This might be a bug of Floodlight???
 
-    private void flowStatistics() {
-        // statsReply = new ArrayList<OFFlowStatisticsReply>();
-        List<OFStatistics> values = null;
-        Future<List<OFStatistics>> future;
-        OFFlowStatisticsReply reply;
+    private void flowStatistics(SwitchStatistics stats) {
         OFMatch match;
         float rate;
         Ethernet mac;
 
-        // get switch
-        Map<Long,IOFSwitch> swMap = floodlightProvider.getAllSwitchMap();
-
-
-        for (IOFSwitch sw: swMap.values()) {
-            try {
-                OFStatisticsRequest req = new OFStatisticsRequest();
-                req.setStatisticType(OFStatisticsType.FLOW);
-                int requestLength = req.getLengthU();
-                OFFlowStatisticsRequest specificReq = new OFFlowStatisticsRequest();
-                specificReq.setMatch(new OFMatch().setWildcards(Wildcards.FULL));
-                specificReq.setTableId((byte)0xff);
-
-                // FIXME match bug
-                // for example, this can not work here
-                // match.setWildcards(Wildcards.FULL.matchOn(Flag.DL_TYPE)
-
-                // using OFPort.OFPP_NONE(0xffff) as the outport
-                specificReq.setOutPort(OFPort.OFPP_NONE.getValue());
-                req.setStatistics(Collections.singletonList((OFStatistics) specificReq));
-                requestLength += specificReq.getLength();
-                req.setLengthU(requestLength);
-
-                // make the query
-                future = sw.queryStatistics(req);
-                values = future.get(3, TimeUnit.SECONDS);
-
-                if (values != null) {
-                    for (OFStatistics stat: values) {
-                        // statsReply.add((OFFlowStatisticsReply) stat);
+        IOFSwitch sw = floodlightProvider.getSwitch(stats.getSwId());
+        if (sw == null) {
+            return;
+        }
 
-                        reply = (OFFlowStatisticsReply) stat;
-                        rate = (float) reply.getByteCount()
-                                  / ((float) reply.getDurationSeconds()
-                                  + ((float) reply.getDurationNanoseconds() / 1000000000));
-                        match = reply.getMatch();
+        try {
+            for (OFFlowStatisticsReply reply: stats.getFlows()) {
+                rate = (float) reply.getByteCount()
+                          / ((float) reply.getDurationSeconds()
+                          + ((float) reply.getDurationNanoseconds() / 1000000000));
+                match = reply.getMatch();
 
-                        // actions list is empty means the current flow action is to drop
-                        if (rate >= RATE_THRESHOLD && !reply.getActions().isEmpty()) {
+                // actions list is empty means the current flow action is to drop
+                if (rate >= RATE_THRESHOLD && !reply.getActions().isEmpty()) {
 
-                            mac = new Ethernet().setSourceMACAddress(match.getDataLayerSource())
-                                                .setDestinationMACAddress(match.getDataLayerDestination());
+                    mac = new Ethernet().setSourceMACAddress(match.getDataLayerSource())
+                                        .setDestinationMACAddress(match.getDataLayerDestination());
 
-                            log.info("Flow {} -> {}", mac.getSourceMAC().toString(),
-                                                      mac.getDestinationMAC().toString());
+                    log.info("Flow {} -> {}", mac.getSourceMAC().toString(),
+                                              mac.getDestinationMAC().toString());
 
-                            log.info("FlowRate = {}bytes/s: suspicious flow, " +
-                                    "drop matched pkts", Float.toString(rate));
+                    log.info("FlowRate = {}bytes/s: suspicious flow",
+                            Float.toString(rate));
 
-                            // modify flow action to drop
-                            setOFFlowActionToDrop(match, sw);
-                        }
-                    }
+                    master.limitFlow(sw, reply);
                 }
-
-
-            } catch (Exception e) {
-                log.error("Failure retrieving flow statistics from switch " + sw, e);
             }
-        }
-    }
-
-    /**
-     * Modify the action of open flow entries to drop
-     *
-     * @param match match info obtained from OFFlowStatisticsReply
-     * @param sw corresponding OpenFlow switch
-     */
-
-    private void setOFFlowActionToDrop(OFMatch match, IOFSwitch sw) throws UnknownHostException {
-
-        OFFlowMod flowMod = (OFFlowMod) floodlightProvider.getOFMessageFactory().getMessage(OFType.FLOW_MOD);
-        // set no action to drop
-        List<OFAction> actions = new ArrayList<OFAction>();
-
-        // set flow_mod
-        flowMod.setOutPort(OFPort.OFPP_NONE);
-        flowMod.setMatch(match);
-        // this buffer_id is needed for avoiding a BAD_REQUEST error
-        flowMod.setBufferId(OFPacketOut.BUFFER_ID_NONE);
-        flowMod.setHardTimeout((short) 0);
-        flowMod.setIdleTimeout((short) 20);
-        flowMod.setActions(actions);
-        flowMod.setCommand(OFFlowMod.OFPFC_MODIFY_STRICT);
-
-        // send flow_mod
-        if (sw == null) {
-            log.debug("Switch is not connected!");
-            return;
-        }
-        try {
-            sw.write(flowMod, null);
-            sw.flush();
-        } catch (IOException e) {
-            log.error("tried to write flow_mod to {} but failed: {}",
-                        sw.getId(), e.getMessage());
         } catch (Exception e) {
-            log.error("Failure to modify flow entries", e);
+            log.error("Failure checking flow statistics of switch " + sw, e);
         }
     }
 
@@ -0,0 +1,295 @@
+/**
+*    Copyright 2013 University of Helsinki
+*
+*    Licensed under the Apache License, Version 2.0 (the "License"); you may
+*    not use this file except in compliance with the License. You may obtain
+*    a copy of the License at
+*
+*         http://www.apache.org/licenses/LICENSE-2.0
+*
+*    Unless required by applicable law or agreed to in writing, software
+*    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+*    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+*    License for the specific language governing permissions and limitations
+*    under the License.
+**/
+
+package net.floodlightcontroller.mobilesdn;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Joint AP assignment for a batch of offloading candidates.
+ *
+ * Each candidate may stay at its current AP or move to one of the nearby
+ * APs from its scan result. Options are scored by an IOffloadPolicy, by
+ * default with the metric the master used for single clients:
+ *
+ *   signal * rest / maxRest * rest / bandwidth - overhead
+ *
+ * where rest is the bandwidth left at the AP. Candidates are assigned
+ * greedily, the largest gain over staying first, and after every move the
+ * rest of both APs is updated, so that later candidates see the load added
+ * by earlier ones instead of all moving to the same AP. A move is only
+ * made if the target AP, and the switch out queue of the target AP if it
+ * differs from the current one, can take the client's demand.
+ *
+ * Gains are re-evaluated lazily: a candidate popped from the queue is
+ * scored again with the current load and put back if its gain dropped
+ * below the next one.
+ *
+ * Rates are in Mbit/s. A planner is filled and used for a single batch,
+ * it is not thread-safe.
+ *
+ * @author Yanhe Liu <yanhe.liu@cs.helsinki.fi>
+ *
+ */
+public class OffloadPlanner {
+    private static final double EPSILON = 1e-9;
+
+    private static final class Candidate {
+        final long mac;
+        final int current;      // AP index, -1 if unknown
+        final double demand;
+        final int[] aps;
+        final double[] signals;
+        double gain;
+        int target;
+
+        Candidate(long mac, int current, double demand, int[] aps, double[] signals) {
+            this.mac = mac;
+            this.current = current;
+            this.demand = demand;
+            this.aps = aps;
+            this.signals = signals;
+        }
+    }
+
+    private final IOffloadPolicy policy;
+    private final double overhead;
+    private final Map<Long, Integer> apIndex = new HashMap<Long, Integer>();
+    private final List<Long> apBssids = new ArrayList<Long>();
+    private double[] apBandwidth = new double[16];
+    private double[] apRest = new double[16];
+    private int[] apGroup = new int[16];
+    private final List<Double> groupRest = new ArrayList<Double>();
+    private final List<Candidate> candidates = new ArrayList<Candidate>();
+
+    public OffloadPlanner() {
+        this(new DefaultOffloadPolicy());
+    }
+
+    public OffloadPlanner(IOffloadPolicy policy) {
+        this.policy = policy;
+        this.overhead = policy.getSwitchOverhead();
+    }
+
+    /**
+     * Add a switch out queue shared by several APs
+     *
+     * @param capacity queue bandwidth
+     * @return group id for addAP
+     */
+    public int addGroup(double capacity) {
+        groupRest.add(capacity);
+        return groupRest.size() - 1;
+    }
+
+    /**
+     * Add an AP which candidates are on or may move to, adding the same
+     * AP again has no effect
+     *
+     * @param bssid
+     * @param bandwidth downlink bandwidth
+     * @param load current downlink rate
+     * @param group group id from addGroup, or -1
+     */
+    public void addAP(long bssid, double bandwidth, double load, int group) {
+        if (apIndex.containsKey(bssid)) {
+            return;
+        }
+        int i = apBssids.size();
+        if (i == apBandwidth.length) {
+            int len = i * 2;
+            double[] nb = new double[len];
+            double[] nr = new double[len];
+            int[] ng = new int[len];
+            System.arraycopy(apBandwidth, 0, nb, 0, i);
+            System.arraycopy(apRest, 0, nr, 0, i);
+            System.arraycopy(apGroup, 0, ng, 0, i);
+            apBandwidth = nb;
+            apRest = nr;
+            apGroup = ng;
+        }
+        apIndex.put(bssid, i);
+        apBssids.add(bssid);
+        apBandwidth[i] = bandwidth;
+        apRest[i] = bandwidth - load;
+        apGroup[i] = group;
+        if (group >= 0) {
+            groupRest.set(group, groupRest.get(group) - load);
+        }
+    }
+
+    public boolean containsAP(long bssid) {
+        return apIndex.containsKey(bssid);
+    }
+
+    /**
+     * Add an offloading candidate, nearby APs which were not added before
+     * are ignored
+     *
+     * @param mac client MAC address
+     * @param currentBssid AP the client is associated with
+     * @param demand client downlink rate
+     * @param bssids nearby APs
+     * @param signals signal metric (0..1) of each nearby AP
+     */
+    public void addClient(long mac, long currentBssid, double demand,
+            long[] bssids, double[] signals) {
+        int n = 0;
+        int[] aps = new int[bssids.length];
+        double[] sig = new double[bssids.length];
+        for (int k = 0; k < bssids.length; k++) {
+            Integer i = apIndex.get(bssids[k]);
+            if (i != null) {
+                aps[n] = i;
+                sig[n] = signals[k];
+                n++;
+            }
+        }
+        if (n < aps.length) {
+            int[] a = new int[n];
+            double[] s = new double[n];
+            System.arraycopy(aps, 0, a, 0, n);
+            System.arraycopy(sig, 0, s, 0, n);
+            aps = a;
+            sig = s;
+        }
+        Integer current = apIndex.get(currentBssid);
+        candidates.add(new Candidate(mac, current == null ? -1 : current,
+                demand, aps, sig));
+    }
+
+    public int getClientNum() {
+        return candidates.size();
+    }
+
+    /**
+     * Compute the assignment
+     *
+     * @return target BSSID of every candidate which should move, in the
+     * order of the moves
+     */
+    public Map<Long, Long> plan() {
+        Map<Long, Long> moves = new LinkedHashMap<Long, Long>();
+        PriorityQueue<Candidate> queue = new PriorityQueue<Candidate>(
+                Math.max(1, candidates.size()), new Comparator<Candidate>() {
+            @Override
+            public int compare(Candidate a, Candidate b) {
+                return Double.compare(b.gain, a.gain);
+            }
+        });
+
+        for (Candidate c: candidates) {
+            evaluate(c);
+            if (c.target >= 0) {
+                queue.add(c);
+            }
+        }
+
+        while (!queue.isEmpty()) {
+            Candidate c = queue.poll();
+            double old = c.gain;
+            evaluate(c);
+            if (c.target < 0) {
+                continue;   // staying is best now
+            }
+            Candidate next = queue.peek();
+            if (c.gain < old - EPSILON && next != null && c.gain < next.gain) {
+                queue.add(c);   // someone else gains more now
+                continue;
+            }
+            move(c);
+            moves.put(c.mac, apBssids.get(c.target));
+        }
+        return moves;
+    }
+
+    private double rest(Candidate c, int ap) {
+        return ap == c.current ? apRest[ap] + c.demand : apRest[ap];
+    }
+
+    private boolean fits(Candidate c, int ap) {
+        if (apRest[ap] < c.demand) {
+            return false;
+        }
+        int g = apGroup[ap];
+        if (g >= 0 && (c.current < 0 || apGroup[c.current] != g)) {
+            return groupRest.get(g) >= c.demand;
+        }
+        return true;
+    }
+
+    /**
+     * best move of a candidate with the current load, target -1 if the
+     * candidate should stay
+     */
+    private void evaluate(Candidate c) {
+        double maxRest = 0;
+        for (int ap: c.aps) {
+            maxRest = Math.max(maxRest, rest(c, ap));
+        }
+
+        // a client which did not see its own AP in the scan takes any move
+        double stay = Double.NEGATIVE_INFINITY;
+        double best = Double.NEGATIVE_INFINITY;
+        int target = -1;
+        for (int k = 0; k < c.aps.length; k++) {
+            int ap = c.aps[k];
+            double score = policy.score(c.signals[k], rest(c, ap), maxRest, apBandwidth[ap]);
+            if (ap == c.current) {
+                stay = score;
+            } else if (score > best && fits(c, ap)) {
+                best = score;
+                target = ap;
+            }
+        }
+
+        if (target >= 0 && best - overhead > stay) {
+            c.target = target;
+            c.gain = stay == Double.NEGATIVE_INFINITY ? Double.MAX_VALUE
+                                                      : best - overhead - stay;
+        } else {
+            c.target = -1;
+            c.gain = 0;
+        }
+    }
+
+    private void move(Candidate c) {
+        int to = c.target;
+        apRest[to] -= c.demand;
+        int g = apGroup[to];
+        int from = c.current;
+        if (from >= 0) {
+            apRest[from] += c.demand;
+            int fg = apGroup[from];
+            if (fg != g) {
+                if (fg >= 0) {
+                    groupRest.set(fg, groupRest.get(fg) + c.demand);
+                }
+                if (g >= 0) {
+                    groupRest.set(g, groupRest.get(g) - c.demand);
+                }
+            }
+        } else if (g >= 0) {
+            groupRest.set(g, groupRest.get(g) - c.demand);
+        }
+    }
+}
@@ -0,0 +1,148 @@
+/**
+*    Copyright 2013 University of Helsinki
+*
+*    Licensed under the Apache License, Version 2.0 (the "License"); you may
+*    not use this file except in compliance with the License. You may obtain
+*    a copy of the License at
+*
+*         http://www.apache.org/licenses/LICENSE-2.0
+*
+*    Unless required by applicable law or agreed to in writing, software
+*    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+*    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+*    License for the specific language governing permissions and limitations
+*    under the License.
+**/
+
+package net.floodlightcontroller.mobilesdn;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.floodlightcontroller.core.module.FloodlightModuleContext;
+import net.floodlightcontroller.core.module.FloodlightModuleException;
+import net.floodlightcontroller.core.module.IFloodlightModule;
+import net.floodlightcontroller.core.module.IFloodlightService;
+
+/**
+ * Floodlight module holding the offloading policies.
+ *
+ * The built-in policies are "default" and "table". Other implementations
+ * of IOffloadPolicy are loaded from the comma separated class names in
+ * the "policyClasses" option. The "policy" option selects the policy at
+ * startup, it can be changed later through setPolicy (REST:
+ * /wm/softoffload/policy/json).
+ *
+ * @author Yanhe Liu <yanhe.liu@cs.helsinki.fi>
+ *
+ */
+public class OffloadPolicyManager implements IFloodlightModule, IOffloadPolicyService {
+    protected static Logger log = LoggerFactory.getLogger(OffloadPolicyManager.class);
+
+    private final ConcurrentMap<String, IOffloadPolicy> policies =
+            new ConcurrentHashMap<String, IOffloadPolicy>();
+    private volatile IOffloadPolicy current;
+
+    public OffloadPolicyManager() {
+        addPolicy(new DefaultOffloadPolicy());
+        addPolicy(new LookupTableOffloadPolicy());
+        current = policies.get(DefaultOffloadPolicy.NAME);
+    }
+
+    @Override
+    public IOffloadPolicy getPolicy() {
+        return current;
+    }
+
+    @Override
+    public void setPolicy(String name) {
+        IOffloadPolicy policy = policies.get(name);
+        if (policy == null) {
+            throw new IllegalArgumentException("Unknown offload policy " + name);
+        }
+        if (policy != current) {
+            log.info("Offload policy changed to " + name);
+            current = policy;
+        }
+    }
+
+    @Override
+    public void addPolicy(IOffloadPolicy policy) {
+        policies.put(policy.getName(), policy);
+        if (current != null && current.getName().equals(policy.getName())) {
+            current = policy;
+        }
+    }
+
+    @Override
+    public Collection<String> getPolicyNames() {
+        return Collections.unmodifiableCollection(new ArrayList<String>(policies.keySet()));
+    }
+
+
+    /** IFloodlightModule methods **/
+
+    @Override
+    public Collection<Class<? extends IFloodlightService>> getModuleServices() {
+        Collection<Class<? extends IFloodlightService>> l =
+                new ArrayList<Class<? extends IFloodlightService>>();
+        l.add(IOffloadPolicyService.class);
+        return l;
+    }
+
+    @Override
+    public Map<Class<? extends IFloodlightService>, IFloodlightService> getServiceImpls() {
+        Map<Class<? extends IFloodlightService>, IFloodlightService> m =
+                new HashMap<Class<? extends IFloodlightService>, IFloodlightService>();
+        m.put(IOffloadPolicyService.class, this);
+        return m;
+    }
+
+    @Override
+    public Collection<Class<? extends IFloodlightService>> getModuleDependencies() {
+        return null;
+    }
+
+    @Override
+    public void init(FloodlightModuleContext context) throws FloodlightModuleException {
+        Map<String, String> configOptions = context.getConfigParams(this);
+
+        String classes = configOptions.get("policyClasses");
+        if (classes != null) {
+            for (String name: classes.split(",")) {
+                name = name.trim();
+                if (name.length() == 0) {
+                    continue;
+                }
+                try {
+                    addPolicy((IOffloadPolicy) Class.forName(name).newInstance());
+                } catch (Exception e) {
+                    throw new FloodlightModuleException(
+                            "Can not load offload policy " + name, e);
+                }
+            }
+        }
+
+        String policy = configOptions.get("policy");
+        if (policy != null) {
+            try {
+                setPolicy(policy);
+            } catch (IllegalArgumentException e) {
+                throw new FloodlightModuleException(e.getMessage(), e);
+            }
+        }
+    }
+
+    @Override
+    public void startUp(FloodlightModuleContext context) {
+        log.info("Using offload policy " + current.getName());
+    }
+}
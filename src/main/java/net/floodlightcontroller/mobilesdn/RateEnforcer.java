@@ -0,0 +1,407 @@
+/**
+*    Copyright 2013 University of Helsinki
+*
+*    Licensed under the Apache License, Version 2.0 (the "License"); you may
+*    not use this file except in compliance with the License. You may obtain
+*    a copy of the License at
+*
+*         http://www.apache.org/licenses/LICENSE-2.0
+*
+*    Unless required by applicable law or agreed to in writing, software
+*    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+*    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+*    License for the specific language governing permissions and limitations
+*    under the License.
+**/
+
+package net.floodlightcontroller.mobilesdn;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import net.floodlightcontroller.core.IOFSwitch;
+import net.floodlightcontroller.packet.IPv4;
+import net.floodlightcontroller.util.MACAddress;
+
+import org.openflow.protocol.OFFlowMod;
+import org.openflow.protocol.OFMatch;
+import org.openflow.protocol.OFPacketOut;
+import org.openflow.protocol.OFPort;
+import org.openflow.protocol.OFType;
+import org.openflow.protocol.Wildcards;
+import org.openflow.protocol.Wildcards.Flag;
+import org.openflow.protocol.action.OFAction;
+import org.openflow.protocol.action.OFActionEnqueue;
+import org.openflow.protocol.action.OFActionOutput;
+import org.openflow.protocol.factory.OFMessageFactory;
+import org.openflow.protocol.statistics.OFFlowStatisticsReply;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Limits clients and flows which exceed their rate threshold.
+ *
+ * In shape mode the traffic is moved into an egress queue of the port it
+ * leaves the switch on: the AP port for the traffic to a client, the
+ * output port of each of its flows for the traffic from it, so that it
+ * still goes where it went before. OpenFlow 1.0 can only enqueue into
+ * queues that exist on the switch, so every AP port and switch out queue
+ * port is expected to have queues 1..n set up beforehand (e.g. with
+ * ovs-vsctl). Queue i has a max rate of shares[i-1] and a min rate of
+ * minShare times the port bandwidth (AP DownlinkBW or switch BandWidth),
+ * see describeQueues.
+ *
+ * A limited client gets the queue with the smallest share that is still
+ * at least its fair share of the port (1 / clients behind the port), so
+ * it is throttled to about what every other client can get instead of
+ * being cut off. The limiting flows have a hard timeout, after that the
+ * client is measured without limit again.
+ *
+ * Drop mode keeps the former behaviour: an action-less flow drops the
+ * IP traffic from the client, no queue is needed.
+ *
+ * @author Yanhe Liu <yanhe.liu@cs.helsinki.fi>
+ *
+ */
+public class RateEnforcer {
+    protected static Logger log = LoggerFactory.getLogger(RateEnforcer.class);
+
+    public enum Mode {
+        SHAPE, DROP
+    }
+
+    // defaults
+    static final double[] DEFAULT_SHARES = { 0.5, 0.25, 0.1 };
+    static final double DEFAULT_MIN_SHARE = 0.05;
+    static final int DEFAULT_HOLD_TIME = 30;        // s
+    static final short PRIORITY = 200;
+    static final long COOKIE = 67;                  // some value chosen randomly
+    static final short IDLE_TIMEOUT = 20;
+    // client rate which triggers a limit
+    public static final double CLIENT_RATE_THRESHOLD = 4000000;  // bit/s
+
+    private final OFMessageFactory factory;
+    private final Mode mode;
+    private final double[] shares;
+    private final double minShare;
+    private final short holdTime;
+
+    // limits in place, (client mac << 1 | uplink) -> expiry time in ms
+    private final ConcurrentMap<Long, Long> limits = new ConcurrentHashMap<Long, Long>();
+
+    public RateEnforcer(OFMessageFactory factory) {
+        this(factory, Mode.SHAPE, DEFAULT_SHARES, DEFAULT_MIN_SHARE, DEFAULT_HOLD_TIME);
+    }
+
+    /**
+     * @param shares max rate of queue 1, 2... as fraction of the port
+     * bandwidth, in descending order
+     * @param minShare min rate of every queue as fraction of the port
+     * bandwidth
+     * @param holdTime seconds a limit stays in place
+     */
+    public RateEnforcer(OFMessageFactory factory, Mode mode, double[] shares,
+            double minShare, int holdTime) {
+        if (shares.length == 0) {
+            throw new IllegalArgumentException("at least one queue is needed");
+        }
+        for (int i = 1; i < shares.length; i++) {
+            if (shares[i] > shares[i - 1]) {
+                throw new IllegalArgumentException("queue shares must be descending");
+            }
+        }
+        this.factory = factory;
+        this.mode = mode;
+        this.shares = shares.clone();
+        this.minShare = minShare;
+        this.holdTime = (short) holdTime;
+    }
+
+    /**
+     * parse a comma-separated list of queue shares, e.g. "0.5,0.25,0.1"
+     */
+    public static double[] parseShares(String list) {
+        List<Double> l = new ArrayList<Double>();
+        for (String s: list.split(",")) {
+            if (s.trim().length() > 0) {
+                l.add(Double.parseDouble(s.trim()));
+            }
+        }
+        double[] result = new double[l.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = l.get(i);
+        }
+        return result;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public int getQueueNum() {
+        return shares.length;
+    }
+
+    /**
+     * Queue for a client which shares a port with other clients: the one
+     * with the smallest share that is not below the fair share. If even
+     * the first queue gives less than the fair share, the first queue.
+     *
+     * @param clientNum clients behind the port, including this one
+     * @return queue id, starting from 1
+     */
+    public int selectQueue(int clientNum) {
+        double fair = 1.0 / Math.max(1, clientNum);
+        int queue = 1;
+        for (int i = 0; i < shares.length; i++) {
+            if (shares[i] >= fair) {
+                queue = i + 1;
+            }
+        }
+        return queue;
+    }
+
+    /**
+     * max rate of a queue in the unit of the bandwidth
+     */
+    public double getMaxRate(int queue, double bandwidth) {
+        return shares[queue - 1] * bandwidth;
+    }
+
+    public double getMinRate(double bandwidth) {
+        return minShare * bandwidth;
+    }
+
+    /**
+     * queue setup a port of the given bandwidth (Mbit/s) is expected to
+     * have, for logging
+     */
+    public String describeQueues(double bandwidth) {
+        StringBuilder sb = new StringBuilder();
+        for (int q = 1; q <= shares.length; q++) {
+            if (q > 1) {
+                sb.append(", ");
+            }
+            sb.append("queue ").append(q)
+              .append(" min ").append(getMinRate(bandwidth))
+              .append(" max ").append(getMaxRate(q, bandwidth)).append(" Mbit/s");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Shape the traffic to a client into a queue of its AP port, unless a
+     * limit is already in place. Only in shape mode.
+     *
+     * @param sw switch of the client's AP
+     * @param clt
+     * @param port AP port
+     * @param clientNum clients of the AP
+     * @return false if nothing was written
+     */
+    public boolean limitDownlink(IOFSwitch sw, Client clt, short port, int clientNum) {
+        if (mode != Mode.SHAPE || !startLimit(clt.getMacAddress().toLong(), false)) {
+            return false;
+        }
+        int queue = selectQueue(clientNum);
+        if (!write(sw, makeDownlinkLimit(clt, port, queue))) {
+            clearClient(clt.getMacAddress().toLong());
+            return false;
+        }
+        log.info("Client {} downlink limited to queue {} on port {}", new Object[] {
+                clt.getMacAddress(), queue, port });
+        return true;
+    }
+
+    /**
+     * Drop the IP traffic from a client, unless it is dropped already.
+     * Only in drop mode.
+     *
+     * @return false if nothing was written
+     */
+    public boolean dropUplink(IOFSwitch sw, Client clt) {
+        if (mode != Mode.DROP || !startLimit(clt.getMacAddress().toLong(), true)) {
+            return false;
+        }
+        if (!write(sw, makeUplinkDrop(clt))) {
+            clearClient(clt.getMacAddress().toLong());
+            return false;
+        }
+        log.info("Client {} uplink: drop matched pkts", clt.getMacAddress());
+        return true;
+    }
+
+    /**
+     * Record a new limit of a client for the hold time
+     *
+     * @param uplink traffic from the client, otherwise to it
+     * @return false if a limit is in place already
+     */
+    boolean startLimit(long mac, boolean uplink) {
+        Long key = (mac << 1) | (uplink ? 1 : 0);
+        long now = System.currentTimeMillis();
+        Long expiry = limits.get(key);
+        if (expiry != null && expiry > now) {
+            return false;
+        }
+        limits.put(key, now + holdTime * 1000L);
+        return true;
+    }
+
+    /**
+     * Limit a flow found in the flow statistics. In shape mode only flows
+     * with an output action can be limited.
+     *
+     * @param clientNum clients sharing the output port of the flow
+     * @return false if nothing was written
+     */
+    public boolean limitFlow(IOFSwitch sw, OFFlowStatisticsReply flow, int clientNum) {
+        OFFlowMod flowMod = makeFlowLimit(flow, selectQueue(clientNum));
+        if (flowMod == null) {
+            log.debug("Flow {} has no output port, not limited", flow.getMatch());
+            return false;
+        }
+        return write(sw, flowMod);
+    }
+
+    /**
+     * forget the limits of a client, e.g. after it left
+     */
+    public void clearClient(long mac) {
+        limits.remove(mac << 1);
+        limits.remove((mac << 1) | 1);
+    }
+
+    /**
+     * forget the limits of a client which moves away from its AP and
+     * delete its downlink limit, it would keep its traffic on the old AP
+     * port until the hold time is over
+     *
+     * @param sw switch of the AP the client leaves
+     */
+    public void clearClient(IOFSwitch sw, long mac) {
+        Long expiry = limits.remove(mac << 1);
+        limits.remove((mac << 1) | 1);
+        if (expiry == null || expiry <= System.currentTimeMillis() || sw == null) {
+            return;
+        }
+        OFFlowMod delete = (OFFlowMod) factory.getMessage(OFType.FLOW_MOD);
+        delete.setCommand(OFFlowMod.OFPFC_DELETE_STRICT);
+        delete.setMatch(makeDownlinkMatch(mac));
+        delete.setPriority(PRIORITY);
+        delete.setOutPort(OFPort.OFPP_NONE);
+        delete.setLengthU(OFFlowMod.MINIMUM_LENGTH);
+        write(sw, delete);
+    }
+
+    private static OFMatch makeDownlinkMatch(long mac) {
+        OFMatch match = new OFMatch();
+        match.setWildcards(Wildcards.FULL.matchOn(Flag.DL_DST));
+        match.setDataLayerDestination(MACAddress.valueOf(mac).toBytes());
+        return match;
+    }
+
+    OFFlowMod makeDownlinkLimit(Client clt, short port, int queue) {
+        OFFlowMod flowMod = (OFFlowMod) factory.getMessage(OFType.FLOW_MOD);
+        flowMod.setCookie(COOKIE);
+        flowMod.setPriority(PRIORITY);
+        flowMod.setOutPort(OFPort.OFPP_NONE);
+        flowMod.setMatch(makeDownlinkMatch(clt.getMacAddress().toLong()));
+        // this buffer_id is needed for avoiding a BAD_REQUEST error
+        flowMod.setBufferId(OFPacketOut.BUFFER_ID_NONE);
+        flowMod.setIdleTimeout(IDLE_TIMEOUT);
+        flowMod.setCommand(OFFlowMod.OFPFC_ADD);
+        flowMod.setHardTimeout(holdTime);
+        flowMod.setActions(Collections.singletonList(
+                (OFAction) new OFActionEnqueue(port, queue)));
+        flowMod.setLengthU(OFFlowMod.MINIMUM_LENGTH + OFActionEnqueue.MINIMUM_LENGTH);
+        return flowMod;
+    }
+
+    OFFlowMod makeUplinkDrop(Client clt) {
+        OFMatch match = new OFMatch();
+        match.setWildcards(Wildcards.FULL.matchOn(Flag.DL_SRC)
+                                         .matchOn(Flag.DL_TYPE)
+                                         .matchOn(Flag.NW_SRC)
+                                         .withNwSrcMask(32));
+        match.setDataLayerSource(clt.getMacAddress().toBytes())
+             .setDataLayerType((short)0x0800)
+             .setNetworkSource(IPv4.toIPv4Address(clt.getIpAddress().getAddress()));
+
+        OFFlowMod flowMod = (OFFlowMod) factory.getMessage(OFType.FLOW_MOD);
+        flowMod.setCookie(COOKIE);
+        flowMod.setPriority(PRIORITY);
+        flowMod.setOutPort(OFPort.OFPP_NONE);
+        flowMod.setMatch(match);
+        // this buffer_id is needed for avoiding a BAD_REQUEST error
+        flowMod.setBufferId(OFPacketOut.BUFFER_ID_NONE);
+        flowMod.setIdleTimeout(IDLE_TIMEOUT);
+        // set no action to drop
+        flowMod.setCommand(OFFlowMod.OFPFC_MODIFY);
+        flowMod.setHardTimeout((short) 0);
+        flowMod.setActions(new ArrayList<OFAction>());
+        return flowMod;
+    }
+
+    /**
+     * The flow is replaced (ADD) rather than modified, OpenFlow 1.0 does
+     * not change the timeouts of a modified flow, and the limit has to
+     * end after the hold time.
+     *
+     * @return null if the flow has no output action to turn into a queue
+     */
+    OFFlowMod makeFlowLimit(OFFlowStatisticsReply flow, int queue) {
+        List<OFAction> actions = new ArrayList<OFAction>();
+        int length = 0;
+        if (mode == Mode.SHAPE) {
+            boolean changed = false;
+            for (OFAction action: flow.getActions()) {
+                if (action instanceof OFActionOutput && !changed) {
+                    action = new OFActionEnqueue(((OFActionOutput) action).getPort(), queue);
+                    changed = true;
+                }
+                actions.add(action);
+                length += action.getLengthU();
+            }
+            if (!changed) {
+                return null;
+            }
+        }
+
+        OFFlowMod flowMod = (OFFlowMod) factory.getMessage(OFType.FLOW_MOD);
+        flowMod.setOutPort(OFPort.OFPP_NONE);
+        flowMod.setMatch(flow.getMatch());
+        flowMod.setPriority(flow.getPriority());
+        // this buffer_id is needed for avoiding a BAD_REQUEST error
+        flowMod.setBufferId(OFPacketOut.BUFFER_ID_NONE);
+        flowMod.setCookie(flow.getCookie());
+        flowMod.setHardTimeout(holdTime);
+        flowMod.setIdleTimeout(flow.getIdleTimeout() != 0 ? flow.getIdleTimeout() : IDLE_TIMEOUT);
+        flowMod.setActions(actions);
+        flowMod.setLengthU(OFFlowMod.MINIMUM_LENGTH + length);
+        flowMod.setCommand(OFFlowMod.OFPFC_ADD);
+        return flowMod;
+    }
+
+    private boolean write(IOFSwitch sw, OFFlowMod flowMod) {
+        if (sw == null) {
+            log.debug("Switch is not connected!");
+            return false;
+        }
+        try {
+            sw.write(flowMod, null);
+            sw.flush();
+            return true;
+        } catch (IOException e) {
+            log.error("tried to write flow_mod to {} but failed: {}",
+                        sw.getId(), e.getMessage());
+        } catch (Exception e) {
+            log.error("Failure to modify flow entries", e);
+        }
+        return false;
+    }
+}
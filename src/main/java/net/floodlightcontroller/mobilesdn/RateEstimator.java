@@ -0,0 +1,370 @@
+/**
+*    Copyright 2013 University of Helsinki
+*
+*    Licensed under the Apache License, Version 2.0 (the "License"); you may
+*    not use this file except in compliance with the License. You may obtain
+*    a copy of the License at
+*
+*         http://www.apache.org/licenses/LICENSE-2.0
+*
+*    Unless required by applicable law or agreed to in writing, software
+*    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+*    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+*    License for the specific language governing permissions and limitations
+*    under the License.
+**/
+
+package net.floodlightcontroller.mobilesdn;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Rate estimator of one AP or client.
+ *
+ * Samples are either rates (e.g. reported by an agent) or readings of a
+ * cumulative byte counter (e.g. OpenFlow port or flow stats), from which
+ * the rate since the previous reading is derived. A counter which went
+ * backwards is taken as a wrap-around if it was close to the end of its
+ * range, otherwise as a reset: the new reading becomes the base and no
+ * rate is derived from it.
+ *
+ * The estimator keeps an exponentially weighted moving average with a
+ * half-life in seconds (samples may come at irregular times) and a ring
+ * of the last samples, from which percentiles over a time window are
+ * computed.
+ *
+ * Lock-free: any thread may add samples or read the estimate. A reader
+ * may miss a sample which is being added at the same time.
+ *
+ * The average and the recent samples can be written to a stream and read
+ * back by another process (see writeTo/readFrom), sample times are kept
+ * as ages since they are only valid within one process.
+ *
+ * @author Yanhe Liu <yanhe.liu@cs.helsinki.fi>
+ *
+ */
+public class RateEstimator {
+    // defaults
+    static final int DEFAULT_SIZE = 32;
+    static final double DEFAULT_WINDOW = 30;   // seconds
+    private static volatile double defaultHalfLife = 4;  // seconds
+
+    /**
+     * last counter reading and average, replaced as a whole on each sample
+     */
+    private static final class State {
+        final boolean hasCounter;
+        final long counterTime;     // System.nanoTime()
+        final long counter;
+        final boolean hasRate;
+        final long rateTime;
+        final double average;
+
+        State(boolean hasCounter, long counterTime, long counter,
+                boolean hasRate, long rateTime, double average) {
+            this.hasCounter = hasCounter;
+            this.counterTime = counterTime;
+            this.counter = counter;
+            this.hasRate = hasRate;
+            this.rateTime = rateTime;
+            this.average = average;
+        }
+    }
+
+    private static final State INITIAL = new State(false, 0, 0, false, 0, 0);
+
+    private final double halfLife;
+    private final long window;          // milliseconds
+    private final double counterScale;
+    private final long counterMask;
+    private final long base = System.nanoTime();
+
+    private final AtomicReference<State> state = new AtomicReference<State>(INITIAL);
+    // each slot: float rate in the high word, sample time in milliseconds
+    // since base in the low word, so that a slot is written atomically
+    private final AtomicLongArray ring;
+    private final int mask;
+    private final AtomicLong written = new AtomicLong();
+
+    public RateEstimator() {
+        this(1);
+    }
+
+    /**
+     * @param counterScale factor for rates derived from counters, e.g. 8
+     * for bit/s from byte counters
+     */
+    public RateEstimator(double counterScale) {
+        this(DEFAULT_SIZE, DEFAULT_WINDOW, defaultHalfLife, counterScale, 64);
+    }
+
+    /**
+     * @param size number of samples kept, rounded up to a power of two
+     * @param window time window for percentiles in seconds
+     * @param halfLife EWMA half-life in seconds
+     * @param counterScale factor for rates derived from counters
+     * @param counterBits width of the counters, 1 to 64
+     */
+    public RateEstimator(int size, double window, double halfLife,
+            double counterScale, int counterBits) {
+        if (halfLife <= 0 || window <= 0 || counterBits < 1 || counterBits > 64) {
+            throw new IllegalArgumentException("invalid rate estimator parameters");
+        }
+        int n = 1;
+        while (n < size) {
+            n <<= 1;
+        }
+        this.ring = new AtomicLongArray(n);
+        this.mask = n - 1;
+        this.window = (long) (window * 1000);
+        this.halfLife = halfLife;
+        this.counterScale = counterScale;
+        this.counterMask = counterBits == 64 ? -1L : (1L << counterBits) - 1;
+    }
+
+    /**
+     * half-life used by estimators created from now on
+     */
+    public static void setDefaultHalfLife(double seconds) {
+        if (seconds <= 0) {
+            throw new IllegalArgumentException("half-life must be positive");
+        }
+        defaultHalfLife = seconds;
+    }
+
+    public static double getDefaultHalfLife() {
+        return defaultHalfLife;
+    }
+
+    public double getHalfLife() {
+        return halfLife;
+    }
+
+    /**
+     * Add a rate sample taken now
+     */
+    public void addRate(double rate) {
+        addRate(System.nanoTime(), rate);
+    }
+
+    /**
+     * Add a rate sample
+     *
+     * @param time System.nanoTime() of the sample
+     */
+    public void addRate(long time, double rate) {
+        State s, n;
+        do {
+            s = state.get();
+            n = new State(s.hasCounter, s.counterTime, s.counter,
+                    true, time, average(s, time, rate));
+        } while (!state.compareAndSet(s, n));
+        record(time, rate);
+    }
+
+    /**
+     * Add a counter reading and derive the rate since the previous one
+     *
+     * @param time System.nanoTime() of the reading
+     * @param counter cumulative counter value
+     * @return the derived rate, or -1 if there is none (first reading,
+     * counter reset or no time elapsed)
+     */
+    public double addCounter(long time, long counter) {
+        State s, n;
+        double rate;
+        counter &= counterMask;
+        do {
+            s = state.get();
+            rate = -1;
+            if (s.hasCounter && time - s.counterTime <= 0) {
+                return -1;
+            }
+            if (s.hasCounter) {
+                long diff = counterDiff(s.counter, counter);
+                if (diff >= 0) {
+                    rate = diff * counterScale / ((time - s.counterTime) / 1e9);
+                }
+            }
+            if (rate >= 0) {
+                n = new State(true, time, counter, true, time, average(s, time, rate));
+            } else {
+                n = new State(true, time, counter, s.hasRate, s.rateTime, s.average);
+            }
+        } while (!state.compareAndSet(s, n));
+
+        if (rate >= 0) {
+            record(time, rate);
+        }
+        return rate;
+    }
+
+    /**
+     * @return counter increase, or -1 for a reset
+     */
+    long counterDiff(long prev, long cur) {
+        // compare as unsigned values within the counter width
+        if (cur + Long.MIN_VALUE >= prev + Long.MIN_VALUE) {
+            return cur - prev;
+        }
+        long quarter = counterMask >>> 2;
+        if (prev + Long.MIN_VALUE > (counterMask - quarter) + Long.MIN_VALUE
+                && cur + Long.MIN_VALUE <= quarter + Long.MIN_VALUE) {
+            long diff = (cur - prev) & counterMask;
+            return diff < 0 ? Long.MAX_VALUE : diff;
+        }
+        return -1;
+    }
+
+    private double average(State s, long time, double rate) {
+        if (!s.hasRate) {
+            return rate;
+        }
+        double dt = (time - s.rateTime) / 1e9;
+        if (dt <= 0) {
+            // same time as the previous sample: weigh both equally
+            return (s.average + rate) / 2;
+        }
+        double alpha = 1 - Math.exp(-Math.log(2) * dt / halfLife);
+        return s.average + alpha * (rate - s.average);
+    }
+
+    private void record(long time, double rate) {
+        long ms = (time - base) / 1000000;
+        long slot = ((long) Float.floatToIntBits((float) rate) << 32)
+                | (ms & 0xffffffffL);
+        ring.set((int) (written.getAndIncrement() & mask), slot);
+    }
+
+    /**
+     * @return moving average, 0 before the first sample
+     */
+    public double getRate() {
+        return state.get().average;
+    }
+
+    public boolean hasRate() {
+        return state.get().hasRate;
+    }
+
+    /**
+     * @return number of samples in the ring
+     */
+    public int getSampleCount() {
+        return (int) Math.min(written.get(), ring.length());
+    }
+
+    public double getP50() {
+        return getPercentile(50);
+    }
+
+    public double getP95() {
+        return getPercentile(95);
+    }
+
+    /**
+     * Percentile (nearest rank) of the samples within the time window
+     *
+     * @param p percentile, 0 < p <= 100
+     * @return 0 if there is no recent sample
+     */
+    public double getPercentile(double p) {
+        return getPercentile(p, System.nanoTime());
+    }
+
+    double getPercentile(double p, long now) {
+        int n = getSampleCount();
+        float[] values = new float[n];
+        int count = 0;
+        int nowMs = (int) ((now - base) / 1000000);
+        for (int i = 0; i < n; i++) {
+            long slot = ring.get(i);
+            // time difference on 32 bits, correct across wrap-around
+            int age = nowMs - (int) slot;
+            if (age >= 0 && age <= window) {
+                values[count++] = Float.intBitsToFloat((int) (slot >>> 32));
+            }
+        }
+        if (count == 0) {
+            return 0;
+        }
+        Arrays.sort(values, 0, count);
+        int rank = (int) Math.ceil(p / 100 * count);
+        return values[Math.max(0, Math.min(count, rank) - 1)];
+    }
+
+    /**
+     * Write the average and the samples within the time window
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        long now = System.nanoTime();
+        State s = state.get();
+        int nowMs = (int) ((now - base) / 1000000);
+
+        long w = written.get();
+        int n = getSampleCount();
+        int[] ages = new int[n];
+        float[] values = new float[n];
+        int count = 0;
+        for (int i = 0; i < n; i++) {
+            // oldest first
+            long slot = ring.get((int) ((w - n + i) & mask));
+            int age = nowMs - (int) slot;
+            if (age >= 0 && age <= window) {
+                ages[count] = age;
+                values[count++] = Float.intBitsToFloat((int) (slot >>> 32));
+            }
+        }
+
+        out.writeBoolean(s.hasRate);
+        out.writeDouble(s.average);
+        out.writeInt(s.hasRate ? (int) ((now - s.rateTime) / 1000000) : 0);
+        out.writeShort(count);
+        for (int i = 0; i < count; i++) {
+            out.writeInt(ages[i]);
+            out.writeFloat(values[i]);
+        }
+    }
+
+    /**
+     * Replace the estimate with one written by writeTo. The last counter
+     * reading is not restored, the next one becomes the base again.
+     *
+     * @param elapsed milliseconds since the data was written, added to the
+     * age of every sample
+     */
+    public void readFrom(DataInput in, long elapsed) throws IOException {
+        long now = System.nanoTime();
+        boolean hasRate = in.readBoolean();
+        double average = in.readDouble();
+        long rateAge = in.readInt() + elapsed;
+        int count = in.readShort();
+
+        reset();
+        state.set(new State(false, 0, 0, hasRate, now - rateAge * 1000000, average));
+        for (int i = 0; i < count; i++) {
+            long age = in.readInt() + elapsed;
+            float rate = in.readFloat();
+            if (age <= window) {
+                record(now - age * 1000000, rate);
+            }
+        }
+    }
+
+    /**
+     * Forget all samples and the last counter reading
+     */
+    public void reset() {
+        state.set(INITIAL);
+        written.set(0);
+        for (int i = 0; i < ring.length(); i++) {
+            ring.set(i, 0);
+        }
+    }
+}
@@ -0,0 +1,250 @@
+/**
+*    Copyright 2013 University of Helsinki
+*
+*    Licensed under the Apache License, Version 2.0 (the "License"); you may
+*    not use this file except in compliance with the License. You may obtain
+*    a copy of the License at
+*
+*         http://www.apache.org/licenses/LICENSE-2.0
+*
+*    Unless required by applicable law or agreed to in writing, software
+*    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+*    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+*    License for the specific language governing permissions and limitations
+*    under the License.
+**/
+
+package net.floodlightcontroller.mobilesdn;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import net.floodlightcontroller.util.MACAddress;
+
+import org.sdnplatform.sync.IClosableIterator;
+import org.sdnplatform.sync.IStoreClient;
+import org.sdnplatform.sync.IStoreListener;
+import org.sdnplatform.sync.ISyncService;
+import org.sdnplatform.sync.ISyncService.Scope;
+import org.sdnplatform.sync.Versioned;
+import org.sdnplatform.sync.error.SyncException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Directory of the APs of all shards in a sharded deployment.
+ *
+ * Every master instance publishes a summary (SSID, auth, bandwidth, load)
+ * of its own APs into a GLOBAL sync store keyed by BSSID. The other
+ * instances keep a local copy, updated by store notifications, and use it
+ * to consider APs of other shards as offloading candidates without asking
+ * their owner.
+ *
+ * Owners republish their APs every interval. A record which is not
+ * republished within EXPIRY_INTERVALS intervals, e.g. because its shard
+ * died, is dropped from the local copy by expire.
+ *
+ * @author Yanhe Liu <yanhe.liu@cs.helsinki.fi>
+ *
+ */
+public class ShardDirectory {
+    protected static Logger log = LoggerFactory.getLogger(ShardDirectory.class);
+
+    public static final String STORE = ShardDirectory.class.getCanonicalName();
+    static final byte VERSION = 1;
+    static final int EXPIRY_INTERVALS = 3;
+
+    /**
+     * Summary of an AP owned by another shard
+     */
+    public static class RemoteAP {
+        public final String shard;
+        public final long bssid;
+        public final String bssidString;
+        public final String ssid;
+        public final String auth;
+        public final double bandwidth;  // Mbps
+        public final double load;       // Mbps
+        public final int clientNum;
+        final long updateTime;          // local time of the last publish
+
+        RemoteAP(String shard, long bssid, String bssidString, String ssid,
+                String auth, double bandwidth, double load, int clientNum,
+                long updateTime) {
+            this.shard = shard;
+            this.bssid = bssid;
+            this.bssidString = bssidString;
+            this.ssid = ssid;
+            this.auth = auth;
+            this.bandwidth = bandwidth;
+            this.load = load;
+            this.clientNum = clientNum;
+            this.updateTime = updateTime;
+        }
+    }
+
+    private final String localShard;
+    private final IStoreClient<Long, byte[]> store;
+    private final Map<Long, RemoteAP> remoteAPs = new ConcurrentHashMap<Long, RemoteAP>();
+    private Set<Long> published = new HashSet<Long>();  // guarded by this
+
+    public ShardDirectory(ISyncService syncService, String localShard)
+            throws SyncException {
+        this.localShard = localShard;
+        syncService.registerStore(STORE, Scope.GLOBAL);
+        store = syncService.getStoreClient(STORE, Long.class, byte[].class);
+        store.addStoreListener(new IStoreListener<Long>() {
+            @Override
+            public void keysModified(Iterator<Long> keys, UpdateType type) {
+                while (keys.hasNext()) {
+                    refresh(keys.next());
+                }
+            }
+        });
+
+        IClosableIterator<Entry<Long, Versioned<byte[]>>> entries = store.entries();
+        try {
+            while (entries.hasNext()) {
+                Entry<Long, Versioned<byte[]>> e = entries.next();
+                update(e.getKey(), e.getValue().getValue());
+            }
+        } finally {
+            entries.close();
+        }
+    }
+
+    /**
+     * Publish the current state of the local APs and withdraw the ones
+     * which are gone
+     */
+    public synchronized void publish(Collection<APAgent> agents) {
+        Set<Long> current = new HashSet<Long>();
+        try {
+            for (APAgent agent: agents) {
+                if (agent.getBSSID() == null || agent.getBSSID().length() == 0) {
+                    continue;   // not configured, can not be a candidate
+                }
+                long bssid = APRegistry.parseBSSID(agent.getBSSID());
+                store.put(bssid, encode(agent));
+                current.add(bssid);
+            }
+            for (Long bssid: published) {
+                if (!current.contains(bssid)) {
+                    store.delete(bssid);
+                }
+            }
+        } catch (SyncException e) {
+            log.error("Failure publishing the APs of shard " + localShard, e);
+            return;
+        } catch (IOException e) {
+            log.error("Failure encoding the APs of shard " + localShard, e);
+            return;
+        }
+        published = current;
+    }
+
+    /**
+     * @return the AP of another shard with this BSSID, or null
+     */
+    public RemoteAP getRemoteAP(long bssid) {
+        return remoteAPs.get(bssid);
+    }
+
+    public int getRemoteAPNum() {
+        return remoteAPs.size();
+    }
+
+    /**
+     * Drop the APs of other shards which were not republished lately
+     *
+     * @param interval publish interval of all shards in milliseconds
+     * @return number of dropped APs
+     */
+    public int expire(long interval) {
+        return expire(interval, System.currentTimeMillis());
+    }
+
+    int expire(long interval, long now) {
+        int num = 0;
+        Iterator<RemoteAP> it = remoteAPs.values().iterator();
+        while (it.hasNext()) {
+            RemoteAP ap = it.next();
+            if (now - ap.updateTime > EXPIRY_INTERVALS * interval) {
+                it.remove();
+                num++;
+                log.info("AP {} of shard {} expired", ap.bssidString, ap.shard);
+            }
+        }
+        return num;
+    }
+
+    private void refresh(Long bssid) {
+        try {
+            update(bssid, store.getValue(bssid));
+        } catch (SyncException e) {
+            log.error("Failure reading AP " + MACAddress.valueOf(bssid), e);
+        }
+    }
+
+    private void update(Long bssid, byte[] value) {
+        if (value == null) {
+            remoteAPs.remove(bssid);
+            return;
+        }
+        try {
+            RemoteAP ap = decode(bssid, value, System.currentTimeMillis());
+            if (ap.shard.equals(localShard)) {
+                remoteAPs.remove(bssid);
+            } else {
+                remoteAPs.put(bssid, ap);
+            }
+        } catch (IOException e) {
+            log.warn("Ignore corrupt directory record of AP {}",
+                    MACAddress.valueOf(bssid));
+        }
+    }
+
+    private byte[] encode(APAgent agent) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(VERSION);
+        out.writeUTF(localShard);
+        out.writeUTF(agent.getBSSID());
+        out.writeUTF(agent.getSSID());
+        out.writeUTF(agent.getAuth());
+        out.writeFloat((float) agent.getDownlinkBW());
+        // recent peak, as for the local APs in the offload planner
+        out.writeFloat((float) (Math.max(agent.getDownRate(),
+                agent.getDownRateEstimator().getP95()) / 1000000));
+        out.writeShort(agent.getClientNum());
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static RemoteAP decode(long bssid, byte[] value, long now) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(value));
+        byte v = in.readByte();
+        if (v != VERSION) {
+            throw new IOException("unknown record version " + v);
+        }
+        String shard = in.readUTF();
+        String bssidString = in.readUTF();
+        String ssid = in.readUTF();
+        String auth = in.readUTF();
+        double bandwidth = in.readFloat();
+        double load = in.readFloat();
+        int clientNum = in.readUnsignedShort();
+        return new RemoteAP(shard, bssid, bssidString, ssid, auth, bandwidth, load,
+                clientNum, now);
+    }
+}
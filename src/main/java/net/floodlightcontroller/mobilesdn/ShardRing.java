@@ -0,0 +1,171 @@
+/**
+*    Copyright 2013 University of Helsinki
+*
+*    Licensed under the Apache License, Version 2.0 (the "License"); you may
+*    not use this file except in compliance with the License. You may obtain
+*    a copy of the License at
+*
+*         http://www.apache.org/licenses/LICENSE-2.0
+*
+*    Unless required by applicable law or agreed to in writing, software
+*    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+*    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+*    License for the specific language governing permissions and limitations
+*    under the License.
+**/
+
+package net.floodlightcontroller.mobilesdn;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Consistent hashing ring assigning switches (by IP address) to the
+ * master instances of a sharded deployment.
+ *
+ * Every shard has a number of virtual points on a 64-bit ring; a key is
+ * owned by the shard of the first point at or after its hash. Adding or
+ * removing a shard only moves the keys next to its points. The ring is
+ * rebuilt on changes and read without locking.
+ *
+ * @author Yanhe Liu <yanhe.liu@cs.helsinki.fi>
+ *
+ */
+public class ShardRing {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int DEFAULT_POINTS = 64;
+
+    private static class Ring {
+        final long[] points;        // sorted
+        final String[] owners;      // shard of each point
+        final List<String> shards;
+
+        Ring(long[] p, String[] o, List<String> s) {
+            points = p;
+            owners = o;
+            shards = s;
+        }
+    }
+
+    private final int pointsPerShard;
+    private final String localShard;
+    private volatile Ring ring = new Ring(new long[0], new String[0],
+                                          Collections.<String>emptyList());
+
+    /**
+     * @param localShard id of this master instance
+     */
+    public ShardRing(String localShard) {
+        this(localShard, DEFAULT_POINTS);
+    }
+
+    public ShardRing(String localShard, int pointsPerShard) {
+        if (pointsPerShard < 1) {
+            throw new IllegalArgumentException("a shard needs at least one point");
+        }
+        this.localShard = localShard;
+        this.pointsPerShard = pointsPerShard;
+    }
+
+    public String getLocalShard() {
+        return localShard;
+    }
+
+    public synchronized void addShard(String shard) {
+        List<String> shards = new ArrayList<String>(ring.shards);
+        if (!shards.contains(shard)) {
+            shards.add(shard);
+            rebuild(shards);
+        }
+    }
+
+    public synchronized void removeShard(String shard) {
+        List<String> shards = new ArrayList<String>(ring.shards);
+        if (shards.remove(shard)) {
+            rebuild(shards);
+        }
+    }
+
+    public List<String> getShards() {
+        return ring.shards;
+    }
+
+    /**
+     * @return the shard owning the key, null if there is no shard
+     */
+    public String getShard(String key) {
+        Ring r = ring;
+        if (r.points.length == 0) {
+            return null;
+        }
+        int i = Arrays.binarySearch(r.points, hash(key));
+        if (i < 0) {
+            i = -i - 1;
+        }
+        return r.owners[i == r.points.length ? 0 : i];
+    }
+
+    /**
+     * whether the key is owned by this instance; everything is local as
+     * long as the ring is empty
+     */
+    public boolean isLocal(String key) {
+        String shard = getShard(key);
+        return shard == null || shard.equals(localShard);
+    }
+
+    private void rebuild(List<String> shards) {
+        int n = shards.size() * pointsPerShard;
+        long[] hashes = new long[n];
+        String[] owners = new String[n];
+        int k = 0;
+        for (String shard: shards) {
+            for (int i = 0; i < pointsPerShard; i++) {
+                hashes[k] = hash(shard + "#" + i);
+                owners[k++] = shard;
+            }
+        }
+
+        // sort points and owners together
+        Integer[] order = new Integer[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = i;
+        }
+        final long[] h = hashes;
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return h[a] < h[b] ? -1 : (h[a] == h[b] ? 0 : 1);
+            }
+        });
+        long[] points = new long[n];
+        String[] pointOwners = new String[n];
+        for (int i = 0; i < n; i++) {
+            points[i] = hashes[order[i]];
+            pointOwners[i] = owners[order[i]];
+        }
+        ring = new Ring(points, pointOwners,
+                Collections.unmodifiableList(new ArrayList<String>(shards)));
+    }
+
+    /**
+     * 64-bit FNV-1a with a final mix, the same on every instance
+     */
+    static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b: key.getBytes(UTF8)) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
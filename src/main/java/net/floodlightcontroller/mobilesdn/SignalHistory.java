@@ -0,0 +1,250 @@
+/**
+*    Copyright 2013 University of Helsinki
+*
+*    Licensed under the Apache License, Version 2.0 (the "License"); you may
+*    not use this file except in compliance with the License. You may obtain
+*    a copy of the License at
+*
+*         http://www.apache.org/licenses/LICENSE-2.0
+*
+*    Unless required by applicable law or agreed to in writing, software
+*    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+*    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+*    License for the specific language governing permissions and limitations
+*    under the License.
+**/
+
+package net.floodlightcontroller.mobilesdn;
+
+/**
+ * Signal levels of the APs around one client over its last scans.
+ *
+ * Every AP has a fixed slot of one byte per scan (level in dBm), used as
+ * a ring indexed by the scan sequence number, and BSSIDs are kept as
+ * 48-bit longs. Nothing is allocated per scan once the client has seen
+ * its usual set of APs. An AP which appears in the middle of the history
+ * gets its first level for the scans before, as the former list-based
+ * record did. APs not seen during a whole history length are dropped.
+ *
+ * Not thread-safe, the owning Client synchronizes access.
+ *
+ * @author Yanhe Liu <yanhe.liu@cs.helsinki.fi>
+ *
+ */
+public class SignalHistory {
+    static final int DEFAULT_LENGTH = 3;
+    private static volatile int defaultLength = DEFAULT_LENGTH;
+
+    private final int length;
+    private final long[] scanTimes;
+    private int scanNum = 0;        // scans since clear, sequence of the next one
+
+    // per AP slot
+    private int apNum = 0;
+    private long[] bssids = new long[8];
+    private int[] lastSeq = new int[8];
+    private byte[] levels;
+
+    public SignalHistory() {
+        this(defaultLength);
+    }
+
+    /**
+     * @param length number of scans kept
+     */
+    public SignalHistory(int length) {
+        if (length < 1 || length > 127) {
+            throw new IllegalArgumentException("invalid signal history length " + length);
+        }
+        this.length = length;
+        this.scanTimes = new long[length];
+        this.levels = new byte[bssids.length * length];
+    }
+
+    /**
+     * history length of clients created from now on
+     */
+    public static void setDefaultLength(int length) {
+        if (length < 1 || length > 127) {
+            throw new IllegalArgumentException("invalid signal history length " + length);
+        }
+        defaultLength = length;
+    }
+
+    public static int getDefaultLength() {
+        return defaultLength;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * @return number of scans recorded, at most the history length
+     */
+    public int getScanNum() {
+        return Math.min(scanNum, length);
+    }
+
+    public boolean isFull() {
+        return scanNum >= length;
+    }
+
+    /**
+     * @return time of the latest scan, 0 if there is none
+     */
+    public long getLastScanTime() {
+        return scanNum == 0 ? 0 : scanTimes[(scanNum - 1) % length];
+    }
+
+    public void clear() {
+        scanNum = 0;
+        apNum = 0;
+    }
+
+    /**
+     * Record a scan result
+     *
+     * @param time scan time (ms)
+     * @param bssids nearby APs
+     * @param dbm signal level of each AP, limited to -128..127
+     */
+    public void addScan(long time, long[] bssids, int[] dbm) {
+        int seq = scanNum++;
+        int pos = seq % length;
+        scanTimes[pos] = time;
+
+        for (int i = 0; i < bssids.length; i++) {
+            byte level = (byte) Math.max(Byte.MIN_VALUE, Math.min(Byte.MAX_VALUE, dbm[i]));
+            int slot = indexOf(bssids[i]);
+            if (slot < 0) {
+                slot = addSlot(bssids[i], seq);
+            }
+            int base = slot * length;
+            // fill the scans this AP was missing in, at most the whole ring
+            int from = Math.max(Math.max(lastSeq[slot] + 1, seq - length + 1), 0);
+            for (int s = from; s < seq; s++) {
+                levels[base + s % length] = level;
+            }
+            levels[base + pos] = level;
+            lastSeq[slot] = seq;
+        }
+    }
+
+    private int indexOf(long bssid) {
+        for (int i = 0; i < apNum; i++) {
+            if (bssids[i] == bssid) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int addSlot(long bssid, int seq) {
+        if (apNum == bssids.length) {
+            dropStale(seq);
+        }
+        if (apNum == bssids.length) {
+            int cap = apNum * 2;
+            long[] nb = new long[cap];
+            int[] ns = new int[cap];
+            byte[] nl = new byte[cap * length];
+            System.arraycopy(bssids, 0, nb, 0, apNum);
+            System.arraycopy(lastSeq, 0, ns, 0, apNum);
+            System.arraycopy(levels, 0, nl, 0, apNum * length);
+            bssids = nb;
+            lastSeq = ns;
+            levels = nl;
+        }
+        int slot = apNum++;
+        bssids[slot] = bssid;
+        // no sample yet: everything before is missing
+        lastSeq[slot] = Integer.MIN_VALUE / 2;
+        return slot;
+    }
+
+    // remove the APs which were not seen in the whole history
+    private void dropStale(int seq) {
+        int n = 0;
+        for (int i = 0; i < apNum; i++) {
+            if (lastSeq[i] > seq - length) {
+                if (n != i) {
+                    bssids[n] = bssids[i];
+                    lastSeq[n] = lastSeq[i];
+                    System.arraycopy(levels, i * length, levels, n * length, length);
+                }
+                n++;
+            }
+        }
+        apNum = n;
+    }
+
+    /**
+     * @return whether the AP was seen in the latest scan
+     */
+    public boolean isNearby(long bssid) {
+        int slot = indexOf(bssid);
+        return slot >= 0 && lastSeq[slot] == scanNum - 1;
+    }
+
+    /**
+     * @return the APs seen in the latest scan
+     */
+    public long[] getNearbyAPs() {
+        int n = 0;
+        for (int i = 0; i < apNum; i++) {
+            if (lastSeq[i] == scanNum - 1) {
+                n++;
+            }
+        }
+        long[] result = new long[n];
+        n = 0;
+        for (int i = 0; i < apNum; i++) {
+            if (lastSeq[i] == scanNum - 1) {
+                result[n++] = bssids[i];
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Signal level of an AP some scans ago
+     *
+     * @param bssid
+     * @param age 0 for the latest scan, up to getScanNum() - 1
+     * @throws java.util.NoSuchElementException if the AP was not seen in
+     * the latest scan
+     */
+    public int getLevel(long bssid, int age) {
+        int slot = indexOf(bssid);
+        if (slot < 0 || lastSeq[slot] != scanNum - 1) {
+            throw new java.util.NoSuchElementException("AP not in the latest scan");
+        }
+        if (age < 0 || age >= getScanNum()) {
+            throw new IndexOutOfBoundsException("signal history age " + age);
+        }
+        return levels[slot * length + (scanNum - 1 - age) % length];
+    }
+
+    public int getLatestLevel(long bssid) {
+        return getLevel(bssid, 0);
+    }
+
+    public int getOldestLevel(long bssid) {
+        return getLevel(bssid, getScanNum() - 1);
+    }
+
+    /**
+     * @return level in the middle of the history
+     */
+    public int getMiddleLevel(long bssid) {
+        return getLevel(bssid, (getScanNum() - 1) / 2);
+    }
+
+    /**
+     * @return latest minus oldest level, positive if the signal improved
+     */
+    public int getTrend(long bssid) {
+        return getLatestLevel(bssid) - getOldestLevel(bssid);
+    }
+}
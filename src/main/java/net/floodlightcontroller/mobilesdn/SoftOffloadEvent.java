@@ -0,0 +1,100 @@
+/**
+*    Copyright 2013 University of Helsinki
+*
+*    Licensed under the Apache License, Version 2.0 (the "License"); you may
+*    not use this file except in compliance with the License. You may obtain
+*    a copy of the License at
+*
+*         http://www.apache.org/licenses/LICENSE-2.0
+*
+*    Unless required by applicable law or agreed to in writing, software
+*    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+*    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+*    License for the specific language governing permissions and limitations
+*    under the License.
+**/
+
+package net.floodlightcontroller.mobilesdn;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
+
+/**
+ * One entry of the SoftOffload change feed. Fields which do not apply to
+ * the event type are null and left out of the JSON form.
+ *
+ * @author Yanhe Liu <yanhe.liu@cs.helsinki.fi>
+ *
+ */
+@JsonInclude(Include.NON_NULL)
+public class SoftOffloadEvent {
+    // event types
+    public static final String JOIN = "join";
+    public static final String LEAVE = "leave";
+    public static final String RATE = "rate";
+    public static final String EVALUATION = "evaluation";
+    public static final String OFFLOAD = "offload";
+
+    private final long seq;
+    private final long time;
+    private final String type;
+    private final String client;    // MAC address
+    private final String agent;     // IP address
+    private final String target;    // BSSID
+    private final Double upRate;
+    private final Double downRate;
+    private final String result;
+
+    SoftOffloadEvent(long seq, long time, String type, String client,
+            String agent, String target, Double upRate, Double downRate,
+            String result) {
+        this.seq = seq;
+        this.time = time;
+        this.type = type;
+        this.client = client;
+        this.agent = agent;
+        this.target = target;
+        this.upRate = upRate;
+        this.downRate = downRate;
+        this.result = result;
+    }
+
+    public long getSeq() {
+        return seq;
+    }
+
+    /**
+     * @return wall clock time in milliseconds
+     */
+    public long getTime() {
+        return time;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public String getClient() {
+        return client;
+    }
+
+    public String getAgent() {
+        return agent;
+    }
+
+    public String getTarget() {
+        return target;
+    }
+
+    public Double getUpRate() {
+        return upRate;
+    }
+
+    public Double getDownRate() {
+        return downRate;
+    }
+
+    public String getResult() {
+        return result;
+    }
+}
@@ -0,0 +1,160 @@
+/**
+*    Copyright 2013 University of Helsinki
+*
+*    Licensed under the Apache License, Version 2.0 (the "License"); you may
+*    not use this file except in compliance with the License. You may obtain
+*    a copy of the License at
+*
+*         http://www.apache.org/licenses/LICENSE-2.0
+*
+*    Unless required by applicable law or agreed to in writing, software
+*    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+*    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+*    License for the specific language governing permissions and limitations
+*    under the License.
+**/
+
+package net.floodlightcontroller.mobilesdn;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Bounded log of SoftOffload events (client join/leave, rate changes,
+ * offloading evaluations and actions) with consecutive sequence numbers,
+ * so that consumers can follow the changes instead of downloading the
+ * whole state again.
+ *
+ * The newest events are kept in a ring; a consumer which falls further
+ * behind than its size loses events and has to read the full state again
+ * (see isLost). Readers can wait for new events (long polling).
+ *
+ * @author Yanhe Liu <yanhe.liu@cs.helsinki.fi>
+ *
+ */
+public class SoftOffloadEventLog {
+    public static final int DEFAULT_SIZE = 8192;
+
+    private final SoftOffloadEvent[] ring;
+    private long lastSeq = 0;   // guarded by this
+
+    public SoftOffloadEventLog() {
+        this(DEFAULT_SIZE);
+    }
+
+    public SoftOffloadEventLog(int size) {
+        if (size < 1) {
+            throw new IllegalArgumentException("event log size must be positive");
+        }
+        ring = new SoftOffloadEvent[size];
+    }
+
+    /**
+     * Append an event and wake up the waiting readers
+     *
+     * @return sequence number of the event
+     */
+    public synchronized long publish(String type, String client, String agent,
+            String target, Double upRate, Double downRate, String result) {
+        long seq = ++lastSeq;
+        ring[(int) (seq % ring.length)] = new SoftOffloadEvent(seq,
+                System.currentTimeMillis(), type, client, agent, target,
+                upRate, downRate, result);
+        notifyAll();
+        return seq;
+    }
+
+    public long clientJoined(Client clt) {
+        return publish(SoftOffloadEvent.JOIN, mac(clt), agentIp(clt),
+                null, null, null, null);
+    }
+
+    public long clientLeft(Client clt) {
+        return publish(SoftOffloadEvent.LEAVE, mac(clt), agentIp(clt),
+                null, null, null, null);
+    }
+
+    public long clientRate(Client clt, double upRate, double downRate) {
+        return publish(SoftOffloadEvent.RATE, mac(clt), agentIp(clt),
+                null, upRate, downRate, null);
+    }
+
+    /**
+     * @param result e.g. "move", "stay", "no-candidate"
+     * @param target BSSID chosen for the client, null if it stays
+     */
+    public long evaluated(Client clt, String result, String target) {
+        return publish(SoftOffloadEvent.EVALUATION, mac(clt), agentIp(clt),
+                target, null, null, result);
+    }
+
+    /**
+     * @param result how the flows follow the client, e.g. "resteer"
+     */
+    public long offloaded(Client clt, String target, String result) {
+        return publish(SoftOffloadEvent.OFFLOAD, mac(clt), agentIp(clt),
+                target, null, null, result);
+    }
+
+    public synchronized long getLastSeq() {
+        return lastSeq;
+    }
+
+    /**
+     * @return sequence number of the oldest event still kept
+     */
+    public synchronized long getFirstSeq() {
+        return Math.max(1, lastSeq - ring.length + 1);
+    }
+
+    /**
+     * whether events after the given sequence number have been dropped
+     * from the log already
+     */
+    public synchronized boolean isLost(long since) {
+        return since + 1 < getFirstSeq();
+    }
+
+    /**
+     * @param since sequence number of the last event the reader has
+     * @param max maximum number of events returned
+     * @return the events after since, oldest first
+     */
+    public synchronized List<SoftOffloadEvent> getSince(long since, int max) {
+        long from = Math.max(since + 1, getFirstSeq());
+        if (from > lastSeq || max <= 0) {
+            return Collections.emptyList();
+        }
+        long to = Math.min(lastSeq, from + max - 1);
+        List<SoftOffloadEvent> l = new ArrayList<SoftOffloadEvent>((int) (to - from + 1));
+        for (long s = from; s <= to; s++) {
+            l.add(ring[(int) (s % ring.length)]);
+        }
+        return l;
+    }
+
+    /**
+     * Same as getSince, but wait up to timeout milliseconds for an event
+     * if there is none yet
+     */
+    public synchronized List<SoftOffloadEvent> waitSince(long since, int max,
+            long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        long remaining = timeout;
+        while (lastSeq <= since && remaining > 0) {
+            wait(remaining);
+            remaining = deadline - System.currentTimeMillis();
+        }
+        return getSince(since, max);
+    }
+
+    private static String mac(Client clt) {
+        return clt.getMacAddress().toString().toLowerCase();
+    }
+
+    private static String agentIp(Client clt) {
+        APAgent agent = clt.getAgent();
+        return agent == null ? null : agent.getIpAddress().getHostAddress();
+    }
+}
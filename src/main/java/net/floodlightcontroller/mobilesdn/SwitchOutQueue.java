@@ -15,7 +15,7 @@ public class SwitchOutQueue implements Comparable<Object> {
 
     private long swId;
     private int outPort;
-    private int bandwidth;
+    private volatile int bandwidth;   // changed on config reload
     private long receiveBytes = 0;    // init value
     private long transmitBytes = 0;   // init value
     private int downThroughputOver = 0;
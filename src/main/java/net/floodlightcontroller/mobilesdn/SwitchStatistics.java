@@ -0,0 +1,148 @@
+/**
+*    Copyright 2013 University of Helsinki
+*
+*    Licensed under the Apache License, Version 2.0 (the "License"); you may
+*    not use this file except in compliance with the License. You may obtain
+*    a copy of the License at
+*
+*         http://www.apache.org/licenses/LICENSE-2.0
+*
+*    Unless required by applicable law or agreed to in writing, software
+*    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+*    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+*    License for the specific language governing permissions and limitations
+*    under the License.
+**/
+
+package net.floodlightcontroller.mobilesdn;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.openflow.protocol.OFMatch;
+import org.openflow.protocol.statistics.OFFlowStatisticsReply;
+import org.openflow.protocol.statistics.OFPortStatisticsReply;
+
+/**
+ * Immutable snapshot of the flow and port statistics of one switch,
+ * obtained by a single flow-stats and a single all-ports port-stats request.
+ *
+ * The intervals are the actual time between the replies of this and the
+ * previous snapshot, rates must be computed against them rather than
+ * against the configured polling interval.
+ *
+ * @author Yanhe Liu <yanhe.liu@cs.helsinki.fi>
+ *
+ */
+public class SwitchStatistics {
+    private final long swId;
+    private final long timestamp;
+    private final double flowInterval;
+    private final double portInterval;
+    private final long flowReplyTime;
+    private final long portReplyTime;
+    private final List<OFFlowStatisticsReply> flows;
+    private final Map<Short, OFPortStatisticsReply> ports;
+
+    public SwitchStatistics(long swId, long timestamp,
+            List<OFFlowStatisticsReply> flowList,
+            List<OFPortStatisticsReply> portList,
+            double flowInterval, double portInterval) {
+        this(swId, timestamp, flowList, portList, flowInterval, portInterval,
+                timestamp * 1000000, timestamp * 1000000);
+    }
+
+    public SwitchStatistics(long swId, long timestamp,
+            List<OFFlowStatisticsReply> flowList,
+            List<OFPortStatisticsReply> portList,
+            double flowInterval, double portInterval,
+            long flowReplyTime, long portReplyTime) {
+        this.swId = swId;
+        this.timestamp = timestamp;
+        this.flowInterval = flowInterval;
+        this.portInterval = portInterval;
+        this.flowReplyTime = flowReplyTime;
+        this.portReplyTime = portReplyTime;
+
+        this.flows = Collections.unmodifiableList(
+                new ArrayList<OFFlowStatisticsReply>(flowList));
+
+        Map<Short, OFPortStatisticsReply> m = new HashMap<Short, OFPortStatisticsReply>();
+        for (OFPortStatisticsReply reply: portList) {
+            m.put(reply.getPortNumber(), reply);
+        }
+        this.ports = Collections.unmodifiableMap(m);
+    }
+
+    public long getSwId() {
+        return swId;
+    }
+
+    /**
+     * @return time (ms) when the statistics were received
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * @return seconds between the flow stats replies of the previous and
+     * this snapshot
+     */
+    public double getFlowInterval() {
+        return flowInterval;
+    }
+
+    /**
+     * @return seconds between the port stats replies of the previous and
+     * this snapshot
+     */
+    public double getPortInterval() {
+        return portInterval;
+    }
+
+    /**
+     * @return System.nanoTime() when the flow stats reply was complete
+     */
+    public long getFlowReplyTime() {
+        return flowReplyTime;
+    }
+
+    /**
+     * @return System.nanoTime() when the port stats reply was complete
+     */
+    public long getPortReplyTime() {
+        return portReplyTime;
+    }
+
+    public List<OFFlowStatisticsReply> getFlows() {
+        return flows;
+    }
+
+    /**
+     * flow entries matching on the given input port, i.e. what a flow-stats
+     * request with an IN_PORT match would return
+     */
+    public List<OFFlowStatisticsReply> getFlowsByInPort(short inPort) {
+        List<OFFlowStatisticsReply> l = new ArrayList<OFFlowStatisticsReply>();
+        for (OFFlowStatisticsReply reply: flows) {
+            OFMatch match = reply.getMatch();
+            if ((match.getWildcards() & OFMatch.OFPFW_IN_PORT) == 0
+                    && match.getInputPort() == inPort) {
+                l.add(reply);
+            }
+        }
+        return l;
+    }
+
+    public OFPortStatisticsReply getPort(short port) {
+        return ports.get(port);
+    }
+
+    public Map<Short, OFPortStatisticsReply> getPorts() {
+        return ports;
+    }
+}
@@ -0,0 +1,531 @@
+/**
+*    Copyright 2013 University of Helsinki
+*
+*    Licensed under the Apache License, Version 2.0 (the "License"); you may
+*    not use this file except in compliance with the License. You may obtain
+*    a copy of the License at
+*
+*         http://www.apache.org/licenses/LICENSE-2.0
+*
+*    Unless required by applicable law or agreed to in writing, software
+*    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+*    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+*    License for the specific language governing permissions and limitations
+*    under the License.
+**/
+
+
+package net.floodlightcontroller.mobilesdn;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openflow.protocol.OFMatch;
+import org.openflow.protocol.OFPort;
+import org.openflow.protocol.OFStatisticsRequest;
+import org.openflow.protocol.Wildcards;
+import org.openflow.protocol.statistics.OFFlowStatisticsReply;
+import org.openflow.protocol.statistics.OFFlowStatisticsRequest;
+import org.openflow.protocol.statistics.OFPortStatisticsReply;
+import org.openflow.protocol.statistics.OFPortStatisticsRequest;
+import org.openflow.protocol.statistics.OFStatistics;
+import org.openflow.protocol.statistics.OFStatisticsType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.floodlightcontroller.core.IFloodlightProviderService;
+import net.floodlightcontroller.core.IOFSwitch;
+import net.floodlightcontroller.core.internal.OFMessageFuture;
+
+/**
+ * Collects flow and port statistics for every switch with managed APs.
+ *
+ * Per switch and interval exactly one full-wildcard flow-stats request and
+ * one all-ports port-stats request are issued, no matter how many APs are
+ * connected to the switch. The result is published as an immutable
+ * SwitchStatistics snapshot which all mobilesdn consumers read from.
+ *
+ * Requests to all switches are sent at once and completed by callbacks, a
+ * slow switch only delays its own snapshot. Each snapshot records the time
+ * elapsed since the previous replies of the same switch.
+ *
+ * In adaptive mode every switch has its own polling interval between
+ * interval/4 and interval*4, set by the consumers according to the load
+ * (see OFMonitor), and a switch can be polled immediately on an OpenFlow
+ * event with pollNow.
+ *
+ * @author Yanhe Liu <yanhe.liu@cs.helsinki.fi>
+ *
+ */
+public class SwitchStatisticsCollector implements Runnable {
+    protected static Logger log = LoggerFactory.getLogger(SwitchStatisticsCollector.class);
+
+    // defaults
+    private static final long REPLY_TIMEOUT = 3000;    // ms
+    private static final long POLL_INTERVAL = 20;      // ms, futures without callbacks
+
+    private IFloodlightProviderService floodlightProvider;
+    private Master master;
+    private List<SwitchOutQueue> swQueueList;
+    private double interval;
+    private final boolean adaptive;
+    private final double minInterval;
+    private final double maxInterval;
+
+    // single thread for polling ticks, timeouts and publishing, so that
+    // listeners are never called concurrently
+    private final ScheduledExecutorService executor;
+
+    private ConcurrentMap<Long, SwitchStatistics> statsMap =
+            new ConcurrentHashMap<Long, SwitchStatistics>();
+    private ConcurrentMap<Long, StatisticsSweep> pendingSweeps =
+            new ConcurrentHashMap<Long, StatisticsSweep>();
+    // System.nanoTime() of the latest flow and port replies per switch
+    private ConcurrentMap<Long, long[]> replyTimes =
+            new ConcurrentHashMap<Long, long[]>();
+    private List<ISwitchStatisticsListener> listeners =
+            new CopyOnWriteArrayList<ISwitchStatisticsListener>();
+    private ConcurrentMap<Long, PollSchedule> schedules =
+            new ConcurrentHashMap<Long, PollSchedule>();
+
+    /**
+     * Polling interval and times (System.nanoTime(), only compared by
+     * difference) of one switch
+     */
+    private static class PollSchedule {
+        volatile double interval;
+        volatile long lastPoll;
+        volatile long nextPoll;
+
+        PollSchedule(double interval) {
+            this.interval = interval;
+            // never polled: long ago and due now
+            this.lastPoll = System.nanoTime() - (1L << 40);
+            this.nextPoll = lastPoll;
+        }
+    }
+
+    /**
+     * Outstanding flow and port stats requests of one switch
+     */
+    private class StatisticsSweep {
+        final long swId;
+        final AtomicInteger remaining = new AtomicInteger(2);
+        Future<List<OFStatistics>> flowFuture;
+        Future<List<OFStatistics>> portFuture;
+        volatile long flowReplyTime;    // System.nanoTime()
+        volatile long portReplyTime;
+        ScheduledFuture<?> timeout;
+
+        StatisticsSweep(long swId) {
+            this.swId = swId;
+        }
+
+        void flowDone() {
+            flowReplyTime = System.nanoTime();
+            replyDone();
+        }
+
+        void portDone() {
+            portReplyTime = System.nanoTime();
+            replyDone();
+        }
+
+        private void replyDone() {
+            if (remaining.decrementAndGet() == 0) {
+                // leave the I/O thread as soon as possible
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        finishSweep(StatisticsSweep.this);
+                    }
+                });
+            }
+        }
+    }
+
+    public SwitchStatisticsCollector(IFloodlightProviderService fProvider,
+            Master m, double interval, List<SwitchOutQueue> swList) {
+        this(fProvider, m, interval, swList, false);
+    }
+
+    /**
+     * @param adaptive poll each switch at its own rate instead of every
+     * switch once per interval
+     */
+    public SwitchStatisticsCollector(IFloodlightProviderService fProvider,
+            Master m, double interval, List<SwitchOutQueue> swList,
+            boolean adaptive) {
+        this.floodlightProvider = fProvider;
+        this.master = m;
+        this.swQueueList = swList;
+        this.interval = interval;
+        this.adaptive = adaptive;
+        this.minInterval = adaptive ? interval / 4 : interval;
+        this.maxInterval = adaptive ? interval * 4 : interval;
+        this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "SwitchStatisticsCollector");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    @Override
+    public void run() {
+        executor.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    collectStatistics();
+                } catch (Exception e) {
+                    log.error("Failure collecting switch statistics", e);
+                }
+            }
+        }, (long)5000, (long)(this.minInterval*1000), TimeUnit.MILLISECONDS);
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    public void addListener(ISwitchStatisticsListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(ISwitchStatisticsListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * get the latest statistics snapshot of a switch
+     *
+     * @param swId switch dpid
+     * @return snapshot or null if none has been collected yet
+     */
+    public SwitchStatistics getStatistics(long swId) {
+        return statsMap.get(swId);
+    }
+
+    /**
+     * drop the snapshot and outstanding requests of a removed switch
+     */
+    public void removeSwitch(long swId) {
+        statsMap.remove(swId);
+        replyTimes.remove(swId);
+        schedules.remove(swId);
+        StatisticsSweep sweep = pendingSweeps.remove(swId);
+        if (sweep != null) {
+            cancelSweep(sweep);
+        }
+    }
+
+    public double getInterval() {
+        return interval;
+    }
+
+    public boolean isAdaptive() {
+        return adaptive;
+    }
+
+    public double getMinInterval() {
+        return minInterval;
+    }
+
+    public double getMaxInterval() {
+        return maxInterval;
+    }
+
+    private PollSchedule getSchedule(long swId) {
+        PollSchedule ps = schedules.get(swId);
+        if (ps == null) {
+            ps = new PollSchedule(interval);
+            PollSchedule old = schedules.putIfAbsent(swId, ps);
+            if (old != null) {
+                ps = old;
+            }
+        }
+        return ps;
+    }
+
+    /**
+     * current polling interval of a switch in seconds
+     */
+    public double getPollInterval(long swId) {
+        return getSchedule(swId).interval;
+    }
+
+    /**
+     * Change the polling interval of a switch, only used in adaptive mode.
+     * The value is limited to [interval/4, interval*4].
+     */
+    public void setPollInterval(long swId, double seconds) {
+        if (!adaptive) {
+            return;
+        }
+        double v = Math.max(minInterval, Math.min(maxInterval, seconds));
+        PollSchedule ps = getSchedule(swId);
+        if (ps.interval != v) {
+            log.debug("Polling interval of switch {} set to {}s",
+                    Long.toHexString(swId), v);
+            ps.interval = v;
+            long next = ps.lastPoll + (long) (v * 1e9);
+            if (next - ps.nextPoll < 0) {
+                ps.nextPoll = next;
+            }
+        }
+    }
+
+    /**
+     * Poll a switch as soon as possible, e.g. because an OpenFlow event
+     * shows that its traffic changed. A switch is not polled more than
+     * once per minimum interval, a request within that time is deferred
+     * to the next tick.
+     */
+    public void pollNow(final long swId) {
+        PollSchedule ps = getSchedule(swId);
+        if (System.nanoTime() - ps.lastPoll < (long) (minInterval * 1e9)) {
+            ps.nextPoll = ps.lastPoll;
+            return;
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                IOFSwitch sw = floodlightProvider.getSwitch(swId);
+                if (sw != null) {
+                    pollSwitch(sw, System.nanoTime());
+                }
+            }
+        });
+    }
+
+    /**
+     * switches with at least one managed AP or switch out queue
+     */
+    private Set<IOFSwitch> getMonitoredSwitches() {
+        Set<IOFSwitch> switches = new HashSet<IOFSwitch>();
+        for (APAgent agent: master.getAllAPAgents()) {
+            if (agent.getSwitch() != null) {
+                switches.add(agent.getSwitch());
+            }
+        }
+        for (SwitchOutQueue swQueue: swQueueList) {
+            IOFSwitch sw = floodlightProvider.getSwitch(swQueue.getSwId());
+            if (sw != null) {
+                switches.add(sw);
+            }
+        }
+        return switches;
+    }
+
+    private void collectStatistics() {
+        long now = System.nanoTime();
+        for (IOFSwitch sw: getMonitoredSwitches()) {
+            // every switch is due on every tick in fixed mode
+            if (!adaptive || now - getSchedule(sw.getId()).nextPoll >= 0) {
+                pollSwitch(sw, now);
+            }
+        }
+    }
+
+    private void pollSwitch(IOFSwitch sw, long now) {
+        PollSchedule ps = getSchedule(sw.getId());
+        if (startSweep(sw)) {
+            ps.lastPoll = now;
+            // half a tick of slack so that ticks do not skip a due switch
+            ps.nextPoll = now + (long) ((ps.interval - minInterval / 2) * 1e9);
+        }
+    }
+
+    /**
+     * send the flow and port stats requests to a switch without waiting
+     * for the replies
+     *
+     * @return false if the previous requests are still outstanding or the
+     * requests could not be sent
+     */
+    boolean startSweep(IOFSwitch sw) {
+        final StatisticsSweep sweep = new StatisticsSweep(sw.getId());
+        if (pendingSweeps.putIfAbsent(sweep.swId, sweep) != null) {
+            log.debug("Statistics of switch {} still pending, skip this round", sw);
+            return false;
+        }
+
+        try {
+            sweep.flowFuture = sw.queryStatistics(makeFlowRequest());
+            sweep.portFuture = sw.queryStatistics(makePortRequest());
+        } catch (Exception e) {
+            log.error("Failure requesting statistics from switch " + sw, e);
+            pendingSweeps.remove(sweep.swId, sweep);
+            cancelSweep(sweep);
+            return false;
+        }
+
+        sweep.timeout = executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (pendingSweeps.remove(sweep.swId, sweep)) {
+                    log.warn("Statistics request to switch {} timed out",
+                            Long.toHexString(sweep.swId));
+                    cancelSweep(sweep);
+                }
+            }
+        }, REPLY_TIMEOUT, TimeUnit.MILLISECONDS);
+
+        whenDone(sweep.flowFuture, new Runnable() {
+            @Override
+            public void run() {
+                sweep.flowDone();
+            }
+        });
+        whenDone(sweep.portFuture, new Runnable() {
+            @Override
+            public void run() {
+                sweep.portDone();
+            }
+        });
+        return true;
+    }
+
+    /**
+     * run the callback once the future is done; futures of the OpenFlow
+     * channel notify us directly, any other future is polled
+     */
+    private void whenDone(final Future<List<OFStatistics>> future, final Runnable callback) {
+        if (future instanceof OFMessageFuture) {
+            ((OFMessageFuture<?>) future).addListener(callback);
+            return;
+        }
+
+        executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (future.isDone()) {
+                    callback.run();
+                } else {
+                    executor.schedule(this, POLL_INTERVAL, TimeUnit.MILLISECONDS);
+                }
+            }
+        }, 0, TimeUnit.MILLISECONDS);
+    }
+
+    private void cancelSweep(StatisticsSweep sweep) {
+        if (sweep.timeout != null) {
+            sweep.timeout.cancel(false);
+        }
+        if (sweep.flowFuture != null) {
+            sweep.flowFuture.cancel(true);
+        }
+        if (sweep.portFuture != null) {
+            sweep.portFuture.cancel(true);
+        }
+    }
+
+    private void finishSweep(StatisticsSweep sweep) {
+        if (!pendingSweeps.remove(sweep.swId, sweep)) {
+            return;  // timed out or switch removed
+        }
+        sweep.timeout.cancel(false);
+
+        if (sweep.flowFuture.isCancelled() || sweep.portFuture.isCancelled()) {
+            log.warn("Statistics request to switch {} was canceled",
+                    Long.toHexString(sweep.swId));
+            return;
+        }
+
+        try {
+            publish(sweep.swId, System.currentTimeMillis(),
+                    sweep.flowFuture.get(), sweep.portFuture.get(),
+                    sweep.flowReplyTime, sweep.portReplyTime);
+        } catch (Exception e) {
+            log.error("Failure retrieving statistics from switch "
+                    + Long.toHexString(sweep.swId), e);
+        }
+    }
+
+    /**
+     * store a new snapshot and notify all listeners
+     *
+     * @param flowReplyTime System.nanoTime() of the complete flow stats reply
+     * @param portReplyTime System.nanoTime() of the complete port stats reply
+     */
+    void publish(long swId, long timestamp, List<OFStatistics> flowValues,
+            List<OFStatistics> portValues, long flowReplyTime, long portReplyTime) {
+        List<OFFlowStatisticsReply> flows = new ArrayList<OFFlowStatisticsReply>(flowValues.size());
+        for (OFStatistics stat: flowValues) {
+            flows.add((OFFlowStatisticsReply) stat);
+        }
+        List<OFPortStatisticsReply> ports = new ArrayList<OFPortStatisticsReply>(portValues.size());
+        for (OFStatistics stat: portValues) {
+            ports.add((OFPortStatisticsReply) stat);
+        }
+
+        // actual time since the previous replies, the configured interval
+        // for the first snapshot
+        double flowInterval = interval;
+        double portInterval = interval;
+        long[] prev = replyTimes.put(swId, new long[] {flowReplyTime, portReplyTime});
+        if (prev != null) {
+            flowInterval = (flowReplyTime - prev[0]) / 1e9;
+            portInterval = (portReplyTime - prev[1]) / 1e9;
+        }
+
+        SwitchStatistics stats = new SwitchStatistics(swId, timestamp, flows, ports,
+                flowInterval, portInterval, flowReplyTime, portReplyTime);
+        statsMap.put(swId, stats);
+
+        for (ISwitchStatisticsListener listener: listeners) {
+            try {
+                listener.statisticsUpdated(stats);
+            } catch (Exception e) {
+                log.error("Failure handling statistics of switch " + swId, e);
+            }
+        }
+    }
+
+    static OFStatisticsRequest makeFlowRequest() {
+        OFStatisticsRequest req = new OFStatisticsRequest();
+        req.setStatisticType(OFStatisticsType.FLOW);
+        int requestLength = req.getLengthU();
+        OFFlowStatisticsRequest specificReq = new OFFlowStatisticsRequest();
+        OFMatch mPattern = new OFMatch();
+        mPattern.setWildcards(Wildcards.FULL);
+        specificReq.setMatch(mPattern);
+        specificReq.setTableId((byte)0xff);
+
+        // using OFPort.OFPP_NONE(0xffff) as the outport
+        specificReq.setOutPort(OFPort.OFPP_NONE.getValue());
+        req.setStatistics(Collections.singletonList((OFStatistics) specificReq));
+        requestLength += specificReq.getLength();
+        req.setLengthU(requestLength);
+        return req;
+    }
+
+    static OFStatisticsRequest makePortRequest() {
+        OFStatisticsRequest req = new OFStatisticsRequest();
+        req.setStatisticType(OFStatisticsType.PORT);
+        int requestLength = req.getLengthU();
+        OFPortStatisticsRequest specificReq = new OFPortStatisticsRequest();
+        // OFPP_NONE asks for all ports
+        specificReq.setPortNumber(OFPort.OFPP_NONE.getValue());
+        req.setStatistics(Collections.singletonList((OFStatistics) specificReq));
+        requestLength += specificReq.getLength();
+        req.setLengthU(requestLength);
+        return req;
+    }
+}
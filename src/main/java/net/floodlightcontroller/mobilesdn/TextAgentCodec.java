@@ -0,0 +1,159 @@
+/**
+*    Copyright 2013 University of Helsinki
+*
+*    Licensed under the Apache License, Version 2.0 (the "License"); you may
+*    not use this file except in compliance with the License. You may obtain
+*    a copy of the License at
+*
+*         http://www.apache.org/licenses/LICENSE-2.0
+*
+*    Unless required by applicable law or agreed to in writing, software
+*    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+*    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+*    License for the specific language governing permissions and limitations
+*    under the License.
+**/
+
+package net.floodlightcontroller.mobilesdn;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Codec for the original text protocol of the click agents:
+ * "type|field1|field2|...|\n"
+ *
+ * Fields are located by scanning for '|' in the receive buffer, no String
+ * or regex is involved in decoding. The message type is matched ignoring
+ * case, field values are lower-cased when read as strings, which keeps the
+ * behaviour of the former trim().toLowerCase().split("\\|") parsing.
+ *
+ * @author Yanhe Liu <yanhe.liu@cs.helsinki.fi>
+ *
+ */
+public class TextAgentCodec implements IAgentCodec {
+
+    private static final byte SEPARATOR = '|';
+
+    // message types, checked in this order
+    private static final byte[][] TYPE_NAMES = {
+        "client".getBytes(),
+        "agentrate".getBytes(),
+        "clientrate".getBytes(),
+        "clientdisconnect".getBytes(),
+        "scan".getBytes(),
+        "app".getBytes(),
+        "start".getBytes(),
+    };
+    private static final int[] TYPE_CODES = {
+        AgentMessage.TYPE_CLIENT_INFO,
+        AgentMessage.TYPE_AGENT_RATE,
+        AgentMessage.TYPE_CLIENT_RATE,
+        AgentMessage.TYPE_CLIENT_DISCONNECT,
+        AgentMessage.TYPE_CLIENT_SCAN,
+        AgentMessage.TYPE_CLT_APP,
+        AgentMessage.TYPE_START,
+    };
+
+    @Override
+    public boolean decode(ByteBuffer buf, AgentMessage msg) {
+        int s = buf.position();
+        int e = buf.limit();
+
+        // trim, as String.trim() did
+        while (s < e && (buf.get(s) & 0xff) <= ' ') {
+            s++;
+        }
+        while (e > s && (buf.get(e - 1) & 0xff) <= ' ') {
+            e--;
+        }
+        if (s == e) {
+            return false;
+        }
+
+        msg.reset(buf, false);
+
+        // message type
+        int sep = indexOf(buf, s, e);
+        msg.setType(matchType(buf, s, sep));
+
+        // fields, trailing empty fields are dropped like String.split does
+        int fieldStart = sep + 1;
+        while (fieldStart <= e && sep < e) {
+            sep = indexOf(buf, fieldStart, e);
+            msg.addField(fieldStart, sep, AgentMessage.TAG_STRING);
+            fieldStart = sep + 1;
+        }
+        int num = msg.getFieldNum();
+        while (num > 0 && msg.fieldEquals(num - 1, "")) {
+            num--;
+        }
+        msg.truncateFields(num);
+
+        if (msg.getType() == AgentMessage.TYPE_CLIENT_SCAN) {
+            msg.setScanEntryNum(Math.max(0, msg.getFieldNum() - 3));
+        }
+
+        return true;
+    }
+
+    private static int indexOf(ByteBuffer buf, int from, int to) {
+        for (int k = from; k < to; k++) {
+            if (buf.get(k) == SEPARATOR) {
+                return k;
+            }
+        }
+        return to;
+    }
+
+    private static int matchType(ByteBuffer buf, int s, int e) {
+        for (int t = 0; t < TYPE_NAMES.length; t++) {
+            byte[] name = TYPE_NAMES[t];
+            if (name.length != e - s) {
+                continue;
+            }
+            boolean match = true;
+            for (int k = 0; k < name.length; k++) {
+                byte b = buf.get(s + k);
+                if (b >= 'A' && b <= 'Z') {
+                    b = (byte) (b + ('a' - 'A'));
+                }
+                if (b != name[k]) {
+                    match = false;
+                    break;
+                }
+            }
+            if (match) {
+                return TYPE_CODES[t];
+            }
+        }
+        return AgentMessage.TYPE_UNKNOWN;
+    }
+
+    @Override
+    public void encodeToClient(ByteBuffer dst, long clientMac, String signal,
+                               String data) {
+        putAscii(dst, signal);
+        for (int k = 5; k >= 0; k--) {
+            dst.put((byte) (clientMac >>> (8 * k)));
+        }
+        if (data != null) {
+            putAscii(dst, data);
+            dst.put(SEPARATOR).put((byte) '\n');
+        }
+    }
+
+    @Override
+    public void encodeToAgent(ByteBuffer dst, String signal, String data) {
+        putAscii(dst, signal);
+        if (data != null) {
+            putAscii(dst, data);
+            dst.put(SEPARATOR).put((byte) '\n');
+        }
+    }
+
+    static void putAscii(ByteBuffer dst, String s) {
+        for (int k = 0; k < s.length(); k++) {
+            dst.put((byte) s.charAt(k));
+        }
+    }
+}
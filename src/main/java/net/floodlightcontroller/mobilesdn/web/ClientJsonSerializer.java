@@ -32,6 +32,7 @@ public class ClientJsonSerializer extends JsonSerializer<Client> {
         jGen.writeStringField("mac", clt.getMacAddress().toString());
         jGen.writeStringField("ip", clt.getIpAddress().getHostAddress());
         jGen.writeStringField("downrate", Double.toString(clt.getDownRate()));
+        jGen.writeStringField("state", clt.getState().toString());
         
         jGen.writeObjectFieldStart("agent");
         jGen.writeStringField("ssid", clt.getAgent().getSSID());
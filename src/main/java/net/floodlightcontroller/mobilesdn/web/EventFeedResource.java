@@ -0,0 +1,98 @@
+/**
+ * 
+ */
+package net.floodlightcontroller.mobilesdn.web;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+
+import net.floodlightcontroller.mobilesdn.ISoftOffloadService;
+import net.floodlightcontroller.mobilesdn.SoftOffloadEvent;
+import net.floodlightcontroller.mobilesdn.SoftOffloadEventLog;
+
+import org.restlet.data.Form;
+import org.restlet.data.Status;
+import org.restlet.resource.Get;
+import org.restlet.resource.ServerResource;
+
+/**
+ * Long-polling change feed: GET /events/json?since=<seq>&max=<n>&timeout=<s>
+ * returns the events after sequence number since, waiting up to timeout
+ * seconds for the first one. Without since only the current sequence
+ * number is returned, to start following from there. When "lost" is true
+ * the events after since are not kept any more and the full state has to
+ * be read again.
+ *
+ * A waiting request holds a thread of the REST server, which it shares
+ * with all other resources. So timeout is capped at MAX_TIMEOUT seconds
+ * and at most MAX_WAITERS requests wait at a time. Another request which
+ * asks to wait gets the events at once if there are any, otherwise a 503
+ * with a Retry-After header (and "retryAfter" in seconds); clients have
+ * to wait that long before they poll again.
+ *
+ * @author Yanhe Liu <yanhe.liu@cs.helsinki.fi>
+ *
+ */
+public class EventFeedResource extends ServerResource {
+    static final int DEFAULT_MAX = 1000;
+    static final int MAX_TIMEOUT = 5;       // seconds
+    static final int MAX_WAITERS = 2;
+
+    private static final Semaphore waiters = new Semaphore(MAX_WAITERS);
+
+    @Get("json")
+    public Map<String, Object> retrieve() {
+        ISoftOffloadService sf = (ISoftOffloadService)getContext().getAttributes().get(ISoftOffloadService.class.getCanonicalName());
+        SoftOffloadEventLog events = sf.getEventLog();
+
+        Map<String, Object> m = new HashMap<String, Object>();
+        Form query = getQuery();
+        long since;
+        int max;
+        long timeout;
+        try {
+            String s = query.getFirstValue("since");
+            if (s == null) {
+                m.put("last", events.getLastSeq());
+                return m;
+            }
+            since = Long.parseLong(s);
+            max = Integer.parseInt(query.getFirstValue("max", "" + DEFAULT_MAX));
+            timeout = Math.min(MAX_TIMEOUT,
+                    Integer.parseInt(query.getFirstValue("timeout", "0")));
+        } catch (NumberFormatException e) {
+            setStatus(Status.CLIENT_ERROR_BAD_REQUEST, e.getMessage());
+            return m;
+        }
+
+        List<SoftOffloadEvent> l;
+        if (timeout > 0 && waiters.tryAcquire()) {
+            try {
+                l = events.waitSince(since, max, timeout * 1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                l = events.getSince(since, max);
+            } finally {
+                waiters.release();
+            }
+        } else {
+            l = events.getSince(since, max);
+            if (timeout > 0 && l.isEmpty() && !events.isLost(since)) {
+                // no thread to wait in: back off as long as it would have waited
+                setStatus(Status.SERVER_ERROR_SERVICE_UNAVAILABLE, "too many waiting requests");
+                getResponse().setRetryAfter(
+                        new Date(System.currentTimeMillis() + timeout * 1000));
+                m.put("retryAfter", timeout);
+                return m;
+            }
+        }
+        m.put("lost", events.isLost(since));
+        m.put("last", l.isEmpty() ? Math.max(since, events.getFirstSeq() - 1)
+                                  : l.get(l.size() - 1).getSeq());
+        m.put("events", l);
+        return m;
+    }
+}
@@ -0,0 +1,116 @@
+/**
+ * 
+ */
+package net.floodlightcontroller.mobilesdn.web;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.floodlightcontroller.mobilesdn.ISoftOffloadService;
+import net.floodlightcontroller.mobilesdn.MobileNetworkConfig;
+import net.floodlightcontroller.mobilesdn.MobileNetworkConfig.APConfig;
+import net.floodlightcontroller.mobilesdn.MobileNetworkConfig.ConfigException;
+import net.floodlightcontroller.mobilesdn.MobileNetworkConfig.SwitchNetworkConfig;
+
+import org.restlet.data.Status;
+import org.restlet.resource.Get;
+import org.restlet.resource.Post;
+import org.restlet.resource.Put;
+import org.restlet.resource.ServerResource;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.MappingJsonFactory;
+
+/**
+ * Show the AP and network topology config in use, or replace it by
+ * sending {"network": "<network file>", "ap": "<AP file>"}. A missing
+ * file content is read from the configured file, so an empty object
+ * reloads both files. Only the APs and switch queues which changed are
+ * applied; an invalid config is rejected as a whole.
+ *
+ * @author Yanhe Liu <yanhe.liu@cs.helsinki.fi>
+ *
+ */
+public class NetworkConfigResource extends ServerResource {
+    @Get("json")
+    public Map<String, Object> retrieve() {
+        ISoftOffloadService sf = (ISoftOffloadService)getContext().getAttributes().get(ISoftOffloadService.class.getCanonicalName());
+        MobileNetworkConfig config = sf.getNetworkConfig();
+
+        List<Map<String, Object>> switches = new ArrayList<Map<String, Object>>();
+        for (SwitchNetworkConfig sc: config.getSwitchConfigs()) {
+            Map<String, Object> m = new HashMap<String, Object>();
+            m.put("switch", sc.swIPAddr);
+            m.put("outPort", sc.outPort);
+            m.put("bandwidth", sc.bandwidth);
+            m.put("aps", sc.apList);
+            switches.add(m);
+        }
+
+        // AUTH is left out, it contains the WPA passphrase
+        List<Map<String, Object>> aps = new ArrayList<Map<String, Object>>();
+        for (APConfig ap: config.getAPConfigs()) {
+            Map<String, Object> m = new HashMap<String, Object>();
+            m.put("ip", ap.ipAddr);
+            m.put("ssid", ap.ssid);
+            m.put("bssid", ap.bssid);
+            m.put("ofPort", ap.ofPort);
+            m.put("downlinkBW", ap.downlinkBW);
+            aps.add(m);
+        }
+
+        Map<String, Object> m = new HashMap<String, Object>();
+        m.put("switches", switches);
+        m.put("aps", aps);
+        return m;
+    }
+
+    @Put
+    @Post
+    public Map<String, Object> update(String json) {
+        ISoftOffloadService sf = (ISoftOffloadService)getContext().getAttributes().get(ISoftOffloadService.class.getCanonicalName());
+
+        Map<String, Object> m = new HashMap<String, Object>();
+        try {
+            Map<String, String> files = jsonToConfigFiles(json);
+            MobileNetworkConfig.Diff diff = sf.reloadNetworkConfig(files.get("network"),
+                                                                   files.get("ap"));
+            m.put("status", "ok");
+            m.put("changes", diff.toString());
+        } catch (IOException e) {
+            setStatus(Status.CLIENT_ERROR_BAD_REQUEST, e.getMessage());
+            m.put("status", "error");
+            m.put("error", e.getMessage());
+        } catch (ConfigException e) {
+            setStatus(Status.CLIENT_ERROR_BAD_REQUEST, e.getMessage());
+            m.put("status", "error");
+            m.put("error", e.getMessage());
+        }
+        return m;
+    }
+
+    static Map<String, String> jsonToConfigFiles(String json) throws IOException {
+        Map<String, String> files = new HashMap<String, String>();
+        if (json == null || json.trim().length() == 0) {
+            return files;
+        }
+        JsonParser jp = new MappingJsonFactory().createJsonParser(json);
+        if (jp.nextToken() != JsonToken.START_OBJECT) {
+            throw new IOException("Expected START_OBJECT");
+        }
+        while (jp.nextToken() == JsonToken.FIELD_NAME) {
+            String n = jp.getCurrentName();
+            jp.nextToken();
+            if (n.equals("network") || n.equals("ap")) {
+                files.put(n, jp.getText());
+            } else {
+                jp.skipChildren();
+            }
+        }
+        return files;
+    }
+}
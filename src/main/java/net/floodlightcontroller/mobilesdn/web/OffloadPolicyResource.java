@@ -0,0 +1,78 @@
+/**
+ * 
+ */
+package net.floodlightcontroller.mobilesdn.web;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import net.floodlightcontroller.mobilesdn.IOffloadPolicyService;
+
+import org.restlet.data.Status;
+import org.restlet.resource.Get;
+import org.restlet.resource.Post;
+import org.restlet.resource.Put;
+import org.restlet.resource.ServerResource;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.MappingJsonFactory;
+
+/**
+ * Show the offload policy in use, or replace it with a registered one
+ * by sending {"policy": "<name>"}
+ *
+ * @author Yanhe Liu <yanhe.liu@cs.helsinki.fi>
+ *
+ */
+public class OffloadPolicyResource extends ServerResource {
+    @Get("json")
+    public Map<String, Object> retrieve() {
+        IOffloadPolicyService ps = (IOffloadPolicyService)getContext().getAttributes().get(IOffloadPolicyService.class.getCanonicalName());
+
+        Map<String, Object> m = new HashMap<String, Object>();
+        m.put("policy", ps.getPolicy().getName());
+        m.put("available", ps.getPolicyNames());
+        return m;
+    }
+
+    @Put
+    @Post
+    public Map<String, Object> update(String json) {
+        IOffloadPolicyService ps = (IOffloadPolicyService)getContext().getAttributes().get(IOffloadPolicyService.class.getCanonicalName());
+
+        try {
+            ps.setPolicy(jsonToPolicyName(json));
+        } catch (IOException e) {
+            setStatus(Status.CLIENT_ERROR_BAD_REQUEST, e.getMessage());
+        } catch (IllegalArgumentException e) {
+            setStatus(Status.CLIENT_ERROR_NOT_FOUND, e.getMessage());
+        }
+        return retrieve();
+    }
+
+    static String jsonToPolicyName(String json) throws IOException {
+        if (json == null) {
+            throw new IOException("Expected policy name");
+        }
+        JsonParser jp = new MappingJsonFactory().createJsonParser(json);
+        if (jp.nextToken() != JsonToken.START_OBJECT) {
+            throw new IOException("Expected START_OBJECT");
+        }
+        String name = null;
+        while (jp.nextToken() == JsonToken.FIELD_NAME) {
+            String n = jp.getCurrentName();
+            jp.nextToken();
+            if (n.equals("policy")) {
+                name = jp.getText();
+            } else {
+                jp.skipChildren();
+            }
+        }
+        if (name == null) {
+            throw new IOException("Expected policy name");
+        }
+        return name;
+    }
+}
@@ -25,6 +25,9 @@ public class SoftOffloadWebRoutable implements RestletRoutable {
         router.attach("/agents/json", AgentResource.class);
         router.attach("/agent/{agentId}/json", AgentEntityResource.class);
         router.attach("/client/{clientId}/json", ClientEntityResource.class);
+        router.attach("/policy/json", OffloadPolicyResource.class);
+        router.attach("/events/json", EventFeedResource.class);
+        router.attach("/config/json", NetworkConfigResource.class);
         return router;
     }
 
@@ -149,9 +149,14 @@ public class ListenerStorageEngine
                    explanation="An unexpected error occured in a handler for " +
                                "an update to shared state.")
     protected void notifyListeners(Iterator<ByteArray> keys, UpdateType type) {
+        // each listener needs its own iterator over the keys
+        List<ByteArray> keyList = new ArrayList<ByteArray>();
+        while (keys.hasNext()) {
+            keyList.add(keys.next());
+        }
         for (MappingStoreListener msl : listeners) {
             try {
-                msl.notify(keys, type);
+                msl.notify(keyList.iterator(), type);
             } catch (Exception e) {
                 logger.error("An error occurred in a sync listener", e);
             }
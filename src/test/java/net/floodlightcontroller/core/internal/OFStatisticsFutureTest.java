@@ -4,6 +4,7 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import net.floodlightcontroller.core.IOFSwitch;
 import net.floodlightcontroller.core.test.MockThreadPoolService;
@@ -146,4 +147,43 @@ public class OFStatisticsFutureTest {
        assertEquals(0, stats.size());
    }
 
+   @Test
+   public void testOFStatisticsFutureListener() throws Exception {
+       IOFSwitch sw = createMock(IOFSwitch.class);
+       sw.cancelStatisticsReply(1);
+       sw.cancelStatisticsReply(2);
+       replay(sw);
+
+       final AtomicInteger calls = new AtomicInteger();
+       Runnable listener = new Runnable() {
+           @Override
+           public void run() {
+               calls.incrementAndGet();
+           }
+       };
+
+       // listener runs once, after the last partial reply
+       OFStatisticsFuture sf = new OFStatisticsFuture(tp, sw, 1);
+       sf.addListener(listener);
+       sf.deliverFuture(sw, getStatisticsReply(1, 10, true));
+       assertEquals(0, calls.get());
+       sf.deliverFuture(sw, getStatisticsReply(1, 5, false));
+       assertEquals(1, calls.get());
+       assertEquals(15, sf.get().size());
+
+       // listener added after completion runs immediately
+       sf.addListener(listener);
+       assertEquals(2, calls.get());
+
+       // cancellation completes the future as well
+       sf = new OFStatisticsFuture(tp, sw, 2);
+       sf.addListener(listener);
+       sf.cancel(true);
+       assertEquals(3, calls.get());
+       assertTrue(sf.isCancelled());
+       sf.cancel(true);
+       assertEquals(3, calls.get());
+       verify(sw);
+   }
+
 }
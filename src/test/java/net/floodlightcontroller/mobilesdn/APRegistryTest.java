@@ -0,0 +1,91 @@
+/**
+*    Copyright 2013 University of Helsinki
+*
+*    Licensed under the Apache License, Version 2.0 (the "License"); you may
+*    not use this file except in compliance with the License. You may obtain
+*    a copy of the License at
+*
+*         http://www.apache.org/licenses/LICENSE-2.0
+*
+*    Unless required by applicable law or agreed to in writing, software
+*    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+*    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+*    License for the specific language governing permissions and limitations
+*    under the License.
+**/
+
+
+package net.floodlightcontroller.mobilesdn;
+
+import static org.junit.Assert.*;
+import static org.easymock.EasyMock.*;
+
+import net.floodlightcontroller.core.IOFSwitch;
+import net.floodlightcontroller.util.MACAddress;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class APRegistryTest {
+    private APRegistry registry;
+    private IOFSwitch sw1;
+    private IOFSwitch sw2;
+
+    @Before
+    public void setUp() {
+        registry = new APRegistry();
+        sw1 = createNiceMock(IOFSwitch.class);
+        sw2 = createNiceMock(IOFSwitch.class);
+        expect(sw1.getId()).andReturn(1L).anyTimes();
+        expect(sw2.getId()).andReturn(2L).anyTimes();
+        replay(sw1, sw2);
+    }
+
+    private static long mac(String s) {
+        return MACAddress.valueOf(s).toLong();
+    }
+
+    @Test
+    public void testLookups() {
+        APAgent a = new APAgent("10.0.0.1", sw1, "ap1", "00:0B:6B:00:00:01", "open", (short) 3, 10);
+        APAgent b = new APAgent("10.0.0.2", sw1, "ap2", "00:0b:6b:00:00:02", "open", (short) 4, 10);
+        APAgent c = new APAgent("10.0.0.3", sw2, "ap3", "", "open", (short) 3, 10);
+        registry.put(a);
+        registry.put(b);
+        registry.put(c);
+
+        assertEquals(3, registry.size());
+        assertSame(a, registry.getByIp("10.0.0.1"));
+        assertSame(a, registry.getByBSSID(mac("00:0b:6b:00:00:01")));
+        assertSame(b, registry.getByBSSID("00:0B:6B:00:00:02"));
+        assertNull(registry.getByBSSID(""));
+        assertSame(b, registry.getBySwitchPort(1L, (short) 4));
+        assertSame(c, registry.getBySwitchPort(2L, (short) 3));
+        assertNull(registry.getBySwitchPort(2L, (short) 4));
+        assertEquals(2, registry.getBySwitch(1L).size());
+        assertTrue(registry.getBySwitch(9L).isEmpty());
+    }
+
+    @Test
+    public void testReplaceAndRemove() {
+        APAgent a = new APAgent("10.0.0.1", sw1, "ap1", "00:0b:6b:00:00:01", "open", (short) 3, 10);
+        registry.put(a);
+
+        // same IP reconfigured on another switch with another BSSID
+        APAgent a2 = new APAgent("10.0.0.1", sw2, "ap1", "00:0b:6b:00:00:11", "open", (short) 5, 10);
+        registry.put(a2);
+        assertEquals(1, registry.size());
+        assertNull(registry.getByBSSID(mac("00:0b:6b:00:00:01")));
+        assertSame(a2, registry.getByBSSID(mac("00:0b:6b:00:00:11")));
+        assertTrue(registry.getBySwitch(1L).isEmpty());
+        assertSame(a2, registry.getBySwitchPort(2L, (short) 5));
+
+        APAgent b = new APAgent("10.0.0.2", sw2, "ap2", "00:0b:6b:00:00:02", "open", (short) 6, 10);
+        registry.put(b);
+        assertEquals(2, registry.removeSwitch(2L).size());
+        assertEquals(0, registry.size());
+        assertNull(registry.getByIp("10.0.0.2"));
+        assertNull(registry.getByBSSID(mac("00:0b:6b:00:00:02")));
+        assertTrue(registry.getBySwitch(2L).isEmpty());
+    }
+}
@@ -0,0 +1,155 @@
+/**
+*    Copyright 2013 University of Helsinki
+*
+*    Licensed under the Apache License, Version 2.0 (the "License"); you may
+*    not use this file except in compliance with the License. You may obtain
+*    a copy of the License at
+*
+*         http://www.apache.org/licenses/LICENSE-2.0
+*
+*    Unless required by applicable law or agreed to in writing, software
+*    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+*    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+*    License for the specific language governing permissions and limitations
+*    under the License.
+**/
+
+package net.floodlightcontroller.mobilesdn;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import net.floodlightcontroller.util.MACAddress;
+
+public class AgentCodecTest {
+    private final TextAgentCodec text = new TextAgentCodec();
+    private final BinaryAgentCodec binary = new BinaryAgentCodec();
+
+    private static ByteBuffer datagram(String s) {
+        // receive buffers used to be zero padded
+        ByteBuffer buf = ByteBuffer.allocateDirect(1280);
+        buf.put(s.getBytes());
+        buf.flip();
+        return buf;
+    }
+
+    @Test
+    public void testTextClientInfo() {
+        AgentMessage msg = new AgentMessage();
+        assertTrue(text.decode(datagram("Client|00:11:22:AA:BB:CC|10.0.0.5|\n"), msg));
+        assertEquals(AgentMessage.TYPE_CLIENT_INFO, msg.getType());
+        assertEquals(2, msg.getFieldNum());
+        assertEquals("00:11:22:aa:bb:cc", msg.getString(0));
+        assertEquals(MACAddress.valueOf("00:11:22:aa:bb:cc").toLong(), msg.getMac(0));
+        assertEquals("10.0.0.5", msg.getString(1));
+    }
+
+    @Test
+    public void testTextScan() {
+        AgentMessage msg = new AgentMessage();
+        String scan = "scan|00:11:22:aa:bb:cc|static|ap1&00:00:00:00:00:01&-40"
+                + "|a&b&00:00:00:00:00:02&-75|end|\n";
+        assertTrue(text.decode(datagram(scan), msg));
+        assertEquals(AgentMessage.TYPE_CLIENT_SCAN, msg.getType());
+        assertTrue(msg.fieldEquals(1, "STATIC"));
+        // the last field is not an AP entry
+        assertEquals(2, msg.getScanEntryNum());
+        assertEquals(1L, msg.getScanBssid(0));
+        assertEquals(-40, msg.getScanLevel(0));
+        assertEquals(2L, msg.getScanBssid(1));
+        assertEquals(-75, msg.getScanLevel(1));
+    }
+
+    @Test
+    public void testTextMalformed() {
+        AgentMessage msg = new AgentMessage();
+        assertFalse(text.decode(datagram("  \n"), msg));
+        assertTrue(text.decode(datagram("bogus|1|2"), msg));
+        assertEquals(AgentMessage.TYPE_UNKNOWN, msg.getType());
+        assertTrue(text.decode(datagram("client|"), msg));
+        assertEquals(0, msg.getFieldNum());
+        assertFalse(msg.hasRequiredFields());
+        try {
+            msg.getString(0);
+            fail("expected IndexOutOfBoundsException");
+        } catch (IndexOutOfBoundsException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testTextEncodeMatchesLegacyFormat() {
+        MACAddress mac = MACAddress.valueOf("00:11:22:aa:bb:cc");
+        ByteBuffer buf = ByteBuffer.allocate(512);
+        text.encodeToClient(buf, mac.toLong(), "c", "switch|ssid|bssid|open");
+
+        byte[] m = mac.toBytes();
+        byte[] b1 = "c".getBytes();
+        byte[] b2 = ("switch|ssid|bssid|open" + "|\n").getBytes();
+        byte[] legacy = new byte[b1.length + b2.length + m.length];
+        System.arraycopy(b1, 0, legacy, 0, b1.length);
+        System.arraycopy(m, 0, legacy, b1.length, m.length);
+        System.arraycopy(b2, 0, legacy, b1.length + m.length, b2.length);
+
+        assertArrayEquals(legacy, Arrays.copyOf(buf.array(), buf.position()));
+
+        buf.clear();
+        text.encodeToAgent(buf, "arp", null);
+        assertArrayEquals("arp".getBytes(), Arrays.copyOf(buf.array(), buf.position()));
+    }
+
+    @Test
+    public void testBinaryRoundTrip() {
+        ByteBuffer buf = ByteBuffer.allocateDirect(1280);
+        int h = BinaryAgentCodec.beginMessage(buf, AgentMessage.TYPE_CLIENT_SCAN);
+        BinaryAgentCodec.putMac(buf, h, 0x001122aabbccL);
+        BinaryAgentCodec.putString(buf, h, "static");
+        BinaryAgentCodec.putMac(buf, h, 1L);
+        BinaryAgentCodec.putInt8(buf, h, -40);
+        BinaryAgentCodec.putMac(buf, h, 2L);
+        BinaryAgentCodec.putInt8(buf, h, -75);
+        BinaryAgentCodec.endMessage(buf, h);
+        buf.flip();
+
+        assertTrue(BinaryAgentCodec.isBinaryMessage(buf));
+        AgentMessage msg = new AgentMessage();
+        assertTrue(binary.decode(buf, msg));
+        assertTrue(msg.isBinary());
+        assertEquals(AgentMessage.TYPE_CLIENT_SCAN, msg.getType());
+        assertEquals("00:11:22:aa:bb:cc", msg.getString(0));
+        assertTrue(msg.fieldEquals(1, "static"));
+        assertEquals(2, msg.getScanEntryNum());
+        assertEquals(2L, msg.getScanBssid(1));
+        assertEquals(-75, msg.getScanLevel(1));
+
+        buf.clear();
+        h = BinaryAgentCodec.beginMessage(buf, AgentMessage.TYPE_CLIENT_RATE);
+        BinaryAgentCodec.putMac(buf, h, 0x001122aabbccL);
+        BinaryAgentCodec.putIpv4(buf, h, 0x0a000005);
+        BinaryAgentCodec.putDouble(buf, h, 1.5);
+        BinaryAgentCodec.putDouble(buf, h, 2.5);
+        BinaryAgentCodec.endMessage(buf, h);
+        buf.flip();
+        assertTrue(binary.decode(buf, msg));
+        assertEquals("10.0.0.5", msg.getString(1));
+        assertEquals(2.5, msg.getDouble(3), 0.0);
+    }
+
+    @Test
+    public void testBinaryRejectsTruncated() {
+        ByteBuffer buf = ByteBuffer.allocate(64);
+        int h = BinaryAgentCodec.beginMessage(buf, AgentMessage.TYPE_CLIENT_INFO);
+        BinaryAgentCodec.putMac(buf, h, 1L);
+        BinaryAgentCodec.endMessage(buf, h);
+        buf.flip();
+        buf.limit(buf.limit() - 1);
+
+        assertFalse(binary.decode(buf, new AgentMessage()));
+        // text messages are never taken as binary
+        assertFalse(BinaryAgentCodec.isBinaryMessage(datagram("client|1|2|")));
+    }
+}
@@ -0,0 +1,94 @@
+/**
+*    Copyright 2013 University of Helsinki
+*
+*    Licensed under the Apache License, Version 2.0 (the "License"); you may
+*    not use this file except in compliance with the License. You may obtain
+*    a copy of the License at
+*
+*         http://www.apache.org/licenses/LICENSE-2.0
+*
+*    Unless required by applicable law or agreed to in writing, software
+*    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+*    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+*    License for the specific language governing permissions and limitations
+*    under the License.
+**/
+
+package net.floodlightcontroller.mobilesdn;
+
+import static org.junit.Assert.*;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class AgentMessengerTest {
+    private DatagramSocket agentSocket;
+    private AgentMessenger messenger;
+    private InetAddress localhost;
+
+    @Before
+    public void setUp() throws Exception {
+        agentSocket = new DatagramSocket(0);
+        agentSocket.setSoTimeout(500);
+        messenger = new AgentMessenger();
+        localhost = InetAddress.getByName("127.0.0.1");
+    }
+
+    @After
+    public void tearDown() {
+        messenger.shutdown();
+        agentSocket.close();
+    }
+
+    private String receive() throws Exception {
+        byte[] buf = new byte[512];
+        DatagramPacket p = new DatagramPacket(buf, buf.length);
+        agentSocket.receive(p);
+        return new String(p.getData(), 0, p.getLength());
+    }
+
+    @Test
+    public void testCoalescing() throws Exception {
+        int port = agentSocket.getLocalPort();
+        byte[] arp = "arp".getBytes();
+        byte[] other = "arm".getBytes();
+
+        // queued before the sender runs, so they end up in one batch
+        assertTrue(messenger.send(localhost, port, arp, arp.length));
+        assertTrue(messenger.send(localhost, port, arp, arp.length));
+        assertTrue(messenger.send(localhost, port, other, other.length));
+        assertTrue(messenger.send(localhost, port, arp, arp.length));
+
+        Thread t = new Thread(messenger);
+        t.setDaemon(true);
+        t.start();
+
+        assertEquals("arp", receive());
+        assertEquals("arm", receive());
+        try {
+            receive();
+            fail("duplicate message was sent");
+        } catch (SocketTimeoutException e) {
+            // expected
+        }
+
+        assertEquals(2, messenger.getSentCount());
+        assertEquals(2, messenger.getCoalescedCount());
+        assertEquals(0, messenger.getDroppedCount());
+        assertEquals(0, messenger.getPendingCount());
+        assertTrue(messenger.getMaxLatency() >= messenger.getAverageLatency());
+    }
+
+    @Test
+    public void testOversizedMessageDropped() throws Exception {
+        byte[] big = new byte[600];
+        assertFalse(messenger.send(localhost, agentSocket.getLocalPort(), big, big.length));
+        assertEquals(1, messenger.getDroppedCount());
+    }
+}
@@ -0,0 +1,121 @@
+/**
+*    Copyright 2013 University of Helsinki
+*
+*    Licensed under the Apache License, Version 2.0 (the "License"); you may
+*    not use this file except in compliance with the License. You may obtain
+*    a copy of the License at
+*
+*         http://www.apache.org/licenses/LICENSE-2.0
+*
+*    Unless required by applicable law or agreed to in writing, software
+*    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+*    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+*    License for the specific language governing permissions and limitations
+*    under the License.
+**/
+
+package net.floodlightcontroller.mobilesdn;
+
+import static org.junit.Assert.*;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ClickManageServerTest {
+    private static final int PORT = 26999;
+
+    private Master master;
+    private ClickManageServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        master = new Master();
+        server = new ClickManageServer(master, PORT);
+        Thread t = new Thread(server);
+        t.setDaemon(true);
+        t.start();
+        Thread.sleep(200);
+    }
+
+    @After
+    public void tearDown() {
+        server.shutdown();
+    }
+
+    private void waitForProcessed(long num) throws InterruptedException {
+        for (int i = 0; i < 100 && server.getProcessedCount() < num; i++) {
+            Thread.sleep(20);
+        }
+    }
+
+    @Test
+    public void testBatchedReceive() throws Exception {
+        DatagramSocket socket = new DatagramSocket();
+        byte[] data = "start|\n".getBytes();
+        InetAddress addr = InetAddress.getByName("127.0.0.1");
+
+        for (int i = 0; i < 200; i++) {
+            socket.send(new DatagramPacket(data, data.length, addr, PORT));
+        }
+        socket.close();
+        waitForProcessed(200);
+
+        assertEquals(200, server.getReceivedCount());
+        assertEquals(200, server.getProcessedCount());
+        assertEquals(0, server.getDroppedCount());
+        assertTrue(master.startTime != 0);
+        // several datagrams are drained for a single selector wakeup
+        assertTrue(server.getWakeupCount() <= server.getReceivedCount());
+    }
+
+    @Test
+    public void testShortMessagesIgnored() throws Exception {
+        DatagramSocket socket = new DatagramSocket();
+        InetAddress addr = InetAddress.getByName("127.0.0.1");
+        String[] messages = { "client|", "clientrate|00:11:22:33:44:55|10.0.0.5|",
+                "clientdisconnect|", "scan|00:11:22:33:44:55", "app|" };
+
+        for (String m: messages) {
+            byte[] data = m.getBytes();
+            socket.send(new DatagramPacket(data, data.length, addr, PORT));
+        }
+        socket.close();
+        waitForProcessed(messages.length);
+
+        // handled without an error, and nothing reached the master
+        assertEquals(messages.length, server.getProcessedCount());
+        assertTrue(master.getAgents().isEmpty());
+    }
+
+    @Test
+    public void testMalformedMessageDoesNotLeakBuffers() throws Exception {
+        DatagramSocket socket = new DatagramSocket();
+        byte[] data = "client|".getBytes();  // missing fields
+        InetAddress addr = InetAddress.getByName("127.0.0.1");
+
+        for (int i = 0; i < 2000; i++) {
+            socket.send(new DatagramPacket(data, data.length, addr, PORT));
+            if (i % 500 == 0) {
+                Thread.sleep(50);
+            }
+        }
+        socket.close();
+
+        // bursts may exhaust the pool on a slow machine, which is only
+        // backpressure; once drained every buffer must be back
+        long deadline = System.currentTimeMillis() + 5000;
+        while ((server.getPendingCount() > 0
+                || server.getFreeBufferCount() < ClickManageServer.getBufferPoolSize())
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+
+        assertEquals(0, server.getPendingCount());
+        assertEquals(ClickManageServer.getBufferPoolSize(), server.getFreeBufferCount());
+    }
+}
@@ -0,0 +1,106 @@
+/**
+*    Copyright 2013 University of Helsinki
+*
+*    Licensed under the Apache License, Version 2.0 (the "License"); you may
+*    not use this file except in compliance with the License. You may obtain
+*    a copy of the License at
+*
+*         http://www.apache.org/licenses/LICENSE-2.0
+*
+*    Unless required by applicable law or agreed to in writing, software
+*    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+*    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+*    License for the specific language governing permissions and limitations
+*    under the License.
+**/
+
+
+package net.floodlightcontroller.mobilesdn;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class ClientStateTest {
+
+    private static Client newClient() throws Exception {
+        return new Client("00:1e:65:00:00:01", "10.0.0.5", new APAgent("10.0.0.1"));
+    }
+
+    @Test
+    public void testEvaluationCycle() throws Exception {
+        Client clt = newClient();
+        assertEquals(ClientState.ASSOCIATED, clt.getState());
+
+        assertTrue(clt.startOffloadingEvaluation());
+        assertTrue(clt.isBeningEvaluated());
+        // only one evaluation at a time
+        assertFalse(clt.startOffloadingEvaluation());
+
+        clt.finishOffloadingEvaluation();
+        assertEquals(ClientState.ASSOCIATED, clt.getState());
+
+        assertTrue(clt.startOffloadingEvaluation());
+        assertTrue(clt.moveTo(ClientState.OFFLOADING));
+        // no new evaluation while it is switching AP
+        assertFalse(clt.startOffloadingEvaluation());
+        clt.finishOffloadingEvaluation();
+        assertEquals(ClientState.OFFLOADING, clt.getState());
+
+        assertTrue(clt.moveTo(ClientState.DISCONNECTED));
+        assertFalse(clt.moveTo(ClientState.ASSOCIATED));
+        assertFalse(clt.startOffloadingEvaluation());
+        assertEquals(ClientState.DISCONNECTED, clt.getState());
+    }
+
+    @Test
+    public void testTransitionTable() {
+        for (ClientState s: ClientState.values()) {
+            assertFalse(ClientState.DISCONNECTED.canMoveTo(s));
+        }
+        assertFalse(ClientState.OFFLOADING.canMoveTo(ClientState.EVALUATING));
+        assertTrue(ClientState.EVALUATING.canMoveTo(ClientState.OFFLOADING));
+    }
+
+    @Test
+    public void testSingleEvaluationUnderContention() throws Exception {
+        final Client clt = newClient();
+        final AtomicInteger started = new AtomicInteger();
+        final CountDownLatch go = new CountDownLatch(1);
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        go.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    if (clt.startOffloadingEvaluation()) {
+                        started.incrementAndGet();
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        go.countDown();
+        for (Thread t: threads) {
+            t.join();
+        }
+        assertEquals(1, started.get());
+    }
+
+    @Test
+    public void testStripedLock() {
+        StripedLock locks = new StripedLock(60);
+        assertEquals(64, locks.size());
+        long mac = 0x001e65000001L;
+        assertSame(locks.get(mac), locks.get(mac));
+        // consecutive MACs are spread over different stripes
+        assertNotSame(locks.get(mac), locks.get(mac + 1));
+    }
+}
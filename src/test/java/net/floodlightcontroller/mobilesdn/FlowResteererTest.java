@@ -0,0 +1,338 @@
+/**
+*    Copyright 2013 University of Helsinki
+*
+*    Licensed under the Apache License, Version 2.0 (the "License"); you may
+*    not use this file except in compliance with the License. You may obtain
+*    a copy of the License at
+*
+*         http://www.apache.org/licenses/LICENSE-2.0
+*
+*    Unless required by applicable law or agreed to in writing, software
+*    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+*    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+*    License for the specific language governing permissions and limitations
+*    under the License.
+**/
+
+package net.floodlightcontroller.mobilesdn;
+
+import static org.junit.Assert.*;
+import static org.easymock.EasyMock.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.floodlightcontroller.core.FloodlightContext;
+import net.floodlightcontroller.core.IOFSwitch;
+import net.floodlightcontroller.core.internal.OFStatisticsFuture;
+import net.floodlightcontroller.core.test.MockThreadPoolService;
+import net.floodlightcontroller.topology.NodePortTuple;
+
+import org.easymock.Capture;
+import org.easymock.CaptureType;
+import org.easymock.IAnswer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openflow.protocol.OFFlowMod;
+import org.openflow.protocol.OFMatch;
+import org.openflow.protocol.OFMessage;
+import org.openflow.protocol.OFStatisticsReply;
+import org.openflow.protocol.OFStatisticsRequest;
+import org.openflow.protocol.OFType;
+import org.openflow.protocol.action.OFAction;
+import org.openflow.protocol.action.OFActionDataLayerSource;
+import org.openflow.protocol.action.OFActionOutput;
+import org.openflow.protocol.factory.BasicFactory;
+import org.openflow.protocol.statistics.OFFlowStatisticsReply;
+import org.openflow.protocol.statistics.OFStatistics;
+import org.openflow.protocol.statistics.OFStatisticsType;
+
+public class FlowResteererTest {
+    private static final long CLIENT = 0x0a0b0c0d0e0fL;
+
+    private ScheduledExecutorService executor;
+    private FlowResteerer resteerer;
+
+    @Before
+    public void setUp() {
+        executor = Executors.newSingleThreadScheduledExecutor();
+        resteerer = new FlowResteerer(BasicFactory.getInstance(), executor);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    private static OFFlowStatisticsReply flow(short inPort, short priority,
+            OFAction... actions) {
+        OFMatch match = new OFMatch();
+        match.setInputPort(inPort);
+        match.setDataLayerDestination(new byte[] {10, 11, 12, 13, 14, 15});
+        OFFlowStatisticsReply reply = new OFFlowStatisticsReply();
+        reply.setMatch(match);
+        reply.setPriority(priority);
+        reply.setIdleTimeout((short) 5);
+        reply.setActions(Arrays.asList(actions));
+        return reply;
+    }
+
+    private static List<OFStatistics> clientFlows() {
+        List<OFStatistics> flows = new ArrayList<OFStatistics>();
+        flows.add(flow((short) 1, (short) 100, new OFActionOutput((short) 3, (short) 0xffff)));
+        // rewrite and output, only the output changes
+        OFActionDataLayerSource setSrc = new OFActionDataLayerSource();
+        setSrc.setDataLayerAddress(new byte[] {1, 2, 3, 4, 5, 6});
+        flows.add(flow((short) 2, (short) 200, setSrc,
+                new OFActionOutput((short) 3, (short) 0xffff)));
+        // another path, not through the old AP
+        flows.add(flow((short) 3, (short) 300, new OFActionOutput((short) 7, (short) 0xffff)));
+        return flows;
+    }
+
+    @Test
+    public void testMakeFlowMods() {
+        List<OFMessage> mods = resteerer.makeFlowMods(clientFlows(), (short) 3, (short) 4);
+        assertEquals(2, mods.size());
+
+        OFFlowMod fm = (OFFlowMod) mods.get(0);
+        assertEquals(OFFlowMod.OFPFC_MODIFY_STRICT, fm.getCommand());
+        assertEquals(100, fm.getPriority());
+        assertEquals(5, fm.getIdleTimeout());
+        assertEquals(1, fm.getMatch().getInputPort());
+        assertEquals(1, fm.getActions().size());
+        assertEquals(4, ((OFActionOutput) fm.getActions().get(0)).getPort());
+        assertEquals(OFFlowMod.MINIMUM_LENGTH + OFActionOutput.MINIMUM_LENGTH, fm.getLengthU());
+
+        fm = (OFFlowMod) mods.get(1);
+        assertEquals(200, fm.getPriority());
+        assertEquals(2, fm.getActions().size());
+        assertTrue(fm.getActions().get(0) instanceof OFActionDataLayerSource);
+        assertEquals(4, ((OFActionOutput) fm.getActions().get(1)).getPort());
+        assertEquals(OFFlowMod.MINIMUM_LENGTH + OFActionDataLayerSource.MINIMUM_LENGTH
+                + OFActionOutput.MINIMUM_LENGTH, fm.getLengthU());
+
+        // same port, nothing to do
+        assertTrue(resteerer.makeFlowMods(clientFlows(), (short) 3, (short) 3).isEmpty());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testBatchWithBarrier() throws Exception {
+        MockThreadPoolService tp = new MockThreadPoolService();
+        IOFSwitch sw = createNiceMock(IOFSwitch.class);
+        OFStatisticsFuture future = new OFStatisticsFuture(tp, sw, 1);
+        Capture<List<OFMessage>> written = new Capture<List<OFMessage>>(CaptureType.ALL);
+        expect(sw.getId()).andReturn(5L).anyTimes();
+        expect(sw.getStringId()).andReturn("00:00:00:00:00:00:00:05").anyTimes();
+        expect(sw.queryStatistics(anyObject(OFStatisticsRequest.class))).andReturn(future);
+        expect(sw.getNextTransactionId()).andReturn(10).andReturn(11).andReturn(12);
+        sw.write(capture(written), (FloodlightContext) isNull());
+        expectLastCall().once();
+        replay(sw);
+
+        assertTrue(resteerer.resteer(sw, CLIENT, (short) 3, (short) 4));
+        assertFalse(written.hasCaptured());
+
+        OFStatisticsReply reply = new OFStatisticsReply();
+        reply.setXid(1);
+        reply.setStatisticType(OFStatisticsType.FLOW);
+        reply.setStatistics(clientFlows());
+        future.deliverFuture(sw, reply);
+
+        for (int i = 0; i < 100 && !written.hasCaptured(); i++) {
+            Thread.sleep(10);
+        }
+        // all flows and the barrier in one write
+        assertEquals(1, written.getValues().size());
+        List<OFMessage> batch = written.getValue();
+        assertEquals(3, batch.size());
+        assertEquals(OFType.FLOW_MOD, batch.get(0).getType());
+        assertEquals(10, batch.get(0).getXid());
+        assertEquals(OFType.FLOW_MOD, batch.get(1).getType());
+        assertEquals(OFType.BARRIER_REQUEST, batch.get(2).getType());
+        assertEquals(12, batch.get(2).getXid());
+        assertEquals(0, resteerer.getCompletedCount());
+
+        // unrelated barrier
+        assertFalse(resteerer.barrierReplied(sw, 99));
+        assertTrue(resteerer.barrierReplied(sw, 12));
+        assertFalse(resteerer.barrierReplied(sw, 12));
+        assertEquals(1, resteerer.getCompletedCount());
+        assertEquals(2, resteerer.getFlowCount());
+        assertEquals(0, resteerer.getFailedCount());
+        assertTrue(resteerer.getLastLatency() > 0);
+        assertEquals(resteerer.getLastLatency(), resteerer.getMaxLatency(), 1e-9);
+        verify(sw);
+    }
+
+    @Test
+    public void testSwitchRemoved() throws Exception {
+        MockThreadPoolService tp = new MockThreadPoolService();
+        IOFSwitch sw = createNiceMock(IOFSwitch.class);
+        OFStatisticsFuture future = new OFStatisticsFuture(tp, sw, 1);
+        expect(sw.getId()).andReturn(5L).anyTimes();
+        expect(sw.queryStatistics(anyObject(OFStatisticsRequest.class))).andReturn(future);
+        expect(sw.getNextTransactionId()).andReturn(10).andReturn(11).andReturn(12);
+        replay(sw);
+
+        assertTrue(resteerer.resteer(sw, CLIENT, (short) 3, (short) 4));
+        OFStatisticsReply reply = new OFStatisticsReply();
+        reply.setXid(1);
+        reply.setStatisticType(OFStatisticsType.FLOW);
+        reply.setStatistics(clientFlows());
+        future.deliverFuture(sw, reply);
+
+        executor.submit(new Runnable() {
+            @Override
+            public void run() {
+            }
+        }).get(1, TimeUnit.SECONDS);
+        resteerer.removeSwitch(5L);
+        assertEquals(1, resteerer.getFailedCount());
+        assertFalse(resteerer.barrierReplied(sw, 12));
+        assertEquals(0, resteerer.getCompletedCount());
+    }
+
+    @SuppressWarnings("unchecked")
+    private static IOFSwitch pathSwitch(long id, int firstXid,
+            Capture<List<OFMessage>> written) throws Exception {
+        IOFSwitch sw = createNiceMock(IOFSwitch.class);
+        expect(sw.getId()).andReturn(id).anyTimes();
+        expect(sw.getStringId()).andReturn(Long.toString(id)).anyTimes();
+        expect(sw.getNextTransactionId()).andReturn(firstXid).andReturn(firstXid + 1);
+        sw.write(capture(written), (FloodlightContext) isNull());
+        expectLastCall().once();
+        replay(sw);
+        return sw;
+    }
+
+    private static short outPort(List<OFMessage> batch) {
+        OFFlowMod fm = (OFFlowMod) batch.get(0);
+        assertEquals(OFFlowMod.OFPFC_ADD, fm.getCommand());
+        // below a handover flow with the same match
+        assertEquals(FlowResteerer.PATH_PRIORITY, fm.getPriority());
+        assertTrue(fm.getPriority() < HandoverManager.HANDOVER_PRIORITY);
+        assertEquals(HandoverManager.PATH_COOKIE, fm.getCookie());
+        return ((OFActionOutput) fm.getActions().get(0)).getPort();
+    }
+
+    @Test
+    public void testResteerPath() throws Exception {
+        Capture<List<OFMessage>> onA = new Capture<List<OFMessage>>();
+        Capture<List<OFMessage>> onX = new Capture<List<OFMessage>>();
+        Capture<List<OFMessage>> onB = new Capture<List<OFMessage>>();
+        IOFSwitch a = pathSwitch(1L, 10, onA);
+        IOFSwitch x = pathSwitch(2L, 20, onX);
+        IOFSwitch b = pathSwitch(3L, 30, onB);
+        Map<Long, IOFSwitch> switches = new HashMap<Long, IOFSwitch>();
+        switches.put(1L, a);
+        switches.put(2L, x);
+        switches.put(3L, b);
+
+        // old AP on port 3 of A, new AP on port 4 of B
+        List<NodePortTuple> path = Arrays.asList(
+                new NodePortTuple(1L, (short) 3), new NodePortTuple(1L, (short) 7),
+                new NodePortTuple(2L, (short) 1), new NodePortTuple(2L, (short) 2),
+                new NodePortTuple(3L, (short) 5), new NodePortTuple(3L, (short) 4));
+        assertTrue(resteerer.resteerPath(switches, path, CLIENT));
+
+        // downstream switches in parallel, the client's switch not yet
+        assertEquals(2, outPort(onX.getValue()));
+        assertEquals(4, outPort(onB.getValue()));
+        assertFalse(onA.hasCaptured());
+        assertTrue(resteerer.barrierReplied(b, 31));
+        assertFalse(onA.hasCaptured());
+        assertTrue(resteerer.barrierReplied(x, 21));
+        assertEquals(7, outPort(onA.getValue()));
+        assertEquals(0, resteerer.getCompletedCount());
+
+        assertTrue(resteerer.barrierReplied(a, 11));
+        assertEquals(1, resteerer.getCompletedCount());
+        assertEquals(3, resteerer.getFlowCount());
+
+        // a switch of the route is gone
+        switches.remove(2L);
+        assertFalse(resteerer.resteerPath(switches, path, CLIENT));
+        assertFalse(resteerer.resteerPath(switches, path.subList(0, 3), CLIENT));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static IOFSwitch routeSwitch(long id, Capture<List<OFMessage>> written)
+            throws Exception {
+        final AtomicInteger xid = new AtomicInteger((int) id * 10);
+        IOFSwitch sw = createNiceMock(IOFSwitch.class);
+        expect(sw.getId()).andReturn(id).anyTimes();
+        expect(sw.getStringId()).andReturn(Long.toString(id)).anyTimes();
+        expect(sw.getNextTransactionId()).andAnswer(new IAnswer<Integer>() {
+            @Override
+            public Integer answer() {
+                return xid.incrementAndGet();
+            }
+        }).anyTimes();
+        sw.write(capture(written), (FloodlightContext) isNull());
+        expectLastCall().anyTimes();
+        replay(sw);
+        return sw;
+    }
+
+    private static short lastCommand(Capture<List<OFMessage>> written) {
+        List<List<OFMessage>> all = written.getValues();
+        return ((OFFlowMod) all.get(all.size() - 1).get(0)).getCommand();
+    }
+
+    @Test
+    public void testSecondMove() throws Exception {
+        Map<Long, IOFSwitch> switches = new HashMap<Long, IOFSwitch>();
+        List<Capture<List<OFMessage>>> written = new ArrayList<Capture<List<OFMessage>>>();
+        for (long id = 1; id <= 4; id++) {
+            Capture<List<OFMessage>> c = new Capture<List<OFMessage>>(CaptureType.ALL);
+            written.add(c);
+            switches.put(id, routeSwitch(id, c));
+        }
+
+        // first move: port 3 of switch 1 to port 4 of switch 3 via switch 2
+        List<NodePortTuple> first = Arrays.asList(
+                new NodePortTuple(1L, (short) 3), new NodePortTuple(1L, (short) 7),
+                new NodePortTuple(2L, (short) 1), new NodePortTuple(2L, (short) 2),
+                new NodePortTuple(3L, (short) 5), new NodePortTuple(3L, (short) 4));
+        assertTrue(resteerer.resteerPath(switches, first, CLIENT));
+        assertTrue(resteerer.leadsTo(CLIENT, 3L, (short) 4));
+        assertFalse(resteerer.leadsTo(CLIENT, 3L, (short) 6));
+
+        // second move: on to port 4 of switch 4
+        List<NodePortTuple> second = Arrays.asList(
+                new NodePortTuple(3L, (short) 4), new NodePortTuple(3L, (short) 8),
+                new NodePortTuple(4L, (short) 1), new NodePortTuple(4L, (short) 4));
+        assertTrue(resteerer.resteerPath(switches, second, CLIENT));
+        assertTrue(resteerer.leadsTo(CLIENT, 4L, (short) 4));
+        assertFalse(resteerer.leadsTo(CLIENT, 3L, (short) 4));
+        // the flows of the first route are gone from the switches left
+        assertEquals(OFFlowMod.OFPFC_DELETE, lastCommand(written.get(0)));
+        assertEquals(OFFlowMod.OFPFC_DELETE, lastCommand(written.get(1)));
+        OFFlowMod delete = (OFFlowMod) written.get(0).getValue().get(0);
+        assertEquals(HandoverManager.makeMatch(CLIENT), delete.getMatch());
+        // switch 3 stays on the route, its flow is replaced
+        for (List<OFMessage> batch: written.get(2).getValues()) {
+            assertEquals(OFFlowMod.OFPFC_ADD, ((OFFlowMod) batch.get(0)).getCommand());
+        }
+        assertEquals(OFFlowMod.OFPFC_ADD, lastCommand(written.get(3)));
+
+        // the client leaves: the second route goes as well
+        int firstSwitchWrites = written.get(0).getValues().size();
+        assertTrue(resteerer.clearPath(switches, CLIENT));
+        assertEquals(OFFlowMod.OFPFC_DELETE, lastCommand(written.get(2)));
+        assertEquals(OFFlowMod.OFPFC_DELETE, lastCommand(written.get(3)));
+        assertEquals(firstSwitchWrites, written.get(0).getValues().size());
+        assertFalse(resteerer.leadsTo(CLIENT, 4L, (short) 4));
+        assertFalse(resteerer.clearPath(switches, CLIENT));
+    }
+}
@@ -0,0 +1,236 @@
+/**
+*    Copyright 2013 University of Helsinki
+*
+*    Licensed under the Apache License, Version 2.0 (the "License"); you may
+*    not use this file except in compliance with the License. You may obtain
+*    a copy of the License at
+*
+*         http://www.apache.org/licenses/LICENSE-2.0
+*
+*    Unless required by applicable law or agreed to in writing, software
+*    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+*    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+*    License for the specific language governing permissions and limitations
+*    under the License.
+**/
+
+package net.floodlightcontroller.mobilesdn;
+
+import static org.junit.Assert.*;
+import static org.easymock.EasyMock.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.floodlightcontroller.core.FloodlightContext;
+import net.floodlightcontroller.core.IOFSwitch;
+import net.floodlightcontroller.core.internal.OFStatisticsFuture;
+import net.floodlightcontroller.core.test.MockThreadPoolService;
+
+import org.easymock.Capture;
+import org.easymock.CaptureType;
+import org.easymock.IAnswer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openflow.protocol.OFFlowMod;
+import org.openflow.protocol.OFMatch;
+import org.openflow.protocol.OFMessage;
+import org.openflow.protocol.OFPort;
+import org.openflow.protocol.OFStatisticsReply;
+import org.openflow.protocol.OFStatisticsRequest;
+import org.openflow.protocol.OFType;
+import org.openflow.protocol.action.OFAction;
+import org.openflow.protocol.action.OFActionOutput;
+import org.openflow.protocol.factory.BasicFactory;
+import org.openflow.protocol.statistics.OFFlowStatisticsReply;
+import org.openflow.protocol.statistics.OFStatistics;
+import org.openflow.protocol.statistics.OFStatisticsType;
+
+public class HandoverManagerTest {
+    private static final long CLIENT = 0x0a0b0c0d0e0fL;
+
+    private ScheduledExecutorService executor;
+    private FlowResteerer resteerer;
+    private HandoverManager handovers;
+    private IOFSwitch sw;
+    private OFStatisticsFuture flowStats;
+    private Capture<List<OFMessage>> written;
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setUp() throws Exception {
+        executor = Executors.newSingleThreadScheduledExecutor();
+        resteerer = new FlowResteerer(BasicFactory.getInstance(), executor);
+        handovers = new HandoverManager(resteerer, BasicFactory.getInstance(), executor);
+
+        final AtomicInteger xid = new AtomicInteger();
+        sw = createNiceMock(IOFSwitch.class);
+        flowStats = new OFStatisticsFuture(new MockThreadPoolService(), sw, 1);
+        written = new Capture<List<OFMessage>>(CaptureType.ALL);
+        expect(sw.getId()).andReturn(5L).anyTimes();
+        expect(sw.getStringId()).andReturn("00:00:00:00:00:00:00:05").anyTimes();
+        expect(sw.getNextTransactionId()).andAnswer(new IAnswer<Integer>() {
+            @Override
+            public Integer answer() {
+                return xid.incrementAndGet();
+            }
+        }).anyTimes();
+        expect(sw.queryStatistics(anyObject(OFStatisticsRequest.class)))
+                .andReturn(flowStats).anyTimes();
+        sw.write(capture(written), (FloodlightContext) isNull());
+        expectLastCall().anyTimes();
+        replay(sw);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    private List<OFMessage> lastBatch() {
+        List<List<OFMessage>> all = written.getValues();
+        return all.get(all.size() - 1);
+    }
+
+    // confirm the barrier at the end of a written batch
+    private void confirm(List<OFMessage> batch) {
+        OFMessage barrier = batch.get(batch.size() - 1);
+        assertEquals(OFType.BARRIER_REQUEST, barrier.getType());
+        assertTrue(resteerer.barrierReplied(sw, barrier.getXid()));
+    }
+
+    private static short outPort(OFFlowMod fm, int i) {
+        return ((OFActionOutput) fm.getActions().get(i)).getPort();
+    }
+
+    // answer the flow stats request with one forwarding flow to the port
+    private void replyFlowStats(short port) throws Exception {
+        OFFlowStatisticsReply flow = new OFFlowStatisticsReply();
+        OFMatch match = new OFMatch();
+        match.setDataLayerDestination(new byte[] {10, 11, 12, 13, 14, 15});
+        flow.setMatch(match);
+        flow.setPriority((short) 100);
+        List<OFAction> actions = new ArrayList<OFAction>(1);
+        actions.add(new OFActionOutput(port, (short) 0xffff));
+        flow.setActions(actions);
+        List<OFStatistics> flows = new ArrayList<OFStatistics>(1);
+        flows.add(flow);
+
+        OFStatisticsReply reply = new OFStatisticsReply();
+        reply.setXid(1);
+        reply.setStatisticType(OFStatisticsType.FLOW);
+        reply.setStatistics(flows);
+        int before = written.getValues().size();
+        flowStats.deliverFuture(sw, reply);
+        for (int i = 0; i < 100 && written.getValues().size() == before; i++) {
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void testMakeBeforeBreak() throws Exception {
+        final AtomicBoolean asked = new AtomicBoolean();
+        assertTrue(handovers.begin(sw, CLIENT, (short) 3, (short) 4, new Runnable() {
+            @Override
+            public void run() {
+                asked.set(true);
+            }
+        }));
+        assertTrue(handovers.isInProgress(CLIENT));
+        // one handover per client
+        assertFalse(handovers.begin(sw, CLIENT, (short) 3, (short) 5, null));
+
+        // make: traffic to both APs before the client is asked
+        List<OFMessage> batch = lastBatch();
+        OFFlowMod add = (OFFlowMod) batch.get(0);
+        assertEquals(OFFlowMod.OFPFC_ADD, add.getCommand());
+        assertEquals(HandoverManager.HANDOVER_PRIORITY, add.getPriority());
+        assertEquals(2, add.getActions().size());
+        assertEquals(3, outPort(add, 0));
+        assertEquals(4, outPort(add, 1));
+        assertFalse(asked.get());
+        confirm(batch);
+        assertTrue(asked.get());
+
+        // no packet copies before the client joined
+        assertFalse(handovers.packetIn(sw, CLIENT));
+        assertTrue(handovers.clientJoined(CLIENT, 5L, (short) 4));
+        List<List<OFMessage>> all = written.getValues();
+        assertEquals(2, all.size());
+        OFFlowMod modify = (OFFlowMod) all.get(1).get(0);
+        assertEquals(OFFlowMod.OFPFC_MODIFY_STRICT, modify.getCommand());
+        assertEquals(4, outPort(modify, 0));
+        assertEquals(OFPort.OFPP_CONTROLLER.getValue(), outPort(modify, 1));
+        confirm(all.get(1));
+
+        // first packet at the target AP
+        assertFalse(handovers.packetIn(sw, CLIENT + 1));
+        assertTrue(handovers.packetIn(sw, CLIENT));
+        assertEquals(1, handovers.getCompletedCount());
+        assertTrue(handovers.getAverageFirstByteTime() > 0);
+        assertTrue(handovers.getAverageFirstByteTime() >= handovers.getAverageJoinTime());
+
+        // break: the forwarding flow moves to the target port
+        replyFlowStats((short) 3);
+        assertEquals(3, written.getValues().size());
+        OFFlowMod moved = (OFFlowMod) lastBatch().get(0);
+        assertEquals(OFFlowMod.OFPFC_MODIFY_STRICT, moved.getCommand());
+        assertEquals(100, moved.getPriority());
+        assertEquals(4, outPort(moved, 0));
+        // later copies are still swallowed until the switch confirmed
+        assertTrue(handovers.packetIn(sw, CLIENT));
+        confirm(lastBatch());
+
+        // then the handover flow is deleted, nothing stays above them
+        OFFlowMod delete = (OFFlowMod) lastBatch().get(0);
+        assertEquals(OFFlowMod.OFPFC_DELETE_STRICT, delete.getCommand());
+        assertEquals(HandoverManager.HANDOVER_PRIORITY, delete.getPriority());
+        assertEquals(2, lastBatch().size());
+        assertTrue(handovers.isInProgress(CLIENT));
+        confirm(lastBatch());
+        assertFalse(handovers.isInProgress(CLIENT));
+        assertFalse(handovers.packetIn(sw, CLIENT));
+    }
+
+    @Test
+    public void testClearClient() {
+        assertTrue(handovers.begin(sw, CLIENT, (short) 3, (short) 4, new Runnable() {
+            @Override
+            public void run() {
+            }
+        }));
+        // the handover removes its own flow
+        assertFalse(handovers.clearClient(sw, CLIENT));
+        assertEquals(1, written.getValues().size());
+
+        assertTrue(handovers.clearClient(sw, CLIENT + 1));
+        OFFlowMod delete = (OFFlowMod) lastBatch().get(0);
+        assertEquals(OFFlowMod.OFPFC_DELETE_STRICT, delete.getCommand());
+        assertEquals(HandoverManager.HANDOVER_PRIORITY, delete.getPriority());
+        assertEquals(HandoverManager.makeMatch(CLIENT + 1), delete.getMatch());
+    }
+
+    @Test
+    public void testAbortWhenJoiningAnotherAP() {
+        assertTrue(handovers.begin(sw, CLIENT, (short) 3, (short) 4, new Runnable() {
+            @Override
+            public void run() {
+            }
+        }));
+        confirm(lastBatch());
+
+        assertFalse(handovers.clientJoined(CLIENT, 5L, (short) 6));
+        assertEquals(1, handovers.getAbortedCount());
+        OFFlowMod delete = (OFFlowMod) lastBatch().get(0);
+        assertEquals(OFFlowMod.OFPFC_DELETE_STRICT, delete.getCommand());
+        assertEquals(HandoverManager.HANDOVER_PRIORITY, delete.getPriority());
+        confirm(lastBatch());
+        assertFalse(handovers.isInProgress(CLIENT));
+        assertEquals(0, handovers.getCompletedCount());
+    }
+}
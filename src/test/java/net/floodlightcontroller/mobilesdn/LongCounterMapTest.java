@@ -0,0 +1,72 @@
+/**
+*    Copyright 2013 University of Helsinki
+*
+*    Licensed under the Apache License, Version 2.0 (the "License"); you may
+*    not use this file except in compliance with the License. You may obtain
+*    a copy of the License at
+*
+*         http://www.apache.org/licenses/LICENSE-2.0
+*
+*    Unless required by applicable law or agreed to in writing, software
+*    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+*    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+*    License for the specific language governing permissions and limitations
+*    under the License.
+**/
+
+
+package net.floodlightcontroller.mobilesdn;
+
+import static org.junit.Assert.*;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class LongCounterMapTest {
+
+    @Test
+    public void testAddAndGet() {
+        LongCounterMap m = new LongCounterMap(2);
+        assertEquals(0, m.get(5));
+        assertFalse(m.containsKey(5));
+        m.add(5, 10);
+        m.add(5, 7);
+        m.add(0, 1);   // 00:00:00:00:00:00 is a valid key
+        assertEquals(17, m.get(5));
+        assertEquals(1, m.get(0));
+        assertTrue(m.containsKey(0));
+        assertEquals(2, m.size());
+
+        m.clear();
+        assertEquals(0, m.size());
+        assertEquals(0, m.get(5));
+        assertFalse(m.containsKey(0));
+    }
+
+    @Test
+    public void testGrowAgainstHashMap() {
+        LongCounterMap m = new LongCounterMap(16);
+        Map<Long, Long> ref = new HashMap<Long, Long>();
+        Random rnd = new Random(1);
+        for (int i = 0; i < 20000; i++) {
+            // same vendor prefix, few distinct low bytes
+            long key = 0x001e65000000L | rnd.nextInt(5000);
+            long v = rnd.nextInt(1000);
+            m.add(key, v);
+            Long old = ref.get(key);
+            ref.put(key, old == null ? v : old + v);
+        }
+        assertEquals(ref.size(), m.size());
+        for (Map.Entry<Long, Long> e: ref.entrySet()) {
+            assertEquals(e.getValue().longValue(), m.get(e.getKey()));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativeKey() {
+        new LongCounterMap(4).add(-1, 1);
+    }
+}
@@ -0,0 +1,108 @@
+/**
+*    Copyright 2013 University of Helsinki
+*
+*    Licensed under the Apache License, Version 2.0 (the "License"); you may
+*    not use this file except in compliance with the License. You may obtain
+*    a copy of the License at
+*
+*         http://www.apache.org/licenses/LICENSE-2.0
+*
+*    Unless required by applicable law or agreed to in writing, software
+*    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+*    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+*    License for the specific language governing permissions and limitations
+*    under the License.
+**/
+
+package net.floodlightcontroller.mobilesdn;
+
+import static org.junit.Assert.*;
+import static org.easymock.EasyMock.*;
+
+import java.net.InetAddress;
+
+import net.floodlightcontroller.core.FloodlightContext;
+import net.floodlightcontroller.core.IFloodlightProviderService;
+import net.floodlightcontroller.core.IListener.Command;
+import net.floodlightcontroller.core.IOFSwitch;
+import net.floodlightcontroller.packet.Data;
+import net.floodlightcontroller.packet.Ethernet;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.openflow.protocol.OFPacketIn;
+import org.openflow.protocol.OFPacketIn.OFPacketInReason;
+
+public class MasterPacketInTest {
+    private static final String CLIENT = "00:11:22:33:44:55";
+
+    private Master master;
+    private Client clt;
+
+    @Before
+    public void setUp() throws Exception {
+        master = new Master();
+        master.receiveClientInfo(InetAddress.getByName("127.0.0.1"), CLIENT, "10.0.0.5");
+        clt = master.getClient(CLIENT.toUpperCase());
+        assertNotNull(clt);
+    }
+
+    private static IOFSwitch sw(long dpid) {
+        IOFSwitch sw = createNiceMock(IOFSwitch.class);
+        expect(sw.getId()).andReturn(dpid).anyTimes();
+        replay(sw);
+        return sw;
+    }
+
+    private static Ethernet frame(String src) {
+        Ethernet eth = new Ethernet();
+        eth.setSourceMACAddress(src);
+        eth.setDestinationMACAddress("00:00:00:00:00:01");
+        eth.setEtherType((short) 0x0800);
+        eth.setPayload(new Data(new byte[] {1, 2, 3, 4}));
+        return eth;
+    }
+
+    private static OFPacketIn packetIn(Ethernet eth) {
+        OFPacketIn pi = new OFPacketIn();
+        pi.setReason(OFPacketInReason.NO_MATCH);
+        pi.setPacketData(eth.serialize());
+        return pi;
+    }
+
+    @Test
+    public void testSwitchFromContext() {
+        Ethernet eth = frame(CLIENT);
+        FloodlightContext cntx = new FloodlightContext();
+        IFloodlightProviderService.bcStore.put(cntx,
+                IFloodlightProviderService.CONTEXT_PI_PAYLOAD, eth);
+
+        IOFSwitch sw1 = sw(1);
+        assertEquals(Command.CONTINUE, master.receive(sw1, packetIn(eth), cntx));
+        assertSame(sw1, clt.getSwitch());
+
+        // the client shows up on another switch
+        IOFSwitch sw2 = sw(2);
+        master.receive(sw2, packetIn(eth), cntx);
+        assertSame(sw2, clt.getSwitch());
+    }
+
+    @Test
+    public void testSwitchFromPacketData() {
+        IOFSwitch sw1 = sw(1);
+        master.receive(sw1, packetIn(frame(CLIENT)), null);
+        assertSame(sw1, clt.getSwitch());
+    }
+
+    @Test
+    public void testUnknownClient() {
+        IOFSwitch sw1 = sw(1);
+        Ethernet eth = frame("00:11:22:33:44:66");
+        FloodlightContext cntx = new FloodlightContext();
+        IFloodlightProviderService.bcStore.put(cntx,
+                IFloodlightProviderService.CONTEXT_PI_PAYLOAD, eth);
+
+        assertEquals(Command.CONTINUE, master.receive(sw1, packetIn(eth), cntx));
+        assertNull(clt.getSwitch());
+    }
+}
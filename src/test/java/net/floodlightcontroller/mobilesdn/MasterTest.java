@@ -0,0 +1,314 @@
+/**
+*    Copyright 2013 University of Helsinki
+*
+*    Licensed under the Apache License, Version 2.0 (the "License"); you may
+*    not use this file except in compliance with the License. You may obtain
+*    a copy of the License at
+*
+*         http://www.apache.org/licenses/LICENSE-2.0
+*
+*    Unless required by applicable law or agreed to in writing, software
+*    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+*    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+*    License for the specific language governing permissions and limitations
+*    under the License.
+**/
+
+package net.floodlightcontroller.mobilesdn;
+
+import static org.junit.Assert.*;
+import static org.easymock.EasyMock.*;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.floodlightcontroller.core.FloodlightContext;
+import net.floodlightcontroller.core.IFloodlightProviderService;
+import net.floodlightcontroller.core.IOFSwitch;
+import net.floodlightcontroller.core.module.FloodlightModuleContext;
+import net.floodlightcontroller.restserver.IRestApiService;
+import net.floodlightcontroller.routing.IRoutingService;
+import net.floodlightcontroller.routing.Route;
+import net.floodlightcontroller.threadpool.IThreadPoolService;
+import net.floodlightcontroller.threadpool.ThreadPool;
+import net.floodlightcontroller.topology.NodePortTuple;
+
+import org.easymock.Capture;
+import org.easymock.CaptureType;
+import org.easymock.IAnswer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.openflow.protocol.OFBarrierReply;
+import org.openflow.protocol.OFBarrierRequest;
+import org.openflow.protocol.OFFlowMod;
+import org.openflow.protocol.OFMessage;
+import org.openflow.protocol.factory.BasicFactory;
+
+/**
+ * Active master with APs behind mocked switches, driven through its agent
+ * message handlers
+ */
+public class MasterTest {
+    private static final int MASTER_PORT = 26997;
+    private static final String CLIENT = "00:11:22:33:44:55";
+
+    @Rule
+    public TemporaryFolder configFolder = new TemporaryFolder();
+
+    private ThreadPool tp;
+    private Master master;
+    private IRoutingService routing;
+    private final Map<Long, IOFSwitch> switches = new HashMap<Long, IOFSwitch>();
+    private final Map<Long, Capture<List<OFMessage>>> written =
+            new HashMap<Long, Capture<List<OFMessage>>>();
+
+    @Before
+    public void setUp() {
+        tp = new ThreadPool();
+        routing = createMock(IRoutingService.class);
+    }
+
+    @After
+    public void tearDown() {
+        if (master != null) {
+            master.stopServices();
+        }
+        tp.getScheduledExecutor().shutdownNow();
+    }
+
+    @SuppressWarnings("unchecked")
+    private void addSwitch(long id, String ip) throws Exception {
+        final AtomicInteger xid = new AtomicInteger((int) id * 100);
+        Capture<List<OFMessage>> c = new Capture<List<OFMessage>>(CaptureType.ALL);
+        IOFSwitch sw = createNiceMock(IOFSwitch.class);
+        expect(sw.getId()).andReturn(id).anyTimes();
+        expect(sw.getStringId()).andReturn(Long.toString(id)).anyTimes();
+        expect(sw.getInetAddress()).andReturn(new InetSocketAddress(ip, 6633)).anyTimes();
+        expect(sw.getNextTransactionId()).andAnswer(new IAnswer<Integer>() {
+            @Override
+            public Integer answer() {
+                return xid.incrementAndGet();
+            }
+        }).anyTimes();
+        sw.write(capture(c), (FloodlightContext) isNull());
+        expectLastCall().anyTimes();
+        replay(sw);
+        switches.put(id, sw);
+        written.put(id, c);
+    }
+
+    private File writeConfig(String name, String... lines) throws Exception {
+        File f = new File(configFolder.getRoot(), name);
+        PrintWriter w = new PrintWriter(f);
+        for (String line: lines) {
+            w.println(line);
+        }
+        w.close();
+        return f;
+    }
+
+    private static String[] ap(String ip, String bssid, int port) {
+        return new String[] { "ManagedIP " + ip, "SSID ap" + port, "BSSID " + bssid,
+                "AUTH open", "OFPort " + port, "DownlinkBW 10" };
+    }
+
+    private static String[] concat(String[]... parts) {
+        List<String> l = new ArrayList<String>();
+        for (String[] p: parts) {
+            l.addAll(Arrays.asList(p));
+        }
+        return l.toArray(new String[l.size()]);
+    }
+
+    /**
+     * start an active master on the given config files, with all switches
+     * added so far connected
+     */
+    private void startMaster(File networkConfig, File apConfig) throws Exception {
+        IFloodlightProviderService provider = createNiceMock(IFloodlightProviderService.class);
+        expect(provider.getOFMessageFactory()).andReturn(BasicFactory.getInstance()).anyTimes();
+        for (IOFSwitch sw: switches.values()) {
+            expect(provider.getSwitch(sw.getId())).andReturn(sw).anyTimes();
+        }
+        expect(provider.getAllSwitchMap()).andReturn(switches).anyTimes();
+        replay(provider);
+
+        master = new Master();
+        FloodlightModuleContext fmc = new FloodlightModuleContext();
+        fmc.addService(IThreadPoolService.class, tp);
+        fmc.addService(IFloodlightProviderService.class, provider);
+        fmc.addService(IRestApiService.class, createNiceMock(IRestApiService.class));
+        fmc.addService(IOffloadPolicyService.class, createNiceMock(IOffloadPolicyService.class));
+        fmc.addService(IRoutingService.class, routing);
+        fmc.addConfigParam(master, "masterPort", "" + MASTER_PORT);
+        fmc.addConfigParam(master, "networkFile", networkConfig.getAbsolutePath());
+        fmc.addConfigParam(master, "apConfig", apConfig.getAbsolutePath());
+        fmc.addConfigParam(master, "enableCellular", "false");
+        fmc.addConfigParam(master, "ofMonitorInterval", "3600");
+        fmc.addConfigParam(master, "stateSnapshotInterval", "0");
+        fmc.addConfigParam(master, "configCheckInterval", "0");
+        tp.init(fmc);
+        tp.startUp(fmc);
+        master.init(fmc);
+        master.startUp(fmc);
+        for (long id: switches.keySet()) {
+            master.switchActivated(id);
+        }
+    }
+
+    private static List<OFFlowMod> flowMods(List<List<OFMessage>> batches) {
+        List<OFFlowMod> l = new ArrayList<OFFlowMod>();
+        for (List<OFMessage> batch: batches) {
+            for (OFMessage m: batch) {
+                if (m instanceof OFFlowMod) {
+                    l.add((OFFlowMod) m);
+                }
+            }
+        }
+        return l;
+    }
+
+    /**
+     * reply to the barrier of the last batch written to a switch
+     */
+    private void replyBarrier(long id) {
+        List<List<OFMessage>> all = written.get(id).getValues();
+        List<OFMessage> batch = all.get(all.size() - 1);
+        OFMessage barrier = batch.get(batch.size() - 1);
+        assertTrue(barrier instanceof OFBarrierRequest);
+        OFBarrierReply reply = new OFBarrierReply();
+        reply.setXid(barrier.getXid());
+        master.receive(switches.get(id), reply, null);
+    }
+
+    @Test
+    public void testRoamToRouteTarget() throws Exception {
+        // AP 10.0.0.1 on port 1 of switch 1, AP 10.0.0.2 on port 1 of
+        // switch 2, the switches linked by their ports 3
+        addSwitch(1L, "127.0.0.1");
+        addSwitch(2L, "127.0.0.2");
+        startMaster(
+                writeConfig("network.properties",
+                        "OFSwitchIP 127.0.0.1", "OutPort 2", "BandWidth 10", "AP 10.0.0.1",
+                        "OFSwitchIP 127.0.0.2", "OutPort 2", "BandWidth 10", "AP 10.0.0.2"),
+                writeConfig("ap.properties", concat(
+                        ap("10.0.0.1", "00:00:00:00:00:01", 1),
+                        ap("10.0.0.2", "00:00:00:00:00:02", 1))));
+        APAgent ap1 = master.getAgent("10.0.0.1");
+        APAgent ap2 = master.getAgent("10.0.0.2");
+        assertSame(switches.get(2L), ap2.getSwitch());
+
+        master.receiveClientInfo(InetAddress.getByName("10.0.0.1"), CLIENT, "10.0.0.100");
+        Client clt = master.getClient(CLIENT);
+        assertSame(ap1, clt.getAgent());
+
+        // offload across the switches
+        Route route = new Route(1L, 2L);
+        route.setPath(Arrays.asList(
+                new NodePortTuple(1L, (short) 1), new NodePortTuple(1L, (short) 3),
+                new NodePortTuple(2L, (short) 3), new NodePortTuple(2L, (short) 1)));
+        expect(routing.getRoute(1L, (short) 1, 2L, (short) 1, 0)).andReturn(route);
+        replay(routing);
+        assertTrue(master.performOffload(clt, ap2));
+        replyBarrier(2L);
+        List<OFFlowMod> first = flowMods(written.get(1L).getValues());
+        assertEquals(1, first.size());
+        OFFlowMod routeFlow = first.get(0);
+        assertEquals(OFFlowMod.OFPFC_ADD, routeFlow.getCommand());
+        replyBarrier(1L);
+        long mac = clt.getMacAddress().toLong();
+        assertTrue(master.getFlowResteerer().leadsTo(mac, 2L, (short) 1));
+
+        // the client shows up at the target of the route
+        clt.setConnectTime(System.currentTimeMillis() - 5000);
+        master.receiveClientInfo(InetAddress.getByName("10.0.0.2"), CLIENT, "10.0.0.100");
+        assertSame(ap2, master.getClient(CLIENT).getAgent());
+
+        // the first hop of the route stays on the old switch
+        List<OFFlowMod> all = flowMods(written.get(1L).getValues());
+        for (OFFlowMod fm: all.subList(1, all.size())) {
+            assertFalse(fm.getCommand() == OFFlowMod.OFPFC_DELETE);
+            assertFalse(fm.getCommand() == OFFlowMod.OFPFC_DELETE_STRICT
+                    && fm.getPriority() == routeFlow.getPriority()
+                    && fm.getMatch().equals(routeFlow.getMatch()));
+        }
+        assertTrue(master.getFlowResteerer().leadsTo(mac, 2L, (short) 1));
+    }
+
+    @Test
+    public void testConfigReload() throws Exception {
+        // untouched, changed and removed AP on one switch
+        addSwitch(1L, "127.0.0.1");
+        String[] a = ap("10.0.0.1", "00:00:00:00:00:01", 1);
+        String[] b = ap("10.0.0.2", "00:00:00:00:00:02", 2);
+        String[] c = ap("10.0.0.3", "00:00:00:00:00:03", 3);
+        startMaster(
+                writeConfig("network.properties", "OFSwitchIP 127.0.0.1", "OutPort 9",
+                        "BandWidth 10", "AP 10.0.0.1 10.0.0.2 10.0.0.3"),
+                writeConfig("ap.properties", concat(a, b, c)));
+        APAgent agentA = master.getAgent("10.0.0.1");
+        APAgent agentB = master.getAgent("10.0.0.2");
+        master.receiveClientInfo(InetAddress.getByName("10.0.0.1"),
+                "00:11:22:33:44:01", "10.0.0.101");
+        master.receiveClientInfo(InetAddress.getByName("10.0.0.2"),
+                "00:11:22:33:44:02", "10.0.0.102");
+        master.receiveClientInfo(InetAddress.getByName("10.0.0.3"),
+                "00:11:22:33:44:03", "10.0.0.103");
+        Client cltA = master.getClient("00:11:22:33:44:01");
+        Client cltB = master.getClient("00:11:22:33:44:02");
+        assertNotNull(master.getClient("00:11:22:33:44:03"));
+
+        // B gets another BSSID and port, C is replaced by D
+        StringBuilder network = new StringBuilder();
+        for (String line: new String[] { "OFSwitchIP 127.0.0.1", "OutPort 9",
+                "BandWidth 10", "AP 10.0.0.1 10.0.0.2 10.0.0.4" }) {
+            network.append(line).append('\n');
+        }
+        StringBuilder aps = new StringBuilder();
+        for (String line: concat(a, ap("10.0.0.2", "00:00:00:00:00:12", 5),
+                ap("10.0.0.4", "00:00:00:00:00:04", 4))) {
+            aps.append(line).append('\n');
+        }
+        MobileNetworkConfig.Diff diff = master.reloadNetworkConfig(
+                network.toString(), aps.toString());
+        assertEquals(1, diff.changedAPs.size());
+        assertEquals(1, diff.removedAPs.size());
+        assertEquals(1, diff.addedAPs.size());
+
+        // the untouched AP and its client are the same objects
+        assertSame(agentA, master.getAgent("10.0.0.1"));
+        assertSame(cltA, master.getClient("00:11:22:33:44:01"));
+        assertSame(agentA, cltA.getAgent());
+        assertEquals(1, agentA.getAllClients().size());
+
+        // the changed AP keeps its client and is found by its new BSSID and port
+        APRegistry registry = master.getAPRegistry();
+        assertSame(agentB, master.getAgent("10.0.0.2"));
+        assertSame(cltB, master.getClient("00:11:22:33:44:02"));
+        assertEquals(1, agentB.getAllClients().size());
+        assertSame(agentB, registry.getByBSSID("00:00:00:00:00:12"));
+        assertNull(registry.getByBSSID("00:00:00:00:00:02"));
+        assertSame(agentB, registry.getBySwitchPort(1L, (short) 5));
+        assertNull(registry.getBySwitchPort(1L, (short) 2));
+
+        // the removed AP's client is gone, the new AP is set up
+        assertNull(master.getAgent("10.0.0.3"));
+        assertNull(master.getClient("00:11:22:33:44:03"));
+        APAgent agentD = master.getAgent("10.0.0.4");
+        assertNotNull(agentD);
+        assertSame(switches.get(1L), agentD.getSwitch());
+        assertSame(agentD, registry.getBySwitchPort(1L, (short) 4));
+        assertEquals(3, master.getAPAgentsOnSwitch(1L).size());
+    }
+}
@@ -0,0 +1,151 @@
+/**
+*    Copyright 2013 University of Helsinki
+*
+*    Licensed under the Apache License, Version 2.0 (the "License"); you may
+*    not use this file except in compliance with the License. You may obtain
+*    a copy of the License at
+*
+*         http://www.apache.org/licenses/LICENSE-2.0
+*
+*    Unless required by applicable law or agreed to in writing, software
+*    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+*    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+*    License for the specific language governing permissions and limitations
+*    under the License.
+**/
+
+package net.floodlightcontroller.mobilesdn;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+
+import net.floodlightcontroller.mobilesdn.MobileNetworkConfig.ConfigException;
+import net.floodlightcontroller.mobilesdn.MobileNetworkConfig.Diff;
+import net.floodlightcontroller.mobilesdn.MobileNetworkConfig.SwitchNetworkConfig;
+
+import org.junit.Test;
+
+public class MobileNetworkConfigTest {
+    private static final String NETWORK =
+            "# Network-1\n" +
+            "OFSwitchIP 127.0.0.1\n" +
+            "OutPort 5\n" +
+            "BandWidth 100\n" +
+            "AP 192.168.3.30 192.168.1.21\n" +
+            "\n" +
+            "OFSwitchIP 127.0.0.2\n" +
+            "BandWidth 50\n" +     // keys after the first in any order
+            "OutPort 1\n" +
+            "AP 192.168.4.1\n";
+
+    private static final String APS =
+            "# AP1\n" +
+            "ManagedIP 192.168.3.30\n" +
+            "SSID sdn test\n" +
+            "BSSID 9c:d3:6d:10:a9:b8\n" +
+            "AUTH wpa|testeitsdn\n" +
+            "OFPort 3\n" +
+            "DownlinkBW 8\n" +
+            "\n" +
+            "ManagedIP 192.168.1.21\n" +
+            "SSID sdntest1\n" +
+            "BSSID 90:94:e4:07:ad:0f\n" +
+            "AUTH open\n" +
+            "OFPort 4\n" +
+            "DownlinkBW 16\n";
+
+    private static void assertInvalid(String network, String aps) {
+        try {
+            MobileNetworkConfig.parse(network, aps);
+            fail("config should be rejected");
+        } catch (ConfigException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testParse() throws Exception {
+        MobileNetworkConfig config = MobileNetworkConfig.parse(NETWORK, APS);
+
+        assertEquals(2, config.getSwitchConfigs().size());
+        SwitchNetworkConfig sc = config.getSwitchConfig("127.0.0.2:1");
+        assertEquals(50, sc.bandwidth);
+        assertEquals(Arrays.asList("192.168.4.1"), sc.apList);
+
+        assertEquals(2, config.getAPConfigs().size());
+        assertEquals("sdn test", config.getAPConfig("192.168.3.30").ssid);
+        assertEquals(4, config.getAPConfig("192.168.1.21").ofPort);
+        assertEquals(16, config.getAPConfig("192.168.1.21").downlinkBW, 0);
+        assertEquals("127.0.0.1:5", config.getPlacement("192.168.1.21"));
+        // listed for a switch but not configured
+        assertEquals("127.0.0.2:1", config.getPlacement("192.168.4.1"));
+        assertNull(config.getAPConfig("192.168.4.1"));
+    }
+
+    @Test
+    public void testInvalid() {
+        // unknown or repeated field
+        assertInvalid(NETWORK + "Foo 1\n", APS);
+        assertInvalid(NETWORK + "OutPort 6\n", APS);
+        // field before the first block, missing field, missing value
+        assertInvalid("OutPort 5\n" + NETWORK, APS);
+        assertInvalid("OFSwitchIP 127.0.0.3\nOutPort 5\nAP 10.0.0.1\n", APS);
+        assertInvalid(NETWORK, APS + "\nManagedIP 10.0.0.9\nSSID\n");
+        // bad numbers
+        assertInvalid(NETWORK.replace("BandWidth 100", "BandWidth x"), APS);
+        assertInvalid(NETWORK, APS.replace("DownlinkBW 16", "DownlinkBW -1"));
+        assertInvalid(NETWORK, APS.replace("BSSID 90:94:e4:07:ad:0f", "BSSID 90:94"));
+        // duplicates
+        assertInvalid(NETWORK + "OFSwitchIP 127.0.0.1\nOutPort 5\nBandWidth 1\nAP 10.0.0.1\n", APS);
+        assertInvalid(NETWORK.replace("AP 192.168.4.1", "AP 192.168.3.30"), APS);
+        assertInvalid(NETWORK, APS.replace("BSSID 90:94:e4:07:ad:0f", "BSSID 9c:d3:6d:10:a9:b8"));
+        assertInvalid(NETWORK, APS.replace("OFPort 4", "OFPort 3"));
+    }
+
+    @Test
+    public void testDiff() throws Exception {
+        MobileNetworkConfig older = MobileNetworkConfig.parse(NETWORK, APS);
+        assertTrue(older.diff(MobileNetworkConfig.parse(NETWORK, APS)).isEmpty());
+
+        // AP2 gets more bandwidth, a new AP behind switch 1, switch 2
+        // replaced by another out port and its AP moves to switch 1
+        String network = NETWORK.replace("AP 192.168.3.30 192.168.1.21",
+                                         "AP 192.168.3.30 192.168.1.21 192.168.3.31 192.168.4.1")
+                                .replace("OutPort 1", "OutPort 2")
+                                .replace("AP 192.168.4.1\n", "AP 192.168.4.2\n");
+        String aps = APS.replace("DownlinkBW 16", "DownlinkBW 20")
+                + "\nManagedIP 192.168.3.31\nSSID new\nBSSID 00:00:00:00:00:01\n"
+                + "AUTH open\nOFPort 6\nDownlinkBW 8\n";
+        Diff diff = older.diff(MobileNetworkConfig.parse(network, aps));
+
+        assertEquals(1, diff.changedAPs.size());
+        assertEquals("192.168.1.21", diff.changedAPs.get(0).ipAddr);
+        assertEquals(20, diff.changedAPs.get(0).downlinkBW, 0);
+
+        assertEquals(1, diff.removedAPs.size());
+        assertEquals("192.168.4.1", diff.removedAPs.get(0).ipAddr);
+        assertEquals(3, diff.addedAPs.size());
+
+        assertEquals(1, diff.changedSwitches.size());
+        assertEquals("127.0.0.1:5", diff.changedSwitches.get(0).getKey());
+        assertEquals(1, diff.removedSwitches.size());
+        assertEquals("127.0.0.2:1", diff.removedSwitches.get(0).getKey());
+        assertEquals(1, diff.addedSwitches.size());
+        assertEquals("127.0.0.2:2", diff.addedSwitches.get(0).getKey());
+    }
+
+    @Test
+    public void testDiffBandwidthOnly() throws Exception {
+        MobileNetworkConfig older = MobileNetworkConfig.parse(NETWORK, APS);
+        Diff diff = older.diff(MobileNetworkConfig.parse(
+                NETWORK.replace("BandWidth 100", "BandWidth 200"), APS));
+
+        // the APs behind the switch are not touched
+        assertEquals(1, diff.changedSwitches.size());
+        assertEquals(200, diff.changedSwitches.get(0).bandwidth);
+        assertTrue(diff.addedAPs.isEmpty());
+        assertTrue(diff.removedAPs.isEmpty());
+        assertTrue(diff.changedAPs.isEmpty());
+    }
+}
@@ -0,0 +1,150 @@
+/**
+*    Copyright 2013 University of Helsinki
+*
+*    Licensed under the Apache License, Version 2.0 (the "License"); you may
+*    not use this file except in compliance with the License. You may obtain
+*    a copy of the License at
+*
+*         http://www.apache.org/licenses/LICENSE-2.0
+*
+*    Unless required by applicable law or agreed to in writing, software
+*    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+*    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+*    License for the specific language governing permissions and limitations
+*    under the License.
+**/
+
+package net.floodlightcontroller.mobilesdn;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.util.Arrays;
+import java.util.List;
+
+import net.floodlightcontroller.util.MACAddress;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.sdnplatform.sync.test.MockSyncService;
+
+public class MobileStateStoreTest {
+    private static final long SEC = 1000000000L;
+
+    private MockSyncService syncService;
+
+    @Before
+    public void setUp() {
+        syncService = new MockSyncService();
+    }
+
+    @Test
+    public void testEstimatorRoundTrip() throws Exception {
+        RateEstimator e = new RateEstimator(16, 30, 2, 8, 64);
+        long t0 = System.nanoTime();
+        e.addRate(t0 - 2 * SEC, 100);
+        e.addRate(t0 - SEC, 300);
+        e.addRate(t0, 500);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        e.writeTo(new DataOutputStream(bytes));
+
+        RateEstimator r = new RateEstimator(16, 30, 2, 8, 64);
+        r.readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())), 0);
+        assertTrue(r.hasRate());
+        assertEquals(e.getRate(), r.getRate(), 1e-3);
+        assertEquals(e.getSampleCount(), r.getSampleCount());
+        assertEquals(e.getP50(), r.getP50(), 1e-3);
+
+        // samples older than the window are not restored
+        r.readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())), 60000);
+        assertEquals(0, r.getSampleCount());
+    }
+
+    @Test
+    public void testRestoreAfterRestart() throws Exception {
+        APAgent agent = new APAgent("10.0.0.1");
+        agent.updateUpRate(1000);
+        agent.updateDownRate(2000);
+        Client clt = new Client("00:11:22:33:44:55", "10.0.0.100", agent);
+        clt.updateUpRate(50);
+        clt.setApp("video");
+        clt.moveTo(ClientState.OFFLOADING);
+        agent.addClient(clt);
+        Client gone = new Client("00:11:22:33:44:66", "10.0.0.101", agent);
+        agent.addClient(gone);
+
+        MobileStateStore store = new MobileStateStore(syncService);
+        store.snapshot(Arrays.asList(agent));
+        agent.removeClient("00:11:22:33:44:66");
+        store.forgetClient(gone.getMacAddress().toLong());
+
+        // a new master instance on the same (persistent) stores
+        MobileStateStore restarted = new MobileStateStore(syncService);
+        assertEquals(1, restarted.load());
+
+        APAgent other = new APAgent("10.0.0.2");
+        assertTrue(restarted.restore(other).isEmpty());
+
+        APAgent fresh = new APAgent("10.0.0.1");
+        List<Client> clients = restarted.restore(fresh);
+        assertEquals(1, clients.size());
+        Client r = clients.get(0);
+        assertSame(r, fresh.getClient(MACAddress.valueOf("00:11:22:33:44:55")));
+        assertEquals("10.0.0.100", r.getIpAddress().getHostAddress());
+        assertEquals(clt.getConnectTime(), r.getConnectTime());
+        assertEquals("video", r.getApp());
+        assertEquals(ClientState.OFFLOADING, r.getState());
+        assertEquals(50, r.getUpRate(), 1e-3);
+        assertEquals(1000, fresh.getUpRate(), 1e-3);
+        assertEquals(2000, fresh.getDownRate(), 1e-3);
+
+        // only restored once
+        assertTrue(restarted.restore(new APAgent("10.0.0.1")).isEmpty());
+    }
+
+    @Test
+    public void testSnapshotDeletesGoneClients() throws Exception {
+        APAgent agent = new APAgent("10.0.0.1");
+        Client clt = new Client("00:11:22:33:44:55", "10.0.0.100", agent);
+        agent.addClient(clt);
+
+        MobileStateStore store = new MobileStateStore(syncService);
+        store.snapshot(Arrays.asList(agent));
+        agent.removeClient("00:11:22:33:44:55");
+        store.snapshot(Arrays.asList(agent));
+
+        assertEquals(0, new MobileStateStore(syncService).load());
+    }
+
+    @Test
+    public void testSnapshotWritesOnlyChanges() throws Exception {
+        APAgent agent = new APAgent("10.0.0.1");
+        Client clt = new Client("00:11:22:33:44:55", "10.0.0.100", agent);
+        agent.addClient(clt);
+
+        MobileStateStore store = new MobileStateStore(syncService);
+        assertEquals(2, store.snapshot(Arrays.asList(agent)));
+        assertEquals(0, store.snapshot(Arrays.asList(agent)));
+
+        // rates and fields
+        clt.updateUpRate(5000);
+        assertEquals(1, store.snapshot(Arrays.asList(agent)));
+        clt.setApp("video");
+        assertEquals(1, store.snapshot(Arrays.asList(agent)));
+        assertEquals(0, store.snapshot(Arrays.asList(agent)));
+
+        // written again after it is forgotten
+        store.forgetClient(clt.getMacAddress().toLong());
+        assertEquals(1, store.snapshot(Arrays.asList(agent)));
+
+        MobileStateStore restarted = new MobileStateStore(syncService);
+        assertEquals(1, restarted.load());
+        Client r = restarted.restore(new APAgent("10.0.0.1")).get(0);
+        assertEquals("video", r.getApp());
+        assertEquals(5000, r.getUpRate(), 1e-3);
+    }
+}
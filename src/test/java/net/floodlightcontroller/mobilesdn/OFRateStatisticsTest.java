@@ -0,0 +1,103 @@
+/**
+*    Copyright 2013 University of Helsinki
+*
+*    Licensed under the Apache License, Version 2.0 (the "License"); you may
+*    not use this file except in compliance with the License. You may obtain
+*    a copy of the License at
+*
+*         http://www.apache.org/licenses/LICENSE-2.0
+*
+*    Unless required by applicable law or agreed to in writing, software
+*    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+*    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+*    License for the specific language governing permissions and limitations
+*    under the License.
+**/
+
+
+package net.floodlightcontroller.mobilesdn;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import org.openflow.protocol.OFMatch;
+import org.openflow.protocol.action.OFAction;
+import org.openflow.protocol.action.OFActionOutput;
+import org.openflow.protocol.statistics.OFFlowStatisticsReply;
+
+import net.floodlightcontroller.util.MACAddress;
+
+public class OFRateStatisticsTest {
+
+    private static OFFlowStatisticsReply flow(String src, String dst,
+            long bytes, boolean forward) {
+        OFMatch match = new OFMatch();
+        match.setDataLayerSource(src);
+        match.setDataLayerDestination(dst);
+        OFFlowStatisticsReply reply = new OFFlowStatisticsReply();
+        reply.setMatch(match);
+        reply.setByteCount(bytes);
+        List<OFAction> actions = new ArrayList<OFAction>();
+        if (forward) {
+            actions.add(new OFActionOutput((short) 1));
+        }
+        reply.setActions(actions);
+        return reply;
+    }
+
+    private static long mac(String s) {
+        return MACAddress.valueOf(s).toLong();
+    }
+
+    @Test
+    public void testAggregateFlowBytes() {
+        String a = "00:1e:65:00:00:01";
+        String b = "00:1e:65:00:00:02";
+        String gw = "00:0b:6b:00:00:ff";
+
+        List<OFFlowStatisticsReply> flows = new ArrayList<OFFlowStatisticsReply>();
+        flows.add(flow(gw, a, 1000, true));
+        flows.add(flow(gw, a, 500, true));
+        flows.add(flow(a, gw, 100, true));
+        flows.add(flow(a, b, 10, true));     // upload of a, download of b
+        flows.add(flow(gw, b, 7777, false)); // dropped flow
+        flows.add(flow(b, b, 3, true));      // only counted as download
+        flows.add(flow(gw, b, 0, true));     // idle flow
+
+        LongCounterMap up = new LongCounterMap(4);
+        LongCounterMap down = new LongCounterMap(4);
+        up.add(mac(gw), 42);   // left over from a previous sweep
+        OFRateStatistics.aggregateFlowBytes(flows, up, down);
+
+        assertEquals(1500, down.get(mac(a)));
+        assertEquals(110, up.get(mac(a)));
+        assertEquals(13, down.get(mac(b)));
+        assertEquals(0, up.get(mac(b)));
+        assertEquals(100, down.get(mac(gw)));
+        assertEquals(1500, up.get(mac(gw)));
+    }
+
+    @Test
+    public void testMacToLong() {
+        String s = "fe:dc:ba:98:76:54";
+        assertEquals(mac(s), OFRateStatistics.macToLong(MACAddress.valueOf(s).toBytes()));
+    }
+
+    @Test
+    public void testUpdateRate() {
+        RateEstimator e = new RateEstimator(8);
+        long t0 = System.nanoTime();
+        long sec = 1000000000L;
+        // first sweep: no rate yet
+        assertEquals(0, OFRateStatistics.updateRate(e, t0, 1000), 0);
+        assertEquals(8000, OFRateStatistics.updateRate(e, t0 + sec, 2000), 1e-6);
+        // some flows expired: keep the average
+        assertEquals(8000, OFRateStatistics.updateRate(e, t0 + 2 * sec, 500), 1e-6);
+        // all flows gone: idle
+        assertEquals(0, OFRateStatistics.updateRate(e, t0 + 3 * sec, 0), 0);
+        assertTrue(e.getRate() < 8000);
+    }
+}
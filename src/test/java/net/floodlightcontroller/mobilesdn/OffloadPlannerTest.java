@@ -0,0 +1,107 @@
+/**
+*    Copyright 2013 University of Helsinki
+*
+*    Licensed under the Apache License, Version 2.0 (the "License"); you may
+*    not use this file except in compliance with the License. You may obtain
+*    a copy of the License at
+*
+*         http://www.apache.org/licenses/LICENSE-2.0
+*
+*    Unless required by applicable law or agreed to in writing, software
+*    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+*    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+*    License for the specific language governing permissions and limitations
+*    under the License.
+**/
+
+package net.floodlightcontroller.mobilesdn;
+
+import static org.junit.Assert.*;
+
+import java.util.Map;
+
+import org.junit.Test;
+
+public class OffloadPlannerTest {
+    private static final long AP1 = 0x1L;
+    private static final long AP2 = 0x2L;
+    private static final long AP3 = 0x3L;
+
+    @Test
+    public void testStayWhenCurrentIsBest() {
+        OffloadPlanner p = new OffloadPlanner();
+        p.addAP(AP1, 20, 5, -1);
+        p.addAP(AP2, 20, 15, -1);
+        p.addClient(100, AP1, 2, new long[] {AP1, AP2}, new double[] {0.9, 0.9});
+        assertTrue(p.plan().isEmpty());
+    }
+
+    @Test
+    public void testNoHerding() {
+        // AP1 overloaded, AP2 and AP3 equally good: once two clients left
+        // AP1 is fine again, and they do not both take the same AP
+        OffloadPlanner p = new OffloadPlanner();
+        p.addAP(AP1, 10, 12, -1);
+        p.addAP(AP2, 10, 5, -1);
+        p.addAP(AP3, 10, 5, -1);
+        for (int i = 0; i < 4; i++) {
+            p.addClient(100 + i, AP1, 2, new long[] {AP1, AP2, AP3},
+                    new double[] {0.5, 0.95, 0.95});
+        }
+        Map<Long, Long> moves = p.plan();
+        assertEquals(2, moves.size());
+        int onAP2 = 0;
+        for (long target: moves.values()) {
+            assertTrue(target == AP2 || target == AP3);
+            if (target == AP2) {
+                onAP2++;
+            }
+        }
+        assertEquals(1, onAP2);
+    }
+
+    @Test
+    public void testCapacity() {
+        OffloadPlanner p = new OffloadPlanner();
+        p.addAP(AP1, 10, 12, -1);
+        p.addAP(AP2, 10, 7, -1);
+        // does not fit into the 3 Mbit/s left at AP2
+        p.addClient(100, AP1, 4, new long[] {AP1, AP2}, new double[] {0.1, 1});
+        p.addClient(101, AP1, 2, new long[] {AP1, AP2}, new double[] {0.1, 1});
+        Map<Long, Long> moves = p.plan();
+        assertEquals(1, moves.size());
+        assertEquals(Long.valueOf(AP2), moves.get(101L));
+    }
+
+    @Test
+    public void testSwitchQueueCapacity() {
+        OffloadPlanner p = new OffloadPlanner();
+        int q1 = p.addGroup(100);
+        int q2 = p.addGroup(20);
+        p.addAP(AP1, 10, 12, q1);
+        p.addAP(AP2, 10, 0, q2);
+        p.addAP(AP3, 10, 0, q2);
+        p.addAP(0x4L, 10, 19, q2);
+        // AP2 has room, but the queue of AP2 only 1 Mbit/s
+        p.addClient(100, AP1, 2, new long[] {AP1, AP2}, new double[] {0.1, 1});
+        assertTrue(p.plan().isEmpty());
+
+        // moving inside the same queue does not use queue capacity
+        OffloadPlanner p2 = new OffloadPlanner();
+        q2 = p2.addGroup(20);
+        p2.addAP(AP2, 10, 10, q2);
+        p2.addAP(AP3, 10, 2, q2);
+        p2.addClient(100, AP2, 0.5, new long[] {AP2, AP3}, new double[] {0.1, 1});
+        assertEquals(Long.valueOf(AP3), p2.plan().get(100L));
+    }
+
+    @Test
+    public void testUnknownCurrentAP() {
+        OffloadPlanner p = new OffloadPlanner();
+        p.addAP(AP2, 10, 9, -1);
+        // own AP not in the scan, any AP with room is taken
+        p.addClient(100, AP1, 0.5, new long[] {AP2, AP3}, new double[] {0.2, 1});
+        assertEquals(1, p.getClientNum());
+        assertEquals(Long.valueOf(AP2), p.plan().get(100L));
+    }
+}
@@ -0,0 +1,85 @@
+/**
+*    Copyright 2013 University of Helsinki
+*
+*    Licensed under the Apache License, Version 2.0 (the "License"); you may
+*    not use this file except in compliance with the License. You may obtain
+*    a copy of the License at
+*
+*         http://www.apache.org/licenses/LICENSE-2.0
+*
+*    Unless required by applicable law or agreed to in writing, software
+*    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+*    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+*    License for the specific language governing permissions and limitations
+*    under the License.
+**/
+
+package net.floodlightcontroller.mobilesdn;
+
+import static org.junit.Assert.*;
+
+import net.floodlightcontroller.core.module.FloodlightModuleContext;
+import net.floodlightcontroller.core.module.FloodlightModuleException;
+
+import org.junit.Test;
+
+public class OffloadPolicyTest {
+
+    @Test
+    public void testLookupTableMatchesDefault() {
+        IOffloadPolicy def = new DefaultOffloadPolicy();
+        IOffloadPolicy table = new LookupTableOffloadPolicy();
+        for (int level = -140; level <= 10; level++) {
+            assertEquals(def.signalMetric(level), table.signalMetric(level), 1e-12);
+        }
+        int[] levels = {-80, -70, -65, -60};
+        for (int s1: levels) {
+            for (int s2: levels) {
+                for (int s3: levels) {
+                    assertEquals(def.mobilityMetric(s1, s2, s3),
+                            table.mobilityMetric(s1, s2, s3), 0);
+                }
+            }
+        }
+        assertEquals(def.score(0.9, 5, 10, 20), table.score(0.9, 5, 10, 20), 0);
+        assertEquals(def.getSwitchOverhead(), table.getSwitchOverhead(), 0);
+    }
+
+    @Test
+    public void testDefaultCurve() {
+        IOffloadPolicy def = new DefaultOffloadPolicy();
+        assertEquals(0, def.signalMetric(-73), 1e-12);
+        assertEquals(1 - Math.exp(-10), def.signalMetric(-43), 1e-12);
+        assertEquals(1, def.mobilityMetric(-70, -68, -60), 0);
+        assertEquals(0.7, def.mobilityMetric(-60, -65, -70), 0);
+        assertEquals(0, def.score(1, 0, 10, 20), 0);
+    }
+
+    @Test
+    public void testSwapPolicy() throws Exception {
+        OffloadPolicyManager m = new OffloadPolicyManager();
+        FloodlightModuleContext fmc = new FloodlightModuleContext();
+        fmc.addConfigParam(m, "policy", LookupTableOffloadPolicy.NAME);
+        m.init(fmc);
+        assertEquals(LookupTableOffloadPolicy.NAME, m.getPolicy().getName());
+
+        m.setPolicy(DefaultOffloadPolicy.NAME);
+        assertEquals(DefaultOffloadPolicy.NAME, m.getPolicy().getName());
+        assertTrue(m.getPolicyNames().contains(LookupTableOffloadPolicy.NAME));
+        try {
+            m.setPolicy("nonexistent");
+            fail("unknown policy accepted");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        assertEquals(DefaultOffloadPolicy.NAME, m.getPolicy().getName());
+    }
+
+    @Test(expected = FloodlightModuleException.class)
+    public void testUnknownPolicyClass() throws Exception {
+        OffloadPolicyManager m = new OffloadPolicyManager();
+        FloodlightModuleContext fmc = new FloodlightModuleContext();
+        fmc.addConfigParam(m, "policyClasses", "net.floodlightcontroller.NoSuchPolicy");
+        m.init(fmc);
+    }
+}
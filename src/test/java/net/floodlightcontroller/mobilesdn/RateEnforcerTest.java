@@ -0,0 +1,243 @@
+/**
+*    Copyright 2013 University of Helsinki
+*
+*    Licensed under the Apache License, Version 2.0 (the "License"); you may
+*    not use this file except in compliance with the License. You may obtain
+*    a copy of the License at
+*
+*         http://www.apache.org/licenses/LICENSE-2.0
+*
+*    Unless required by applicable law or agreed to in writing, software
+*    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+*    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+*    License for the specific language governing permissions and limitations
+*    under the License.
+**/
+
+package net.floodlightcontroller.mobilesdn;
+
+import static org.junit.Assert.*;
+import static org.easymock.EasyMock.*;
+
+import java.util.Arrays;
+
+import net.floodlightcontroller.core.FloodlightContext;
+import net.floodlightcontroller.core.IOFSwitch;
+import net.floodlightcontroller.packet.IPv4;
+
+import org.easymock.Capture;
+import org.easymock.CaptureType;
+import org.junit.Before;
+import org.junit.Test;
+import org.openflow.protocol.OFFlowMod;
+import org.openflow.protocol.OFMatch;
+import org.openflow.protocol.OFMessage;
+import org.openflow.protocol.Wildcards;
+import org.openflow.protocol.Wildcards.Flag;
+import org.openflow.protocol.action.OFAction;
+import org.openflow.protocol.action.OFActionDataLayerSource;
+import org.openflow.protocol.action.OFActionEnqueue;
+import org.openflow.protocol.action.OFActionOutput;
+import org.openflow.protocol.factory.BasicFactory;
+import org.openflow.protocol.statistics.OFFlowStatisticsReply;
+
+public class RateEnforcerTest {
+    private RateEnforcer shaper;
+    private Client clt;
+
+    @Before
+    public void setUp() throws Exception {
+        shaper = new RateEnforcer(BasicFactory.getInstance());
+        clt = new Client("00:11:22:33:44:55", "10.0.0.100", new APAgent("10.0.0.1"));
+    }
+
+    private static OFFlowStatisticsReply flow(OFAction... actions) {
+        OFMatch match = new OFMatch();
+        match.setInputPort((short) 1);
+        match.setDataLayerDestination(new byte[] {10, 11, 12, 13, 14, 15});
+        OFFlowStatisticsReply reply = new OFFlowStatisticsReply();
+        reply.setMatch(match);
+        reply.setPriority((short) 100);
+        reply.setActions(Arrays.asList(actions));
+        return reply;
+    }
+
+    @Test
+    public void testSelectQueue() {
+        // shares 0.5, 0.25, 0.1
+        assertEquals(1, shaper.selectQueue(1));
+        assertEquals(1, shaper.selectQueue(2));
+        assertEquals(1, shaper.selectQueue(3));
+        assertEquals(2, shaper.selectQueue(4));
+        assertEquals(2, shaper.selectQueue(5));
+        assertEquals(3, shaper.selectQueue(10));
+        assertEquals(3, shaper.selectQueue(100));
+        assertEquals(1, shaper.selectQueue(0));
+
+        RateEnforcer narrow = new RateEnforcer(BasicFactory.getInstance(),
+                RateEnforcer.Mode.SHAPE, new double[] {0.3, 0.2}, 0.05, 30);
+        // no queue gives half of the port, use the widest
+        assertEquals(1, narrow.selectQueue(2));
+        assertEquals(2, narrow.selectQueue(5));
+        assertEquals(0.3 * 54, narrow.getMaxRate(1, 54), 1e-9);
+        assertEquals(0.05 * 54, narrow.getMinRate(54), 1e-9);
+    }
+
+    @Test
+    public void testParseShares() {
+        double[] shares = RateEnforcer.parseShares("0.5, 0.25,0.1,");
+        assertEquals(3, shares.length);
+        assertEquals(0.25, shares[1], 1e-9);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testAscendingShares() {
+        new RateEnforcer(BasicFactory.getInstance(), RateEnforcer.Mode.SHAPE,
+                new double[] {0.1, 0.5}, 0.05, 30);
+    }
+
+    @Test
+    public void testClientDownlinkLimit() {
+        OFFlowMod fm = shaper.makeDownlinkLimit(clt, (short) 3, 2);
+        assertEquals(OFFlowMod.OFPFC_ADD, fm.getCommand());
+        assertEquals(RateEnforcer.PRIORITY, fm.getPriority());
+        assertEquals(RateEnforcer.DEFAULT_HOLD_TIME, fm.getHardTimeout());
+
+        OFMatch match = fm.getMatch();
+        assertArrayEquals(clt.getMacAddress().toBytes(), match.getDataLayerDestination());
+        Wildcards w = Wildcards.of(match.getWildcards());
+        assertFalse(w.isWildcarded(Flag.DL_DST));
+        assertTrue(w.isWildcarded(Flag.DL_SRC));
+
+        assertEquals(1, fm.getActions().size());
+        OFActionEnqueue enqueue = (OFActionEnqueue) fm.getActions().get(0);
+        assertEquals(3, enqueue.getPort());
+        assertEquals(2, enqueue.getQueueId());
+        assertEquals(OFFlowMod.MINIMUM_LENGTH + OFActionEnqueue.MINIMUM_LENGTH, fm.getLengthU());
+    }
+
+    @Test
+    public void testUplinkDrop() {
+        OFFlowMod fm = shaper.makeUplinkDrop(clt);
+        assertEquals(OFFlowMod.OFPFC_MODIFY, fm.getCommand());
+        assertEquals(0, fm.getHardTimeout());
+        assertTrue(fm.getActions().isEmpty());
+        assertEquals(OFFlowMod.MINIMUM_LENGTH, fm.getLengthU());
+
+        OFMatch match = fm.getMatch();
+        assertArrayEquals(clt.getMacAddress().toBytes(), match.getDataLayerSource());
+        assertEquals(IPv4.toIPv4Address("10.0.0.100"), match.getNetworkSource());
+        Wildcards w = Wildcards.of(match.getWildcards());
+        assertFalse(w.isWildcarded(Flag.DL_SRC));
+        assertTrue(w.isWildcarded(Flag.DL_DST));
+    }
+
+    @Test
+    public void testDropMode() throws Exception {
+        RateEnforcer dropper = new RateEnforcer(BasicFactory.getInstance(),
+                RateEnforcer.Mode.DROP, RateEnforcer.DEFAULT_SHARES, 0.05, 30);
+        Capture<OFMessage> written = new Capture<OFMessage>();
+        IOFSwitch sw = createMock(IOFSwitch.class);
+        sw.write(capture(written), (FloodlightContext) isNull());
+        expectLastCall().once();
+        sw.flush();
+        expectLastCall().once();
+        replay(sw);
+
+        // no queue is needed to drop, and nothing is shaped
+        assertFalse(dropper.limitDownlink(sw, clt, (short) 3, 4));
+        assertTrue(dropper.dropUplink(sw, clt));
+        verify(sw);
+        assertTrue(((OFFlowMod) written.getValue()).getActions().isEmpty());
+        // shape mode does not drop
+        assertFalse(shaper.dropUplink(sw, clt));
+
+        OFFlowMod fm = dropper.makeFlowLimit(flow(new OFActionOutput((short) 3, (short) 0xffff)), 1);
+        assertEquals(OFFlowMod.OFPFC_ADD, fm.getCommand());
+        assertEquals(30, fm.getHardTimeout());
+        assertTrue(fm.getActions().isEmpty());
+    }
+
+    @Test
+    public void testFlowLimit() {
+        OFActionDataLayerSource setSrc = new OFActionDataLayerSource();
+        setSrc.setDataLayerAddress(new byte[] {1, 2, 3, 4, 5, 6});
+        OFFlowMod fm = shaper.makeFlowLimit(flow(setSrc,
+                new OFActionOutput((short) 3, (short) 0xffff)), 2);
+        // replaced, a modified flow would keep its timeouts
+        assertEquals(OFFlowMod.OFPFC_ADD, fm.getCommand());
+        assertEquals(RateEnforcer.DEFAULT_HOLD_TIME, fm.getHardTimeout());
+        assertEquals(100, fm.getPriority());
+        assertEquals(1, fm.getMatch().getInputPort());
+        assertEquals(2, fm.getActions().size());
+        assertTrue(fm.getActions().get(0) instanceof OFActionDataLayerSource);
+        OFActionEnqueue enqueue = (OFActionEnqueue) fm.getActions().get(1);
+        assertEquals(3, enqueue.getPort());
+        assertEquals(2, enqueue.getQueueId());
+        assertEquals(OFFlowMod.MINIMUM_LENGTH + OFActionDataLayerSource.MINIMUM_LENGTH
+                + OFActionEnqueue.MINIMUM_LENGTH, fm.getLengthU());
+
+        // nothing to put into a queue
+        assertNull(shaper.makeFlowLimit(flow(), 1));
+    }
+
+    @Test
+    public void testLimitNotResent() throws Exception {
+        Capture<OFMessage> written = new Capture<OFMessage>();
+        IOFSwitch sw = createMock(IOFSwitch.class);
+        sw.write(capture(written), (FloodlightContext) isNull());
+        expectLastCall().once();
+        sw.flush();
+        expectLastCall().once();
+        replay(sw);
+
+        assertTrue(shaper.limitDownlink(sw, clt, (short) 3, 4));
+        // still within the hold time
+        assertFalse(shaper.limitDownlink(sw, clt, (short) 3, 4));
+        verify(sw);
+        assertEquals(2, ((OFActionEnqueue) ((OFFlowMod) written.getValue())
+                .getActions().get(0)).getQueueId());
+
+        // the uplink is held separately
+        long mac = clt.getMacAddress().toLong();
+        assertTrue(shaper.startLimit(mac, true));
+        assertFalse(shaper.startLimit(mac, true));
+
+        // after the client left
+        reset(sw);
+        sw.write(anyObject(OFMessage.class), (FloodlightContext) isNull());
+        expectLastCall().once();
+        sw.flush();
+        expectLastCall().once();
+        replay(sw);
+        shaper.clearClient(mac);
+        assertTrue(shaper.startLimit(mac, true));
+        assertTrue(shaper.limitDownlink(sw, clt, (short) 3, 4));
+        verify(sw);
+    }
+
+    @Test
+    public void testClearClientDeletesLimit() throws Exception {
+        Capture<OFMessage> written = new Capture<OFMessage>(CaptureType.ALL);
+        IOFSwitch sw = createMock(IOFSwitch.class);
+        sw.write(capture(written), (FloodlightContext) isNull());
+        expectLastCall().times(2);
+        sw.flush();
+        expectLastCall().times(2);
+        replay(sw);
+
+        long mac = clt.getMacAddress().toLong();
+        assertTrue(shaper.limitDownlink(sw, clt, (short) 3, 4));
+        shaper.clearClient(sw, mac);
+        // no limit left to delete
+        shaper.clearClient(sw, mac);
+        verify(sw);
+
+        OFFlowMod delete = (OFFlowMod) written.getValues().get(1);
+        assertEquals(OFFlowMod.OFPFC_DELETE_STRICT, delete.getCommand());
+        assertEquals(RateEnforcer.PRIORITY, delete.getPriority());
+        assertEquals(((OFFlowMod) written.getValues().get(0)).getMatch(), delete.getMatch());
+        // the client can be limited again at the new AP
+        assertTrue(shaper.startLimit(mac, true));
+    }
+}
@@ -0,0 +1,106 @@
+/**
+*    Copyright 2013 University of Helsinki
+*
+*    Licensed under the Apache License, Version 2.0 (the "License"); you may
+*    not use this file except in compliance with the License. You may obtain
+*    a copy of the License at
+*
+*         http://www.apache.org/licenses/LICENSE-2.0
+*
+*    Unless required by applicable law or agreed to in writing, software
+*    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+*    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+*    License for the specific language governing permissions and limitations
+*    under the License.
+**/
+
+package net.floodlightcontroller.mobilesdn;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class RateEstimatorTest {
+    private static final long SEC = 1000000000L;
+
+    @Test
+    public void testCounterRateAndAverage() {
+        RateEstimator e = new RateEstimator(16, 30, 2, 8, 64);
+        long t0 = System.nanoTime();
+        assertFalse(e.hasRate());
+        // first reading only sets the base
+        assertEquals(-1, e.addCounter(t0, 1000), 0);
+        assertFalse(e.hasRate());
+
+        assertEquals(8000, e.addCounter(t0 + SEC, 2000), 1e-6);
+        assertEquals(8000, e.getRate(), 1e-6);
+        // one half-life later the average is halfway to the new sample
+        assertEquals(16000, e.addCounter(t0 + 3 * SEC, 6000), 1e-6);
+        assertEquals(12000, e.getRate(), 1e-6);
+        // no time elapsed, ignored
+        assertEquals(-1, e.addCounter(t0 + 3 * SEC, 7000), 0);
+        assertEquals(2, e.getSampleCount());
+    }
+
+    @Test
+    public void testCounterWrapAndReset() {
+        RateEstimator e = new RateEstimator(16, 30, 2, 1, 32);
+        long t0 = System.nanoTime();
+        e.addCounter(t0, 0xffffff00L);
+        // 32-bit counter wrapped: 0x100 + 0x10 bytes
+        assertEquals(0x110, e.addCounter(t0 + SEC, 0x10), 1e-6);
+        // went backwards in the middle of the range: reset, new base
+        assertEquals(-1, e.addCounter(t0 + 2 * SEC, 0x8), 0);
+        assertEquals(100, e.addCounter(t0 + 3 * SEC, 108), 1e-6);
+
+        RateEstimator e64 = new RateEstimator();
+        e64.addCounter(t0, -16);    // 2^64 - 16 as unsigned
+        assertEquals(32, e64.addCounter(t0 + SEC, 16), 1e-6);
+        assertEquals(-1, e64.addCounter(t0 + 2 * SEC, 0), 0);
+    }
+
+    @Test
+    public void testPercentiles() {
+        RateEstimator e = new RateEstimator(8, 10, 4, 1, 64);
+        long t0 = System.nanoTime();
+        assertEquals(0, e.getPercentile(50, t0), 0);
+        for (int i = 1; i <= 20; i++) {
+            e.addRate(t0 + i * SEC / 2, i * 100);
+        }
+        // only the last 8 samples (1300..2000) are kept
+        assertEquals(8, e.getSampleCount());
+        long now = t0 + 10 * SEC;
+        assertEquals(1600, e.getPercentile(50, now), 1e-3);
+        assertEquals(2000, e.getPercentile(95, now), 1e-3);
+        assertEquals(1300, e.getPercentile(1, now), 1e-3);
+        // samples older than the window are left out
+        assertEquals(1900, e.getPercentile(50, t0 + 19 * SEC), 1e-3);
+        assertEquals(0, e.getPercentile(50, t0 + 30 * SEC), 0);
+
+        e.reset();
+        assertEquals(0, e.getSampleCount());
+        assertEquals(0, e.getRate(), 0);
+    }
+
+    @Test
+    public void testConcurrentUpdates() throws Exception {
+        final RateEstimator e = new RateEstimator();
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    for (int k = 0; k < 10000; k++) {
+                        e.addRate(500);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread t: threads) {
+            t.join();
+        }
+        assertEquals(500, e.getRate(), 1e-6);
+        assertEquals(500, e.getP95(), 1e-3);
+    }
+}
@@ -0,0 +1,137 @@
+/**
+*    Copyright 2013 University of Helsinki
+*
+*    Licensed under the Apache License, Version 2.0 (the "License"); you may
+*    not use this file except in compliance with the License. You may obtain
+*    a copy of the License at
+*
+*         http://www.apache.org/licenses/LICENSE-2.0
+*
+*    Unless required by applicable law or agreed to in writing, software
+*    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+*    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+*    License for the specific language governing permissions and limitations
+*    under the License.
+**/
+
+package net.floodlightcontroller.mobilesdn;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import net.floodlightcontroller.mobilesdn.ShardDirectory.RemoteAP;
+
+import org.junit.Test;
+import org.sdnplatform.sync.test.MockSyncService;
+
+public class ShardDirectoryTest {
+
+    private static APAgent makeAgent(int i) {
+        APAgent agent = new APAgent("10.0.0." + i);
+        agent.setSSID("ap" + i);
+        agent.setBSSID(String.format("00:00:00:00:00:%02x", i));
+        agent.setAuth("open");
+        agent.setDownlinkBW(20);
+        return agent;
+    }
+
+    @Test
+    public void testCrossShardLookup() throws Exception {
+        // one sync service stands for the replicated global store
+        MockSyncService sync = new MockSyncService();
+        ShardDirectory m0 = new ShardDirectory(sync, "m0");
+        ShardDirectory m1 = new ShardDirectory(sync, "m1");
+
+        APAgent a1 = makeAgent(1);
+        APAgent a2 = makeAgent(2);
+        a2.updateDownRate(5000000);
+        m0.publish(Arrays.asList(a1));
+        m1.publish(Arrays.asList(a2));
+
+        // own APs are not remote
+        assertNull(m0.getRemoteAP(1));
+        assertEquals(1, m0.getRemoteAPNum());
+        RemoteAP ap = m0.getRemoteAP(2);
+        assertNotNull(ap);
+        assertEquals("m1", ap.shard);
+        assertEquals("ap2", ap.ssid);
+        assertEquals("00:00:00:00:00:02", ap.bssidString);
+        assertEquals("open", ap.auth);
+        assertEquals(20, ap.bandwidth, 1e-6);
+        assertEquals(5, ap.load, 1e-6);
+        assertNotNull(m1.getRemoteAP(1));
+
+        // withdrawn when the AP is gone
+        m1.publish(new ArrayList<APAgent>());
+        assertNull(m0.getRemoteAP(2));
+
+        // a new instance sees what was published before it started
+        ShardDirectory m2 = new ShardDirectory(sync, "m2");
+        assertNotNull(m2.getRemoteAP(1));
+    }
+
+    @Test
+    public void testExpireDeadShard() throws Exception {
+        MockSyncService sync = new MockSyncService();
+        ShardDirectory m0 = new ShardDirectory(sync, "m0");
+        ShardDirectory m1 = new ShardDirectory(sync, "m1");
+        m1.publish(Arrays.asList(makeAgent(2)));
+        long now = System.currentTimeMillis();
+        assertNotNull(m0.getRemoteAP(2));
+
+        // m1 is late but within the expiry intervals
+        assertEquals(0, m0.expire(1000, now + 1000 * ShardDirectory.EXPIRY_INTERVALS - 100));
+        assertNotNull(m0.getRemoteAP(2));
+
+        // m1 stopped publishing, its AP is no candidate any more
+        assertEquals(1, m0.expire(1000, now + 1000 * ShardDirectory.EXPIRY_INTERVALS + 100));
+        assertNull(m0.getRemoteAP(2));
+        assertEquals(0, m0.getRemoteAPNum());
+
+        // back when it publishes again
+        m1.publish(Arrays.asList(makeAgent(2)));
+        assertNotNull(m0.getRemoteAP(2));
+    }
+
+    @Test
+    public void testShardsSplitAPs() throws Exception {
+        MockSyncService sync = new MockSyncService();
+        int shards = 4;
+        ShardRing[] rings = new ShardRing[shards];
+        ShardDirectory[] dirs = new ShardDirectory[shards];
+        List<List<APAgent>> owned = new ArrayList<List<APAgent>>();
+        for (int i = 0; i < shards; i++) {
+            rings[i] = new ShardRing("m" + i);
+            for (int j = 0; j < shards; j++) {
+                rings[i].addShard("m" + j);
+            }
+            dirs[i] = new ShardDirectory(sync, "m" + i);
+            owned.add(new ArrayList<APAgent>());
+        }
+
+        int aps = 200;
+        for (int k = 1; k <= aps; k++) {
+            APAgent agent = makeAgent(k);
+            String ip = agent.getIpAddress().getHostAddress();
+            for (int i = 0; i < shards; i++) {
+                if (rings[i].isLocal(ip)) {
+                    owned.get(i).add(agent);
+                }
+            }
+        }
+
+        int total = 0;
+        for (int i = 0; i < shards; i++) {
+            total += owned.get(i).size();
+            dirs[i].publish(owned.get(i));
+        }
+        // every AP owned by exactly one instance, the others see it remotely
+        assertEquals(aps, total);
+        for (int i = 0; i < shards; i++) {
+            assertEquals(aps - owned.get(i).size(), dirs[i].getRemoteAPNum());
+        }
+    }
+}
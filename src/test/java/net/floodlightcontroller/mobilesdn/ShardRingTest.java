@@ -0,0 +1,98 @@
+/**
+*    Copyright 2013 University of Helsinki
+*
+*    Licensed under the Apache License, Version 2.0 (the "License"); you may
+*    not use this file except in compliance with the License. You may obtain
+*    a copy of the License at
+*
+*         http://www.apache.org/licenses/LICENSE-2.0
+*
+*    Unless required by applicable law or agreed to in writing, software
+*    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+*    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+*    License for the specific language governing permissions and limitations
+*    under the License.
+**/
+
+package net.floodlightcontroller.mobilesdn;
+
+import static org.junit.Assert.*;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class ShardRingTest {
+    private static final int SWITCHES = 1024;
+
+    private static String switchIp(int i) {
+        return "10." + (i >> 8) + "." + (i & 0xff) + ".1";
+    }
+
+    private static ShardRing makeRing(int shards) {
+        ShardRing ring = new ShardRing("m0");
+        for (int i = 0; i < shards; i++) {
+            ring.addShard("m" + i);
+        }
+        return ring;
+    }
+
+    @Test
+    public void testUnsharded() {
+        ShardRing ring = new ShardRing("m0");
+        assertNull(ring.getShard("10.0.0.1"));
+        assertTrue(ring.isLocal("10.0.0.1"));
+        ring.addShard("m0");
+        assertEquals("m0", ring.getShard("10.0.0.1"));
+        assertTrue(ring.isLocal("10.0.0.1"));
+    }
+
+    @Test
+    public void testNearLinearScaling() {
+        // switches (and their APs) monitored by the busiest instance
+        for (int shards = 1; shards <= 16; shards *= 2) {
+            ShardRing ring = makeRing(shards);
+            Map<String, Integer> load = new HashMap<String, Integer>();
+            for (int i = 0; i < SWITCHES; i++) {
+                String shard = ring.getShard(switchIp(i));
+                Integer n = load.get(shard);
+                load.put(shard, n == null ? 1 : n + 1);
+            }
+            assertEquals(shards, load.size());
+            int max = 0;
+            for (int n: load.values()) {
+                max = Math.max(max, n);
+            }
+            double ideal = (double) SWITCHES / shards;
+            assertTrue(shards + " shards: busiest has " + max + " switches",
+                    max <= ideal * 1.4);
+        }
+    }
+
+    @Test
+    public void testMinimalMovement() {
+        ShardRing ring = makeRing(4);
+        String[] before = new String[SWITCHES];
+        for (int i = 0; i < SWITCHES; i++) {
+            before[i] = ring.getShard(switchIp(i));
+        }
+
+        ring.addShard("m4");
+        int moved = 0;
+        for (int i = 0; i < SWITCHES; i++) {
+            String now = ring.getShard(switchIp(i));
+            if (!now.equals(before[i])) {
+                // only to the new shard
+                assertEquals("m4", now);
+                moved++;
+            }
+        }
+        assertTrue(moved > 0 && moved < SWITCHES * 0.3);
+
+        ring.removeShard("m4");
+        for (int i = 0; i < SWITCHES; i++) {
+            assertEquals(before[i], ring.getShard(switchIp(i)));
+        }
+    }
+}
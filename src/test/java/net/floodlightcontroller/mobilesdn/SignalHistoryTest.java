@@ -0,0 +1,121 @@
+/**
+*    Copyright 2013 University of Helsinki
+*
+*    Licensed under the Apache License, Version 2.0 (the "License"); you may
+*    not use this file except in compliance with the License. You may obtain
+*    a copy of the License at
+*
+*         http://www.apache.org/licenses/LICENSE-2.0
+*
+*    Unless required by applicable law or agreed to in writing, software
+*    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+*    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+*    License for the specific language governing permissions and limitations
+*    under the License.
+**/
+
+package net.floodlightcontroller.mobilesdn;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+import org.junit.Test;
+
+public class SignalHistoryTest {
+    private static final long AP1 = 0x001122334401L;
+    private static final long AP2 = 0x001122334402L;
+    private static final long AP3 = 0x001122334403L;
+
+    @Test
+    public void testSlidingWindow() {
+        SignalHistory h = new SignalHistory(3);
+        h.addScan(1000, new long[] {AP1, AP2}, new int[] {-70, -50});
+        assertEquals(1, h.getScanNum());
+        assertFalse(h.isFull());
+        assertEquals(-70, h.getOldestLevel(AP1));
+        assertEquals(0, h.getTrend(AP1));
+
+        h.addScan(2000, new long[] {AP1, AP2}, new int[] {-65, -55});
+        h.addScan(3000, new long[] {AP1, AP2}, new int[] {-60, -60});
+        assertTrue(h.isFull());
+        assertEquals(3000, h.getLastScanTime());
+        assertEquals(-70, h.getOldestLevel(AP1));
+        assertEquals(-65, h.getMiddleLevel(AP1));
+        assertEquals(-60, h.getLatestLevel(AP1));
+        assertEquals(10, h.getTrend(AP1));
+        assertEquals(-10, h.getTrend(AP2));
+
+        // the oldest scan drops out
+        h.addScan(4000, new long[] {AP1, AP2}, new int[] {-58, -62});
+        assertEquals(3, h.getScanNum());
+        assertEquals(-65, h.getOldestLevel(AP1));
+        assertEquals(-58, h.getLatestLevel(AP1));
+        assertEquals(7, h.getTrend(AP1));
+    }
+
+    @Test
+    public void testMissingSamples() {
+        SignalHistory h = new SignalHistory(3);
+        h.addScan(1000, new long[] {AP1}, new int[] {-70});
+        h.addScan(2000, new long[] {AP1, AP2}, new int[] {-70, -50});
+        // a new AP gets its first level for the earlier scans
+        assertEquals(-50, h.getOldestLevel(AP2));
+        assertEquals(-50, h.getLatestLevel(AP2));
+
+        h.addScan(3000, new long[] {AP1}, new int[] {-70});
+        assertFalse(h.isNearby(AP2));
+        assertTrue(Arrays.equals(new long[] {AP1}, h.getNearbyAPs()));
+        try {
+            h.getLatestLevel(AP2);
+            fail("AP not in the latest scan");
+        } catch (NoSuchElementException e) {
+            // expected
+        }
+
+        // seen again: the missed scan gets the current level
+        h.addScan(4000, new long[] {AP1, AP2}, new int[] {-70, -40});
+        assertEquals(-50, h.getOldestLevel(AP2));
+        assertEquals(-40, h.getMiddleLevel(AP2));
+        assertEquals(-40, h.getLatestLevel(AP2));
+    }
+
+    @Test
+    public void testStaleAPsAreDropped() {
+        SignalHistory h = new SignalHistory(2);
+        long[] many = new long[20];
+        int[] levels = new int[20];
+        for (int i = 0; i < many.length; i++) {
+            many[i] = AP1 + i;
+            levels[i] = -40 - i;
+        }
+        h.addScan(1000, many, levels);
+        assertEquals(20, h.getNearbyAPs().length);
+        assertEquals(-59, h.getLatestLevel(AP1 + 19));
+
+        for (int k = 0; k < 100; k++) {
+            h.addScan(2000 + k, new long[] {AP3 + 100 + k}, new int[] {-80});
+        }
+        assertEquals(1, h.getNearbyAPs().length);
+        assertEquals(-80, h.getOldestLevel(AP3 + 199));
+        assertEquals(0, h.getTrend(AP3 + 199));
+
+        h.clear();
+        assertEquals(0, h.getScanNum());
+        assertEquals(0, h.getNearbyAPs().length);
+    }
+
+    @Test
+    public void testLevelRange() {
+        SignalHistory h = new SignalHistory(5);
+        h.addScan(1000, new long[] {AP1}, new int[] {-200});
+        assertEquals(-128, h.getLatestLevel(AP1));
+        try {
+            h.getLevel(AP1, 1);
+            fail("only one scan");
+        } catch (IndexOutOfBoundsException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,93 @@
+/**
+*    Copyright 2013 University of Helsinki
+*
+*    Licensed under the Apache License, Version 2.0 (the "License"); you may
+*    not use this file except in compliance with the License. You may obtain
+*    a copy of the License at
+*
+*         http://www.apache.org/licenses/LICENSE-2.0
+*
+*    Unless required by applicable law or agreed to in writing, software
+*    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+*    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+*    License for the specific language governing permissions and limitations
+*    under the License.
+**/
+
+package net.floodlightcontroller.mobilesdn;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+
+import org.junit.Test;
+
+public class SoftOffloadEventLogTest {
+
+    @Test
+    public void testSequence() throws Exception {
+        SoftOffloadEventLog log = new SoftOffloadEventLog(4);
+        APAgent agent = new APAgent("10.0.0.1");
+        Client clt = new Client("00:11:22:33:44:55", "10.0.0.100", agent);
+
+        assertEquals(0, log.getLastSeq());
+        assertTrue(log.getSince(0, 10).isEmpty());
+        assertEquals(1, log.clientJoined(clt));
+        assertEquals(2, log.clientRate(clt, 1, 2));
+        assertEquals(3, log.offloaded(clt, "00:00:00:00:00:02", "resteer"));
+
+        List<SoftOffloadEvent> l = log.getSince(1, 10);
+        assertEquals(2, l.size());
+        assertEquals(2, l.get(0).getSeq());
+        assertEquals(SoftOffloadEvent.RATE, l.get(0).getType());
+        assertEquals("00:11:22:33:44:55", l.get(0).getClient());
+        assertEquals("10.0.0.1", l.get(0).getAgent());
+        assertEquals(2, l.get(0).getDownRate(), 1e-9);
+        assertEquals(SoftOffloadEvent.OFFLOAD, l.get(1).getType());
+        assertEquals("00:00:00:00:00:02", l.get(1).getTarget());
+        assertEquals(1, log.getSince(0, 1).size());
+
+        // only the newest 4 events are kept
+        log.clientLeft(clt);
+        log.clientJoined(clt);
+        log.clientLeft(clt);
+        assertEquals(3, log.getFirstSeq());
+        assertTrue(log.isLost(1));
+        assertFalse(log.isLost(2));
+        l = log.getSince(0, 10);
+        assertEquals(4, l.size());
+        assertEquals(3, l.get(0).getSeq());
+        assertEquals(6, l.get(3).getSeq());
+    }
+
+    @Test
+    public void testWaitSince() throws Exception {
+        final SoftOffloadEventLog log = new SoftOffloadEventLog();
+        final Client clt = new Client("00:11:22:33:44:55", "10.0.0.100",
+                new APAgent("10.0.0.1"));
+
+        // nothing new: returns after the timeout
+        long start = System.currentTimeMillis();
+        assertTrue(log.waitSince(0, 10, 50).isEmpty());
+        assertTrue(System.currentTimeMillis() - start >= 50);
+
+        Thread t = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                log.evaluated(clt, "stay", null);
+            }
+        };
+        t.start();
+        List<SoftOffloadEvent> l = log.waitSince(0, 10, 10000);
+        assertEquals(1, l.size());
+        assertEquals(SoftOffloadEvent.EVALUATION, l.get(0).getType());
+        assertEquals("stay", l.get(0).getResult());
+        assertNull(l.get(0).getTarget());
+        t.join();
+    }
+}
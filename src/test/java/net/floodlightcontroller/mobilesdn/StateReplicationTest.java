@@ -0,0 +1,246 @@
+/**
+*    Copyright 2013 University of Helsinki
+*
+*    Licensed under the Apache License, Version 2.0 (the "License"); you may
+*    not use this file except in compliance with the License. You may obtain
+*    a copy of the License at
+*
+*         http://www.apache.org/licenses/LICENSE-2.0
+*
+*    Unless required by applicable law or agreed to in writing, software
+*    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+*    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+*    License for the specific language governing permissions and limitations
+*    under the License.
+**/
+
+package net.floodlightcontroller.mobilesdn;
+
+import static org.junit.Assert.*;
+import static org.easymock.EasyMock.*;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import net.floodlightcontroller.core.IFloodlightProviderService;
+import net.floodlightcontroller.core.IFloodlightProviderService.Role;
+import net.floodlightcontroller.core.IHAListener;
+import net.floodlightcontroller.core.IOFSwitch;
+import net.floodlightcontroller.core.module.FloodlightModuleContext;
+import net.floodlightcontroller.debugcounter.IDebugCounterService;
+import net.floodlightcontroller.debugcounter.NullDebugCounter;
+import net.floodlightcontroller.restserver.IRestApiService;
+import net.floodlightcontroller.routing.IRoutingService;
+import net.floodlightcontroller.threadpool.IThreadPoolService;
+import net.floodlightcontroller.threadpool.ThreadPool;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.easymock.Capture;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.openflow.protocol.factory.BasicFactory;
+import org.sdnplatform.sync.IStoreClient;
+import org.sdnplatform.sync.ISyncService;
+import org.sdnplatform.sync.internal.SyncManager;
+import org.sdnplatform.sync.internal.config.Node;
+import org.sdnplatform.sync.internal.config.PropertyCCProvider;
+import org.sdnplatform.sync.internal.util.CryptoUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Active and standby master state on two sync nodes of one domain,
+ * connected over the loopback interface
+ */
+public class StateReplicationTest {
+    protected static Logger log = LoggerFactory.getLogger(StateReplicationTest.class);
+    private static final int MAX_WAIT = 10000;  // ms
+    private static final int MASTER_PORT = 26998;
+
+    @Rule
+    public TemporaryFolder keyStoreFolder = new TemporaryFolder();
+
+    private ThreadPool tp;
+    private SyncManager active;
+    private SyncManager standby;
+    private Master master;
+
+    private SyncManager startSyncManager(String nodes, short nodeId,
+            File keyStore, String password) throws Exception {
+        FloodlightModuleContext fmc = new FloodlightModuleContext();
+        SyncManager syncManager = new SyncManager();
+        fmc.addService(IThreadPoolService.class, tp);
+        fmc.addService(IDebugCounterService.class, new NullDebugCounter());
+        fmc.addConfigParam(syncManager, "configProviders",
+                           PropertyCCProvider.class.getName());
+        fmc.addConfigParam(syncManager, "nodes", nodes);
+        fmc.addConfigParam(syncManager, "thisNode", "" + nodeId);
+        fmc.addConfigParam(syncManager, "persistenceEnabled", "false");
+        fmc.addConfigParam(syncManager, "authScheme", "CHALLENGE_RESPONSE");
+        fmc.addConfigParam(syncManager, "keyStorePath", keyStore.getAbsolutePath());
+        fmc.addConfigParam(syncManager, "keyStorePassword", password);
+        tp.init(fmc);
+        syncManager.init(fmc);
+        tp.startUp(fmc);
+        syncManager.startUp(fmc);
+        return syncManager;
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        String password = "verysecurepassword";
+        File keyStore = new File(keyStoreFolder.getRoot(), "keystore.jceks");
+        CryptoUtil.writeSharedSecret(keyStore.getAbsolutePath(), password,
+                                     CryptoUtil.secureRandom(16));
+
+        List<Node> nodes = new ArrayList<Node>();
+        nodes.add(new Node("localhost", 40121, (short)1, (short)1));
+        nodes.add(new Node("localhost", 40122, (short)2, (short)1));
+        String nodeString = new ObjectMapper().writeValueAsString(nodes);
+
+        tp = new ThreadPool();
+        active = startSyncManager(nodeString, (short)1, keyStore, password);
+        standby = startSyncManager(nodeString, (short)2, keyStore, password);
+    }
+
+    @After
+    public void tearDown() {
+        if (master != null) {
+            master.stopServices();
+        }
+        active.shutdown();
+        standby.shutdown();
+        tp.getScheduledExecutor().shutdownNow();
+    }
+
+
+    /**
+     * standby master on the standby sync node, with agent 10.0.0.1 behind
+     * a connected switch
+     *
+     * @return the HA listener the master registered
+     */
+    private IHAListener startStandbyMaster() throws Exception {
+        File apConfig = keyStoreFolder.newFile("ap.properties");
+        PrintWriter ap = new PrintWriter(apConfig);
+        ap.println("ManagedIP 10.0.0.1");
+        ap.println("SSID test");
+        ap.println("BSSID 00:00:00:00:00:01");
+        ap.println("AUTH open");
+        ap.println("OFPort 1");
+        ap.println("DownlinkBW 10");
+        ap.close();
+        File networkConfig = keyStoreFolder.newFile("network.properties");
+        PrintWriter net = new PrintWriter(networkConfig);
+        net.println("OFSwitchIP 127.0.0.1");
+        net.println("OutPort 2");
+        net.println("BandWidth 10");
+        net.println("AP 10.0.0.1");
+        net.close();
+
+        IOFSwitch sw = createNiceMock(IOFSwitch.class);
+        expect(sw.getId()).andReturn(1L).anyTimes();
+        expect(sw.getInetAddress()).andReturn(new InetSocketAddress("127.0.0.1", 6633))
+                .anyTimes();
+        replay(sw);
+        Capture<IHAListener> haListener = new Capture<IHAListener>();
+        IFloodlightProviderService provider = createNiceMock(IFloodlightProviderService.class);
+        expect(provider.getRole()).andReturn(Role.SLAVE).anyTimes();
+        expect(provider.getOFMessageFactory()).andReturn(BasicFactory.getInstance()).anyTimes();
+        expect(provider.getSwitch(1L)).andReturn(sw).anyTimes();
+        expect(provider.getAllSwitchMap()).andReturn(new HashMap<Long, IOFSwitch>()).anyTimes();
+        provider.addHAListener(capture(haListener));
+        replay(provider);
+
+        master = new Master();
+        FloodlightModuleContext fmc = new FloodlightModuleContext();
+        fmc.addService(IThreadPoolService.class, tp);
+        fmc.addService(IFloodlightProviderService.class, provider);
+        fmc.addService(IRestApiService.class, createNiceMock(IRestApiService.class));
+        fmc.addService(IOffloadPolicyService.class, createNiceMock(IOffloadPolicyService.class));
+        fmc.addService(IRoutingService.class, createNiceMock(IRoutingService.class));
+        fmc.addService(ISyncService.class, standby);
+        fmc.addConfigParam(master, "masterPort", "" + MASTER_PORT);
+        fmc.addConfigParam(master, "networkFile", networkConfig.getAbsolutePath());
+        fmc.addConfigParam(master, "apConfig", apConfig.getAbsolutePath());
+        fmc.addConfigParam(master, "enableCellular", "false");
+        fmc.addConfigParam(master, "stateSnapshotInterval", "60");
+        master.init(fmc);
+        master.startUp(fmc);
+        master.switchActivated(1L);
+        return haListener.getValue();
+    }
+
+    @Test
+    public void testFailover() throws Exception {
+        IHAListener haListener = startStandbyMaster();
+        assertNull(master.getClickManageServer());
+        assertEquals(1, master.getAgents().size());
+
+        MobileStateStore activeStore = new MobileStateStore(active);
+        APAgent agent = new APAgent("10.0.0.1");
+        agent.updateDownRate(2000);
+        Client clt = new Client("00:11:22:33:44:55", "10.0.0.100", agent);
+        agent.addClient(clt);
+        activeStore.snapshot(Arrays.asList(agent));
+
+        // a new client is replicated without waiting for the next snapshot
+        Client joined = new Client("00:11:22:33:44:66", "10.0.0.101", agent);
+        agent.addClient(joined);
+        long written = System.nanoTime();
+        activeStore.saveClient(joined);
+        IStoreClient<Long, byte[]> replica = standby.getStoreClient(
+                MobileStateStore.CLIENT_STORE, Long.class, byte[].class);
+        while (replica.getValue(joined.getMacAddress().toLong()) == null) {
+            assertTrue("state not replicated",
+                    System.nanoTime() - written < MAX_WAIT * 1000000L);
+            Thread.sleep(10);
+        }
+        long replicated = System.nanoTime();
+
+        // the active master is gone, the standby is given the master role
+        active.shutdown();
+        long start = System.nanoTime();
+        haListener.transitionToMaster();
+        long takeover = System.nanoTime() - start;
+
+        assertNotNull(master.getClient("00:11:22:33:44:55"));
+        assertNotNull(master.getClient("00:11:22:33:44:66"));
+        APAgent restored = master.getAgents().iterator().next();
+        assertEquals(2, restored.getAllClients().size());
+        assertEquals(2000, restored.getDownRate(), 1e-3);
+        log.info("replication {} ms, takeover {} ms",
+                (replicated - written) / 1000000, takeover / 1000000);
+        assertTrue("takeover took " + takeover / 1000000 + " ms",
+                takeover < 1000 * 1000000L);
+
+        // the agent channel is bound, once its thread has started
+        ClickManageServer server = master.getClickManageServer();
+        assertNotNull(server);
+        DatagramSocket socket = new DatagramSocket();
+        byte[] data = "start|\n".getBytes();
+        for (int i = 0; i < 100 && server.getProcessedCount() < 1; i++) {
+            socket.send(new DatagramPacket(data, data.length,
+                    InetAddress.getByName("127.0.0.1"), MASTER_PORT));
+            Thread.sleep(20);
+        }
+        socket.close();
+        assertTrue(server.getProcessedCount() >= 1);
+
+        // a repeated transition changes nothing
+        haListener.transitionToMaster();
+        assertSame(server, master.getClickManageServer());
+        assertEquals(2, restored.getAllClients().size());
+    }
+}
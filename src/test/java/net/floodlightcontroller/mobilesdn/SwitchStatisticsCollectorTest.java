@@ -0,0 +1,236 @@
+/**
+*    Copyright 2013 University of Helsinki
+*
+*    Licensed under the Apache License, Version 2.0 (the "License"); you may
+*    not use this file except in compliance with the License. You may obtain
+*    a copy of the License at
+*
+*         http://www.apache.org/licenses/LICENSE-2.0
+*
+*    Unless required by applicable law or agreed to in writing, software
+*    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+*    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+*    License for the specific language governing permissions and limitations
+*    under the License.
+**/
+
+
+package net.floodlightcontroller.mobilesdn;
+
+import static org.junit.Assert.*;
+import static org.easymock.EasyMock.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import net.floodlightcontroller.core.IOFSwitch;
+import net.floodlightcontroller.core.internal.OFStatisticsFuture;
+import net.floodlightcontroller.core.test.MockThreadPoolService;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openflow.protocol.OFMatch;
+import org.openflow.protocol.OFStatisticsReply;
+import org.openflow.protocol.OFStatisticsRequest;
+import org.openflow.protocol.Wildcards;
+import org.openflow.protocol.Wildcards.Flag;
+import org.openflow.protocol.statistics.OFFlowStatisticsReply;
+import org.openflow.protocol.statistics.OFPortStatisticsReply;
+import org.openflow.protocol.statistics.OFStatistics;
+import org.openflow.protocol.statistics.OFStatisticsType;
+
+public class SwitchStatisticsCollectorTest {
+    private SwitchStatisticsCollector collector;
+
+    @Before
+    public void setUp() {
+        collector = new SwitchStatisticsCollector(null, null, 1.0,
+                new ArrayList<SwitchOutQueue>());
+    }
+
+    @After
+    public void tearDown() {
+        collector.shutdown();
+    }
+
+    private static OFFlowStatisticsReply flow(Short inPort, long bytes) {
+        OFMatch match = new OFMatch();
+        if (inPort == null) {
+            match.setWildcards(Wildcards.FULL);
+        } else {
+            match.setWildcards(Wildcards.FULL.matchOn(Flag.IN_PORT));
+            match.setInputPort(inPort);
+        }
+        OFFlowStatisticsReply reply = new OFFlowStatisticsReply();
+        reply.setMatch(match);
+        reply.setByteCount(bytes);
+        return reply;
+    }
+
+    private static OFPortStatisticsReply port(short num, long txBytes) {
+        OFPortStatisticsReply reply = new OFPortStatisticsReply();
+        reply.setPortNumber(num);
+        reply.setTransmitBytes(txBytes);
+        return reply;
+    }
+
+    @Test
+    public void testPublishSnapshot() {
+        final List<SwitchStatistics> received = new ArrayList<SwitchStatistics>();
+        ISwitchStatisticsListener l1 = new ISwitchStatisticsListener() {
+            @Override
+            public void statisticsUpdated(SwitchStatistics stats) {
+                received.add(stats);
+            }
+        };
+        ISwitchStatisticsListener broken = new ISwitchStatisticsListener() {
+            @Override
+            public void statisticsUpdated(SwitchStatistics stats) {
+                throw new RuntimeException("listener failure");
+            }
+        };
+        collector.addListener(broken);
+        collector.addListener(l1);
+
+        List<OFStatistics> flows = new ArrayList<OFStatistics>();
+        flows.add(flow((short) 1, 100));
+        flows.add(flow((short) 2, 200));
+        flows.add(flow(null, 300));
+        List<OFStatistics> ports = new ArrayList<OFStatistics>();
+        ports.add(port((short) 1, 1000));
+        ports.add(port((short) 2, 2000));
+
+        collector.publish(7L, 1234L, flows, ports, 0L, 0L);
+
+        // a failing consumer does not keep the others from getting the snapshot
+        assertEquals(1, received.size());
+        SwitchStatistics stats = received.get(0);
+        assertSame(stats, collector.getStatistics(7L));
+        assertEquals(7L, stats.getSwId());
+        assertEquals(1234L, stats.getTimestamp());
+        // no previous replies, the configured interval is used
+        assertEquals(1.0, stats.getFlowInterval(), 1e-9);
+        assertEquals(3, stats.getFlows().size());
+        assertEquals(2000, stats.getPort((short) 2).getTransmitBytes());
+        assertNull(stats.getPort((short) 3));
+
+        List<OFFlowStatisticsReply> inPort2 = stats.getFlowsByInPort((short) 2);
+        assertEquals(1, inPort2.size());
+        assertEquals(200, inPort2.get(0).getByteCount());
+
+        collector.removeSwitch(7L);
+        assertNull(collector.getStatistics(7L));
+    }
+
+    @Test
+    public void testActualReplyInterval() {
+        List<OFStatistics> empty = new ArrayList<OFStatistics>();
+        collector.publish(7L, 0L, empty, empty, 1000000000L, 1000000000L);
+        collector.publish(7L, 0L, empty, empty, 3500000000L, 3250000000L);
+        SwitchStatistics stats = collector.getStatistics(7L);
+        assertEquals(2.5, stats.getFlowInterval(), 1e-9);
+        assertEquals(2.25, stats.getPortInterval(), 1e-9);
+    }
+
+    private static OFStatisticsReply statsReply(int xid, OFStatisticsType type,
+            OFStatistics stat) {
+        OFStatisticsReply sr = new OFStatisticsReply();
+        sr.setXid(xid);
+        sr.setStatisticType(type);
+        List<OFStatistics> l = new ArrayList<OFStatistics>();
+        l.add(stat);
+        sr.setStatistics(l);
+        return sr;
+    }
+
+    @Test
+    public void testSlowSwitchDoesNotDelayOthers() throws Exception {
+        MockThreadPoolService tp = new MockThreadPoolService();
+        IOFSwitch slow = createNiceMock(IOFSwitch.class);
+        IOFSwitch fast = createNiceMock(IOFSwitch.class);
+        OFStatisticsFuture slowFlow = new OFStatisticsFuture(tp, slow, 1);
+        OFStatisticsFuture slowPort = new OFStatisticsFuture(tp, slow, 2);
+        OFStatisticsFuture fastFlow = new OFStatisticsFuture(tp, fast, 3);
+        OFStatisticsFuture fastPort = new OFStatisticsFuture(tp, fast, 4);
+        expect(slow.getId()).andReturn(1L).anyTimes();
+        expect(fast.getId()).andReturn(2L).anyTimes();
+        expect(slow.queryStatistics(anyObject(OFStatisticsRequest.class)))
+                .andReturn(slowFlow).andReturn(slowPort);
+        expect(fast.queryStatistics(anyObject(OFStatisticsRequest.class)))
+                .andReturn(fastFlow).andReturn(fastPort);
+        replay(slow, fast);
+
+        final BlockingQueue<SwitchStatistics> received =
+                new LinkedBlockingQueue<SwitchStatistics>();
+        collector.addListener(new ISwitchStatisticsListener() {
+            @Override
+            public void statisticsUpdated(SwitchStatistics stats) {
+                received.add(stats);
+            }
+        });
+
+        // both sweeps are sent before any reply arrives
+        assertTrue(collector.startSweep(slow));
+        assertTrue(collector.startSweep(fast));
+        // still pending, not requested twice
+        assertFalse(collector.startSweep(slow));
+
+        fastFlow.deliverFuture(fast, statsReply(3, OFStatisticsType.FLOW, flow((short) 1, 10)));
+        fastPort.deliverFuture(fast, statsReply(4, OFStatisticsType.PORT, port((short) 1, 20)));
+
+        SwitchStatistics stats = received.poll(2, TimeUnit.SECONDS);
+        assertNotNull(stats);
+        assertEquals(2L, stats.getSwId());
+        assertEquals(1, stats.getFlows().size());
+        assertEquals(20, stats.getPort((short) 1).getTransmitBytes());
+        assertNull(collector.getStatistics(1L));
+
+        // the slow switch completes later
+        slowPort.deliverFuture(slow, statsReply(2, OFStatisticsType.PORT, port((short) 3, 30)));
+        slowFlow.deliverFuture(slow, statsReply(1, OFStatisticsType.FLOW, flow(null, 40)));
+        stats = received.poll(2, TimeUnit.SECONDS);
+        assertNotNull(stats);
+        assertEquals(1L, stats.getSwId());
+        assertEquals(30, stats.getPort((short) 3).getTransmitBytes());
+    }
+
+    @Test
+    public void testFixedPollInterval() {
+        assertFalse(collector.isAdaptive());
+        collector.setPollInterval(7L, 0.1);
+        assertEquals(1.0, collector.getPollInterval(7L), 1e-9);
+    }
+
+    @Test
+    public void testAdaptivePollInterval() {
+        SwitchStatisticsCollector adaptive = new SwitchStatisticsCollector(
+                null, null, 2.0, new ArrayList<SwitchOutQueue>(), true);
+        try {
+            assertEquals(0.5, adaptive.getMinInterval(), 1e-9);
+            assertEquals(8.0, adaptive.getMaxInterval(), 1e-9);
+            assertEquals(2.0, adaptive.getPollInterval(7L), 1e-9);
+
+            adaptive.setPollInterval(7L, 1.0);
+            assertEquals(1.0, adaptive.getPollInterval(7L), 1e-9);
+            // limited to [interval/4, interval*4]
+            adaptive.setPollInterval(7L, 0.01);
+            assertEquals(0.5, adaptive.getPollInterval(7L), 1e-9);
+            adaptive.setPollInterval(7L, 100);
+            assertEquals(8.0, adaptive.getPollInterval(7L), 1e-9);
+            // other switches keep their own interval
+            assertEquals(2.0, adaptive.getPollInterval(8L), 1e-9);
+
+            OFMonitor monitor = new OFMonitor(null, null, adaptive, 2.0, 3,
+                    new ArrayList<SwitchOutQueue>());
+            assertEquals(0.5, monitor.getPollInterval(0.9), 1e-9);
+            assertEquals(2.0, monitor.getPollInterval(0.2), 1e-9);
+            assertEquals(8.0, monitor.getPollInterval(0.0), 1e-9);
+        } finally {
+            adaptive.shutdown();
+        }
+    }
+}